@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2003-2007 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.services.jcr.ext.artifact;
+
+import org.apache.commons.io.IOUtils;
+import org.exoplatform.services.jcr.core.ManageableRepository;
+import org.exoplatform.services.security.IdentityConstants;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * Resolves the content of artifact files. A file stored in {@link BlobStore} keeps an empty
+ * <code>jcr:data</code> and references the shared blob, so its content must always be read through
+ * this class. Media type and modification time stay in the own <code>jcr:content</code> of the file.
+ * <p>
+ * Blobs are readable by the system only, a blob is read by a system session once the session of the
+ * caller has read the file referencing it, so the permissions of the file protect its content.
+ *
+ * @version $Id: ArtifactContent.java $
+ */
+public final class ArtifactContent
+{
+
+   /**
+    * Mixin of <code>nt:file</code> whose content is a shared blob.
+    */
+   public static final String BLOB_REFERENCE = "exo:blobReference";
+
+   /**
+    * Checksum files are never longer, the rest of a larger file is ignored.
+    */
+   private static final int MAX_CHECKSUM_SIZE = 1024;
+
+   /**
+    * Reference to the blob node.
+    */
+   public static final String BLOB = "exo:blob";
+
+   /**
+    * SHA-256 of the content, name of the blob node.
+    */
+   public static final String BLOB_HASH = "exo:blobHash";
+
+   /**
+    * System sessions reading blobs, by repository and workspace, kept per thread since a session
+    * must not be used concurrently.
+    */
+   private static final ThreadLocal<Map<String, Session>> BLOB_SESSIONS = new ThreadLocal<Map<String, Session>>()
+   {
+      @Override
+      protected Map<String, Session> initialValue()
+      {
+         return new HashMap<String, Session>();
+      }
+   };
+
+   private ArtifactContent()
+   {
+   }
+
+   /**
+    * @param file
+    *          the <code>nt:file</code> node referencing a blob, read by the session of the caller
+    * @return the blob node, read by a system session unless the file is
+    */
+   private static Node getBlob(Node file) throws RepositoryException
+   {
+      Session session = file.getSession();
+      if (IdentityConstants.SYSTEM.equals(session.getUserID()))
+         return file.getProperty(BLOB).getNode();
+
+      ManageableRepository repository = (ManageableRepository)session.getRepository();
+      String workspace = session.getWorkspace().getName();
+      String key = repository.getConfiguration().getName() + "/" + workspace;
+      Map<String, Session> sessions = BLOB_SESSIONS.get();
+      Session system = sessions.get(key);
+      if (system == null || !system.isLive())
+      {
+         system = repository.getSystemSession(workspace);
+         sessions.put(key, system);
+      }
+      return system.getNodeByUUID(file.getProperty(BLOB).getString());
+   }
+
+   /**
+    * @param file
+    *          the <code>nt:file</code> node
+    * @return node holding <code>jcr:data</code> of the file
+    */
+   public static Node getDataNode(Node file) throws RepositoryException
+   {
+      if (file.isNodeType(BLOB_REFERENCE))
+      {
+         return getBlob(file).getNode("jcr:content");
+      }
+      return file.getNode("jcr:content");
+   }
+
+   public static InputStream getStream(Node file) throws RepositoryException
+   {
+      return getDataNode(file).getProperty("jcr:data").getStream();
+   }
+
+   public static long getLength(Node file) throws RepositoryException
+   {
+      return getDataNode(file).getProperty("jcr:data").getLength();
+   }
+
+   /**
+    * @param checksumFile
+    *          the <code>nt:file</code> node of a checksum, e.g. <code>.sha1</code> file
+    * @return the stored checksum, without the file name which may follow it
+    */
+   public static String readChecksum(Node checksumFile) throws RepositoryException, IOException
+   {
+      InputStream in = getStream(checksumFile);
+      try
+      {
+         return parseChecksum(in);
+      }
+      finally
+      {
+         IOUtils.closeQuietly(in);
+      }
+   }
+
+   /**
+    * @param in
+    *          content of a checksum file, not closed
+    * @return the checksum in lower case, without the file name which may follow it
+    */
+   public static String parseChecksum(InputStream in) throws IOException
+   {
+      byte[] buf = new byte[MAX_CHECKSUM_SIZE];
+      int length = 0;
+      int count;
+      while (length < buf.length && (count = in.read(buf, length, buf.length - length)) != -1)
+      {
+         length += count;
+      }
+      String checksum = new String(buf, 0, length, "ISO-8859-1").trim();
+      int space = checksum.indexOf(' ');
+      return (space > 0 ? checksum.substring(0, space) : checksum).toLowerCase();
+   }
+
+   /**
+    * @return path of the blob referenced by the file or null if the file keeps its content
+    */
+   public static String getBlobPath(Node file) throws RepositoryException
+   {
+      return file.isNodeType(BLOB_REFERENCE) ? getBlob(file).getPath() : null;
+   }
+}
@@ -18,15 +18,14 @@
 package org.exoplatform.services.jcr.ext.artifact;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
 
 import org.apache.commons.lang.StringUtils;
-import org.w3c.dom.Document;
-import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
 /**
@@ -83,35 +82,29 @@ public final class ArtifactDescriptor implements Descriptor {
   public static ArtifactDescriptor createFromPomfile(File pomfile) throws SAXException,
                                                                   ParserConfigurationException,
                                                                   IOException {
-    DocumentBuilder docBuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-    Document doc = docBuilder.parse(pomfile);
-
-    NodeList groupIdList = doc.getElementsByTagName("groupId");
-    String groupId = groupIdList.item(0).getTextContent().trim();
-
-    NodeList artifactIdList = doc.getElementsByTagName("artifactId");
-    // String artifactId = artifactIdList.item(0).getTextContent();
-    String artifactId = "";
-    for (int i = 0; i < artifactIdList.getLength(); i++) {
-      if (artifactIdList.item(i).getParentNode().getNodeName().equals("project"))
-        artifactId = artifactIdList.item(i).getTextContent().trim();
+    InputStream in = new FileInputStream(pomfile);
+    try {
+      return createFromPom(in);
+    } finally {
+      in.close();
     }
-
-    NodeList versionList = doc.getElementsByTagName("version");
-    String versionId = validMavenVersion(versionList.item(0).getTextContent().trim());
-
-    return new ArtifactDescriptor(new FolderDescriptor(groupId), artifactId, versionId);
   }
 
-  private static String validMavenVersion(String version) {
-    // Not necessary checking, -SNAPSHOT will be ignoreg if uncomment;
-    // CharSet charSet = CharSet.getInstance("A-Za-z");
-    // int pos = version.indexOf("-");
-    // char next_ch = version.charAt(pos + 1);
-    // if ((pos > 0) && (charSet.contains(next_ch)))
-    // version = version.substring(0, pos);
-
-    return version;
+  /**
+   * Reads artifact coordinates from pom content. Only own coordinates of the project are taken,
+   * missing groupId and version are inherited from the parent, see {@link PomParser}.
+   * 
+   * @param pom
+   *          pom content
+   */
+  public static ArtifactDescriptor createFromPom(InputStream pom) throws SAXException,
+                                                                 ParserConfigurationException,
+                                                                 IOException {
+    try {
+      return PomParser.parse(pom);
+    } catch (XMLStreamException e) {
+      throw new SAXException(e);
+    }
   }
 
 }
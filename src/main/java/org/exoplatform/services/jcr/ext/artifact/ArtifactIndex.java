@@ -0,0 +1,420 @@
+/*
+ * Copyright (C) 2003-2007 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.services.jcr.ext.artifact;
+
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+
+/**
+ * In-memory index of artifact versions. Versions are kept in sorted maps by
+ * <code>groupId:artifactId:version</code>, by <code>artifactId:groupId:version</code> and by
+ * <code>version:groupId:artifactId</code>, so exact and prefix searches of groupId, artifactId,
+ * version or coordinates are range lookups. The index is built once by walking the tree and then
+ * kept current by observation of the maven root.
+ *
+ * @version $Id: ArtifactIndex.java $
+ */
+class ArtifactIndex implements EventListener
+{
+   private static final Log LOG = ExoLogger.getLogger(ArtifactIndex.class);
+
+   static final int EVENT_TYPES = Event.NODE_ADDED | Event.NODE_REMOVED;
+
+   private static final char SEPARATOR = ':';
+
+   /**
+    * Character following the separator, upper bound of the keys starting with a prefix and separator.
+    */
+   private static final char AFTER_SEPARATOR = SEPARATOR + 1;
+
+   /**
+    * Character following the path separator, upper bound of the paths under a folder.
+    */
+   private static final char AFTER_SLASH = '/' + 1;
+
+   private static final char MAX_CHAR = '\uffff';
+
+   private final ConcurrentSkipListMap<String, Entry> byCoordinates = new ConcurrentSkipListMap<String, Entry>();
+
+   private final ConcurrentSkipListMap<String, Entry> byArtifactId = new ConcurrentSkipListMap<String, Entry>();
+
+   private final ConcurrentSkipListMap<String, Entry> byVersion = new ConcurrentSkipListMap<String, Entry>();
+
+   /**
+    * Sorted, so the versions under a removed folder are a range lookup.
+    */
+   private final ConcurrentSkipListMap<String, Entry> byPath = new ConcurrentSkipListMap<String, Entry>();
+
+   private final String rootPath;
+
+   /**
+    * Session used to read changed nodes.
+    */
+   private final Session session;
+
+   private volatile boolean ready;
+
+   /**
+    * Paths removed while the tree is walked, the walk may have indexed them before, guarded by itself.
+    */
+   private final Set<String> removedDuringBuild = new HashSet<String>();
+
+   private boolean building;
+
+   /**
+    * @param session
+    *          session used to read the changed nodes
+    * @param rootPath
+    *          absolute path of the maven root node
+    */
+   ArtifactIndex(Session session, String rootPath)
+   {
+      this.session = session;
+      this.rootPath = rootPath.length() > 1 && rootPath.endsWith("/") ? rootPath.substring(0, rootPath.length() - 1)
+         : rootPath;
+   }
+
+   /**
+    * Indexed version of artifact.
+    */
+   static class Entry
+   {
+      final String groupId;
+
+      final String artifactId;
+
+      final String version;
+
+      final String path;
+
+      private final String coordinates;
+
+      /**
+       * Coordinates in lower case, matched by {@link SearchCriteria.MatchMode#CONTAINS}.
+       */
+      private final String lowerCoordinates;
+
+      volatile boolean jar;
+
+      volatile boolean pom;
+
+      Entry(String groupId, String artifactId, String version, String path)
+      {
+         this.groupId = groupId;
+         this.artifactId = artifactId;
+         this.version = version;
+         this.path = path;
+         this.coordinates = groupId + SEPARATOR + artifactId + SEPARATOR + version;
+         this.lowerCoordinates = coordinates.toLowerCase(Locale.ENGLISH);
+      }
+
+      String getCoordinates()
+      {
+         return coordinates;
+      }
+
+      String getArtifactIdKey()
+      {
+         return artifactId + SEPARATOR + groupId + SEPARATOR + version;
+      }
+
+      String getVersionKey()
+      {
+         return version + SEPARATOR + groupId + SEPARATOR + artifactId;
+      }
+
+      /**
+       * @return true if the version is found by {@link ArtifactIndex#search} with the expression
+       */
+      boolean matches(String expr, SearchCriteria.MatchMode mode)
+      {
+         switch (mode)
+         {
+            case EXACT :
+               return coordinates.equals(expr) || groupId.equals(expr) || artifactId.equals(expr)
+                  || version.equals(expr) || coordinates.startsWith(expr + SEPARATOR)
+                  || getArtifactIdKey().startsWith(expr + SEPARATOR);
+            case PREFIX :
+               return coordinates.startsWith(expr) || getArtifactIdKey().startsWith(expr);
+            default :
+               return lowerCoordinates.contains(expr.toLowerCase(Locale.ENGLISH));
+         }
+      }
+
+      String getJarPath()
+      {
+         return path + "/" + artifactId + "-" + version + ".jar";
+      }
+
+      String getPomPath()
+      {
+         return path + "/" + artifactId + "-" + version + ".pom";
+      }
+   }
+
+   /**
+    * Indexes all versions found under the root. Changes made meanwhile are applied by the listener,
+    * which must be registered before.
+    *
+    * @param walkSession
+    *          session to walk the tree, other than the one of the listener
+    */
+   void build(Session walkSession) throws RepositoryException
+   {
+      long start = System.currentTimeMillis();
+      synchronized (removedDuringBuild)
+      {
+         building = true;
+      }
+      List<String> removed;
+      try
+      {
+         walk((Node)walkSession.getItem(rootPath));
+      }
+      finally
+      {
+         synchronized (removedDuringBuild)
+         {
+            building = false;
+            removed = new ArrayList<String>(removedDuringBuild);
+            removedDuringBuild.clear();
+         }
+      }
+      // the walk may have read versions before their removal, the ones added again stay
+      for (String path : removed)
+      {
+         if (!session.itemExists(path))
+         {
+            remove(path);
+         }
+      }
+      ready = true;
+      LOG.info("Artifact index is built, " + byPath.size() + " versions in " + (System.currentTimeMillis() - start)
+         + " ms");
+   }
+
+   /**
+    * @return true if the index is built and may be searched
+    */
+   boolean isReady()
+   {
+      return ready;
+   }
+
+   int size()
+   {
+      return byPath.size();
+   }
+
+   private void walk(Node folder) throws RepositoryException
+   {
+      if (folder.isNodeType("exo:versionId"))
+      {
+         add(folder);
+         return;
+      }
+      for (NodeIterator children = folder.getNodes(); children.hasNext();)
+      {
+         Node child = children.nextNode();
+         if (child.isNodeType("nt:folder"))
+         {
+            walk(child);
+         }
+      }
+   }
+
+   private void add(Node version) throws RepositoryException
+   {
+      Entry entry = createEntry(version, rootPath);
+      if (entry == null)
+      {
+         return;
+      }
+      byPath.put(entry.path, entry);
+      byCoordinates.put(entry.getCoordinates(), entry);
+      byArtifactId.put(entry.getArtifactIdKey(), entry);
+      byVersion.put(entry.getVersionKey(), entry);
+   }
+
+   /**
+    * @param rootPath
+    *          absolute path of the maven root node
+    * @return entry of the version folder, null if its parent is not an artifact
+    */
+   static Entry createEntry(Node version, String rootPath) throws RepositoryException
+   {
+      Node artifactId = version.getParent();
+      if (!artifactId.isNodeType("exo:artifactId"))
+      {
+         return null;
+      }
+      String root = rootPath.endsWith("/") ? rootPath.substring(0, rootPath.length() - 1) : rootPath;
+      String relPath = artifactId.getParent().getPath().substring(root.length());
+      String groupId = relPath.startsWith("/") ? relPath.substring(1).replace('/', '.') : relPath.replace('/', '.');
+
+      Entry entry = new Entry(groupId, artifactId.getName(), version.getName(), version.getPath());
+      entry.jar = version.hasNode(artifactId.getName() + "-" + version.getName() + ".jar");
+      entry.pom = version.hasNode(artifactId.getName() + "-" + version.getName() + ".pom");
+      return entry;
+   }
+
+   private void remove(String path)
+   {
+      synchronized (removedDuringBuild)
+      {
+         if (building)
+         {
+            removedDuringBuild.add(path);
+         }
+      }
+
+      List<Entry> removed = new ArrayList<Entry>(byPath.subMap(path + "/", path + AFTER_SLASH).values());
+      Entry entry = byPath.get(path);
+      if (entry != null)
+      {
+         removed.add(entry);
+      }
+      for (Entry version : removed)
+      {
+         byPath.remove(version.path);
+         byCoordinates.remove(version.getCoordinates());
+         byArtifactId.remove(version.getArtifactIdKey());
+         byVersion.remove(version.getVersionKey());
+      }
+   }
+
+   /**
+    * Finds versions matching the expression by groupId, artifactId, version or full coordinates
+    * <code>groupId:artifactId:version</code>.
+    *
+    * @return all matching versions ordered by coordinates, the caller skips the versions it can't
+    *         read before paging
+    */
+   List<Entry> search(String expr, SearchCriteria.MatchMode mode)
+   {
+      SortedMap<String, Entry> found = new TreeMap<String, Entry>();
+      switch (mode)
+      {
+         case EXACT :
+            putAll(found, byCoordinates.subMap(expr + SEPARATOR, expr + AFTER_SEPARATOR));
+            putAll(found, byArtifactId.subMap(expr + SEPARATOR, expr + AFTER_SEPARATOR));
+            Entry entry = byCoordinates.get(expr);
+            if (entry != null)
+            {
+               found.put(entry.getCoordinates(), entry);
+            }
+            for (Entry candidate : byVersion.subMap(expr + SEPARATOR, expr + AFTER_SEPARATOR).values())
+            {
+               if (candidate.version.equals(expr))
+               {
+                  found.put(candidate.getCoordinates(), candidate);
+               }
+            }
+            break;
+         case PREFIX :
+            putAll(found, byCoordinates.subMap(expr, expr + MAX_CHAR));
+            putAll(found, byArtifactId.subMap(expr, expr + MAX_CHAR));
+            break;
+         default :
+            // entries come ordered by coordinates, the matching ones need no sorting
+            String lower = expr.toLowerCase(Locale.ENGLISH);
+            List<Entry> matching = new ArrayList<Entry>();
+            for (Entry candidate : byCoordinates.values())
+            {
+               if (candidate.lowerCoordinates.contains(lower))
+               {
+                  matching.add(candidate);
+               }
+            }
+            return matching;
+      }
+
+      return new ArrayList<Entry>(found.values());
+   }
+
+   private static void putAll(SortedMap<String, Entry> found, Map<String, Entry> entries)
+   {
+      for (Entry entry : entries.values())
+      {
+         found.put(entry.getCoordinates(), entry);
+      }
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   public void onEvent(EventIterator events)
+   {
+      while (events.hasNext())
+      {
+         Event event = events.nextEvent();
+         try
+         {
+            String path = event.getPath();
+            if (event.getType() == Event.NODE_REMOVED)
+            {
+               String name = path.substring(path.lastIndexOf('/') + 1);
+               Entry parent = byPath.get(path.substring(0, path.lastIndexOf('/')));
+               if (parent != null)
+               {
+                  // jar or pom of indexed version is removed
+                  parent.jar &= !name.endsWith(".jar");
+                  parent.pom &= !name.endsWith(".pom");
+               }
+               else
+               {
+                  remove(path);
+               }
+            }
+            else if (session.itemExists(path))
+            {
+               Node node = (Node)session.getItem(path);
+               if (node.isNodeType("exo:versionId"))
+               {
+                  add(node);
+               }
+               else if (node.isNodeType("nt:file") && byPath.containsKey(node.getParent().getPath()))
+               {
+                  add(node.getParent());
+               }
+            }
+         }
+         catch (RepositoryException e)
+         {
+            LOG.error("Cannot update artifact index", e);
+         }
+      }
+   }
+}
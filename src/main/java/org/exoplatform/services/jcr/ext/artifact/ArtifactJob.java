@@ -0,0 +1,402 @@
+/*
+ * Copyright (C) 2003-2007 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.services.jcr.ext.artifact;
+
+import org.exoplatform.services.jcr.ext.common.SessionProvider;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+import org.exoplatform.services.security.ConversationState;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Long running operation on the artifacts executed by {@link ArtifactJobManager}. The job keeps the
+ * identity of the thread that created it and runs with it, a job created without identity runs as
+ * anonymous unless it is a system job, e.g. a scheduled maintenance. It counts processed items and
+ * bytes and collects errors of single items. Cancellation is cooperative: the job checks
+ * {@link #isCancelled()} between items and keeps what is done so far, threads are never interrupted
+ * as it could close the channels of the content storage.
+ *
+ * @version $Id: ArtifactJob.java $
+ */
+public abstract class ArtifactJob implements Runnable
+{
+   private static final Log LOG = ExoLogger.getLogger(ArtifactJob.class);
+
+   /**
+    * Max number of error messages kept, the errors are still counted.
+    */
+   private static final int MAX_ERROR_MESSAGES = 100;
+
+   public enum State {
+      QUEUED, RUNNING, CANCELLING, CANCELLED, COMPLETED, FAILED
+   }
+
+   private final String id = UUID.randomUUID().toString();
+
+   private final String type;
+
+   private final String description;
+
+   private final ConversationState identity;
+
+   private final boolean system;
+
+   private final long submitTime = System.currentTimeMillis();
+
+   private volatile long startTime;
+
+   private volatile long endTime;
+
+   private volatile State state = State.QUEUED;
+
+   private volatile boolean cancelled;
+
+   private final AtomicLong items = new AtomicLong();
+
+   private final AtomicLong bytes = new AtomicLong();
+
+   private final AtomicLong errors = new AtomicLong();
+
+   private final List<String> errorMessages = new ArrayList<String>();
+
+   private volatile String lastError;
+
+   /**
+    * @param type
+    *          short name of the kind of job, e.g. <code>import</code>
+    * @param description
+    *          what the job processes, e.g. the source of the import
+    */
+   protected ArtifactJob(String type, String description)
+   {
+      this(type, description, false);
+   }
+
+   /**
+    * @param system
+    *          true if the job runs with system sessions whoever created it, only for maintenance
+    *          scheduled by the services
+    */
+   protected ArtifactJob(String type, String description, boolean system)
+   {
+      this.type = type;
+      this.description = description;
+      this.system = system;
+      this.identity = system ? null : ConversationState.getCurrent();
+   }
+
+   /**
+    * Does the work of the job. Returning normally while the job is cancelled completes it as
+    * {@link State#CANCELLED}, as well as throwing {@link CancellationException}.
+    */
+   protected abstract void execute() throws Exception;
+
+   /**
+    * {@inheritDoc}
+    */
+   public final void run()
+   {
+      synchronized (this)
+      {
+         if (state != State.QUEUED)
+         {
+            return;
+         }
+         startTime = System.currentTimeMillis();
+         state = State.RUNNING;
+      }
+
+      LOG.info("Job " + id + " started: " + type + " " + description);
+      ConversationState previous = ConversationState.getCurrent();
+      ConversationState.setCurrent(identity);
+      State result;
+      try
+      {
+         execute();
+         result = cancelled ? State.CANCELLED : State.COMPLETED;
+      }
+      catch (CancellationException e)
+      {
+         result = State.CANCELLED;
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+         result = State.CANCELLED;
+      }
+      catch (Throwable e)
+      {
+         LOG.error("Job " + id + " failed: " + type + " " + description, e);
+         failed(null, e);
+         result = State.FAILED;
+      }
+      finally
+      {
+         ConversationState.setCurrent(previous);
+      }
+
+      synchronized (this)
+      {
+         endTime = System.currentTimeMillis();
+         state = result;
+      }
+      LOG.info("Job " + id + " " + result.name().toLowerCase(Locale.ENGLISH) + ": " + items + " items, " + bytes
+         + " bytes, " + errors + " errors, " + getElapsed() + " ms");
+   }
+
+   /**
+    * Asks the job to stop. A queued job is cancelled at once, a running one stops after the current
+    * item.
+    *
+    * @return false if the job is already finished
+    */
+   public synchronized boolean cancel()
+   {
+      if (isFinished())
+      {
+         return false;
+      }
+      cancelled = true;
+      if (state == State.QUEUED)
+      {
+         endTime = System.currentTimeMillis();
+         state = State.CANCELLED;
+      }
+      else if (state == State.RUNNING)
+      {
+         state = State.CANCELLING;
+      }
+      return true;
+   }
+
+   public boolean isCancelled()
+   {
+      return cancelled;
+   }
+
+   /**
+    * @throws CancellationException
+    *           if the job is cancelled
+    */
+   protected void checkCancelled()
+   {
+      if (cancelled)
+      {
+         throw new CancellationException("Job " + id + " is cancelled");
+      }
+   }
+
+   /**
+    * Counts processed items.
+    *
+    * @param count
+    *          number of items
+    * @param size
+    *          their size in bytes
+    */
+   protected void processed(long count, long size)
+   {
+      items.addAndGet(count);
+      bytes.addAndGet(size);
+   }
+
+   /**
+    * Records error of a single item, the job goes on.
+    *
+    * @param item
+    *          the item which failed or null if the error is not related to an item
+    */
+   protected void failed(String item, Throwable cause)
+   {
+      String message = cause.getMessage() == null ? cause.getClass().getName() : cause.getMessage();
+      if (item != null)
+      {
+         message = item + ": " + message;
+      }
+      errors.incrementAndGet();
+      lastError = message;
+      synchronized (errorMessages)
+      {
+         if (errorMessages.size() < MAX_ERROR_MESSAGES)
+         {
+            errorMessages.add(message);
+         }
+      }
+   }
+
+   /**
+    * @return new session provider for the identity of the job, system one for a system job and
+    *         anonymous one if the job was created without identity
+    */
+   protected SessionProvider createSessionProvider()
+   {
+      if (system)
+         return SessionProvider.createSystemProvider();
+      return identity == null ? SessionProvider.createAnonimProvider() : new SessionProvider(identity);
+   }
+
+   /**
+    * Releases resources kept after the job is finished, e.g. its result file. Called by the manager
+    * when it forgets the job.
+    */
+   protected void dispose()
+   {
+   }
+
+   /**
+    * @return file produced by the job for download or null if the job has no such result
+    */
+   public File getResult()
+   {
+      return null;
+   }
+
+   /**
+    * @return values specific to the kind of job, reported together with the common progress
+    */
+   public Map<String, Object> getDetails()
+   {
+      return new LinkedHashMap<String, Object>();
+   }
+
+   public String getId()
+   {
+      return id;
+   }
+
+   public String getType()
+   {
+      return type;
+   }
+
+   public String getDescription()
+   {
+      return description;
+   }
+
+   /**
+    * @return user id of the identity the job runs with or null for system
+    */
+   public String getOwner()
+   {
+      return identity == null ? null : identity.getIdentity().getUserId();
+   }
+
+   public State getState()
+   {
+      return state;
+   }
+
+   public boolean isFinished()
+   {
+      State current = state;
+      return current == State.CANCELLED || current == State.COMPLETED || current == State.FAILED;
+   }
+
+   public long getSubmitTime()
+   {
+      return submitTime;
+   }
+
+   /**
+    * @return start time or 0 if the job is queued
+    */
+   public long getStartTime()
+   {
+      return startTime;
+   }
+
+   /**
+    * @return end time or 0 if the job is not finished
+    */
+   public long getEndTime()
+   {
+      return endTime;
+   }
+
+   /**
+    * @return time in milliseconds the job was running
+    */
+   public long getElapsed()
+   {
+      long start = startTime;
+      if (start == 0)
+      {
+         return 0;
+      }
+      long end = endTime;
+      return (end > 0 ? end : System.currentTimeMillis()) - start;
+   }
+
+   public long getItems()
+   {
+      return items.get();
+   }
+
+   public long getBytes()
+   {
+      return bytes.get();
+   }
+
+   public long getItemsPerSecond()
+   {
+      long elapsed = getElapsed();
+      return elapsed > 0 ? items.get() * 1000 / elapsed : 0;
+   }
+
+   public long getBytesPerSecond()
+   {
+      long elapsed = getElapsed();
+      return elapsed > 0 ? bytes.get() * 1000 / elapsed : 0;
+   }
+
+   public long getErrors()
+   {
+      return errors.get();
+   }
+
+   public String getLastError()
+   {
+      return lastError;
+   }
+
+   /**
+    * @return messages of the first errors
+    */
+   public List<String> getErrorMessages()
+   {
+      synchronized (errorMessages)
+      {
+         return new ArrayList<String>(errorMessages);
+      }
+   }
+
+   @Override
+   public String toString()
+   {
+      return type + " job " + id + " (" + description + "): " + state;
+   }
+}
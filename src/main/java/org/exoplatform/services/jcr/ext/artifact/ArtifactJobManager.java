@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2003-2007 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.services.jcr.ext.artifact;
+
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs {@link ArtifactJob}s on a bounded pool with a bounded queue, a job submitted when the queue
+ * is full is rejected. Finished jobs are kept for polling until there are more of them than the
+ * configured number, then the oldest ones are forgotten.
+ *
+ * @version $Id: ArtifactJobManager.java $
+ */
+public class ArtifactJobManager
+{
+   private static final Log LOG = ExoLogger.getLogger(ArtifactJobManager.class);
+
+   /**
+    * Time in seconds running jobs are given to stop on shutdown.
+    */
+   private static final int SHUTDOWN_TIMEOUT = 30;
+
+   private final ThreadPoolExecutor executor;
+
+   private final int keepFinished;
+
+   /**
+    * Jobs by id in order of submission.
+    */
+   private final Map<String, ArtifactJob> jobs = new LinkedHashMap<String, ArtifactJob>();
+
+   /**
+    * @param threads
+    *          max number of jobs running at once
+    * @param queueSize
+    *          max number of jobs waiting for a thread
+    * @param keepFinished
+    *          number of finished jobs kept for polling
+    */
+   public ArtifactJobManager(int threads, int queueSize, int keepFinished)
+   {
+      this.executor =
+         new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(Math.max(1,
+            queueSize)), new ArtifactThreadFactory("ArtifactJob"));
+      this.executor.allowCoreThreadTimeOut(true);
+      this.keepFinished = keepFinished;
+   }
+
+   /**
+    * @return the submitted job
+    * @throws RejectedExecutionException
+    *           if the queue is full or the manager is shut down
+    */
+   public ArtifactJob submit(ArtifactJob job)
+   {
+      synchronized (jobs)
+      {
+         executor.execute(job);
+         jobs.put(job.getId(), job);
+         forgetFinished();
+      }
+      return job;
+   }
+
+   /**
+    * @return the job or null if it is unknown or already forgotten
+    */
+   public ArtifactJob getJob(String id)
+   {
+      synchronized (jobs)
+      {
+         return jobs.get(id);
+      }
+   }
+
+   /**
+    * @return known jobs in order of submission
+    */
+   public List<ArtifactJob> getJobs()
+   {
+      synchronized (jobs)
+      {
+         return new ArrayList<ArtifactJob>(jobs.values());
+      }
+   }
+
+   /**
+    * @return false if the job is unknown or already finished
+    */
+   public boolean cancel(String id)
+   {
+      ArtifactJob job = getJob(id);
+      if (job == null || !job.cancel())
+      {
+         return false;
+      }
+      executor.remove(job);
+      return true;
+   }
+
+   /**
+    * Cancels all jobs and waits for running ones to stop.
+    */
+   public void shutdown()
+   {
+      List<ArtifactJob> known = getJobs();
+      for (ArtifactJob job : known)
+      {
+         job.cancel();
+      }
+      executor.shutdown();
+      try
+      {
+         if (!executor.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS))
+         {
+            LOG.warn("Artifact jobs did not stop in " + SHUTDOWN_TIMEOUT + " s");
+         }
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+      }
+      for (ArtifactJob job : known)
+      {
+         job.dispose();
+      }
+      synchronized (jobs)
+      {
+         jobs.clear();
+      }
+   }
+
+   private void forgetFinished()
+   {
+      int finished = 0;
+      for (ArtifactJob job : jobs.values())
+      {
+         if (job.isFinished())
+         {
+            finished++;
+         }
+      }
+
+      for (Iterator<ArtifactJob> it = jobs.values().iterator(); it.hasNext() && finished > keepFinished;)
+      {
+         ArtifactJob job = it.next();
+         if (job.isFinished())
+         {
+            it.remove();
+            job.dispose();
+            finished--;
+         }
+      }
+   }
+}
@@ -127,6 +127,83 @@ public interface ArtifactManagingService {
   void exportArtifacts(SessionProvider sp, FolderDescriptor parentFolder, File folder) throws RepositoryException,
                                                                                       FileNotFoundException;
 
+  /**
+   * imports artifacts in background with the identity of the caller
+   * 
+   * @param source
+   *          local folder or zip file
+   * @param removeSource
+   *          whether the source is removed when the job is finished
+   * @return the submitted job
+   * @throws FileNotFoundException
+   *           if the source does not exist
+   * @throws java.util.concurrent.RejectedExecutionException
+   *           if too many jobs are queued
+   */
+  ArtifactJob submitImport(File source, boolean removeSource) throws FileNotFoundException;
+
+  /**
+   * synchronizes the repo with a local maven repository in background with the identity of the
+   * caller: new versions are imported, jar and pom files of stored versions are replaced only if
+   * their content changed
+   * 
+   * @param folder
+   *          local maven repository
+   * @param removeMissing
+   *          whether stored versions missing from the folder are removed, nothing is removed if some
+   *          artifact failed to import
+   * @return the submitted job
+   * @throws FileNotFoundException
+   *           if the folder does not exist
+   * @throws java.util.concurrent.RejectedExecutionException
+   *           if too many jobs are queued
+   */
+  ArtifactJob submitSync(File folder, boolean removeMissing) throws FileNotFoundException;
+
+  /**
+   * removes in background the versions expired by the configured retention policy, with the
+   * identity of the caller
+   * 
+   * @param dryRun
+   *          whether the expired versions are only reported
+   * @return the submitted job
+   * @throws IllegalStateException
+   *           if no retention policy is configured
+   * @throws java.util.concurrent.RejectedExecutionException
+   *           if too many jobs are queued
+   */
+  ArtifactJob submitRetention(boolean dryRun);
+
+  /**
+   * exports artifacts in background with the identity of the caller
+   * 
+   * @param parentFolder
+   *          the folder which children are exported
+   * @param destination
+   *          zip file if its name ends with <code>.zip</code>, local folder otherwise; if null the
+   *          artifacts are exported into temporary zip file available as result of the job
+   * @return the submitted job
+   * @throws java.util.concurrent.RejectedExecutionException
+   *           if too many jobs are queued
+   */
+  ArtifactJob submitExport(FolderDescriptor parentFolder, File destination);
+
+  /**
+   * @return manager of the background jobs
+   */
+  ArtifactJobManager getJobManager();
+
+  /**
+   * Blobs are readable by the system only, users read their content through the files
+   * referencing them, see {@link ArtifactContent}. Data read directly under the store root needs a
+   * system session.
+   * 
+   * @return store of the artifact content, configured by <code>artifact.blobstore</code>; jars and
+   *         poms are stored as shared blobs if its root is set, blobs stored before are released
+   *         anyway
+   */
+  BlobStore getBlobStore();
+
   /**
    * Returns acess control list for the specified artifact
    * 
@@ -159,5 +236,14 @@ public interface ArtifactManagingService {
                         String[] permissions,
                         boolean delete) throws RepositoryException;
 
+  /**
+   * @return names of pom files which were not imported by the last import
+   * @deprecated use {@link #getLastImportReport()}
+   */
   List getListErrors();
+
+  /**
+   * @return report of the last import of artifacts or <code>null</code> if there was no import yet
+   */
+  ImportReport getLastImportReport();
 }
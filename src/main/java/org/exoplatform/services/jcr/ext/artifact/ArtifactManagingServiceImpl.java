@@ -17,8 +17,6 @@
 
 package org.exoplatform.services.jcr.ext.artifact;
 
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
 import org.exoplatform.container.xml.InitParams;
 import org.exoplatform.container.xml.PropertiesParam;
@@ -34,6 +32,8 @@ import org.exoplatform.services.jcr.ext.registry.RegistryEntry;
 import org.exoplatform.services.jcr.ext.registry.RegistryService;
 import org.exoplatform.services.log.ExoLogger;
 import org.exoplatform.services.log.Log;
+import org.exoplatform.services.security.ConversationState;
+import org.exoplatform.services.security.IdentityConstants;
 import org.picocontainer.Startable;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -51,14 +51,22 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.ZipOutputStream;
 
 import javax.jcr.Node;
@@ -70,12 +78,8 @@ import javax.jcr.Session;
 import javax.jcr.nodetype.NodeType;
 import javax.jcr.query.Query;
 import javax.jcr.query.QueryManager;
-import javax.jcr.query.QueryResult;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.stream.XMLOutputFactory;
-import javax.xml.stream.XMLStreamException;
-import javax.xml.stream.XMLStreamWriter;
 
 /**
  * Created by The eXo Platform SAS .<br/>
@@ -97,14 +101,37 @@ import javax.xml.stream.XMLStreamWriter;
 public class ArtifactManagingServiceImpl
    implements ArtifactManagingService, Startable
 {
-   private static final int BUFFER = 4096;
-
    private static final String STRING_TERMINATOR = "*";
 
+   private static final String CHECKSUM_ALGORITHM = "SHA1";
+
    private static final String NT_FILE = "artifact-nodetypes.xml";
 
    private static final String SERVICE_NAME = "ArtifactManaging";
 
+   private static final int DEFAULT_IMPORT_WORKERS = Math.min(4, Runtime.getRuntime().availableProcessors());
+
+   private static final int DEFAULT_IMPORT_BATCH_SIZE = 50;
+
+   private static final int DEFAULT_EXPORT_READERS = 4;
+
+   private static final int DEFAULT_EXPORT_BUFFER_SIZE = 32 * 1024 * 1024;
+
+   private static final int DEFAULT_JOB_THREADS = 2;
+
+   private static final int DEFAULT_JOB_QUEUE_SIZE = 16;
+
+   private static final int DEFAULT_KEEP_FINISHED_JOBS = 50;
+
+   private static final int DEFAULT_STATISTICS_UPDATE_INTERVAL = 30;
+
+   private static final int DEFAULT_RETENTION_BATCH_SIZE = 100;
+
+   /**
+    * Delay in minutes of the first scheduled retention run after start.
+    */
+   private static final int RETENTION_INITIAL_DELAY = 5;
+
    private RepositoryService repositoryService;
 
    private RegistryService registryService;
@@ -121,7 +148,93 @@ public class ArtifactManagingServiceImpl
 
    private Map<String, String> mimeMap = new Hashtable<String, String>();
 
-   private List<String> listErrorPom = new ArrayList<String>();
+   /**
+    * Number of workers importing artifacts from local folder.
+    */
+   private int importWorkers = DEFAULT_IMPORT_WORKERS;
+
+   /**
+    * Number of artifacts saved at once by import worker.
+    */
+   private int importBatchSize = DEFAULT_IMPORT_BATCH_SIZE;
+
+   /**
+    * Guards creation of group and artifact folders shared by concurrent imports.
+    */
+   private final Object layoutLock = new Object();
+
+   /**
+    * Number of threads reading content ahead on export to zip stream.
+    */
+   private int exportReaders = DEFAULT_EXPORT_READERS;
+
+   /**
+    * Max total size in bytes of the content read ahead on export to zip stream.
+    */
+   private int exportBufferSize = DEFAULT_EXPORT_BUFFER_SIZE;
+
+   private volatile ImportReport lastImportReport;
+
+   /**
+    * Maintains version lists and metadata of artifactId nodes, created once the root node is known.
+    */
+   private MavenMetadataUpdater metadataUpdater;
+
+   /**
+    * Absolute path of the blob store root, null if artifacts keep their own content.
+    */
+   private String blobRoot;
+
+   private BlobStore blobStore;
+
+   /**
+    * Index of versions used by searches, null if it can't be maintained.
+    */
+   private volatile ArtifactIndex index;
+
+   /**
+    * Keeps session of the index listener.
+    */
+   private SessionProvider indexSessionProvider;
+
+   /**
+    * Interval in seconds between updates of storage statistics, 0 if they are not maintained.
+    */
+   private int statisticsUpdateInterval = DEFAULT_STATISTICS_UPDATE_INTERVAL;
+
+   private StorageStatistics statistics;
+
+   /**
+    * Keeps session of the statistics listener.
+    */
+   private SessionProvider statisticsSessionProvider;
+
+   /**
+    * Versions removed by retention runs, never active if not configured.
+    */
+   private RetentionPolicy retentionPolicy;
+
+   /**
+    * Number of versions removed before each save by retention run.
+    */
+   private int retentionBatchSize = DEFAULT_RETENTION_BATCH_SIZE;
+
+   /**
+    * Interval in hours between scheduled retention runs, 0 if they are only run on request.
+    */
+   private int retentionInterval;
+
+   private ScheduledExecutorService retentionScheduler;
+
+   /**
+    * The last submitted retention run, scheduled or not.
+    */
+   private volatile ArtifactJob lastRetentionJob;
+
+   /**
+    * Runs background imports, exports and other long operations.
+    */
+   private final ArtifactJobManager jobManager;
 
    /**
     * @param params
@@ -142,9 +255,115 @@ public class ArtifactManagingServiceImpl
 
       this.initParams = initParams;
 
+      PropertiesParam importProps = initParams.getPropertiesParam("artifact.import");
+      if (importProps != null)
+      {
+         if (importProps.getProperty("workers") != null)
+         {
+            importWorkers = Integer.parseInt(importProps.getProperty("workers"));
+         }
+         if (importProps.getProperty("batch-size") != null)
+         {
+            importBatchSize = Integer.parseInt(importProps.getProperty("batch-size"));
+         }
+      }
+
+      PropertiesParam blobProps = initParams.getPropertiesParam("artifact.blobstore");
+      if (blobProps != null)
+      {
+         blobRoot = blobProps.getProperty("root");
+      }
+
+      PropertiesParam exportProps = initParams.getPropertiesParam("artifact.export");
+      if (exportProps != null)
+      {
+         if (exportProps.getProperty("readers") != null)
+         {
+            exportReaders = Integer.parseInt(exportProps.getProperty("readers"));
+         }
+         if (exportProps.getProperty("buffer-size") != null)
+         {
+            exportBufferSize = Integer.parseInt(exportProps.getProperty("buffer-size"));
+         }
+      }
+
+      int jobThreads = DEFAULT_JOB_THREADS;
+      int jobQueueSize = DEFAULT_JOB_QUEUE_SIZE;
+      int keepFinishedJobs = DEFAULT_KEEP_FINISHED_JOBS;
+      PropertiesParam jobProps = initParams.getPropertiesParam("artifact.jobs");
+      if (jobProps != null)
+      {
+         if (jobProps.getProperty("threads") != null)
+         {
+            jobThreads = Integer.parseInt(jobProps.getProperty("threads"));
+         }
+         if (jobProps.getProperty("queue-size") != null)
+         {
+            jobQueueSize = Integer.parseInt(jobProps.getProperty("queue-size"));
+         }
+         if (jobProps.getProperty("keep-finished") != null)
+         {
+            keepFinishedJobs = Integer.parseInt(jobProps.getProperty("keep-finished"));
+         }
+      }
+      jobManager = new ArtifactJobManager(jobThreads, jobQueueSize, keepFinishedJobs);
+
+      PropertiesParam statisticsProps = initParams.getPropertiesParam("artifact.statistics");
+      if (statisticsProps != null && statisticsProps.getProperty("update-interval") != null)
+      {
+         statisticsUpdateInterval = Integer.parseInt(statisticsProps.getProperty("update-interval"));
+      }
+
+      PropertiesParam retentionProps = initParams.getPropertiesParam("artifact.retention");
+      List<String> exclusions = new ArrayList<String>();
+      if (retentionProps != null)
+      {
+         if (retentionProps.getProperty("batch-size") != null)
+         {
+            retentionBatchSize = Integer.parseInt(retentionProps.getProperty("batch-size"));
+         }
+         if (retentionProps.getProperty("interval-hours") != null)
+         {
+            retentionInterval = Integer.parseInt(retentionProps.getProperty("interval-hours"));
+         }
+         if (retentionProps.getProperty("exclude") != null)
+         {
+            for (String exclusion : Arrays.asList(retentionProps.getProperty("exclude").split(",")))
+            {
+               if (exclusion.trim().length() > 0)
+                  exclusions.add(exclusion.trim());
+            }
+         }
+      }
+      retentionPolicy =
+         new RetentionPolicy(getRetentionRule(retentionProps, "snapshots"), getRetentionRule(retentionProps,
+            "releases"), exclusions);
+
       setDefaultMimes();
    }
 
+   /**
+    * @return limits of one kind of versions, read from <code>&lt;kind&gt;-keep</code> and
+    *         <code>&lt;kind&gt;-max-age</code> (days) properties
+    */
+   private static RetentionPolicy.Rule getRetentionRule(PropertiesParam props, String kind)
+   {
+      int keep = 0;
+      long maxAge = 0;
+      if (props != null)
+      {
+         if (props.getProperty(kind + "-keep") != null)
+         {
+            keep = Integer.parseInt(props.getProperty(kind + "-keep"));
+         }
+         if (props.getProperty(kind + "-max-age") != null)
+         {
+            maxAge = TimeUnit.DAYS.toMillis(Integer.parseInt(props.getProperty(kind + "-max-age")));
+         }
+      }
+      return new RetentionPolicy.Rule(keep, maxAge);
+   }
+
    /**
     * without registry service
     * 
@@ -169,170 +388,478 @@ public class ArtifactManagingServiceImpl
    {
 
       Session session = currentSession(sp);
-      Node rootNode = (Node) session.getItem(rootNodePath);
 
-      Node groupId_tail = createGroupIdLayout(rootNode, artifact);
+      List<String> stored = new ArrayList<String>();
+      if (storeArtifact(session, artifact, jarIStream, pomIStream, stored))
+      {
+         try
+         {
+            session.save();
+         }
+         catch (RepositoryException e)
+         {
+            discard(session, stored);
+            throw e;
+         }
+         updateMetadata(session, Collections.singletonList(artifact));
+      }
+
+   }
+
+   /**
+    * Updates version lists and metadata of the artifacts after their versions are saved. Failures
+    * are logged, the artifacts themselves are already stored.
+    */
+   void updateMetadata(Session session, Collection<ArtifactDescriptor> artifacts)
+   {
+      Set<String> paths = new LinkedHashSet<String>();
+      for (ArtifactDescriptor artifact : artifacts)
+      {
+         paths.add(getAbsolutePath(artifact.getGroupId().getAsPath() + "/" + artifact.getArtifactId()));
+      }
+      for (String path : paths)
+      {
+         updateMetadata(session, path);
+      }
+   }
+
+   void updateMetadata(Session session, String artifactIdPath)
+   {
+      try
+      {
+         updateArtifactMetadata(session, artifactIdPath);
+      }
+      catch (RepositoryException e)
+      {
+         LOG.error("Cannot update metadata of " + artifactIdPath, e);
+      }
+   }
+
+   /**
+    * Updates version list and metadata of the artifact, its changes are discarded on failure.
+    */
+   void updateArtifactMetadata(Session session, String artifactIdPath) throws RepositoryException
+   {
+      try
+      {
+         getMetadataUpdater().update(session, artifactIdPath);
+      }
+      catch (RepositoryException e)
+      {
+         try
+         {
+            session.refresh(false);
+         }
+         catch (RepositoryException re)
+         {
+            LOG.error("Cannot discard changes of metadata", re);
+         }
+         throw e;
+      }
+   }
+
+   private synchronized MavenMetadataUpdater getMetadataUpdater()
+   {
+      if (metadataUpdater == null)
+         metadataUpdater = new MavenMetadataUpdater(rootNodePath.length() > 1 ? rootNodePath : "");
+      return metadataUpdater;
+   }
 
-      Node artifactId_node = createArtifactIdLayout(groupId_tail, artifact);
+   /**
+    * {@inheritDoc}
+    */
+   public synchronized BlobStore getBlobStore()
+   {
+      if (blobStore == null)
+         blobStore = new BlobStore(repositoryService, null, repoWorkspaceName, blobRoot);
+      return blobStore;
+   }
+
+   /**
+    * Adds artifact to the session without saving it, so several artifacts can be saved at once.
+    * Group and artifact folders are created and saved by a separate session, the pending changes of
+    * the given session are left unsaved.
+    * 
+    * @param stored
+    *          receives the blobs counted for the added files, to release them if the session is
+    *          discarded, see {@link #discard(Session, List)}
+    * @return true if artifact is added, false if such version already exists
+    */
+   boolean storeArtifact(Session session, ArtifactDescriptor artifact, InputStream jarIStream,
+            InputStream pomIStream, List<String> stored) throws RepositoryException
+   {
+      return storeArtifact(session, artifact, jarIStream, pomIStream, null, null, stored);
+   }
+
+   /**
+    * Adds artifact to the session without saving it, see
+    * {@link #storeArtifact(Session, ArtifactDescriptor, InputStream, InputStream, List)}.
+    * 
+    * @param jarModified
+    *          modification time of the jar, null for the current time
+    * @param pomModified
+    *          modification time of the pom, null for the current time
+    */
+   boolean storeArtifact(Session session, ArtifactDescriptor artifact, InputStream jarIStream,
+            InputStream pomIStream, Calendar jarModified, Calendar pomModified, List<String> stored)
+            throws RepositoryException
+   {
+      Node artifactId_node = getArtifactIdLayout(session, artifact);
 
       Node version_node = createVersionLayout(artifactId_node, artifact);
 
-      if (version_node != null)
+      if (version_node == null)
       { // returns if the same node sibling appears
-         importResource(version_node, jarIStream, "jar", artifact);
-         importResource(version_node, pomIStream, "pom", artifact);
+         IOUtils.closeQuietly(jarIStream);
+         IOUtils.closeQuietly(pomIStream);
+         return false;
       }
 
-      session.save();
+      List<String> blobs = new ArrayList<String>();
+      try
+      {
+         importResource(version_node, jarIStream, "jar", artifact, jarModified, blobs);
+         importResource(version_node, pomIStream, "pom", artifact, pomModified, blobs);
+      }
+      catch (RepositoryException e)
+      {
+         // do not leave half imported version in the session
+         version_node.remove();
+         getBlobStore().release(blobs);
+         throw e;
+      }
+      stored.addAll(blobs);
+      return true;
+   }
 
+   /**
+    * Discards the pending changes of the session and releases the blobs counted for them. Blobs are
+    * counted when they are stored, before the files referencing them are saved.
+    * 
+    * @param stored
+    *          blobs counted for the pending changes, cleared
+    */
+   void discard(Session session, List<String> stored)
+   {
+      try
+      {
+         session.refresh(false);
+      }
+      catch (RepositoryException e)
+      {
+         LOG.error("Cannot discard pending changes", e);
+      }
+      getBlobStore().release(stored);
+      stored.clear();
    }
 
-   /*
-    * (non-Javadoc)
-    * @see org.exoplatform.services.jcr.ext.maven.ArtifactManagingService#exportArtifacts
-    * (org.exoplatform.services.jcr.ext.common.SessionProvider,
-    * org.exoplatform.services.jcr.ext.maven.FolderDescriptor, java.io.OutputStream)
+   /**
+    * @return absolute path of the version folder of the artifact
     */
-   public void exportArtifacts(SessionProvider sp, FolderDescriptor parentFolder, OutputStream out)
-            throws RepositoryException, FileNotFoundException
+   String getVersionPath(ArtifactDescriptor artifact)
    {
+      return getAbsolutePath(artifact.getGroupId().getAsPath() + "/" + artifact.getArtifactId() + "/"
+         + artifact.getVersionId());
+   }
 
-      Session session = currentSession(sp);
-      Node parentNode;
-      if (rootNodePath.length() > 1)
+   /**
+    * @return the version folder of the artifact or null if such version is not stored
+    */
+   Node getVersionNode(Session session, ArtifactDescriptor artifact) throws RepositoryException
+   {
+      String path = getVersionPath(artifact);
+      return session.itemExists(path) ? (Node)session.getItem(path) : null;
+   }
+
+   /**
+    * Replaces the content of the stored jar or pom if it differs from the source file, nothing is
+    * saved. The file is unchanged without reading it if its size and modification time are the same,
+    * otherwise the checksum of the source is compared with the stored one. The modification time of
+    * the file is taken from the source, so an unchanged file is not read again by the next sync. The
+    * stored file node is kept with its permissions and download counter.
+    * 
+    * @param released
+    *          receives the blobs no more referenced by the file, to release them once it is saved
+    * @param stored
+    *          receives the blobs counted for the new content, to release them if it is discarded
+    * @return true if the content is replaced
+    */
+   boolean syncResource(Node versionNode, File source, String resourceType, ArtifactDescriptor artifact,
+            List<String> released, List<String> stored) throws RepositoryException, IOException
+   {
+      String filename = getResourceName(artifact, resourceType);
+      String checksumName = filename + "." + CHECKSUM_ALGORITHM.toLowerCase();
+      Calendar modified = Calendar.getInstance();
+      modified.setTimeInMillis(source.lastModified());
+      if (!versionNode.hasNode(filename))
+      {
+         if (versionNode.hasNode(checksumName))
+            versionNode.getNode(checksumName).remove();
+         importResource(versionNode, new FileInputStream(source), resourceType, artifact, modified, stored);
+         return true;
+      }
+
+      Node file = versionNode.getNode(filename);
+      Node content = file.getNode("jcr:content");
+      if (ArtifactContent.getLength(file) == source.length())
+      {
+         if (content.getProperty("jcr:lastModified").getDate().getTimeInMillis() == source.lastModified())
+            return false;
+         if (versionNode.hasNode(checksumName)
+            && ArtifactContent.readChecksum(versionNode.getNode(checksumName)).equalsIgnoreCase(checksum(source)))
+         {
+            content.setProperty("jcr:lastModified", modified);
+            return false;
+         }
+      }
+
+      released.addAll(BlobStore.collect(file));
+      String checksum;
+      InputStream in = new BufferedInputStream(new FileInputStream(source), CRCGenerator.DEFAULT_BUFFER_SIZE);
+      try
+      {
+         BlobStore store = getBlobStore();
+         if (store.isEnabled())
+         {
+            BlobStore.Blob blob = store.store(in, getRelativeMimeType(resourceType), CHECKSUM_ALGORITHM);
+            content.setProperty("jcr:data", new ByteArrayInputStream(new byte[0]));
+            BlobStore.reference(file, blob);
+            stored.add(ArtifactContent.getBlobPath(file));
+            checksum = blob.getChecksum(CHECKSUM_ALGORITHM);
+         }
+         else
+         {
+            // JCR may read the value stream lazily, so the checksum is computed by a read of its own
+            BlobStore.unreference(file);
+            checksum = checksum(source);
+            content.setProperty("jcr:data", in);
+         }
+      }
+      catch (NoSuchAlgorithmException e)
       {
-         parentNode = (Node) session.getItem(rootNodePath + "/" + parentFolder.getAsPath());
+         // required by the platform
+         throw new IllegalStateException(e);
       }
-      else
+      finally
       {
-         parentNode = (Node) session.getItem("/" + parentFolder.getAsPath());
+         IOUtils.closeQuietly(in);
       }
+      content.setProperty("jcr:lastModified", modified);
+      // the new content was never verified by the integrity scrubber
+      if (file.isNodeType("exo:verified"))
+         file.removeMixin("exo:verified");
 
-      LOG.info("Write repository to zipped stream");
+      if (versionNode.hasNode(checksumName))
+         versionNode.getNode(checksumName).remove();
+      writeChecksum(versionNode, filename, checksum, CHECKSUM_ALGORITHM);
+      return true;
+   }
 
-      ZipOutputStream zout = new ZipOutputStream(new BufferedOutputStream(out, BUFFER));
+   private static String checksum(File file) throws IOException
+   {
+      InputStream in = new FileInputStream(file);
       try
       {
-         mapRepositoryToZipStream(parentNode, zout);
-         zout.flush();
-         zout.close();
+         ChecksumInputStream checksum_in = new ChecksumInputStream(in, CHECKSUM_ALGORITHM);
+         byte[] buf = new byte[CRCGenerator.DEFAULT_BUFFER_SIZE];
+         while (checksum_in.read(buf) != -1)
+         {
+            // the checksum is computed while reading
+         }
+         return checksum_in.getChecksum(CHECKSUM_ALGORITHM);
       }
-      catch (IOException e)
+      catch (NoSuchAlgorithmException e)
+      {
+         throw new IllegalStateException(e);
+      }
+      finally
+      {
+         IOUtils.closeQuietly(in);
+      }
+   }
+
+   /**
+    * Removes the versions under the maven root which are not in the given set, saving them by
+    * batches. Version lists of their artifacts are updated, blobs of their files are released.
+    * 
+    * @param present
+    *          paths of the versions to keep, see {@link #getVersionPath(ArtifactDescriptor)}
+    */
+   void removeMissingVersions(Session session, Set<String> present, ImportReport report)
+            throws RepositoryException
+   {
+      List<String> missing = new ArrayList<String>();
+      collectMissingVersions((Node)session.getItem(rootNodePath), present, missing);
+
+      List<String> blobs = new ArrayList<String>();
+      Set<String> artifactIdPaths = new LinkedHashSet<String>();
+      int unsaved = 0;
+      for (String path : missing)
+      {
+         if (report.isCancelled())
+            break;
+         Node version = (Node)session.getItem(path);
+         artifactIdPaths.add(version.getParent().getPath());
+         blobs.addAll(BlobStore.collect(version));
+         version.remove();
+         if (++unsaved >= importBatchSize)
+         {
+            saveRemoved(session, unsaved, blobs, artifactIdPaths, report);
+            unsaved = 0;
+         }
+      }
+      saveRemoved(session, unsaved, blobs, artifactIdPaths, report);
+   }
+
+   private void collectMissingVersions(Node folder, Set<String> present, List<String> missing)
+            throws RepositoryException
+   {
+      for (NodeIterator nodes = folder.getNodes(); nodes.hasNext();)
       {
-         LOG.error("Cannot write to zip stream", e);
+         Node child = nodes.nextNode();
+         if (child.isNodeType("exo:versionId"))
+         {
+            if (!present.contains(child.getPath()))
+               missing.add(child.getPath());
+         }
+         else if (child.isNodeType("nt:folder"))
+         {
+            collectMissingVersions(child, present, missing);
+         }
       }
+   }
 
+   private void saveRemoved(Session session, int count, List<String> blobs, Set<String> artifactIdPaths,
+            ImportReport report) throws RepositoryException
+   {
+      if (count == 0)
+         return;
+      session.save();
+      getBlobStore().release(blobs);
+      report.versionsRemoved(count);
+      for (String path : artifactIdPaths)
+      {
+         updateMetadata(session, path);
+      }
+      blobs.clear();
+      artifactIdPaths.clear();
    }
 
-   public void exportArtifacts(SessionProvider sp, FolderDescriptor parentFolder, File destFolder)
+   /*
+    * (non-Javadoc)
+    * @see org.exoplatform.services.jcr.ext.maven.ArtifactManagingService#exportArtifacts
+    * (org.exoplatform.services.jcr.ext.common.SessionProvider,
+    * org.exoplatform.services.jcr.ext.maven.FolderDescriptor, java.io.OutputStream)
+    */
+   public void exportArtifacts(SessionProvider sp, FolderDescriptor parentFolder, OutputStream out)
             throws RepositoryException, FileNotFoundException
    {
+      Session session = currentSession(sp);
+      exportZip(session, getFolderNode(session, parentFolder), out, null);
+   }
 
+   public void exportArtifacts(SessionProvider sp, FolderDescriptor parentFolder, File destFolder)
+            throws RepositoryException, FileNotFoundException
+   {
       Session session = currentSession(sp);
-      Node parentNode;
-      if (rootNodePath.length() > 1)
+      exportFolder(getFolderNode(session, parentFolder), destFolder, null);
+   }
+
+   /**
+    * Writes children of the node into zip stream, the stream is closed on success.
+    *
+    * @param job
+    *          the job the export runs in or null
+    */
+   void exportZip(Session session, Node parentNode, OutputStream out, ArtifactJob job) throws RepositoryException
+   {
+      LOG.info("Write repository to zipped stream");
+
+      ZipOutputStream zout =
+         new ZipOutputStream(new BufferedOutputStream(out, CRCGenerator.DEFAULT_BUFFER_SIZE));
+      try
       {
-         parentNode = (Node) session.getItem(rootNodePath + "/" + parentFolder.getAsPath());
+         new ZipArtifactExporter(this, exportReaders, exportBufferSize, job).export(session, parentNode, zout);
+         zout.close();
       }
-      else
+      catch (IOException e)
       {
-         parentNode = (Node) session.getItem("/" + parentFolder.getAsPath());
+         throw new RepositoryException("Cannot write to zip stream", e);
       }
-      mapRepositoryToFilefs(parentNode, destFolder);
    }
 
-   private void mapRepositoryToFilefs(Node parentNode, File parentFolder) throws RepositoryException
+   /**
+    * Copies children of the node into local folder.
+    *
+    * @param job
+    *          the job the export runs in or null
+    */
+   void exportFolder(Node parentNode, File parentFolder, ArtifactJob job) throws RepositoryException
    {
       NodeIterator folderIterator = parentNode.getNodes();
       while (folderIterator.hasNext())
       {
+         if (job != null)
+         {
+            job.checkCancelled();
+         }
+
          Node folder = folderIterator.nextNode();
          if (folder.isNodeType("exo:artifact"))
          {
             File levelfolder = new File(parentFolder.getAbsoluteFile() + File.separator + folder.getName());
             levelfolder.mkdir();
-            mapRepositoryToFilefs(folder, levelfolder); // recursive call
+            exportFolder(folder, levelfolder, job); // recursive call
          }
          else if (folder.isNodeType("exo:file"))
          {
             File content = new File(parentFolder + File.separator + folder.getName());
 
             FileOutputStream fout = null;
+            InputStream in = null;
             try
             {
                fout = new FileOutputStream(content);
-               Node dataNode = folder.getNode("jcr:content");
+               in = ArtifactContent.getStream(folder);
+               long size = IOUtils.copyLarge(in, fout);
+               fout.close();
 
-               Property data = dataNode.getProperty("jcr:data");
-               Property lastModified = dataNode.getProperty("jcr:lastModified");
+               Property lastModified = folder.getNode("jcr:content").getProperty("jcr:lastModified");
                content.setLastModified(lastModified.getLong());
-               IOUtils.copy(data.getStream(), fout);
-
-            }
-            catch (FileNotFoundException e)
-            {
-               LOG.error("!!Can't create content fo file", e);
+               if (job != null)
+               {
+                  job.processed(1, size);
+               }
             }
             catch (IOException e)
             {
-               LOG.error("!!Can't write content fo file", e);
+               throw new RepositoryException("Cannot write content of " + folder.getPath() + " to "
+                  + content.getAbsolutePath(), e);
             }
             finally
             {
                IOUtils.closeQuietly(fout);
+               IOUtils.closeQuietly(in);
             }
          }
       }
    }
 
-   private void mapRepositoryToZipStream(Node parentNode, ZipOutputStream zout) throws RepositoryException, IOException
+   /**
+    * @return node of the folder relative to the maven root, the root itself for empty folder
+    */
+   Node getFolderNode(Session session, FolderDescriptor folder) throws RepositoryException
    {
-
-      NodeIterator folderIterator = parentNode.getNodes();
-      while (folderIterator.hasNext())
+      String path = folder.getAsPath();
+      if (path.length() == 0 || path.equals("/"))
       {
-         Node folder = folderIterator.nextNode();
-         if (folder.isNodeType("exo:artifact"))
-         {
-            String entryName = parentNode.getPath() + File.separator + folder.getName();
-            ZipEntry entry = new ZipEntry(entryName + "/");
-
-            zout.putNextEntry(entry);
-
-            mapRepositoryToZipStream(folder, zout);
-
-         }
-         else if (folder.isNodeType("exo:file"))
-         {
-
-            String entryName = parentNode.getPath() + File.separator + folder.getName();
-            ZipEntry entry = new ZipEntry(entryName);
-
-            if (LOG.isDebugEnabled())
-            {
-               LOG.debug("Zipping " + entryName);
-            }
-
-            Node dataNode = folder.getNode("jcr:content");
-            Property data = dataNode.getProperty("jcr:data");
-            InputStream in = data.getStream();
-
-            Property lastModified = dataNode.getProperty("jcr:lastModified");
-
-            entry.setTime(lastModified.getLong());
-            entry.setSize(in.available());
-            zout.putNextEntry(entry);
-
-            int count;
-            byte[] buf = new byte[BUFFER];
-            while ((count = in.read(buf, 0, BUFFER)) != -1)
-            {
-               zout.write(buf, 0, count);
-            }
-            zout.flush();
-            in.close();
-         }
+         return (Node) session.getItem(rootNodePath);
+      }
+      if (rootNodePath.length() > 1)
+      {
+         return (Node) session.getItem(rootNodePath + "/" + path);
       }
+      return (Node) session.getItem("/" + path);
    }
 
    /*
@@ -396,126 +923,123 @@ public class ArtifactManagingServiceImpl
     */
    public void importArtifacts(SessionProvider sp, InputStream in) throws RepositoryException, FileNotFoundException
    {
-      LOG.info("Extract repository to temporary folder");
-      String path = System.getProperty("java.io.tmpdir") + File.separator + "maven2";
-      File temporaryFolder = new File(getUniqueFilename(path));
-      if (!temporaryFolder.mkdir())
-      {
-         throw new FileNotFoundException("Cannot create temporary folder");
-      }
-      ZipEntry entry;
-      ZipInputStream zipIn = new ZipInputStream(new BufferedInputStream(in));
-      try
-      {
-         while ((entry = zipIn.getNextEntry()) != null)
-         {
-
-            if (!(entry.isDirectory() && new File(temporaryFolder + File.separator + entry.getName()).mkdir()))
-            {
-               int count;
-               byte data[] = new byte[BUFFER];
-               File file = new File(temporaryFolder + File.separator + entry.getName());
-
-               FileUtils.touch(file);
-
-               FileOutputStream fos = new FileOutputStream(file);
-               BufferedOutputStream dest = new BufferedOutputStream(fos, BUFFER);
-               while ((count = zipIn.read(data, 0, BUFFER)) != -1)
-               {
-                  dest.write(data, 0, count);
-               }
-               dest.flush();
-               dest.close();
-            }
+      importZip(currentSession(sp), in, new ImportReport("zip stream"));
+   }
 
-         }
-      }
-      catch (IOException e)
+   /*
+    * (non-Javadoc)
+    * @see org.exoplatform.services.jcr.ext.maven.ArtifactManagingService#importArtifacts
+    * (org.exoplatform.services.jcr.ext.common.SessionProvider, java.io.File)
+    */
+   public void importArtifacts(SessionProvider sp, File folder) throws RepositoryException, FileNotFoundException
+   {
+      if (!folder.exists())
+         throw new FileNotFoundException("Source folder expected");
+      try
       {
-         LOG.error("Cannot get zip entry from stream", e);
+         importFolder(sp, folder, new ImportReport(folder.getAbsolutePath()));
       }
-      finally
+      catch (InterruptedException e)
       {
-         IOUtils.closeQuietly(zipIn);
-         IOUtils.closeQuietly(in);
+         Thread.currentThread().interrupt();
+         LOG.error("Uploading local folder to JCR was interrupted", e);
       }
+   }
 
-      // main part - copy to JCR from temp folder
-      // use uploading artifacts from local folder.
-
-      importArtifacts(sp, temporaryFolder);
+   /**
+    * Imports artifacts from zip stream, the report becomes the last import report.
+    */
+   void importZip(Session session, InputStream in, ImportReport report) throws RepositoryException
+   {
+      LOG.info("Import repository from zipped stream");
+      lastImportReport = report;
       try
       {
-         FileUtils.deleteDirectory(temporaryFolder);
+         // entries are written into JCR as they arrive, nothing is extracted to temporary folder
+         new ZipArtifactImporter(this, importBatchSize).importZip(session, in, report);
       }
       catch (IOException e)
       {
-         LOG.error("Cannot remove temporary folder", e);
+         throw new RepositoryException("Cannot read zip stream", e);
       }
+   }
 
+   /**
+    * Imports artifacts from local folder, the report becomes the last import report.
+    */
+   void importFolder(SessionProvider sp, File folder, ImportReport report) throws InterruptedException
+   {
+      lastImportReport = report;
+      new FolderArtifactImporter(this, importWorkers, importBatchSize).importFolder(sp, folder, report);
    }
 
-   /*
-    * (non-Javadoc)
-    * @see org.exoplatform.services.jcr.ext.maven.ArtifactManagingService#importArtifacts
-    * (org.exoplatform.services.jcr.ext.common.SessionProvider, java.io.File)
+   /**
+    * Synchronizes the maven root with local folder, the report becomes the last import report.
     */
-   public void importArtifacts(SessionProvider sp, File folder) throws RepositoryException, FileNotFoundException
+   void syncFolder(SessionProvider sp, File folder, boolean removeMissing, ImportReport report)
+            throws InterruptedException
    {
-      if (!folder.exists())
-         throw new FileNotFoundException("Source folder expected");
-      try
-      {
-         this.listErrorPom.clear();
-         importFilesToJCR(sp, folder);
-      }
-      catch (Exception e)
-      {
-         LOG.error("Exception during uploading local folder to JCR", e);
-      }
+      lastImportReport = report;
+      new FolderArtifactImporter(this, importWorkers, importBatchSize).syncFolder(sp, folder, removeMissing, report);
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   public ArtifactJob submitImport(File source, boolean removeSource) throws FileNotFoundException
+   {
+      if (!source.exists())
+         throw new FileNotFoundException("Source " + source.getAbsolutePath() + " does not exist");
+      return jobManager.submit(new ImportJob(this, source, removeSource));
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   public ArtifactJob submitSync(File folder, boolean removeMissing) throws FileNotFoundException
+   {
+      if (!folder.isDirectory())
+         throw new FileNotFoundException("Source folder " + folder.getAbsolutePath() + " does not exist");
+      return jobManager.submit(ImportJob.sync(this, folder, removeMissing));
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   public ArtifactJob submitRetention(boolean dryRun)
+   {
+      return submitRetention(dryRun, false);
+   }
+
+   /**
+    * @param system
+    *          true for a scheduled run, it runs with system session instead of the caller's identity
+    */
+   private ArtifactJob submitRetention(boolean dryRun, boolean system)
+   {
+      if (!retentionPolicy.isActive())
+         throw new IllegalStateException("Retention policy is not configured");
+      ArtifactJob job =
+         jobManager.submit(new RetentionJob(this, retentionPolicy, rootNodePath, getBlobStore().getRootPath(),
+            retentionBatchSize, dryRun, system));
+      lastRetentionJob = job;
+      return job;
    }
 
-   /*
-    * This method provides adding to JCR artifacts. this means that jar-files and appropriate pom
-    * files would be added. Main logic: scan all files & if it is a pair jar/pom -add it.
+   /**
+    * {@inheritDoc}
     */
-   private void importFilesToJCR(SessionProvider sp, File folder) throws Exception
+   public ArtifactJob submitExport(FolderDescriptor parentFolder, File destination)
    {
+      return jobManager.submit(new ExportJob(this, parentFolder, destination));
+   }
 
-      for (File file : folder.listFiles(new DefaultFileFilter()))
-      {
-
-         if (file.isDirectory())
-         {
-            importFilesToJCR(sp, file);
-         }
-
-         String ext = FilenameUtils.getExtension(file.getAbsolutePath());
-         if (ext.equals("pom"))
-         {
-            String basename = FilenameUtils.removeExtension(file.getAbsolutePath());
-            File jarfile = new File(basename.concat(".jar"));
-
-            if (jarfile.exists())
-            {
-               // get descripting from pom file
-               try
-               {
-                  ArtifactDescriptor artifact = ArtifactDescriptor.createFromPomfile(file);
-                  InputStream jarIStream = new FileInputStream(jarfile);
-                  InputStream pomIStream = new FileInputStream(file);
-
-                  addArtifact(sp, artifact, jarIStream, pomIStream);
-               }
-               catch (org.xml.sax.SAXParseException e)
-               {
-                  // throw new ArtifactDescriptorException(FilenameUtils.getName(file.getAbsolutePath()));
-                  this.listErrorPom.add(FilenameUtils.getName(file.getAbsolutePath()));
-                  continue;
-               }
-            }
-         }
-      }
+   /**
+    * {@inheritDoc}
+    */
+   public ArtifactJobManager getJobManager()
+   {
+      return jobManager;
    }
 
    /*
@@ -551,6 +1075,11 @@ public class ArtifactManagingServiceImpl
 
       Node rmNode = (Node) session.getItem(pathToRemove);
 
+      // version list of the artifact is updated if a version is removed
+      Node parent = rmNode.getParent();
+      String artifactIdPath = parent.isNodeType("exo:artifactId") ? parent.getPath() : null;
+      List<String> blobs = BlobStore.collect(rmNode);
+
       // while (rmNode != root) {
       // Node parent = rmNode.getParent();
       rmNode.remove();
@@ -560,6 +1089,10 @@ public class ArtifactManagingServiceImpl
       // break;
       // }
       session.save();
+      getBlobStore().release(blobs);
+
+      if (artifactIdPath != null)
+         updateMetadata(session, artifactIdPath);
    }
 
    public List getPermission(SessionProvider sp, Descriptor artifact) throws RepositoryException
@@ -651,45 +1184,63 @@ public class ArtifactManagingServiceImpl
    {
       Session session = currentSession(sp);
 
-      session.refresh(true);
-      session.save();
-
-      String param = criteria.getContainsExpr();
-      String pathConstraint = "";
-      if (rootNodePath.length() > 1)
-      { // artifact root is some real node
-         if (rootNodePath.endsWith("/"))
-            pathConstraint = rootNodePath + "%/" + param + "[%]";
-         else
-            pathConstraint = rootNodePath + "/%/" + param + "[%]";
-      }
-      else
-      {
-         pathConstraint = "/%/" + param + "[%]"; // artifact root is workspace root
-      }
-      // node !!
+      // wildcards of the query expression are not used by matching
+      String expr = criteria.getContainsExpr().replace("%", "");
+      ArtifactIndex artifactIndex = index;
+      List<ArtifactIndex.Entry> entries =
+         artifactIndex != null && artifactIndex.isReady() ? artifactIndex.search(expr, criteria.getMatchMode())
+            : queryVersions(session, expr, criteria.getMatchMode());
+
+      List<Descriptor> found = new ArrayList<Descriptor>();
+      int skipped = 0;
+      int versions = 0;
+      for (ArtifactIndex.Entry entry : entries)
+      {
+         if (versions >= criteria.getLimit())
+            break;
+         // index is built by system session, versions not visible to the user are skipped before paging
+         if (!session.itemExists(entry.path))
+            continue;
+         if (skipped < criteria.getOffset())
+         {
+            skipped++;
+            continue;
+         }
+         versions++;
+         found.add(new FolderDescriptor(entry.path));
+         if (criteria.isIncludeJar() && entry.jar)
+            found.add(new FolderDescriptor(entry.getJarPath()));
+         if (criteria.isIncludePom() && entry.pom)
+            found.add(new FolderDescriptor(entry.getPomPath()));
+      }
+      return found;
+   }
 
-      String sqlQuery = String.format("SELECT * FROM nt:folder WHERE jcr:path LIKE '%s' ", pathConstraint);
+   /**
+    * Finds the versions {@link ArtifactIndex#search} finds, by a query of all versions. Used until
+    * the index is built, so searches have the same results whether it is ready or not.
+    *
+    * @return matching versions ordered by coordinates
+    */
+   private List<ArtifactIndex.Entry> queryVersions(Session session, String expr, SearchCriteria.MatchMode mode)
+      throws RepositoryException
+   {
+      String sqlQuery =
+         String.format("SELECT * FROM exo:versionId WHERE jcr:path LIKE '%s' ", getAbsolutePath("%"));
 
-      LOG.info(sqlQuery);
+      if (LOG.isDebugEnabled())
+         LOG.debug(sqlQuery);
       QueryManager manager = session.getWorkspace().getQueryManager();
       Query query = manager.createQuery(sqlQuery, Query.SQL);
 
-      QueryResult queryResult = query.execute();
-      NodeIterator iterator = queryResult.getNodes();
-
-      List<Descriptor> preciseNode = new ArrayList<Descriptor>();
-      while (iterator.hasNext())
+      SortedMap<String, ArtifactIndex.Entry> found = new TreeMap<String, ArtifactIndex.Entry>();
+      for (NodeIterator iterator = query.execute().getNodes(); iterator.hasNext();)
       {
-
-         Node candidate = iterator.nextNode();
-
-         Descriptor descriptor = new FolderDescriptor(candidate.getPath());
-         preciseNode.add(descriptor);
-
+         ArtifactIndex.Entry entry = ArtifactIndex.createEntry(iterator.nextNode(), rootNodePath);
+         if (entry != null && entry.matches(expr, mode))
+            found.put(entry.getCoordinates(), entry);
       }
-
-      return preciseNode;
+      return new ArrayList<ArtifactIndex.Entry>(found.values());
    }
 
    /*
@@ -756,6 +1307,117 @@ public class ArtifactManagingServiceImpl
       {
          sessionProvider.close();
       }
+
+      startIndex();
+      startStatistics();
+      startRetention();
+   }
+
+   /**
+    * Registers the index listener and builds the index in background, searches use queries until it
+    * is built.
+    */
+   private void startIndex()
+   {
+      if (rootNodePath == null)
+         return;
+
+      indexSessionProvider = SessionProvider.createSystemProvider();
+      try
+      {
+         Session session = currentSession(indexSessionProvider);
+         final ArtifactIndex artifactIndex = new ArtifactIndex(session, rootNodePath);
+         session.getWorkspace().getObservationManager().addEventListener(artifactIndex, ArtifactIndex.EVENT_TYPES,
+            rootNodePath, true, null, null, false);
+         index = artifactIndex;
+
+         new ArtifactThreadFactory("ArtifactIndexBuilder").newThread(new Runnable()
+         {
+            public void run()
+            {
+               SessionProvider sp = SessionProvider.createSystemProvider();
+               try
+               {
+                  artifactIndex.build(currentSession(sp));
+               }
+               catch (RepositoryException e)
+               {
+                  LOG.error("Cannot build artifact index, searches use queries", e);
+               }
+               finally
+               {
+                  sp.close();
+               }
+            }
+         }).start();
+      }
+      catch (RepositoryException e)
+      {
+         LOG.error("Cannot register artifact index listener, searches use queries", e);
+         indexSessionProvider.close();
+         indexSessionProvider = null;
+      }
+   }
+
+   /**
+    * Registers the listener maintaining storage statistics, the totals are counted in background if
+    * the maven root has none yet.
+    */
+   private void startStatistics()
+   {
+      if (rootNodePath == null || statisticsUpdateInterval <= 0)
+         return;
+
+      statisticsSessionProvider = SessionProvider.createSystemProvider();
+      try
+      {
+         StorageStatistics storageStatistics =
+            new StorageStatistics(this, rootNodePath, getBlobStore().getRootPath(), TimeUnit.SECONDS
+               .toMillis(statisticsUpdateInterval));
+         currentSession(statisticsSessionProvider).getWorkspace().getObservationManager().addEventListener(
+            storageStatistics, StorageStatistics.EVENT_TYPES, rootNodePath, true, null, null, false);
+         storageStatistics.start();
+         statistics = storageStatistics;
+      }
+      catch (RepositoryException e)
+      {
+         LOG.error("Cannot register storage statistics listener, statistics are not maintained", e);
+         statisticsSessionProvider.close();
+         statisticsSessionProvider = null;
+      }
+   }
+
+   /**
+    * Schedules retention runs, a run is skipped while the previous one is not finished.
+    */
+   private void startRetention()
+   {
+      if (rootNodePath == null || retentionInterval <= 0 || !retentionPolicy.isActive())
+         return;
+
+      retentionScheduler = Executors.newSingleThreadScheduledExecutor(new ArtifactThreadFactory(
+         "ArtifactRetentionScheduler"));
+      retentionScheduler.scheduleWithFixedDelay(new Runnable()
+      {
+         public void run()
+         {
+            ArtifactJob previous = lastRetentionJob;
+            if (previous != null && !previous.isFinished())
+            {
+               LOG.info("Previous retention run is not finished, skipping " + previous);
+               return;
+            }
+            try
+            {
+               submitRetention(false, true);
+            }
+            catch (RejectedExecutionException e)
+            {
+               LOG.warn("Cannot schedule retention run, job queue is full");
+            }
+         }
+      }, TimeUnit.MINUTES.toSeconds(RETENTION_INITIAL_DELAY), TimeUnit.HOURS.toSeconds(retentionInterval),
+         TimeUnit.SECONDS);
    }
 
    /*
@@ -764,13 +1426,117 @@ public class ArtifactManagingServiceImpl
     */
    public void stop()
    {
+      if (retentionScheduler != null)
+      {
+         retentionScheduler.shutdownNow();
+         retentionScheduler = null;
+      }
+
+      jobManager.shutdown();
+
+      if (statisticsSessionProvider != null)
+      {
+         try
+         {
+            currentSession(statisticsSessionProvider).getWorkspace().getObservationManager().removeEventListener(
+               statistics);
+         }
+         catch (RepositoryException e)
+         {
+            LOG.warn("Cannot unregister storage statistics listener", e);
+         }
+         statistics.stop();
+         statistics = null;
+         statisticsSessionProvider.close();
+         statisticsSessionProvider = null;
+      }
+
+      ArtifactIndex artifactIndex = index;
+      index = null;
+      if (indexSessionProvider != null)
+      {
+         try
+         {
+            currentSession(indexSessionProvider).getWorkspace().getObservationManager().removeEventListener(
+               artifactIndex);
+         }
+         catch (RepositoryException e)
+         {
+            LOG.warn("Cannot unregister artifact index listener", e);
+         }
+         indexSessionProvider.close();
+         indexSessionProvider = null;
+      }
    }
 
-   private Session currentSession(SessionProvider sp) throws RepositoryException
+   Session currentSession(SessionProvider sp) throws RepositoryException
    {
       return sp.getSession(repoWorkspaceName, repositoryService.getCurrentRepository());
    }
 
+   /**
+    * Returns artifact folder, group and artifact folders are created and saved if they don't exist.
+    * They are saved by a short-lived session of the caller, so the batch pending in the given session
+    * is not saved with them. A caller without conversation state creates them as the given session
+    * does: with system session if it is a system one, as anonymous otherwise.
+    */
+   private Node getArtifactIdLayout(Session session, ArtifactDescriptor artifact) throws RepositoryException
+   {
+      String path = getAbsolutePath(artifact.getGroupId().getAsPath() + "/" + artifact.getArtifactId());
+      if (session.itemExists(path))
+      {
+         return (Node)session.getItem(path);
+      }
+
+      // folders may be created concurrently by import workers, each with its own session
+      synchronized (layoutLock)
+      {
+         ConversationState state = ConversationState.getCurrent();
+         SessionProvider sp;
+         if (state != null)
+            sp = new SessionProvider(state);
+         else if (IdentityConstants.SYSTEM.equals(session.getUserID()))
+            sp = SessionProvider.createSystemProvider();
+         else
+            sp = SessionProvider.createAnonimProvider();
+         try
+         {
+            Session layoutSession = currentSession(sp);
+            if (!layoutSession.itemExists(path))
+            {
+               Node rootNode = (Node)layoutSession.getItem(rootNodePath);
+               createArtifactIdLayout(createGroupIdLayout(rootNode, artifact), artifact);
+               layoutSession.save();
+            }
+         }
+         finally
+         {
+            sp.close();
+         }
+      }
+      return (Node)session.getItem(path);
+   }
+
+   /**
+    * @param relPath
+    *          path relative to maven root node
+    * @return absolute path in the workspace
+    */
+   private String getAbsolutePath(String relPath)
+   {
+      if (rootNodePath.length() > 1)
+      {
+         if (rootNodePath.endsWith("/"))
+            return rootNodePath + relPath;
+         else
+            return rootNodePath + "/" + relPath;
+      }
+      else
+      {
+         return "/" + relPath;
+      }
+   }
+
    private void prepareRootNode(SessionProvider sp, String path) throws RepositoryException
    {
       Session session = currentSession(sp);
@@ -855,63 +1621,61 @@ public class ArtifactManagingServiceImpl
    }
 
    // this method used for writing to repo jars, poms and their checksums
-   private void importResource(Node parentNode, InputStream file_in, String resourceType, ArtifactDescriptor artifact)
-            throws RepositoryException
+   private void importResource(Node parentNode, InputStream file_in, String resourceType, ArtifactDescriptor artifact,
+            Calendar lastModified, List<String> stored) throws RepositoryException
    {
       // Note that artifactBean been initialized within constructor
       // resourceType can be jar, pom, metadata
 
-      String filename;
-      if (resourceType.equals("metadata"))
-      {
-         filename = "maven-metadata.xml";
-      }
-      else
-      {
-         filename = String.format("%s-%s.%s", artifact.getArtifactId(), artifact.getVersionId(), resourceType);
-      }
+      String filename = getResourceName(artifact, resourceType);
 
-      OutputStream fout = null;
-      File tmp_file = null;
+      // checksum is computed while the content is spooled, JCR may read the value stream lazily
       try
       {
-         String tmpFilename = getUniqueFilename(filename);
-         tmp_file = File.createTempFile(tmpFilename, null);
-         fout = new FileOutputStream(tmp_file);
-         IOUtils.copy(file_in, fout);
-         fout.flush();
+         InputStream in = new BufferedInputStream(file_in, CRCGenerator.DEFAULT_BUFFER_SIZE);
+         BlobStore store = getBlobStore();
+         if (store.isEnabled())
+         {
+            BlobStore.Blob blob = store.store(in, getRelativeMimeType(resourceType), CHECKSUM_ALGORITHM);
+            Node file =
+               writePrimaryContent(parentNode, filename, resourceType, new ByteArrayInputStream(new byte[0]),
+                  lastModified);
+            BlobStore.reference(file, blob);
+            stored.add(ArtifactContent.getBlobPath(file));
+            writeChecksum(parentNode, filename, blob.getChecksum(CHECKSUM_ALGORITHM), CHECKSUM_ALGORITHM);
+         }
+         else
+         {
+            ChecksumSpool spool = ChecksumSpool.spool(in, CHECKSUM_ALGORITHM);
+            writePrimaryContent(parentNode, filename, resourceType, spool.getStream(), lastModified);
+            writeChecksum(parentNode, filename, spool.getChecksum(CHECKSUM_ALGORITHM), CHECKSUM_ALGORITHM);
+         }
       }
-      catch (FileNotFoundException e)
+      catch (NoSuchAlgorithmException e)
       {
-         LOG.error("Cannot create .tmp file for storing artifact", e);
+         LOG.error("No such algorithm for generating checksums", e);
       }
       catch (IOException e)
       {
-         LOG.error("IO exception on .tmp file for storing artifact", e);
+         throw new RepositoryException("Cannot read " + filename, e);
       }
       finally
       {
          IOUtils.closeQuietly(file_in);
-         IOUtils.closeQuietly(fout);
       }
+   }
 
-      writePrimaryContent(parentNode, filename, resourceType, tmp_file);
-      writeChecksum(parentNode, filename, tmp_file, "SHA1");
-
-      try
-      {
-         // and collect all garbage : temporary files
-         FileUtils.forceDelete(tmp_file);
-      }
-      catch (IOException e)
+   private String getResourceName(ArtifactDescriptor artifact, String resourceType)
+   {
+      if (resourceType.equals("metadata"))
       {
-         LOG.error("Cannot delete tmp file", e);
+         return "maven-metadata.xml";
       }
-
+      return String.format("%s-%s.%s", artifact.getArtifactId(), artifact.getVersionId(), resourceType);
    }
 
-   private void writePrimaryContent(Node parentNode, String filename, String resourceType, File srcFile)
-            throws RepositoryException
+   private Node writePrimaryContent(Node parentNode, String filename, String resourceType, InputStream file_is,
+            Calendar lastModified) throws RepositoryException
    {
 
       String mimeType = getRelativeMimeType(resourceType);
@@ -920,25 +1684,15 @@ public class ArtifactManagingServiceImpl
       String mixinType = "exo:maven".concat(resourceType);
       if (nodeResourceFile.canAddMixin(mixinType))
          nodeResourceFile.addMixin(mixinType);
-      try
-      {
-         InputStream file_is = new FileInputStream(srcFile);
-
-         Node content = nodeResourceFile.addNode("jcr:content", "nt:resource");
-         content.setProperty("jcr:mimeType", mimeType);
-         content.setProperty("jcr:lastModified", Calendar.getInstance());
-         content.setProperty("jcr:data", file_is);
 
-         IOUtils.closeQuietly(file_is);
-
-      }
-      catch (FileNotFoundException e)
-      {
-         LOG.error("Cannot read from .tmp resource file", e);
-      }
+      Node content = nodeResourceFile.addNode("jcr:content", "nt:resource");
+      content.setProperty("jcr:mimeType", mimeType);
+      content.setProperty("jcr:lastModified", lastModified != null ? lastModified : Calendar.getInstance());
+      content.setProperty("jcr:data", file_is);
+      return nodeResourceFile;
    }
 
-   private void writeChecksum(Node parentNode, String filename, File srcFile, String algorithm)
+   private void writeChecksum(Node parentNode, String filename, String checksum, String algorithm)
             throws RepositoryException
    {
       Node nodeChecksumFile = parentNode.addNode(filename.concat("." + algorithm.toLowerCase()), "nt:file");
@@ -948,156 +1702,16 @@ public class ArtifactManagingServiceImpl
       {
          nodeChecksumFile.addMixin(mixinType);
       }
-      try
-      {
-
-         FileInputStream fileInputStream = new FileInputStream(srcFile);
-         String checksum = CRCGenerator.getChecksum(fileInputStream, algorithm);
-
-         InputStream checksum_is = new ByteArrayInputStream(checksum.getBytes());
-         String mimeType = "text/plain";
-
-         Node content = nodeChecksumFile.addNode("jcr:content", "nt:resource");
-         content.setProperty("jcr:mimeType", mimeType);
-         content.setProperty("jcr:lastModified", Calendar.getInstance());
-         content.setProperty("jcr:data", checksum_is);
-
-         IOUtils.closeQuietly(checksum_is);
-      }
-      catch (FileNotFoundException e)
-      {
-         LOG.error("Cannot read from .tmp resource file", e);
-      }
-      catch (IOException e)
-      {
-         LOG.error("Cannot read from .tmp resource file", e);
-      }
-      catch (NoSuchAlgorithmException e)
-      {
-         LOG.error("No such algorithm for generating checksums", e);
-      }
-   }
-
-   protected File createSingleMetadata(String groupId, String artifactId, String version) throws FileNotFoundException
-   {
-      File temp = null;
-      try
-      {
-         String filename = getUniqueFilename("maven-metadata.xml");
-         temp = File.createTempFile(filename, null);
-
-         OutputStream os = new FileOutputStream(temp);
-         XMLOutputFactory factory = XMLOutputFactory.newInstance();
-         XMLStreamWriter writer = factory.createXMLStreamWriter(os);
-         try
-         {
-            writer.writeStartDocument("UTF-8", "1.0");
-            writer.writeStartElement("metadata");
-
-            writer.writeStartElement("groupId");
-            writer.writeCharacters(groupId);
-            writer.writeEndElement();
-
-            writer.writeStartElement("artifactId");
-            writer.writeCharacters(artifactId);
-            writer.writeEndElement();
-
-            writer.writeStartElement("version");
-            writer.writeCharacters(version);
-            writer.writeEndElement();
-
-            writer.writeEndElement();
-            writer.writeEndDocument();
-         }
-         finally
-         {
-            writer.flush();
-            writer.close();
-            os.close();
-         }
-      }
-      catch (XMLStreamException e)
-      {
-         LOG.error("Error on creating metadata - XML", e);
-      }
-      catch (IOException e)
-      {
-         LOG.error("Error on creating metadata - FILE", e);
-      }
-      return (temp != null && temp.exists()) ? temp : null;
-   }
-
-   protected File createMultiMetadata(String groupId, String artifactId, String current_version, List<String> v_list)
-            throws FileNotFoundException
-   {
-      File temp = null;
-      try
-      {
-         String filename = getUniqueFilename("maven-metadata.xml");
-         temp = File.createTempFile(filename, null);
-
-         OutputStream os = new FileOutputStream(temp);
-         XMLOutputFactory factory = XMLOutputFactory.newInstance();
-         XMLStreamWriter writer = factory.createXMLStreamWriter(os);
-         try
-         {
-            writer.writeStartDocument("UTF-8", "1.0");
-            writer.writeStartElement("metadata");
-
-            writer.writeStartElement("groupId");
-            writer.writeCharacters(groupId);
-            writer.writeEndElement();
-
-            writer.writeStartElement("artifactId");
-            writer.writeCharacters(artifactId);
-            writer.writeEndElement();
 
-            String elderVersion;
-            if (v_list.size() > 0)
-            {
-               Collections.sort(v_list); // sort list
-               elderVersion = v_list.get(0); // get first element
-            }
-            else
-               elderVersion = current_version;
-            v_list.add(current_version);
-
-            writer.writeStartElement("version");
-            writer.writeCharacters(elderVersion);
-            writer.writeEndElement();
-
-            writer.writeStartElement("versions");
-            writer.writeStartElement("versioning");
-
-            for (Iterator<String> iterator = v_list.iterator(); iterator.hasNext();)
-            {
-               writer.writeStartElement("version");
-               writer.writeCharacters(iterator.next());
-               writer.writeEndElement();
-            }
+      InputStream checksum_is = new ByteArrayInputStream(checksum.getBytes());
+      String mimeType = "text/plain";
 
-            writer.writeEndElement();
-            writer.writeEndElement();
+      Node content = nodeChecksumFile.addNode("jcr:content", "nt:resource");
+      content.setProperty("jcr:mimeType", mimeType);
+      content.setProperty("jcr:lastModified", Calendar.getInstance());
+      content.setProperty("jcr:data", checksum_is);
 
-            writer.writeEndElement();
-            writer.writeEndDocument();
-         }
-         finally
-         {
-            writer.flush();
-            writer.close();
-            os.close();
-         }
-      }
-      catch (XMLStreamException e)
-      {
-         LOG.error("Error on creating metadata - XML", e);
-      }
-      catch (IOException e)
-      {
-         LOG.error("Error on creating metadata - FILE", e);
-      }
-      return (temp != null && temp.exists()) ? temp : null;
+      IOUtils.closeQuietly(checksum_is);
    }
 
    private String getRelativeMimeType(String key)
@@ -1112,12 +1726,6 @@ public class ArtifactManagingServiceImpl
       // mimeMap.put("metadata", "text/xml");
    }
 
-   private String getUniqueFilename(String basename)
-   {
-      String suffix = ((Double) Math.random()).toString().substring(2, 7);
-      return basename + "." + suffix;
-   }
-
    /**
     * Read parameters from RegistryService.
     * 
@@ -1236,7 +1844,13 @@ public class ArtifactManagingServiceImpl
 
    public List getListErrors()
    {
-      return listErrorPom;
+      ImportReport report = lastImportReport;
+      return report == null ? new ArrayList<String>() : report.getFailedFiles();
+   }
+
+   public ImportReport getLastImportReport()
+   {
+      return lastImportReport;
    }
 
 }
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2003-2007 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.services.jcr.ext.artifact;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates named daemon threads for the background work of the artifact services.
+ *
+ * @version $Id: ArtifactThreadFactory.java $
+ */
+public class ArtifactThreadFactory implements ThreadFactory
+{
+   private final String prefix;
+
+   private final int priority;
+
+   private final AtomicInteger counter = new AtomicInteger();
+
+   public ArtifactThreadFactory(String prefix)
+   {
+      this(prefix, Thread.NORM_PRIORITY);
+   }
+
+   public ArtifactThreadFactory(String prefix, int priority)
+   {
+      this.prefix = prefix;
+      this.priority = priority;
+   }
+
+   public Thread newThread(Runnable r)
+   {
+      Thread thread = new Thread(r, prefix + "-" + counter.incrementAndGet());
+      thread.setDaemon(true);
+      thread.setPriority(priority);
+      return thread;
+   }
+}
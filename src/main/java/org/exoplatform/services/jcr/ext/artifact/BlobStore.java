@@ -0,0 +1,498 @@
+/*
+ * Copyright (C) 2003-2007 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.services.jcr.ext.artifact;
+
+import org.exoplatform.services.jcr.RepositoryService;
+import org.exoplatform.services.jcr.access.PermissionType;
+import org.exoplatform.services.jcr.core.ExtendedNode;
+import org.exoplatform.services.jcr.ext.common.SessionProvider;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+import org.exoplatform.services.security.IdentityConstants;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import javax.jcr.InvalidItemStateException;
+import javax.jcr.ItemExistsException;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.PropertyIterator;
+import javax.jcr.PropertyType;
+import javax.jcr.ReferentialIntegrityException;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * Content-addressed store of artifact binaries. Each distinct content is kept once in a blob node
+ * named by its SHA-256 under <code>data/ab/cd/</code> of the store root, and artifact files
+ * reference the blob instead of keeping a copy (see {@link ArtifactContent}).
+ * <p>
+ * The content is spooled by {@link ChecksumSpool} while its SHA-256 and the requested checksums are
+ * computed, then written into a staging node. If the blob already exists the staging node is dropped before
+ * save and only the reference count of the blob is incremented, otherwise the staging node is
+ * moved to its place. Blobs are saved by the store in its own session before the files referencing
+ * them, so callers release the stored blobs when they discard files whose save failed. Blobs are
+ * removed when their count drops to zero and nothing references them.
+ * <p>
+ * The store root is readable by the system only: blobs are shared by files of different artifacts
+ * whatever their permissions, so {@link ArtifactContent} reads a blob only once the session of the
+ * caller has read the file referencing it.
+ *
+ * @version $Id: BlobStore.java $
+ */
+public class BlobStore
+{
+   private static final Log LOG = ExoLogger.getLogger(BlobStore.class);
+
+   public static final String HASH_ALGORITHM = "SHA-256";
+
+   /**
+    * Mixin of the blob node.
+    */
+   public static final String ARTIFACT_BLOB = "exo:artifactBlob";
+
+   public static final String REF_COUNT = "exo:refCount";
+
+   private static final int MAX_SAVE_ATTEMPTS = 3;
+
+   private static final int LOCKS = 64;
+
+   /**
+    * Shared by all stores of the JVM, so the REST deployer and the import don't race on a blob.
+    */
+   private static final Object[] BLOB_LOCKS = new Object[LOCKS];
+
+   private static final Object FOLDER_LOCK = new Object();
+
+   static
+   {
+      for (int i = 0; i < LOCKS; i++)
+      {
+         BLOB_LOCKS[i] = new Object();
+      }
+   }
+
+   private final RepositoryService repositoryService;
+
+   private final String repository;
+
+   private final String workspace;
+
+   private final String rootPath;
+
+   private volatile boolean prepared;
+
+   /**
+    * @param repository
+    *          repository name, null for the current one
+    * @param workspace
+    *          workspace of the artifacts, blobs must be in the same workspace to be referenced
+    * @param rootPath
+    *          absolute path of the store root, created if it doesn't exist, null if content is not
+    *          stored but blobs stored before may be released
+    */
+   public BlobStore(RepositoryService repositoryService, String repository, String workspace, String rootPath)
+   {
+      this.repositoryService = repositoryService;
+      this.repository = repository;
+      this.workspace = workspace;
+      this.rootPath =
+         rootPath != null && rootPath.length() > 1 && rootPath.endsWith("/") ? rootPath.substring(0, rootPath
+            .length() - 1) : rootPath;
+   }
+
+   /**
+    * @return absolute path of the store root or null if content is not stored as blobs, tree walks
+    *         over the artifacts skip it
+    */
+   public String getRootPath()
+   {
+      return rootPath;
+   }
+
+   /**
+    * @return true if content is stored as blobs
+    */
+   public boolean isEnabled()
+   {
+      return rootPath != null;
+   }
+
+   /**
+    * Stored content.
+    */
+   public static class Blob
+   {
+      private final String hash;
+
+      private final String uuid;
+
+      private final long length;
+
+      private final Map<String, String> checksums;
+
+      Blob(String hash, String uuid, long length, Map<String, String> checksums)
+      {
+         this.hash = hash;
+         this.uuid = uuid;
+         this.length = length;
+         this.checksums = checksums;
+      }
+
+      /**
+       * @return SHA-256 of the content
+       */
+      public String getHash()
+      {
+         return hash;
+      }
+
+      public long getLength()
+      {
+         return length;
+      }
+
+      /**
+       * @return checksum computed on store
+       */
+      public String getChecksum(String algorithm)
+      {
+         return checksums.get(algorithm);
+      }
+
+      public Map<String, String> getChecksums()
+      {
+         return checksums;
+      }
+   }
+
+   /**
+    * Stores the content and counts one more reference to it. The stream is read till the end but
+    * not closed.
+    *
+    * @param algorithms
+    *          checksums to compute along with the hash
+    */
+   public Blob store(InputStream in, String mimeType, String... algorithms) throws RepositoryException,
+      IOException
+   {
+      if (!isEnabled())
+         throw new IllegalStateException("Blob store root is not configured");
+
+      Set<String> digests = new LinkedHashSet<String>();
+      digests.add(HASH_ALGORITHM);
+      Collections.addAll(digests, algorithms);
+      // the hash names the blob, so it must be known before JCR reads the content
+      ChecksumSpool content;
+      try
+      {
+         content = ChecksumSpool.spool(in, digests.toArray(new String[digests.size()]));
+      }
+      catch (NoSuchAlgorithmException e)
+      {
+         throw new RepositoryException("No such algorithm for generating checksums", e);
+      }
+
+      SessionProvider sessionProvider = SessionProvider.createSystemProvider();
+      try
+      {
+         Session session = getSession(sessionProvider);
+         prepare(session);
+
+         Node staging = writeFile((Node)session.getItem(rootPath + "/staging"), UUID.randomUUID().toString(),
+            mimeType, content.getStream());
+         String hash = content.getChecksum(HASH_ALGORITHM);
+         String bucketPath = getBucket(session, hash);
+
+         synchronized (getLock(hash))
+         {
+            for (int attempt = 1;; attempt++)
+            {
+               try
+               {
+                  Node bucket = (Node)session.getItem(bucketPath);
+                  Node blob;
+                  if (bucket.hasNode(hash))
+                  {
+                     blob = bucket.getNode(hash);
+                     blob.setProperty(REF_COUNT, blob.getProperty(REF_COUNT).getLong() + 1);
+                     if (staging != null)
+                        staging.remove();
+                  }
+                  else if (staging != null)
+                  {
+                     session.move(staging.getPath(), bucketPath + "/" + hash);
+                     blob = bucket.getNode(hash);
+                     blob.addMixin(ARTIFACT_BLOB);
+                     blob.setProperty(ArtifactContent.BLOB_HASH, hash);
+                     blob.setProperty(REF_COUNT, 1);
+                  }
+                  else
+                  {
+                     throw new InvalidItemStateException("Blob " + hash + " is removed concurrently");
+                  }
+                  session.save();
+                  return new Blob(hash, blob.getUUID(), content.getLength(), content.getChecksums());
+               }
+               catch (InvalidItemStateException e)
+               {
+                  staging = retry(session, attempt, e);
+               }
+               catch (ItemExistsException e)
+               {
+                  // added by other cluster node, its content is the same
+                  staging = retry(session, attempt, e);
+               }
+            }
+         }
+      }
+      finally
+      {
+         sessionProvider.close();
+      }
+   }
+
+   private static Node retry(Session session, int attempt, RepositoryException e) throws RepositoryException
+   {
+      // staged content is discarded, the blob is expected to exist now
+      session.refresh(false);
+      if (attempt >= MAX_SAVE_ATTEMPTS)
+         throw e;
+      return null;
+   }
+
+   /**
+    * Makes the file reference the blob, the file must have <code>jcr:content</code> with empty
+    * data. Nothing is saved.
+    */
+   public static void reference(Node file, Blob blob) throws RepositoryException
+   {
+      if (!file.isNodeType(ArtifactContent.BLOB_REFERENCE))
+         file.addMixin(ArtifactContent.BLOB_REFERENCE);
+      file.setProperty(ArtifactContent.BLOB_HASH, blob.getHash());
+      // the blob is not readable by the session of the file
+      file.setProperty(ArtifactContent.BLOB, blob.uuid, PropertyType.REFERENCE);
+   }
+
+   /**
+    * Makes the file keep its own content again, nothing is saved.
+    */
+   public static void unreference(Node file) throws RepositoryException
+   {
+      if (file.isNodeType(ArtifactContent.BLOB_REFERENCE))
+         file.removeMixin(ArtifactContent.BLOB_REFERENCE);
+   }
+
+   /**
+    * @return paths of the blobs referenced by the files of the subtree, to release them once the
+    *         subtree is removed
+    */
+   public static List<String> collect(Node node) throws RepositoryException
+   {
+      List<String> paths = new ArrayList<String>();
+      collect(node, paths);
+      return paths;
+   }
+
+   private static void collect(Node node, List<String> paths) throws RepositoryException
+   {
+      String path = ArtifactContent.getBlobPath(node);
+      if (path != null)
+      {
+         paths.add(path);
+      }
+      else if (!node.isNodeType("nt:file"))
+      {
+         for (NodeIterator children = node.getNodes(); children.hasNext();)
+            collect(children.nextNode(), paths);
+      }
+   }
+
+   /**
+    * Counts one reference less to each blob, once the referencing files are removed and saved.
+    * Failures are logged, a blob left counted is only a waste of space.
+    *
+    * @param paths
+    *          blob paths, a path is released as many times as it is listed
+    */
+   public void release(Collection<String> paths)
+   {
+      if (paths.isEmpty())
+         return;
+
+      SessionProvider sessionProvider = SessionProvider.createSystemProvider();
+      try
+      {
+         Session session = getSession(sessionProvider);
+         for (String path : paths)
+         {
+            try
+            {
+               release(session, path);
+            }
+            catch (RepositoryException e)
+            {
+               LOG.error("Cannot release blob " + path, e);
+               session.refresh(false);
+            }
+         }
+      }
+      catch (RepositoryException e)
+      {
+         LOG.error("Cannot release blobs", e);
+      }
+      finally
+      {
+         sessionProvider.close();
+      }
+   }
+
+   private void release(Session session, String path) throws RepositoryException
+   {
+      synchronized (getLock(path.substring(path.lastIndexOf('/') + 1)))
+      {
+         for (int attempt = 1;; attempt++)
+         {
+            try
+            {
+               if (!session.itemExists(path))
+                  return;
+               Node blob = (Node)session.getItem(path);
+               long count = blob.getProperty(REF_COUNT).getLong() - 1;
+               if (count > 0)
+               {
+                  blob.setProperty(REF_COUNT, count);
+                  session.save();
+                  return;
+               }
+               blob.remove();
+               try
+               {
+                  session.save();
+               }
+               catch (ReferentialIntegrityException e)
+               {
+                  // the count was lost, fix it from the actual references
+                  session.refresh(false);
+                  blob = (Node)session.getItem(path);
+                  long references = 0;
+                  for (PropertyIterator it = blob.getReferences(); it.hasNext(); it.nextProperty())
+                     references++;
+                  LOG.warn("Blob " + path + " is still referenced " + references + " times");
+                  blob.setProperty(REF_COUNT, references);
+                  session.save();
+               }
+               return;
+            }
+            catch (InvalidItemStateException e)
+            {
+               session.refresh(false);
+               if (attempt >= MAX_SAVE_ATTEMPTS)
+                  throw e;
+            }
+         }
+      }
+   }
+
+   private Session getSession(SessionProvider sessionProvider) throws RepositoryException
+   {
+      return sessionProvider.getSession(workspace, repository == null ? repositoryService.getCurrentRepository()
+         : repositoryService.getRepository(repository));
+   }
+
+   private static Object getLock(String hash)
+   {
+      return BLOB_LOCKS[(hash.hashCode() & 0x7fffffff) % LOCKS];
+   }
+
+   /**
+    * Creates the root, staging and data folders once and restricts the root to the system.
+    */
+   private void prepare(Session session) throws RepositoryException
+   {
+      if (prepared)
+         return;
+      synchronized (FOLDER_LOCK)
+      {
+         Node root = session.getRootNode();
+         for (String name : rootPath.substring(1).split("/"))
+         {
+            root = root.hasNode(name) ? root.getNode(name) : root.addNode(name, "nt:folder");
+         }
+         if (!root.isNodeType("exo:privilegeable"))
+         {
+            root.addMixin("exo:privilegeable");
+            ((ExtendedNode)root).setPermissions(Collections.singletonMap(IdentityConstants.SYSTEM,
+               PermissionType.ALL));
+         }
+         for (String name : new String[]{"staging", "data"})
+         {
+            if (!root.hasNode(name))
+               root.addNode(name, "nt:folder");
+         }
+         session.save();
+         prepared = true;
+      }
+   }
+
+   /**
+    * Creates the bucket folders of the hash, saving them only, since the session holds staged
+    * content.
+    *
+    * @return path of the bucket
+    */
+   private String getBucket(Session session, String hash) throws RepositoryException
+   {
+      String dataPath = rootPath + "/data";
+      String path = dataPath + "/" + hash.substring(0, 2) + "/" + hash.substring(2, 4);
+      if (session.itemExists(path))
+         return path;
+
+      synchronized (FOLDER_LOCK)
+      {
+         Node data = (Node)session.getItem(dataPath);
+         Node first = data.hasNode(hash.substring(0, 2)) ? data.getNode(hash.substring(0, 2)) : data.addNode(hash
+            .substring(0, 2), "nt:folder");
+         if (!first.hasNode(hash.substring(2, 4)))
+            first.addNode(hash.substring(2, 4), "nt:folder");
+         data.save();
+      }
+      return path;
+   }
+
+   private static Node writeFile(Node folder, String name, String mimeType, InputStream data)
+      throws RepositoryException
+   {
+      Node file = folder.addNode(name, "nt:file");
+      Node content = file.addNode("jcr:content", "nt:resource");
+      content.setProperty("jcr:mimeType", mimeType);
+      content.setProperty("jcr:lastModified", Calendar.getInstance());
+      content.setProperty("jcr:data", data);
+      return file;
+   }
+}
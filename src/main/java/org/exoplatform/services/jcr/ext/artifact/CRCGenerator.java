@@ -18,24 +18,31 @@ package org.exoplatform.services.jcr.ext.artifact;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.security.DigestInputStream;
+import java.io.OutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Created by The eXo Platform SAS. <br/>
  * Date: 21 Nov 2008
- * 
+ *
  * @author <a href="dkatayev@gmail.com">Dmytro Katayev</a>
  * @version $Id: CheckSumGenerator.java
  */
 public class CRCGenerator {
 
+  /**
+   * Default size of the block read from the stream on each digest update.
+   */
+  public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
   private static final String HEX = "0123456789abcdef";
 
   /**
    * Generates checksum for the InputStream.
-   * 
+   *
    * @param in
    *          stream to generate CheckSum
    * @param algo
@@ -48,39 +55,125 @@ public class CRCGenerator {
    */
   public static String getChecksum(InputStream in, String algo) throws NoSuchAlgorithmException,
                                                                IOException {
+    return getChecksums(in, DEFAULT_BUFFER_SIZE, algo).get(algo);
+  }
 
-    MessageDigest md = MessageDigest.getInstance(algo);
+  /**
+   * Generates checksums for the InputStream with several algorithms in one pass.
+   *
+   * @param in
+   *          stream to generate checksums, it is read till the end but not closed
+   * @param bufferSize
+   *          size of the block read from the stream
+   * @param algos
+   *          algorithm names
+   * @return hexadecimal checksums mapped by algorithm name, in the order of <code>algos</code>
+   * @throws NoSuchAlgorithmException
+   * @throws IOException
+   */
+  public static Map<String, String> getChecksums(InputStream in, int bufferSize, String... algos) throws NoSuchAlgorithmException,
+                                                                                                IOException {
+    return copy(in, null, bufferSize, algos);
+  }
 
-    DigestInputStream digestInputStream = new DigestInputStream(in, md);
-    digestInputStream.on(true);
+  /**
+   * Copies the InputStream into the OutputStream and generates checksums of the copied data on
+   * the way.
+   *
+   * @param in
+   *          source stream, it is read till the end but not closed
+   * @param out
+   *          destination stream, may be <code>null</code> if only checksums are needed
+   * @param bufferSize
+   *          size of the block read from the stream
+   * @param algos
+   *          algorithm names
+   * @return hexadecimal checksums mapped by algorithm name, in the order of <code>algos</code>
+   * @throws NoSuchAlgorithmException
+   * @throws IOException
+   */
+  public static Map<String, String> copy(InputStream in, OutputStream out, int bufferSize, String... algos) throws NoSuchAlgorithmException,
+                                                                                                          IOException {
+    MultiDigest digest = new MultiDigest(algos);
 
-    while (digestInputStream.read() > -1) {
-      digestInputStream.read();
+    byte[] buf = new byte[bufferSize];
+    int count;
+    while ((count = in.read(buf)) != -1) {
+      digest.update(buf, 0, count);
+      if (out != null) {
+        out.write(buf, 0, count);
+      }
     }
 
-    byte[] bytes = digestInputStream.getMessageDigest().digest();
-    return generateString(bytes);
+    return digest.digest();
   }
 
   /**
    * Converts the array of bytes into a HEX string.
-   * 
+   *
    * @param bytes
    *          byte array
    * @return HEX string
    */
-  private static String generateString(byte[] bytes) {
+  public static String generateString(byte[] bytes) {
 
-    StringBuffer sb = new StringBuffer();
+    StringBuilder sb = new StringBuilder(bytes.length * 2);
 
     for (byte b : bytes) {
 
       int v = b & 0xFF;
 
-      sb.append((char) HEX.charAt(v >> 4));
-      sb.append((char) HEX.charAt(v & 0x0f));
+      sb.append(HEX.charAt(v >> 4));
+      sb.append(HEX.charAt(v & 0x0f));
     }
 
     return sb.toString();
   }
+
+  /**
+   * Set of message digests updated together, so several checksums of the same data are computed
+   * in one pass.
+   */
+  public static final class MultiDigest {
+
+    private final String[]        algorithms;
+
+    private final MessageDigest[] digests;
+
+    public MultiDigest(String... algorithms) throws NoSuchAlgorithmException {
+      if (algorithms.length == 0) {
+        throw new IllegalArgumentException("At least one digest algorithm expected");
+      }
+      this.algorithms = algorithms.clone();
+      this.digests = new MessageDigest[algorithms.length];
+      for (int i = 0; i < algorithms.length; i++) {
+        digests[i] = MessageDigest.getInstance(algorithms[i]);
+      }
+    }
+
+    public void update(byte[] b, int off, int len) {
+      for (MessageDigest md : digests) {
+        md.update(b, off, len);
+      }
+    }
+
+    public void update(byte b) {
+      for (MessageDigest md : digests) {
+        md.update(b);
+      }
+    }
+
+    /**
+     * Completes the computation and resets the digests.
+     *
+     * @return hexadecimal checksums mapped by algorithm name
+     */
+    public Map<String, String> digest() {
+      Map<String, String> checksums = new LinkedHashMap<String, String>();
+      for (int i = 0; i < digests.length; i++) {
+        checksums.put(algorithms[i], generateString(digests[i].digest()));
+      }
+      return checksums;
+    }
+  }
 }
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2003-2007 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.services.jcr.ext.artifact;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+
+/**
+ * InputStream which computes checksums of the data read through it. Unlike
+ * {@link java.security.DigestInputStream} it feeds several digests at once and is meant to be
+ * consumed with block reads. Checksums are complete only once the stream is read to the end, so it
+ * is not passed as <code>jcr:data</code> value, which JCR may read lazily; see
+ * {@link ChecksumSpool}.
+ *
+ * @version $Id: ChecksumInputStream.java $
+ */
+public class ChecksumInputStream extends FilterInputStream
+{
+
+   private final CRCGenerator.MultiDigest digest;
+
+   private long length;
+
+   private Map<String, String> checksums;
+
+   public ChecksumInputStream(InputStream in, String... algorithms) throws NoSuchAlgorithmException
+   {
+      super(in);
+      this.digest = new CRCGenerator.MultiDigest(algorithms);
+   }
+
+   @Override
+   public int read() throws IOException
+   {
+      int b = in.read();
+      if (b != -1)
+      {
+         digest.update((byte)b);
+         length++;
+      }
+      return b;
+   }
+
+   @Override
+   public int read(byte[] b, int off, int len) throws IOException
+   {
+      int count = in.read(b, off, len);
+      if (count > 0)
+      {
+         digest.update(b, off, count);
+         length += count;
+      }
+      return count;
+   }
+
+   /**
+    * Skipped data must be part of checksum too, so it is read instead.
+    */
+   @Override
+   public long skip(long n) throws IOException
+   {
+      byte[] buf = new byte[(int)Math.min(n, CRCGenerator.DEFAULT_BUFFER_SIZE)];
+      long skipped = 0;
+      while (skipped < n)
+      {
+         int count = read(buf, 0, (int)Math.min(buf.length, n - skipped));
+         if (count == -1)
+         {
+            break;
+         }
+         skipped += count;
+      }
+      return skipped;
+   }
+
+   @Override
+   public boolean markSupported()
+   {
+      return false;
+   }
+
+   /**
+    * @return number of bytes read so far
+    */
+   public long getLength()
+   {
+      return length;
+   }
+
+   /**
+    * Returns checksums of the data read. The first call completes the digests, so it must be done
+    * once the stream is consumed.
+    *
+    * @return hexadecimal checksums mapped by algorithm name
+    */
+   public Map<String, String> getChecksums()
+   {
+      if (checksums == null)
+      {
+         checksums = digest.digest();
+      }
+      return checksums;
+   }
+
+   /**
+    * @param algorithm
+    *          the algorithm name given on creation
+    * @return hexadecimal checksum
+    */
+   public String getChecksum(String algorithm)
+   {
+      return getChecksums().get(algorithm);
+   }
+}
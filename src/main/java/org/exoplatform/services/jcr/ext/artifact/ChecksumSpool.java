@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2003-2007 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.services.jcr.ext.artifact;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+
+/**
+ * Content copied while its checksums are computed, so the checksums are complete before the content
+ * is passed as <code>jcr:data</code> value, whenever JCR reads the value stream. Small content is
+ * kept in memory, larger one in a temporary file removed when its stream is closed.
+ *
+ * @version $Id: ChecksumSpool.java $
+ */
+public final class ChecksumSpool
+{
+   /**
+    * Content up to this size in bytes is kept in memory.
+    */
+   private static final int MAX_MEMORY_SIZE = 64 * 1024;
+
+   private final byte[] bytes;
+
+   private final File file;
+
+   private final long length;
+
+   private final Map<String, String> checksums;
+
+   private ChecksumSpool(byte[] bytes, File file, long length, Map<String, String> checksums)
+   {
+      this.bytes = bytes;
+      this.file = file;
+      this.length = length;
+      this.checksums = checksums;
+   }
+
+   /**
+    * Reads the content to the end, the stream is not closed.
+    *
+    * @param algorithms
+    *          checksums to compute
+    */
+   public static ChecksumSpool spool(InputStream in, String... algorithms) throws IOException,
+      NoSuchAlgorithmException
+   {
+      ChecksumInputStream content = new ChecksumInputStream(in, algorithms);
+      ByteArrayOutputStream memory = new ByteArrayOutputStream();
+      File file = null;
+      OutputStream out = memory;
+      try
+      {
+         byte[] buf = new byte[CRCGenerator.DEFAULT_BUFFER_SIZE];
+         int count;
+         while ((count = content.read(buf)) != -1)
+         {
+            if (file == null && memory.size() + count > MAX_MEMORY_SIZE)
+            {
+               file = File.createTempFile("spool", ".tmp");
+               out = new FileOutputStream(file);
+               memory.writeTo(out);
+               memory = null;
+            }
+            out.write(buf, 0, count);
+         }
+         out.close();
+      }
+      catch (IOException e)
+      {
+         IOUtils.closeQuietly(out);
+         if (file != null && !file.delete())
+            file.deleteOnExit();
+         throw e;
+      }
+      return new ChecksumSpool(file == null ? memory.toByteArray() : null, file, content.getLength(), content
+         .getChecksums());
+   }
+
+   /**
+    * @return stream of the content, the temporary file is removed when it is closed, so it may be
+    *         opened once
+    */
+   public InputStream getStream() throws IOException
+   {
+      if (file == null)
+         return new ByteArrayInputStream(bytes);
+      return new FileInputStream(file)
+      {
+         private boolean closed;
+
+         @Override
+         public void close() throws IOException
+         {
+            super.close();
+            if (!closed)
+            {
+               closed = true;
+               if (!file.delete())
+                  file.deleteOnExit();
+            }
+         }
+      };
+   }
+
+   /**
+    * @return number of bytes of the content
+    */
+   public long getLength()
+   {
+      return length;
+   }
+
+   /**
+    * @return hexadecimal checksums mapped by algorithm name
+    */
+   public Map<String, String> getChecksums()
+   {
+      return checksums;
+   }
+
+   /**
+    * @param algorithm
+    *          the algorithm name given on spooling
+    * @return hexadecimal checksum
+    */
+   public String getChecksum(String algorithm)
+   {
+      return checksums.get(algorithm);
+   }
+}
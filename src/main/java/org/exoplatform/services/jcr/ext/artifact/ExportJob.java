@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2003-2007 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.services.jcr.ext.artifact;
+
+import org.apache.commons.io.IOUtils;
+import org.exoplatform.services.jcr.ext.common.SessionProvider;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+
+/**
+ * Exports artifacts in background into a zip file or a local folder. Without destination the zip
+ * is written into a temporary file which is the result of the job, it is removed when the job is
+ * forgotten. Items of the job are the exported files.
+ *
+ * @version $Id: ExportJob.java $
+ */
+class ExportJob extends ArtifactJob
+{
+   private static final Log LOG = ExoLogger.getLogger(ExportJob.class);
+
+   private final ArtifactManagingServiceImpl service;
+
+   private final FolderDescriptor parentFolder;
+
+   private final File destination;
+
+   private volatile File result;
+
+   ExportJob(ArtifactManagingServiceImpl service, FolderDescriptor parentFolder, File destination)
+   {
+      super("export", destination == null ? parentFolder.getAsString() : parentFolder.getAsString() + " to "
+         + destination.getAbsolutePath());
+      this.service = service;
+      this.parentFolder = parentFolder;
+      this.destination = destination;
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   protected void execute() throws Exception
+   {
+      boolean zip = destination == null || destination.getName().toLowerCase(Locale.ENGLISH).endsWith(".zip");
+      File target = destination == null ? File.createTempFile("artifacts", ".zip") : destination;
+      boolean exported = false;
+
+      SessionProvider sp = createSessionProvider();
+      try
+      {
+         Session session = service.currentSession(sp);
+         Node parentNode = service.getFolderNode(session, parentFolder);
+         if (zip)
+         {
+            OutputStream out = new FileOutputStream(target);
+            try
+            {
+               service.exportZip(session, parentNode, out, this);
+            }
+            finally
+            {
+               IOUtils.closeQuietly(out);
+            }
+         }
+         else
+         {
+            if (!target.isDirectory() && !target.mkdirs())
+            {
+               throw new IOException("Cannot create folder " + target.getAbsolutePath());
+            }
+            service.exportFolder(parentNode, target, this);
+         }
+         exported = !isCancelled();
+      }
+      finally
+      {
+         sp.close();
+         if (zip && !exported)
+         {
+            // partial archive is useless
+            delete(target);
+         }
+         else if (destination == null)
+         {
+            result = target;
+         }
+      }
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public File getResult()
+   {
+      return result;
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   protected void dispose()
+   {
+      File file = result;
+      result = null;
+      if (file != null)
+      {
+         delete(file);
+      }
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public Map<String, Object> getDetails()
+   {
+      Map<String, Object> details = super.getDetails();
+      details.put("folder", parentFolder.getAsString());
+      if (destination != null)
+      {
+         details.put("destination", destination.getAbsolutePath());
+      }
+      return details;
+   }
+
+   private void delete(File file)
+   {
+      if (file.exists() && !file.delete())
+      {
+         LOG.warn("Cannot remove export file " + file.getAbsolutePath());
+      }
+   }
+}
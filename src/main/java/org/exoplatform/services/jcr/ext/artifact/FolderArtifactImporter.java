@@ -0,0 +1,557 @@
+/*
+ * Copyright (C) 2003-2007 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.services.jcr.ext.artifact;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+import org.exoplatform.services.jcr.ext.common.SessionProvider;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+import org.exoplatform.services.security.ConversationState;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * Imports artifacts from a local folder. The folder is scanned by the calling thread, jar/pom pairs
+ * are passed through a bounded queue to a pool of workers. Each worker has its own session and
+ * saves the artifacts by batches. On sync the jar and pom of a stored version are replaced only if
+ * they differ from the source, the modification time of the stored files is the one of the source
+ * files, so unchanged files are recognized without reading them.
+ *
+ * @version $Id: FolderArtifactImporter.java $
+ */
+class FolderArtifactImporter
+{
+   private static final Log LOG = ExoLogger.getLogger(FolderArtifactImporter.class);
+
+   /**
+    * Time in milliseconds workers wait for the next artifact before checking if the scan is over.
+    */
+   private static final long POLL_TIMEOUT = 500;
+
+   private final ArtifactManagingServiceImpl service;
+
+   private final int workers;
+
+   private final int batchSize;
+
+   private volatile boolean scanFinished;
+
+   /**
+    * Paths of the versions found on sync, null on import.
+    */
+   private Set<String> present;
+
+   FolderArtifactImporter(ArtifactManagingServiceImpl service, int workers, int batchSize)
+   {
+      this.service = service;
+      this.workers = workers;
+      this.batchSize = batchSize;
+   }
+
+   /**
+    * Jar/pom pair found in the folder.
+    */
+   private static class ImportTask
+   {
+      final File pom;
+
+      final File jar;
+
+      /**
+       * Coordinates parsed from the pom.
+       */
+      ArtifactDescriptor artifact;
+
+      /**
+       * True if files of a stored version are replaced.
+       */
+      boolean updated;
+
+      /**
+       * Size of the files written.
+       */
+      long size;
+
+      /**
+       * Blobs of the replaced files, released once the artifact is saved.
+       */
+      final List<String> released = new ArrayList<String>();
+
+      ImportTask(File pom, File jar)
+      {
+         this.pom = pom;
+         this.jar = jar;
+      }
+   }
+
+   /**
+    * Imports all jar/pom pairs found in the folder and its sub-folders.
+    *
+    * @param sp
+    *          the session provider of the caller, used only if no identity is bound to the current
+    *          thread and the import can't be shared between several sessions
+    * @param folder
+    *          the folder to import
+    * @param report
+    *          the report to fill, the scan stops when its job is cancelled and the artifacts queued
+    *          so far are dropped
+    * @throws InterruptedException
+    *           if the calling thread was interrupted, the artifacts queued so far are imported anyway
+    */
+   void importFolder(SessionProvider sp, File folder, ImportReport report) throws InterruptedException
+   {
+      present = null;
+      importAll(sp, folder, report, false);
+   }
+
+   /**
+    * Synchronizes the maven root with the folder, see
+    * {@link #importFolder(SessionProvider, File, ImportReport)}.
+    *
+    * @param removeMissing
+    *          whether the stored versions not found in the folder are removed, nothing is removed if
+    *          the sync is cancelled or some artifact failed since its version is unknown then
+    */
+   void syncFolder(SessionProvider sp, File folder, boolean removeMissing, ImportReport report)
+      throws InterruptedException
+   {
+      present = Collections.synchronizedSet(new HashSet<String>());
+      importAll(sp, folder, report, removeMissing);
+   }
+
+   private void importAll(SessionProvider sp, File folder, ImportReport report, boolean removeMissing)
+      throws InterruptedException
+   {
+      // workers open sessions for the identity of the caller
+      ConversationState state = ConversationState.getCurrent();
+      int poolSize = state == null ? 1 : workers;
+
+      BlockingQueue<ImportTask> queue = new ArrayBlockingQueue<ImportTask>(poolSize * batchSize * 2);
+      ExecutorService executor = Executors.newFixedThreadPool(poolSize, new ArtifactThreadFactory("ArtifactImporter"));
+      scanFinished = false;
+      for (int i = 0; i < poolSize; i++)
+      {
+         executor.execute(new Worker(queue, report, state, state == null ? sp : null));
+      }
+
+      try
+      {
+         try
+         {
+            scan(folder, queue, report);
+         }
+         finally
+         {
+            scanFinished = true;
+            executor.shutdown();
+            while (!executor.awaitTermination(POLL_TIMEOUT, TimeUnit.MILLISECONDS))
+            {
+               // wait for workers to drain the queue
+            }
+         }
+         if (removeMissing)
+         {
+            removeMissing(sp, report);
+         }
+      }
+      finally
+      {
+         report.finish();
+      }
+   }
+
+   private void removeMissing(SessionProvider sp, ImportReport report)
+   {
+      if (report.isCancelled() || report.getFailed() > 0)
+      {
+         LOG.warn("Versions missing from " + report.getSource() + " are not removed, the sync is "
+            + (report.isCancelled() ? "cancelled" : "incomplete"));
+         return;
+      }
+      try
+      {
+         service.removeMissingVersions(service.currentSession(sp), present, report);
+      }
+      catch (RepositoryException e)
+      {
+         LOG.error("Cannot remove versions missing from " + report.getSource(), e);
+      }
+   }
+
+   private void scan(File folder, BlockingQueue<ImportTask> queue, ImportReport report) throws InterruptedException
+   {
+      File[] files = folder.listFiles(new DefaultFileFilter());
+      if (files == null)
+      {
+         return;
+      }
+
+      for (File file : files)
+      {
+         if (report.isCancelled())
+         {
+            return;
+         }
+
+         if (file.isDirectory())
+         {
+            scan(file, queue, report);
+         }
+         else if (FilenameUtils.getExtension(file.getName()).equals("pom"))
+         {
+            File jar = new File(FilenameUtils.removeExtension(file.getAbsolutePath()).concat(".jar"));
+            if (jar.exists())
+            {
+               report.artifactFound();
+               queue.put(new ImportTask(file, jar));
+            }
+         }
+      }
+   }
+
+   private class Worker implements Runnable
+   {
+      private final BlockingQueue<ImportTask> queue;
+
+      private final ImportReport report;
+
+      private final ConversationState state;
+
+      private final SessionProvider callerProvider;
+
+      private final List<ImportTask> batch = new ArrayList<ImportTask>();
+
+      /**
+       * Blobs counted for the changes pending in the session, released if they are discarded.
+       */
+      private final List<String> stored = new ArrayList<String>();
+
+      /**
+       * Unchanged artifacts since the last save, their modification time may be updated.
+       */
+      private int unchanged;
+
+      Worker(BlockingQueue<ImportTask> queue, ImportReport report, ConversationState state,
+         SessionProvider callerProvider)
+      {
+         this.queue = queue;
+         this.report = report;
+         this.state = state;
+         this.callerProvider = callerProvider;
+      }
+
+      public void run()
+      {
+         SessionProvider sp = callerProvider;
+         if (state != null)
+         {
+            ConversationState.setCurrent(state);
+            sp = new SessionProvider(state);
+         }
+
+         Session session = null;
+         RepositoryException sessionError = null;
+         try
+         {
+            session = service.currentSession(sp);
+         }
+         catch (RepositoryException e)
+         {
+            LOG.error("Cannot open session for import worker", e);
+            sessionError = e;
+         }
+
+         try
+         {
+            while (true)
+            {
+               ImportTask task = queue.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+               if (task == null)
+               {
+                  if (scanFinished && queue.isEmpty())
+                  {
+                     break;
+                  }
+                  continue;
+               }
+
+               if (report.isCancelled())
+               {
+                  // keep draining the queue, the scanner may wait on it
+                  continue;
+               }
+               else if (session == null)
+               {
+                  // keep draining the queue, the scanner must not block
+                  report.artifactFailed(task.pom.getAbsolutePath(), sessionError);
+               }
+               else
+               {
+                  if (addArtifact(session, task))
+                  {
+                     batch.add(task);
+                  }
+                  if (batch.size() + unchanged >= batchSize)
+                  {
+                     saveBatch(session);
+                  }
+               }
+            }
+
+            if (session != null)
+            {
+               saveBatch(session);
+            }
+         }
+         catch (InterruptedException e)
+         {
+            Thread.currentThread().interrupt();
+         }
+         finally
+         {
+            if (state != null)
+            {
+               sp.close();
+               ConversationState.setCurrent(null);
+            }
+         }
+      }
+
+      /**
+       * Adds artifact to the session without saving it.
+       *
+       * @return true if the artifact is added, false if it is skipped or failed
+       */
+      private boolean addArtifact(Session session, ImportTask task)
+      {
+         InputStream jarIStream = null;
+         InputStream pomIStream = null;
+         try
+         {
+            ArtifactDescriptor artifact = ArtifactDescriptor.createFromPomfile(task.pom);
+            task.artifact = artifact;
+            task.updated = false;
+            task.size = task.jar.length() + task.pom.length();
+            task.released.clear();
+            if (present != null)
+            {
+               present.add(service.getVersionPath(artifact));
+               Node version = service.getVersionNode(session, artifact);
+               if (version != null)
+               {
+                  return syncArtifact(version, task);
+               }
+            }
+
+            jarIStream = new FileInputStream(task.jar);
+            pomIStream = new FileInputStream(task.pom);
+
+            if (service.storeArtifact(session, artifact, jarIStream, pomIStream, lastModified(task.jar),
+               lastModified(task.pom), stored))
+            {
+               return true;
+            }
+            report.artifactSkipped();
+         }
+         catch (Exception e)
+         {
+            report.artifactFailed(task.pom.getAbsolutePath(), e);
+         }
+         finally
+         {
+            IOUtils.closeQuietly(jarIStream);
+            IOUtils.closeQuietly(pomIStream);
+         }
+         return false;
+      }
+
+      /**
+       * Replaces the changed files of the stored version without saving.
+       *
+       * @return true if some file is replaced, false if the version is unchanged
+       */
+      private boolean syncArtifact(Node version, ImportTask task) throws RepositoryException, IOException
+      {
+         boolean jarChanged = service.syncResource(version, task.jar, "jar", task.artifact, task.released, stored);
+         boolean pomChanged = service.syncResource(version, task.pom, "pom", task.artifact, task.released, stored);
+         if (jarChanged || pomChanged)
+         {
+            task.updated = true;
+            task.size = (jarChanged ? task.jar.length() : 0) + (pomChanged ? task.pom.length() : 0);
+            return true;
+         }
+         report.artifactSkipped();
+         unchanged++;
+         return false;
+      }
+
+      /**
+       * Modification time of the source file is kept, so sync recognizes unchanged files.
+       */
+      private Calendar lastModified(File file)
+      {
+         Calendar modified = Calendar.getInstance();
+         modified.setTimeInMillis(file.lastModified());
+         return modified;
+      }
+
+      private void saveBatch(Session session)
+      {
+         if (batch.isEmpty())
+         {
+            if (unchanged > 0)
+            {
+               saveUnchanged(session);
+            }
+            return;
+         }
+
+         unchanged = 0;
+         try
+         {
+            session.save();
+            stored.clear();
+            report.artifactsImported(batch.size(), batchSize(batch));
+            report.artifactsUpdated(updatedCount(batch));
+            service.getBlobStore().release(getReleased(batch));
+            service.updateMetadata(session, getArtifacts(batch));
+         }
+         catch (RepositoryException e)
+         {
+            // some item of the batch conflicts with concurrent changes, e.g. the same artifact is
+            // present twice in the source, retry one by one to import all the others
+            if (LOG.isDebugEnabled())
+            {
+               LOG.debug("Batch save failed, retrying artifacts one by one", e);
+            }
+            retryOneByOne(session);
+         }
+         batch.clear();
+      }
+
+      /**
+       * Saves the modification times taken from the source, they are read again next time if this
+       * fails.
+       */
+      private void saveUnchanged(Session session)
+      {
+         unchanged = 0;
+         try
+         {
+            if (session.hasPendingChanges())
+            {
+               session.save();
+            }
+            stored.clear();
+         }
+         catch (RepositoryException e)
+         {
+            LOG.warn("Cannot save modification times of unchanged artifacts", e);
+            service.discard(session, stored);
+         }
+      }
+
+      private void retryOneByOne(Session session)
+      {
+         // the retry stores the content again, so the blobs counted for the batch are released
+         service.discard(session, stored);
+
+         for (ImportTask task : batch)
+         {
+            if (addArtifact(session, task))
+            {
+               try
+               {
+                  session.save();
+                  stored.clear();
+                  report.artifactsImported(1, task.size);
+                  report.artifactsUpdated(task.updated ? 1 : 0);
+                  service.getBlobStore().release(task.released);
+                  service.updateMetadata(session, Collections.singletonList(task.artifact));
+               }
+               catch (RepositoryException e)
+               {
+                  report.artifactFailed(task.pom.getAbsolutePath(), e);
+                  service.discard(session, stored);
+               }
+            }
+         }
+      }
+
+      private List<ArtifactDescriptor> getArtifacts(List<ImportTask> tasks)
+      {
+         List<ArtifactDescriptor> artifacts = new ArrayList<ArtifactDescriptor>(tasks.size());
+         for (ImportTask task : tasks)
+         {
+            artifacts.add(task.artifact);
+         }
+         return artifacts;
+      }
+
+      private long batchSize(List<ImportTask> tasks)
+      {
+         long size = 0;
+         for (ImportTask task : tasks)
+         {
+            size += task.size;
+         }
+         return size;
+      }
+
+      private int updatedCount(List<ImportTask> tasks)
+      {
+         int count = 0;
+         for (ImportTask task : tasks)
+         {
+            if (task.updated)
+            {
+               count++;
+            }
+         }
+         return count;
+      }
+
+      private List<String> getReleased(List<ImportTask> tasks)
+      {
+         List<String> released = new ArrayList<String>();
+         for (ImportTask task : tasks)
+         {
+            released.addAll(task.released);
+         }
+         return released;
+      }
+   }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2003-2007 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.services.jcr.ext.artifact;
+
+import org.exoplatform.services.jcr.ext.common.SessionProvider;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.Map;
+
+/**
+ * Imports artifacts from a local folder or zip file in background, or synchronizes the maven root
+ * with a local folder. Items of the job are the imported artifacts.
+ *
+ * @version $Id: ImportJob.java $
+ */
+class ImportJob extends ArtifactJob
+{
+   private static final Log LOG = ExoLogger.getLogger(ImportJob.class);
+
+   private final ArtifactManagingServiceImpl service;
+
+   private final File source;
+
+   private final boolean removeSource;
+
+   private final boolean sync;
+
+   private final boolean removeMissing;
+
+   private volatile ImportReport report;
+
+   ImportJob(ArtifactManagingServiceImpl service, File source, boolean removeSource)
+   {
+      this("import", service, source, removeSource, false, false);
+   }
+
+   private ImportJob(String type, ArtifactManagingServiceImpl service, File source, boolean removeSource,
+      boolean sync, boolean removeMissing)
+   {
+      super(type, source.getAbsolutePath());
+      this.service = service;
+      this.source = source;
+      this.removeSource = removeSource;
+      this.sync = sync;
+      this.removeMissing = removeMissing;
+   }
+
+   /**
+    * @return job synchronizing the maven root with the folder, see
+    *         {@link ArtifactManagingService#submitSync(File, boolean)}
+    */
+   static ImportJob sync(ArtifactManagingServiceImpl service, File folder, boolean removeMissing)
+   {
+      return new ImportJob("sync", service, folder, false, true, removeMissing);
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   protected void execute() throws Exception
+   {
+      ImportReport importReport = new ImportReport(source.getAbsolutePath(), this);
+      report = importReport;
+
+      SessionProvider sp = createSessionProvider();
+      try
+      {
+         if (sync)
+         {
+            service.syncFolder(sp, source, removeMissing, importReport);
+         }
+         else if (source.isDirectory())
+         {
+            service.importFolder(sp, source, importReport);
+         }
+         else
+         {
+            service.importZip(service.currentSession(sp), new FileInputStream(source), importReport);
+         }
+      }
+      finally
+      {
+         sp.close();
+         if (removeSource && !source.delete())
+         {
+            LOG.warn("Cannot remove imported file " + source.getAbsolutePath());
+         }
+      }
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public Map<String, Object> getDetails()
+   {
+      Map<String, Object> details = super.getDetails();
+      ImportReport importReport = report;
+      if (importReport != null)
+      {
+         details.put("found", importReport.getFound());
+         details.put("imported", importReport.getImported());
+         details.put("updated", importReport.getUpdated());
+         details.put("skipped", importReport.getSkipped());
+         details.put("removed", importReport.getRemoved());
+         details.put("failed", importReport.getFailed());
+      }
+      return details;
+   }
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2003-2007 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.services.jcr.ext.artifact;
+
+import org.apache.commons.io.FilenameUtils;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress and result of an artifacts import. It is updated concurrently by the import workers
+ * and periodically logs the progress.
+ *
+ * @version $Id: ImportReport.java $
+ */
+public class ImportReport
+{
+   private static final Log LOG = ExoLogger.getLogger(ImportReport.class);
+
+   /**
+    * Progress is logged each time this number of artifacts is processed.
+    */
+   private static final int PROGRESS_STEP = 1000;
+
+   private final String source;
+
+   private final long startTime;
+
+   private volatile long endTime;
+
+   private final AtomicLong found = new AtomicLong();
+
+   private final AtomicLong imported = new AtomicLong();
+
+   private final AtomicLong updated = new AtomicLong();
+
+   private final AtomicLong skipped = new AtomicLong();
+
+   private final AtomicLong removed = new AtomicLong();
+
+   private final AtomicLong bytes = new AtomicLong();
+
+   private final List<ImportError> errors = Collections.synchronizedList(new ArrayList<ImportError>());
+
+   /**
+    * Job the import runs in, null if the import blocks the caller.
+    */
+   private final ArtifactJob job;
+
+   public ImportReport(String source)
+   {
+      this(source, null);
+   }
+
+   ImportReport(String source, ArtifactJob job)
+   {
+      this.source = source;
+      this.job = job;
+      this.startTime = System.currentTimeMillis();
+   }
+
+   /**
+    * Import error of a single artifact.
+    */
+   public static class ImportError
+   {
+      private final String path;
+
+      private final String message;
+
+      public ImportError(String path, String message)
+      {
+         this.path = path;
+         this.message = message;
+      }
+
+      /**
+       * @return the path of the pom file or the zip entry which was not imported
+       */
+      public String getPath()
+      {
+         return path;
+      }
+
+      public String getMessage()
+      {
+         return message;
+      }
+
+      @Override
+      public String toString()
+      {
+         return path + ": " + message;
+      }
+   }
+
+   void artifactFound()
+   {
+      found.incrementAndGet();
+   }
+
+   void artifactsImported(int count, long size)
+   {
+      bytes.addAndGet(size);
+      if (job != null)
+      {
+         job.processed(count, size);
+      }
+      long total = imported.addAndGet(count);
+      if (total / PROGRESS_STEP != (total - count) / PROGRESS_STEP)
+      {
+         logProgress();
+      }
+   }
+
+   /**
+    * Counts imported artifacts which replaced changed files of stored versions, they are counted as
+    * imported as well.
+    */
+   void artifactsUpdated(int count)
+   {
+      updated.addAndGet(count);
+   }
+
+   void versionsRemoved(int count)
+   {
+      removed.addAndGet(count);
+   }
+
+   void artifactSkipped()
+   {
+      skipped.incrementAndGet();
+   }
+
+   void artifactFailed(String path, Throwable cause)
+   {
+      String message = cause.getMessage() == null ? cause.getClass().getName() : cause.getMessage();
+      errors.add(new ImportError(path, message));
+      if (job != null)
+      {
+         job.failed(path, cause);
+      }
+      if (LOG.isDebugEnabled())
+      {
+         LOG.debug("Cannot import " + path, cause);
+      }
+   }
+
+   /**
+    * @return true if the job of the import is cancelled, importers stop taking new artifacts then
+    */
+   boolean isCancelled()
+   {
+      return job != null && job.isCancelled();
+   }
+
+   void finish()
+   {
+      endTime = System.currentTimeMillis();
+      LOG.info(toString());
+      if (!errors.isEmpty())
+      {
+         LOG.warn(errors.size() + " artifacts were not imported from " + source + ": " + getErrors());
+      }
+   }
+
+   private void logProgress()
+   {
+      LOG.info("Import from " + source + ": " + imported.get() + " of " + found.get() + " artifacts imported, "
+         + errors.size() + " failed, " + getThroughput() + " artifacts/s");
+   }
+
+   public String getSource()
+   {
+      return source;
+   }
+
+   /**
+    * @return number of jar/pom pairs found in the source so far
+    */
+   public long getFound()
+   {
+      return found.get();
+   }
+
+   public long getImported()
+   {
+      return imported.get();
+   }
+
+   /**
+    * @return number of imported artifacts which were stored before and changed in the source
+    */
+   public long getUpdated()
+   {
+      return updated.get();
+   }
+
+   /**
+    * @return number of artifacts skipped because such version already exists, or on sync because
+    *         it is unchanged
+    */
+   public long getSkipped()
+   {
+      return skipped.get();
+   }
+
+   /**
+    * @return number of stored versions removed on sync because they are missing from the source
+    */
+   public long getRemoved()
+   {
+      return removed.get();
+   }
+
+   public long getFailed()
+   {
+      return errors.size();
+   }
+
+   /**
+    * @return size in bytes of the imported jar and pom files, on sync only of the replaced ones
+    */
+   public long getBytes()
+   {
+      return bytes.get();
+   }
+
+   public List<ImportError> getErrors()
+   {
+      synchronized (errors)
+      {
+         return new ArrayList<ImportError>(errors);
+      }
+   }
+
+   /**
+    * @return names of the pom files which were not imported
+    */
+   public List<String> getFailedFiles()
+   {
+      List<String> names = new ArrayList<String>();
+      for (ImportError error : getErrors())
+      {
+         names.add(FilenameUtils.getName(error.getPath()));
+      }
+      return names;
+   }
+
+   public boolean isFinished()
+   {
+      return endTime > 0;
+   }
+
+   /**
+    * @return imported artifacts per second
+    */
+   public long getThroughput()
+   {
+      long duration = (isFinished() ? endTime : System.currentTimeMillis()) - startTime;
+      return duration > 0 ? imported.get() * 1000 / duration : imported.get();
+   }
+
+   @Override
+   public String toString()
+   {
+      long duration = (isFinished() ? endTime : System.currentTimeMillis()) - startTime;
+      return "Import from " + source + (isFinished() ? " finished" : " in progress") + ": found " + found.get()
+         + ", imported " + imported.get() + " (" + bytes.get() + " bytes, " + updated.get() + " updated), skipped "
+         + skipped.get() + ", removed " + removed.get() + ", failed " + errors.size() + ", " + duration + " ms";
+   }
+}
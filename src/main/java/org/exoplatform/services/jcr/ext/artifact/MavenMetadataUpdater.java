@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2003-2007 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.services.jcr.ext.artifact;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import javax.jcr.InvalidItemStateException;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Maintains the version list of artifactId node, kept in <code>exo:versionList</code> in Maven
+ * order between two <code>*</code> terminators, and <code>maven-metadata.xml</code> with its
+ * checksums rendered from it. Both are updated each time a version is added or removed, so the
+ * metadata is served as a plain file.
+ *
+ * @version $Id: MavenMetadataUpdater.java $
+ */
+public class MavenMetadataUpdater
+{
+
+   public static final String METADATA = "maven-metadata.xml";
+
+   public static final String VERSION_LIST = "exo:versionList";
+
+   /**
+    * Digests written along with every file.
+    */
+   public static final String[] CHECKSUM_ALGORITHMS = {"SHA1", "MD5"};
+
+   private static final String TERMINATOR = "*";
+
+   private static final int MAX_SAVE_ATTEMPTS = 3;
+
+   private static final int LOCKS = 64;
+
+   /**
+    * Shared by all updaters of the JVM, so imports and the REST deployer don't race on an artifact.
+    */
+   private static final Object[] LOCKS_BY_PATH = new Object[LOCKS];
+
+   static
+   {
+      for (int i = 0; i < LOCKS; i++)
+      {
+         LOCKS_BY_PATH[i] = new Object();
+      }
+   }
+
+   /**
+    * Absolute path of the maven root node without trailing slash, empty for the workspace root.
+    */
+   private final String rootPath;
+
+   /**
+    * @param rootPath
+    *          absolute path of the maven root node
+    */
+   public MavenMetadataUpdater(String rootPath)
+   {
+      this.rootPath = rootPath.endsWith("/") ? rootPath.substring(0, rootPath.length() - 1) : rootPath;
+   }
+
+   /**
+    * Metadata of one artifactId is updated under its lock, so concurrent updates don't lose
+    * versions.
+    *
+    * @param path
+    *          absolute path of artifactId node
+    */
+   public static Object getLock(String path)
+   {
+      return LOCKS_BY_PATH[(path.hashCode() & 0x7fffffff) % LOCKS];
+   }
+
+   /**
+    * Rebuilds version list and metadata of the artifactId node from its version folders and saves
+    * them. The session must not have other pending changes.
+    *
+    * @param session
+    *          the session
+    * @param path
+    *          absolute path of artifactId node
+    * @return versions in Maven order
+    */
+   public List<String> update(Session session, String path) throws RepositoryException
+   {
+      synchronized (getLock(path))
+      {
+         for (int attempt = 1;; attempt++)
+         {
+            try
+            {
+               Node artifactId = (Node)session.getItem(path);
+               List<String> versions = new ArrayList<String>();
+               for (NodeIterator children = artifactId.getNodes(); children.hasNext();)
+               {
+                  Node child = children.nextNode();
+                  if (child.isNodeType("exo:versionId"))
+                  {
+                     versions.add(child.getName());
+                  }
+               }
+               Collections.sort(versions, MavenVersionComparator.INSTANCE);
+
+               String[] versionList = new String[versions.size() + 2];
+               versionList[0] = TERMINATOR;
+               for (int i = 0; i < versions.size(); i++)
+               {
+                  versionList[i + 1] = versions.get(i);
+               }
+               versionList[versionList.length - 1] = TERMINATOR;
+               artifactId.setProperty(VERSION_LIST, versionList);
+
+               writeMetadata(artifactId, render(getGroupId(path), artifactId.getName(), versions));
+               session.save();
+               return versions;
+            }
+            catch (InvalidItemStateException e)
+            {
+               // updated concurrently from other cluster node, build again
+               session.refresh(false);
+               if (attempt >= MAX_SAVE_ATTEMPTS)
+               {
+                  throw e;
+               }
+            }
+         }
+      }
+   }
+
+   /**
+    * @return versions stored in <code>exo:versionList</code> of artifactId node
+    */
+   public static List<String> getVersions(Node artifactId) throws RepositoryException
+   {
+      List<String> versions = new ArrayList<String>();
+      if (artifactId.hasProperty(VERSION_LIST))
+      {
+         for (javax.jcr.Value value : artifactId.getProperty(VERSION_LIST).getValues())
+         {
+            String version = value.getString();
+            if (!version.equals(TERMINATOR))
+            {
+               versions.add(version);
+            }
+         }
+      }
+      return versions;
+   }
+
+   /**
+    * Renders <code>maven-metadata.xml</code> of artifactId.
+    *
+    * @param versions
+    *          versions in Maven order
+    */
+   public static byte[] render(String groupId, String artifactId, List<String> versions)
+   {
+      String latest = null;
+      String release = null;
+      for (String version : versions)
+      {
+         latest = version;
+         if (!MavenVersionComparator.isSnapshot(version))
+         {
+            release = version;
+         }
+      }
+
+      SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss");
+      format.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      try
+      {
+         XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(out, "UTF-8");
+         writer.writeStartDocument("UTF-8", "1.0");
+         writer.writeStartElement("metadata");
+         writeElement(writer, "groupId", groupId);
+         writeElement(writer, "artifactId", artifactId);
+         writer.writeStartElement("versioning");
+         if (latest != null)
+         {
+            writeElement(writer, "latest", latest);
+         }
+         if (release != null)
+         {
+            writeElement(writer, "release", release);
+         }
+         writer.writeStartElement("versions");
+         for (String version : versions)
+         {
+            writeElement(writer, "version", version);
+         }
+         writer.writeEndElement(); // versions
+         writeElement(writer, "lastUpdated", format.format(new Date()));
+         writer.writeEndElement(); // versioning
+         writer.writeEndElement(); // metadata
+         writer.writeEndDocument();
+         writer.close();
+      }
+      catch (XMLStreamException e)
+      {
+         throw new IllegalStateException("Cannot render maven metadata", e);
+      }
+      return out.toByteArray();
+   }
+
+   private static void writeElement(XMLStreamWriter writer, String name, String value) throws XMLStreamException
+   {
+      writer.writeStartElement(name);
+      writer.writeCharacters(value);
+      writer.writeEndElement();
+   }
+
+   /**
+    * Writes metadata and its checksums into the folder, the files are created if they don't exist.
+    */
+   public static void writeMetadata(Node folder, byte[] content) throws RepositoryException
+   {
+      Map<String, String> checksums;
+      try
+      {
+         checksums =
+            CRCGenerator.getChecksums(new ByteArrayInputStream(content), CRCGenerator.DEFAULT_BUFFER_SIZE,
+               CHECKSUM_ALGORITHMS);
+      }
+      catch (NoSuchAlgorithmException e)
+      {
+         throw new RepositoryException("No such algorithm for generating checksums", e);
+      }
+      catch (IOException e)
+      {
+         throw new RepositoryException(e);
+      }
+
+      Calendar modified = Calendar.getInstance();
+      writeFile(folder, METADATA, "exo:mavenmetadata", "text/xml", content, modified);
+      for (String algorithm : CHECKSUM_ALGORITHMS)
+      {
+         String extension = algorithm.toLowerCase();
+         writeFile(folder, METADATA + "." + extension, "exo:maven" + extension, "text/plain", checksums.get(algorithm)
+            .getBytes(), modified);
+      }
+   }
+
+   private static void writeFile(Node folder, String name, String mixin, String mimeType, byte[] data,
+      Calendar modified) throws RepositoryException
+   {
+      Node content;
+      if (folder.hasNode(name))
+      {
+         content = folder.getNode(name).getNode("jcr:content");
+      }
+      else
+      {
+         Node file = folder.addNode(name, "nt:file");
+         if (file.canAddMixin(mixin))
+         {
+            file.addMixin(mixin);
+         }
+         content = file.addNode("jcr:content", "nt:resource");
+      }
+      content.setProperty("jcr:mimeType", mimeType);
+      content.setProperty("jcr:lastModified", modified);
+      content.setProperty("jcr:data", new ByteArrayInputStream(data));
+   }
+
+   private String getGroupId(String path)
+   {
+      String relPath = path.substring(rootPath.length() + 1);
+      int slash = relPath.lastIndexOf('/');
+      return slash < 0 ? "" : relPath.substring(0, slash).replace('/', '.');
+   }
+}
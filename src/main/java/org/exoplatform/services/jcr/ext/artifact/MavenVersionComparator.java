@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2003-2007 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.services.jcr.ext.artifact;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Orders versions the way Maven does: numeric parts are compared as numbers, trailing zeros are
+ * ignored (1.0 equals 1) and well known qualifiers are ordered alpha &lt; beta &lt; milestone &lt; rc
+ * &lt; snapshot &lt; release &lt; sp. Unknown qualifiers come after the known ones, in alphabetical
+ * order, and any qualifier is lower than a number at the same position.
+ *
+ * @version $Id: MavenVersionComparator.java $
+ */
+public class MavenVersionComparator implements Comparator<String>
+{
+
+   public static final MavenVersionComparator INSTANCE = new MavenVersionComparator();
+
+   private static final String[] QUALIFIERS = {"alpha", "beta", "milestone", "rc", "snapshot", "", "sp"};
+
+   /**
+    * Rank of the release, i.e. of the absent qualifier.
+    */
+   private static final int RELEASE = 5;
+
+   /**
+    * {@inheritDoc}
+    */
+   public int compare(String v1, String v2)
+   {
+      List<Object> items1 = parse(v1);
+      List<Object> items2 = parse(v2);
+
+      int size = Math.max(items1.size(), items2.size());
+      for (int i = 0; i < size; i++)
+      {
+         Object item1 = i < items1.size() ? items1.get(i) : null;
+         Object item2 = i < items2.size() ? items2.get(i) : null;
+         int result = compareItems(item1, item2);
+         if (result != 0)
+         {
+            return result;
+         }
+      }
+      return 0;
+   }
+
+   /**
+    * @return true if the version is a snapshot
+    */
+   public static boolean isSnapshot(String version)
+   {
+      return version.toUpperCase(Locale.ENGLISH).endsWith("SNAPSHOT");
+   }
+
+   /**
+    * Missing item equals to zero or to release qualifier.
+    */
+   private static int compareItems(Object item1, Object item2)
+   {
+      if (item1 == null && item2 == null)
+      {
+         return 0;
+      }
+      if (item1 == null)
+      {
+         return -compareItems(item2, null);
+      }
+
+      if (item1 instanceof BigInteger)
+      {
+         if (item2 == null)
+         {
+            return ((BigInteger)item1).signum();
+         }
+         if (item2 instanceof BigInteger)
+         {
+            return ((BigInteger)item1).compareTo((BigInteger)item2);
+         }
+         return 1;
+      }
+
+      String qualifier = (String)item1;
+      if (item2 == null)
+      {
+         return compareQualifiers(qualifier, "");
+      }
+      if (item2 instanceof BigInteger)
+      {
+         return -1;
+      }
+      return compareQualifiers(qualifier, (String)item2);
+   }
+
+   private static int compareQualifiers(String q1, String q2)
+   {
+      int rank1 = rank(q1);
+      int rank2 = rank(q2);
+      if (rank1 != rank2)
+      {
+         return rank1 < rank2 ? -1 : 1;
+      }
+      return rank1 == QUALIFIERS.length ? q1.compareTo(q2) : 0;
+   }
+
+   private static int rank(String qualifier)
+   {
+      for (int i = 0; i < QUALIFIERS.length; i++)
+      {
+         if (QUALIFIERS[i].equals(qualifier))
+         {
+            return i;
+         }
+      }
+      return QUALIFIERS.length;
+   }
+
+   /**
+    * Splits version into numbers and normalized qualifiers, trailing zeros and release qualifiers
+    * are removed.
+    */
+   static List<Object> parse(String version)
+   {
+      List<Object> items = new ArrayList<Object>();
+      String value = version.toLowerCase(Locale.ENGLISH);
+
+      int start = 0;
+      for (int i = 0; i <= value.length(); i++)
+      {
+         boolean end = i == value.length();
+         char c = end ? 0 : value.charAt(i);
+         if (end || c == '.' || c == '-' || c == '_'
+            || (i > start && Character.isDigit(c) != Character.isDigit(value.charAt(i - 1))))
+         {
+            if (i > start)
+            {
+               String token = value.substring(start, i);
+               boolean followedByDigit = !end && Character.isDigit(c);
+               items.add(toItem(token, followedByDigit));
+            }
+            start = (end || Character.isLetterOrDigit(c)) ? i : i + 1;
+         }
+      }
+
+      // 1.0-alpha equals 1-alpha
+      for (int i = items.size() - 2; i >= 0; i--)
+      {
+         Object item = items.get(i);
+         if (item instanceof BigInteger && ((BigInteger)item).signum() == 0 && items.get(i + 1) instanceof String)
+         {
+            items.remove(i);
+         }
+      }
+
+      // 1.0.0 equals 1, 1-ga equals 1
+      while (!items.isEmpty())
+      {
+         Object last = items.get(items.size() - 1);
+         if ((last instanceof BigInteger && ((BigInteger)last).signum() == 0)
+            || (last instanceof String && rank((String)last) == RELEASE))
+         {
+            items.remove(items.size() - 1);
+         }
+         else
+         {
+            break;
+         }
+      }
+      return items;
+   }
+
+   private static Object toItem(String token, boolean followedByDigit)
+   {
+      if (Character.isDigit(token.charAt(0)))
+      {
+         return new BigInteger(token);
+      }
+      if (followedByDigit && token.length() == 1)
+      {
+         // 1.0a1 is 1.0-alpha-1
+         switch (token.charAt(0))
+         {
+            case 'a' :
+               return "alpha";
+            case 'b' :
+               return "beta";
+            case 'm' :
+               return "milestone";
+            default :
+               break;
+         }
+      }
+      if (token.equals("cr"))
+      {
+         return "rc";
+      }
+      if (token.equals("ga") || token.equals("final") || token.equals("release"))
+      {
+         return "";
+      }
+      return token;
+   }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2003-2007 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.services.jcr.ext.artifact;
+
+import java.io.InputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Reads artifact coordinates from a pom with a StAX reader, without building the document. Only
+ * <code>groupId</code>, <code>artifactId</code> and <code>version</code> children of
+ * <code>project</code> are taken, missing <code>groupId</code> and <code>version</code> are
+ * inherited from <code>parent</code>. Reading stops as soon as the three own coordinates are known;
+ * the elements of a pom may come in any order, so a pom inheriting some of them is read to the end.
+ *
+ * @version $Id: PomParser.java $
+ */
+final class PomParser
+{
+   private static final XMLInputFactory FACTORY = XMLInputFactory.newInstance();
+
+   static
+   {
+      // poms are never expected to use DTD, external entities must not be resolved
+      FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+      FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+   }
+
+   private PomParser()
+   {
+   }
+
+   /**
+    * @param pom
+    *          pom content, it is not closed
+    * @return coordinates of the artifact
+    * @throws XMLStreamException
+    *           if the pom is not well formed or coordinates can't be found
+    */
+   static ArtifactDescriptor parse(InputStream pom) throws XMLStreamException
+   {
+      String groupId = null;
+      String artifactId = null;
+      String version = null;
+      String parentGroupId = null;
+      String parentVersion = null;
+
+      XMLStreamReader reader;
+      synchronized (FACTORY)
+      {
+         reader = FACTORY.createXMLStreamReader(pom);
+      }
+      try
+      {
+         // depth of the current element, project is at 1
+         int depth = 0;
+         boolean inParent = false;
+         while (reader.hasNext())
+         {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT)
+            {
+               depth++;
+               String name = reader.getLocalName();
+               if (depth == 1)
+               {
+                  if (!name.equals("project"))
+                     throw new XMLStreamException("Root element of pom is " + name, reader.getLocation());
+               }
+               else if (depth == 2)
+               {
+                  if (name.equals("groupId"))
+                  {
+                     groupId = text(reader);
+                     depth--;
+                  }
+                  else if (name.equals("artifactId"))
+                  {
+                     artifactId = text(reader);
+                     depth--;
+                  }
+                  else if (name.equals("version"))
+                  {
+                     version = text(reader);
+                     depth--;
+                  }
+                  else
+                  {
+                     inParent = name.equals("parent");
+                  }
+
+                  if (groupId != null && artifactId != null && version != null)
+                     break;
+               }
+               else if (depth == 3 && inParent)
+               {
+                  if (name.equals("groupId"))
+                  {
+                     parentGroupId = text(reader);
+                     depth--;
+                  }
+                  else if (name.equals("version"))
+                  {
+                     parentVersion = text(reader);
+                     depth--;
+                  }
+               }
+            }
+            else if (event == XMLStreamConstants.END_ELEMENT)
+            {
+               if (depth == 2)
+                  inParent = false;
+               depth--;
+            }
+         }
+      }
+      finally
+      {
+         reader.close();
+      }
+
+      if (groupId == null)
+         groupId = parentGroupId;
+      if (version == null)
+         version = parentVersion;
+      if (groupId == null || artifactId == null || version == null)
+      {
+         throw new XMLStreamException("Incomplete coordinates in pom: groupId=" + groupId + ", artifactId="
+            + artifactId + ", version=" + version);
+      }
+      return new ArtifactDescriptor(new FolderDescriptor(groupId), artifactId, version);
+   }
+
+   /**
+    * Reads text of the current element, the reader is left at its end.
+    */
+   private static String text(XMLStreamReader reader) throws XMLStreamException
+   {
+      return reader.getElementText().trim();
+   }
+}
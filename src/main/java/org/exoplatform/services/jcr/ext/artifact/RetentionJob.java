@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2003-2007 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.services.jcr.ext.artifact;
+
+import org.exoplatform.services.jcr.ext.common.SessionProvider;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * Removes the versions expired by {@link RetentionPolicy} under the maven root. Removals are saved
+ * in batches, each batch releases the blobs of the removed files and updates the version lists of
+ * their artifacts; the search index and storage statistics follow the removals by observation. A
+ * dry run only logs the expired versions. Items of the job are the removed versions, bytes are
+ * their size as counted by storage statistics.
+ *
+ * @version $Id: RetentionJob.java $
+ */
+class RetentionJob extends ArtifactJob
+{
+   private static final Log LOG = ExoLogger.getLogger(RetentionJob.class);
+
+   private final ArtifactManagingServiceImpl service;
+
+   private final RetentionPolicy policy;
+
+   private final String rootPath;
+
+   /**
+    * Absolute path of the blob store root, not walked, may be null.
+    */
+   private final String excludedPath;
+
+   private final int batchSize;
+
+   private final boolean dryRun;
+
+   private final AtomicLong artifacts = new AtomicLong();
+
+   private final AtomicLong expired = new AtomicLong();
+
+   private final List<String> removed = new ArrayList<String>();
+
+   private final List<String> blobs = new ArrayList<String>();
+
+   private final Set<String> artifactIdPaths = new LinkedHashSet<String>();
+
+   private long removedBytes;
+
+   private long now;
+
+   /**
+    * @param rootPath
+    *          absolute path of the maven root node
+    * @param excludedPath
+    *          absolute path of the blob store root, may be null
+    * @param batchSize
+    *          number of versions removed before each save
+    * @param dryRun
+    *          true to only report the expired versions
+    * @param system
+    *          true for a scheduled run, it removes with system session
+    */
+   RetentionJob(ArtifactManagingServiceImpl service, RetentionPolicy policy, String rootPath, String excludedPath,
+      int batchSize, boolean dryRun, boolean system)
+   {
+      super("retention", dryRun ? rootPath + " (dry run)" : rootPath, system);
+      this.service = service;
+      this.policy = policy;
+      this.rootPath = rootPath.length() > 1 && rootPath.endsWith("/") ? rootPath.substring(0, rootPath.length() - 1)
+         : rootPath;
+      this.excludedPath = excludedPath;
+      this.batchSize = batchSize;
+      this.dryRun = dryRun;
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   protected void execute() throws RepositoryException
+   {
+      now = System.currentTimeMillis();
+      SessionProvider sp = createSessionProvider();
+      try
+      {
+         Session session = service.currentSession(sp);
+         try
+         {
+            walk(session, (Node)session.getItem(rootPath));
+         }
+         finally
+         {
+            saveBatch(session);
+         }
+      }
+      finally
+      {
+         sp.close();
+      }
+      LOG.info("Retention " + (dryRun ? "dry run " : "") + (isCancelled() ? "stopped" : "finished") + ", "
+         + artifacts + " artifacts checked, " + expired + " versions expired, " + getItems() + " removed");
+   }
+
+   private void walk(Session session, Node folder) throws RepositoryException
+   {
+      Map<String, Long> versions = new HashMap<String, Long>();
+      List<String> subfolders = new ArrayList<String>();
+      for (NodeIterator nodes = folder.getNodes(); nodes.hasNext();)
+      {
+         Node child = nodes.nextNode();
+         if (child.isNodeType("exo:versionId"))
+         {
+            versions.put(child.getName(), child.hasProperty("jcr:created") ? child.getProperty("jcr:created")
+               .getDate().getTimeInMillis() : now);
+         }
+         else if (child.isNodeType("nt:folder") && !isExcluded(child.getPath()))
+         {
+            subfolders.add(child.getName());
+         }
+      }
+
+      if (folder.isNodeType("exo:artifactId"))
+      {
+         artifacts.incrementAndGet();
+         expire(session, folder, versions);
+      }
+
+      for (String name : subfolders)
+      {
+         checkCancelled();
+         walk(session, folder.getNode(name));
+      }
+   }
+
+   private void expire(Session session, Node artifactId, Map<String, Long> versions) throws RepositoryException
+   {
+      if (versions.isEmpty())
+         return;
+
+      String groupPath = artifactId.getParent().getPath();
+      String groupId = groupPath.length() > rootPath.length() ? groupPath.substring(rootPath.length()).replaceAll(
+         "^/", "").replace('/', '.') : "";
+      for (String version : policy.getExpired(groupId, artifactId.getName(), versions, now))
+      {
+         checkCancelled();
+         expired.incrementAndGet();
+         Node node = artifactId.getNode(version);
+         if (dryRun)
+         {
+            LOG.info("Expired version " + node.getPath());
+            continue;
+         }
+
+         StorageStatistics.Totals totals = StorageStatistics.read(node);
+         if (totals != null)
+            removedBytes += totals.getBytes();
+         blobs.addAll(BlobStore.collect(node));
+         removed.add(node.getPath());
+         artifactIdPaths.add(artifactId.getPath());
+         node.remove();
+         if (removed.size() >= batchSize)
+            saveBatch(session);
+      }
+   }
+
+   private void saveBatch(Session session)
+   {
+      if (removed.isEmpty())
+         return;
+      try
+      {
+         session.save();
+      }
+      catch (RepositoryException e)
+      {
+         LOG.error("Cannot remove expired versions", e);
+         for (String path : removed)
+         {
+            failed(path, e);
+         }
+         try
+         {
+            session.refresh(false);
+         }
+         catch (RepositoryException re)
+         {
+            LOG.error("Cannot discard changes of expired versions", re);
+         }
+         clearBatch();
+         return;
+      }
+
+      service.getBlobStore().release(blobs);
+      processed(removed.size(), removedBytes);
+      for (String path : artifactIdPaths)
+      {
+         try
+         {
+            service.updateArtifactMetadata(session, path);
+         }
+         catch (RepositoryException e)
+         {
+            // the versions are removed anyway, only the metadata of their artifact is stale
+            LOG.error("Cannot update metadata of " + path, e);
+            failed(path, e);
+         }
+      }
+      clearBatch();
+   }
+
+   private void clearBatch()
+   {
+      removed.clear();
+      blobs.clear();
+      artifactIdPaths.clear();
+      removedBytes = 0;
+   }
+
+   private boolean isExcluded(String path)
+   {
+      return excludedPath != null && (path.equals(excludedPath) || path.startsWith(excludedPath + "/"));
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public Map<String, Object> getDetails()
+   {
+      Map<String, Object> details = super.getDetails();
+      details.put("dryRun", dryRun);
+      details.put("artifacts", artifacts.get());
+      details.put("expired", expired.get());
+      return details;
+   }
+}
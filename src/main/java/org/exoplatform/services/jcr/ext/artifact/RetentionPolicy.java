@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2003-2007 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.services.jcr.ext.artifact;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which versions of an artifact expire. Snapshots and releases have separate rules: a
+ * version expires if it is not among the <code>keep</code> newest versions of its kind and, when a
+ * max age is set, it is older than that. A rule with neither limit keeps everything. Versions
+ * matching an exclusion never expire, they still count among the newest ones.
+ *
+ * @version $Id: RetentionPolicy.java $
+ */
+class RetentionPolicy
+{
+   /**
+    * Limits of one kind of versions.
+    */
+   static class Rule
+   {
+      final int keep;
+
+      final long maxAge;
+
+      /**
+       * @param keep
+       *          number of the newest versions kept whatever their age, 0 for none
+       * @param maxAge
+       *          age in milliseconds after which a version not kept expires, 0 for any age
+       */
+      Rule(int keep, long maxAge)
+      {
+         this.keep = keep;
+         this.maxAge = maxAge;
+      }
+
+      boolean isActive()
+      {
+         return keep > 0 || maxAge > 0;
+      }
+   }
+
+   private final Rule snapshots;
+
+   private final Rule releases;
+
+   /**
+    * Patterns of groupId, artifactId and version, the missing ones match anything.
+    */
+   private final List<Pattern[]> exclusions = new ArrayList<Pattern[]>();
+
+   /**
+    * @param exclusions
+    *          coordinates <code>groupId[:artifactId[:version]]</code> of the versions never removed,
+    *          <code>*</code> matches any characters
+    */
+   RetentionPolicy(Rule snapshots, Rule releases, Collection<String> exclusions)
+   {
+      this.snapshots = snapshots;
+      this.releases = releases;
+      for (String exclusion : exclusions)
+      {
+         String[] parts = exclusion.trim().split(":");
+         Pattern[] patterns = new Pattern[parts.length];
+         for (int i = 0; i < parts.length; i++)
+         {
+            patterns[i] = Pattern.compile(("\\Q" + parts[i] + "\\E").replace("*", "\\E.*\\Q"));
+         }
+         this.exclusions.add(patterns);
+      }
+   }
+
+   /**
+    * @return false if no version ever expires
+    */
+   boolean isActive()
+   {
+      return snapshots.isActive() || releases.isActive();
+   }
+
+   /**
+    * @param versions
+    *          creation time of each version of the artifact
+    * @param now
+    *          current time
+    * @return the expired versions, the lowest first
+    */
+   List<String> getExpired(String groupId, String artifactId, Map<String, Long> versions, long now)
+   {
+      List<String> sorted = new ArrayList<String>(versions.keySet());
+      Collections.sort(sorted, Collections.reverseOrder(MavenVersionComparator.INSTANCE));
+
+      List<String> expired = new ArrayList<String>();
+      int snapshotRank = 0;
+      int releaseRank = 0;
+      for (String version : sorted)
+      {
+         boolean snapshot = MavenVersionComparator.isSnapshot(version);
+         Rule rule = snapshot ? snapshots : releases;
+         int rank = snapshot ? snapshotRank++ : releaseRank++;
+         if (rule.isActive() && rank >= rule.keep && (rule.maxAge <= 0 || now - versions.get(version) > rule.maxAge)
+            && !isExcluded(groupId, artifactId, version))
+         {
+            expired.add(version);
+         }
+      }
+      Collections.reverse(expired);
+      return expired;
+   }
+
+   boolean isExcluded(String groupId, String artifactId, String version)
+   {
+      String[] coordinates = {groupId, artifactId, version};
+      for (Pattern[] patterns : exclusions)
+      {
+         boolean matches = true;
+         for (int i = 0; i < patterns.length && i < coordinates.length && matches; i++)
+         {
+            matches = patterns[i].matcher(coordinates[i]).matches();
+         }
+         if (matches)
+         {
+            return true;
+         }
+      }
+      return false;
+   }
+}
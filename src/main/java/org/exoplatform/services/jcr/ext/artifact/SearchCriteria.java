@@ -18,12 +18,31 @@ package org.exoplatform.services.jcr.ext.artifact;
 
 public class SearchCriteria {
 
+  /**
+   * How the expression is matched against groupId, artifactId, version and full
+   * <code>groupId:artifactId:version</code> coordinates.
+   */
+  public enum MatchMode {
+    /** Equal to one of them. */
+    EXACT,
+    /** Starts one of groupId, artifactId or coordinates. */
+    PREFIX,
+    /** Contained in coordinates, ignoring case. */
+    CONTAINS
+  }
+
   private String  containsExpr;
 
   private boolean includePom;
 
   private boolean includeJar;
 
+  private MatchMode matchMode = MatchMode.EXACT;
+
+  private int offset;
+
+  private int limit = Integer.MAX_VALUE;
+
   public SearchCriteria() {
 
   }
@@ -56,4 +75,34 @@ public class SearchCriteria {
     this.includeJar = includeJar;
   }
 
+  public MatchMode getMatchMode() {
+    return matchMode;
+  }
+
+  public void setMatchMode(MatchMode matchMode) {
+    this.matchMode = matchMode;
+  }
+
+  /**
+   * @return number of found versions skipped from the beginning
+   */
+  public int getOffset() {
+    return offset;
+  }
+
+  public void setOffset(int offset) {
+    this.offset = offset;
+  }
+
+  /**
+   * @return max number of found versions returned
+   */
+  public int getLimit() {
+    return limit;
+  }
+
+  public void setLimit(int limit) {
+    this.limit = limit;
+  }
+
 }
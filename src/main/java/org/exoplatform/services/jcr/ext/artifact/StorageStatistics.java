@@ -0,0 +1,453 @@
+/*
+ * Copyright (C) 2003-2007 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.services.jcr.ext.artifact;
+
+import org.exoplatform.services.jcr.ext.common.SessionProvider;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.Item;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+
+/**
+ * Number of files, their size and downloads kept on every folder under the maven root, so the
+ * usage of a group, artifact or version is read without walking its subtree. The listener only
+ * marks the folders whose content changed: the parent of an added or removed node and the folder of
+ * a file whose content or download counter changed. A background thread periodically recounts each
+ * marked folder from its own files and the stored totals of its sub-folders and adds the difference
+ * to the folders above it, so a change costs one folder and the depth of the tree. Totals of all the
+ * folders are counted by walking the tree once, when the root has none yet. Changes not applied
+ * before the server stops abnormally are lost, the totals are counted again from scratch once the
+ * <code>exo:storageStatistics</code> mixin is removed from the root. Size of a file kept in
+ * {@link BlobStore} is counted in every folder referencing its blob.
+ *
+ * @version $Id: StorageStatistics.java $
+ */
+public class StorageStatistics implements EventListener
+{
+   private static final Log LOG = ExoLogger.getLogger(StorageStatistics.class);
+
+   /**
+    * Mixin of folders with totals.
+    */
+   public static final String STATISTICS = "exo:storageStatistics";
+
+   public static final String FILES_PROPERTY = "exo:totalFiles";
+
+   public static final String BYTES_PROPERTY = "exo:totalBytes";
+
+   public static final String DOWNLOADS_PROPERTY = "exo:totalDownloads";
+
+   static final int EVENT_TYPES = Event.NODE_ADDED | Event.NODE_REMOVED | Event.PROPERTY_ADDED | Event.PROPERTY_CHANGED;
+
+   /**
+    * Download counter of a file, flushed by the REST service.
+    */
+   private static final String COUNTER_PROPERTY = "exo:downloadcounter";
+
+   /**
+    * Number of folders updated before each save.
+    */
+   private static final int SAVE_BATCH_SIZE = 100;
+
+   private final ArtifactManagingServiceImpl service;
+
+   private final String rootPath;
+
+   /**
+    * Absolute path of the blob store root, not counted if it is under the maven root, may be null.
+    */
+   private final String excludedPath;
+
+   private final long updateInterval;
+
+   /**
+    * Paths of the folders to recount.
+    */
+   private final Set<String> changed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+   private ScheduledExecutorService updater;
+
+   /**
+    * True once the totals of all the folders are counted.
+    */
+   private volatile boolean ready;
+
+   private int unsaved;
+
+   /**
+    * @param rootPath
+    *          absolute path of the maven root node
+    * @param excludedPath
+    *          absolute path of the blob store root, may be null
+    * @param updateInterval
+    *          interval in milliseconds between updates of the totals
+    */
+   StorageStatistics(ArtifactManagingServiceImpl service, String rootPath, String excludedPath, long updateInterval)
+   {
+      this.service = service;
+      this.rootPath = rootPath.length() > 1 && rootPath.endsWith("/") ? rootPath.substring(0, rootPath.length() - 1)
+         : rootPath;
+      this.excludedPath = excludedPath;
+      this.updateInterval = updateInterval;
+   }
+
+   /**
+    * Totals of a folder.
+    */
+   public static class Totals
+   {
+      private final long files;
+
+      private final long bytes;
+
+      private final long downloads;
+
+      public Totals(long files, long bytes, long downloads)
+      {
+         this.files = files;
+         this.bytes = bytes;
+         this.downloads = downloads;
+      }
+
+      public long getFiles()
+      {
+         return files;
+      }
+
+      /**
+       * @return size of the content of the files
+       */
+      public long getBytes()
+      {
+         return bytes;
+      }
+
+      /**
+       * @return downloads of the files flushed so far
+       */
+      public long getDownloads()
+      {
+         return downloads;
+      }
+   }
+
+   /**
+    * @return totals of the folder or null if they are not counted yet
+    */
+   public static Totals read(Node folder) throws RepositoryException
+   {
+      if (!folder.isNodeType(STATISTICS))
+         return null;
+      return new Totals(getLong(folder, FILES_PROPERTY), getLong(folder, BYTES_PROPERTY), getLong(folder,
+         DOWNLOADS_PROPERTY));
+   }
+
+   /**
+    * @return true if the path is a property holding totals, its changes are not changes of the
+    *         content
+    */
+   public static boolean isStatisticsProperty(String path)
+   {
+      return path.endsWith("/" + FILES_PROPERTY) || path.endsWith("/" + BYTES_PROPERTY)
+         || path.endsWith("/" + DOWNLOADS_PROPERTY);
+   }
+
+   void start()
+   {
+      updater = Executors.newSingleThreadScheduledExecutor(new ArtifactThreadFactory("StorageStatisticsUpdater"));
+      updater.scheduleWithFixedDelay(new Runnable()
+      {
+         public void run()
+         {
+            update();
+         }
+      }, 0, updateInterval, TimeUnit.MILLISECONDS);
+   }
+
+   /**
+    * Stops the updater and applies the remaining changes, unless the first count is not finished.
+    */
+   void stop()
+   {
+      if (updater != null)
+      {
+         updater.shutdownNow();
+         try
+         {
+            updater.awaitTermination(updateInterval, TimeUnit.MILLISECONDS);
+         }
+         catch (InterruptedException e)
+         {
+            Thread.currentThread().interrupt();
+         }
+         updater = null;
+      }
+      if (ready)
+         update();
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   public void onEvent(EventIterator events)
+   {
+      while (events.hasNext())
+      {
+         Event event = events.nextEvent();
+         try
+         {
+            String folder = getChangedFolder(event.getType(), event.getPath());
+            if (folder != null && isCounted(folder))
+               changed.add(folder);
+         }
+         catch (RepositoryException e)
+         {
+            LOG.error("Cannot get path of the changed item, storage statistics may be inaccurate", e);
+         }
+      }
+   }
+
+   /**
+    * @return path of the folder whose totals are changed by the event, null if they are not
+    */
+   static String getChangedFolder(int type, String path)
+   {
+      String name = path.substring(path.lastIndexOf('/') + 1);
+      if (type == Event.NODE_ADDED || type == Event.NODE_REMOVED)
+      {
+         // content of a file is added and removed with the file
+         return name.equals("jcr:content") ? null : getParent(path);
+      }
+      if (name.equals("jcr:data"))
+      {
+         // folder/file/jcr:content/jcr:data
+         return getParent(getParent(getParent(path)));
+      }
+      if (name.equals(COUNTER_PROPERTY) || name.equals(ArtifactContent.BLOB))
+      {
+         return getParent(getParent(path));
+      }
+      return null;
+   }
+
+   private static String getParent(String path)
+   {
+      int slash = path.lastIndexOf('/');
+      return slash > 0 ? path.substring(0, slash) : "/";
+   }
+
+   private boolean isCounted(String path)
+   {
+      if (excludedPath != null && (path.equals(excludedPath) || path.startsWith(excludedPath + "/")))
+         return false;
+      return path.equals(rootPath) || path.startsWith(rootPath.equals("/") ? "/" : rootPath + "/");
+   }
+
+   /**
+    * Counts all the folders once, then recounts the changed folders.
+    */
+   synchronized void update()
+   {
+      if (ready && changed.isEmpty())
+         return;
+
+      SessionProvider sp = SessionProvider.createSystemProvider();
+      try
+      {
+         Session session = service.currentSession(sp);
+         if (!ready)
+         {
+            Node root = (Node)session.getItem(rootPath);
+            if (!root.isNodeType(STATISTICS))
+            {
+               long start = System.currentTimeMillis();
+               Totals totals = count(root, true);
+               save(session);
+               LOG.info("Storage statistics are counted, " + totals.getFiles() + " files, " + totals.getBytes()
+                  + " bytes in " + (System.currentTimeMillis() - start) + " ms");
+            }
+            ready = true;
+         }
+
+         List<String> paths = new ArrayList<String>(changed);
+         List<String> batch = new ArrayList<String>();
+         for (String path : paths)
+         {
+            changed.remove(path);
+            batch.add(path);
+            try
+            {
+               recount(session, path);
+            }
+            catch (RepositoryException e)
+            {
+               LOG.warn("Cannot recount storage statistics of " + path, e);
+            }
+            if (unsaved >= SAVE_BATCH_SIZE)
+            {
+               saveBatch(session, batch);
+            }
+         }
+         saveBatch(session, batch);
+      }
+      catch (RepositoryException e)
+      {
+         LOG.error("Cannot update storage statistics", e);
+      }
+      finally
+      {
+         sp.close();
+      }
+   }
+
+   /**
+    * Recounts the folder from its files and the totals of its sub-folders and adds the difference to
+    * the folders above it.
+    */
+   private void recount(Session session, String path) throws RepositoryException
+   {
+      if (!session.itemExists(path))
+         return;
+      Item item = session.getItem(path);
+      if (!item.isNode() || ((Node)item).isNodeType("nt:file"))
+         return;
+
+      Node folder = (Node)item;
+      Totals stored = read(folder);
+      Totals actual = count(folder, false);
+      if (stored == null)
+         stored = new Totals(0, 0, 0);
+      long files = actual.getFiles() - stored.getFiles();
+      long bytes = actual.getBytes() - stored.getBytes();
+      long downloads = actual.getDownloads() - stored.getDownloads();
+      if (files == 0 && bytes == 0 && downloads == 0)
+         return;
+
+      for (Node parent = folder; !parent.getPath().equals(rootPath);)
+      {
+         parent = parent.getParent();
+         Totals totals = read(parent);
+         if (totals == null)
+            totals = new Totals(0, 0, 0);
+         write(parent, new Totals(totals.getFiles() + files, totals.getBytes() + bytes, totals.getDownloads()
+            + downloads));
+      }
+   }
+
+   /**
+    * Counts the files of the folder and adds the totals of its sub-folders, nothing is saved.
+    *
+    * @param recursive
+    *          true to count the sub-folders first, false to take their stored totals
+    * @return the totals written into the folder
+    */
+   private Totals count(Node folder, boolean recursive) throws RepositoryException
+   {
+      long files = 0;
+      long bytes = 0;
+      long downloads = 0;
+      for (NodeIterator nodes = folder.getNodes(); nodes.hasNext();)
+      {
+         Node child = nodes.nextNode();
+         if (child.isNodeType("nt:file"))
+         {
+            files++;
+            try
+            {
+               bytes += ArtifactContent.getLength(child);
+            }
+            catch (RepositoryException e)
+            {
+               LOG.warn("Cannot get size of " + child.getPath() + ", it is not counted", e);
+            }
+            downloads += getLong(child, COUNTER_PROPERTY);
+         }
+         else if (child.isNodeType("nt:folder") && isCounted(child.getPath()))
+         {
+            Totals totals = recursive ? count(child, true) : read(child);
+            if (totals != null)
+            {
+               files += totals.getFiles();
+               bytes += totals.getBytes();
+               downloads += totals.getDownloads();
+            }
+         }
+      }
+      Totals totals = new Totals(files, bytes, downloads);
+      write(folder, totals);
+      return totals;
+   }
+
+   private void write(Node folder, Totals totals) throws RepositoryException
+   {
+      if (!folder.isNodeType(STATISTICS))
+         folder.addMixin(STATISTICS);
+      folder.setProperty(FILES_PROPERTY, totals.getFiles());
+      folder.setProperty(BYTES_PROPERTY, totals.getBytes());
+      folder.setProperty(DOWNLOADS_PROPERTY, totals.getDownloads());
+      if (++unsaved >= SAVE_BATCH_SIZE && !ready)
+         save(folder.getSession());
+   }
+
+   private void save(Session session) throws RepositoryException
+   {
+      session.save();
+      unsaved = 0;
+   }
+
+   /**
+    * Saves the recounted folders, the ones which could not be saved are recounted next time.
+    */
+   private void saveBatch(Session session, List<String> batch) throws RepositoryException
+   {
+      try
+      {
+         if (unsaved > 0)
+            save(session);
+      }
+      catch (RepositoryException e)
+      {
+         // concurrent update of the same nodes
+         LOG.warn("Cannot save storage statistics, will retry: " + e.getMessage());
+         session.refresh(false);
+         unsaved = 0;
+         changed.addAll(batch);
+      }
+      batch.clear();
+   }
+
+   private static long getLong(Node node, String property) throws RepositoryException
+   {
+      return node.hasProperty(property) ? node.getProperty(property).getLong() : 0;
+   }
+}
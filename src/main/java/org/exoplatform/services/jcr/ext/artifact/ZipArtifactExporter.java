@@ -0,0 +1,410 @@
+/*
+ * Copyright (C) 2003-2007 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.services.jcr.ext.artifact;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+import org.exoplatform.services.jcr.ext.common.SessionProvider;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+import org.exoplatform.services.security.ConversationState;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * Writes artifacts tree into zip stream. The tree is walked and the archive is written by the
+ * calling thread while the content of the next files is read in parallel by a pool of readers, each
+ * with its own session, into a bounded memory buffer. Already compressed files (jar, zip, ...) are
+ * stored without compression.
+ *
+ * @version $Id: ZipArtifactExporter.java $
+ */
+class ZipArtifactExporter
+{
+   private static final Log LOG = ExoLogger.getLogger(ZipArtifactExporter.class);
+
+   /**
+    * Extensions of the files which are already compressed.
+    */
+   private static final Set<String> COMPRESSED_EXTENSIONS =
+      new HashSet<String>(Arrays.asList("jar", "zip", "war", "ear", "rar", "gz", "tgz", "bz2", "png", "gif", "jpg"));
+
+   /**
+    * Max number of entries read ahead per reader.
+    */
+   private static final int READ_AHEAD_PER_READER = 4;
+
+   private final ArtifactManagingServiceImpl service;
+
+   private final int readers;
+
+   /**
+    * Job the export runs in, null if the export blocks the caller.
+    */
+   private final ArtifactJob job;
+
+   /**
+    * Files bigger than that are not read ahead, the writer streams them itself.
+    */
+   private final int maxPrefetchSize;
+
+   private final Semaphore bufferPermits;
+
+   private final LinkedList<PendingEntry> pending = new LinkedList<PendingEntry>();
+
+   private final List<SessionProvider> readerProviders = Collections.synchronizedList(new ArrayList<SessionProvider>());
+
+   private ExecutorService executor;
+
+   private ThreadLocal<Session> readerSession;
+
+   private ZipOutputStream zout;
+
+   private Session session;
+
+   /**
+    * @param readers
+    *          number of threads reading content ahead
+    * @param bufferSize
+    *          max total size in bytes of the content read ahead
+    * @param job
+    *          the job to report progress to, the export stops when it is cancelled
+    */
+   ZipArtifactExporter(ArtifactManagingServiceImpl service, int readers, int bufferSize, ArtifactJob job)
+   {
+      this.service = service;
+      this.readers = readers;
+      this.job = job;
+      this.maxPrefetchSize = Math.max(1, bufferSize / Math.max(1, readers * READ_AHEAD_PER_READER));
+      this.bufferPermits = new Semaphore(bufferSize);
+   }
+
+   /**
+    * Writes children of the node into zip stream. The stream is finished but not closed.
+    */
+   void export(Session session, Node parentNode, ZipOutputStream zout) throws RepositoryException, IOException
+   {
+      this.session = session;
+      this.zout = zout;
+
+      // readers open sessions for the identity of the caller, without it everything is read here
+      final ConversationState state = ConversationState.getCurrent();
+      if (state != null && readers > 0)
+      {
+         executor = Executors.newFixedThreadPool(readers, new ArtifactThreadFactory("ArtifactExporter"));
+         readerSession = new ThreadLocal<Session>()
+         {
+            @Override
+            protected Session initialValue()
+            {
+               ConversationState.setCurrent(state);
+               SessionProvider sp = new SessionProvider(state);
+               readerProviders.add(sp);
+               try
+               {
+                  return service.currentSession(sp);
+               }
+               catch (RepositoryException e)
+               {
+                  throw new IllegalStateException("Cannot open session for export reader", e);
+               }
+            }
+         };
+      }
+
+      try
+      {
+         walk(parentNode);
+         while (!pending.isEmpty())
+         {
+            writeHead();
+         }
+         zout.finish();
+      }
+      finally
+      {
+         for (PendingEntry entry : pending)
+         {
+            entry.cancel();
+         }
+         if (executor != null)
+         {
+            executor.shutdownNow();
+         }
+         synchronized (readerProviders)
+         {
+            for (SessionProvider sp : readerProviders)
+            {
+               sp.close();
+            }
+         }
+      }
+   }
+
+   private void walk(Node parentNode) throws RepositoryException, IOException
+   {
+      NodeIterator folderIterator = parentNode.getNodes();
+      while (folderIterator.hasNext())
+      {
+         if (job != null)
+         {
+            job.checkCancelled();
+         }
+
+         Node folder = folderIterator.nextNode();
+         String entryName = parentNode.getPath() + "/" + folder.getName();
+
+         if (folder.isNodeType("exo:artifact"))
+         {
+            enqueue(new PendingEntry(entryName + "/"));
+            walk(folder);
+         }
+         else if (folder.isNodeType("exo:file"))
+         {
+            Node dataNode = ArtifactContent.getDataNode(folder);
+            long size = dataNode.getProperty("jcr:data").getLength();
+            boolean stored = COMPRESSED_EXTENSIONS.contains(FilenameUtils.getExtension(folder.getName()).toLowerCase());
+
+            if (executor != null && size >= 0 && size <= maxPrefetchSize)
+            {
+               // reserve buffer space, writing pending entries frees it
+               while (!bufferPermits.tryAcquire((int)size))
+               {
+                  writeHead();
+               }
+               Future<byte[]> content = executor.submit(new ContentReader(dataNode.getPath(), (int)size));
+               enqueue(new PendingEntry(entryName, dataNode, stored, content, (int)size));
+            }
+            else
+            {
+               enqueue(new PendingEntry(entryName, dataNode, stored, null, 0));
+            }
+         }
+      }
+   }
+
+   private void enqueue(PendingEntry entry) throws RepositoryException, IOException
+   {
+      pending.add(entry);
+      while (pending.size() > Math.max(1, readers * READ_AHEAD_PER_READER))
+      {
+         writeHead();
+      }
+   }
+
+   private void writeHead() throws RepositoryException, IOException
+   {
+      pending.removeFirst().write();
+   }
+
+   /**
+    * Entry of the archive waiting to be written.
+    */
+   private class PendingEntry
+   {
+      private final String name;
+
+      private final Node dataNode;
+
+      private final boolean stored;
+
+      private final Future<byte[]> content;
+
+      private final int reserved;
+
+      /**
+       * Folder entry.
+       */
+      PendingEntry(String name)
+      {
+         this(name, null, false, null, 0);
+      }
+
+      PendingEntry(String name, Node dataNode, boolean stored, Future<byte[]> content, int reserved)
+      {
+         this.name = name;
+         this.dataNode = dataNode;
+         this.stored = stored;
+         this.content = content;
+         this.reserved = reserved;
+      }
+
+      void write() throws RepositoryException, IOException
+      {
+         ZipEntry entry = new ZipEntry(name);
+         if (dataNode == null)
+         {
+            zout.putNextEntry(entry);
+            zout.closeEntry();
+            return;
+         }
+
+         if (LOG.isDebugEnabled())
+         {
+            LOG.debug("Zipping " + name);
+         }
+
+         entry.setTime(dataNode.getProperty("jcr:lastModified").getLong());
+         if (content != null)
+         {
+            try
+            {
+               writeContent(entry, content.get());
+            }
+            catch (InterruptedException e)
+            {
+               Thread.currentThread().interrupt();
+               throw new IOException("Export interrupted");
+            }
+            catch (ExecutionException e)
+            {
+               throw new RepositoryException("Cannot read content of " + name, e.getCause());
+            }
+            finally
+            {
+               bufferPermits.release(reserved);
+            }
+         }
+         else
+         {
+            streamContent(entry);
+         }
+      }
+
+      private void writeContent(ZipEntry entry, byte[] data) throws IOException
+      {
+         if (stored)
+         {
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(data.length);
+            entry.setCompressedSize(data.length);
+            entry.setCrc(crc.getValue());
+         }
+         zout.putNextEntry(entry);
+         zout.write(data);
+         zout.closeEntry();
+         if (job != null)
+         {
+            job.processed(1, data.length);
+         }
+      }
+
+      /**
+       * Big files are copied straight from the writer session. CRC of a stored entry must be known
+       * before its data, so already compressed files are deflated with no compression instead.
+       */
+      private void streamContent(ZipEntry entry) throws RepositoryException, IOException
+      {
+         InputStream in = ((Property)session.getItem(dataNode.getPath() + "/jcr:data")).getStream();
+         try
+         {
+            if (stored)
+            {
+               zout.setLevel(Deflater.NO_COMPRESSION);
+            }
+            zout.putNextEntry(entry);
+            long size = IOUtils.copyLarge(in, zout);
+            zout.closeEntry();
+            if (job != null)
+            {
+               job.processed(1, size);
+            }
+         }
+         finally
+         {
+            zout.setLevel(Deflater.DEFAULT_COMPRESSION);
+            IOUtils.closeQuietly(in);
+         }
+      }
+
+      void cancel()
+      {
+         if (content != null)
+         {
+            content.cancel(true);
+            bufferPermits.release(reserved);
+         }
+      }
+   }
+
+   /**
+    * Reads content of the file in the reader session.
+    */
+   private class ContentReader implements Callable<byte[]>
+   {
+      private final String path;
+
+      private final int size;
+
+      ContentReader(String path, int size)
+      {
+         this.path = path;
+         this.size = size;
+      }
+
+      public byte[] call() throws Exception
+      {
+         Property data = (Property)readerSession.get().getItem(path + "/jcr:data");
+         InputStream in = data.getStream();
+         try
+         {
+            byte[] buf = new byte[size];
+            int offset = 0;
+            int count;
+            while (offset < size && (count = in.read(buf, offset, size - offset)) != -1)
+            {
+               offset += count;
+            }
+            if (offset < size)
+            {
+               throw new IOException("Unexpected end of content of " + path);
+            }
+            return buf;
+         }
+         finally
+         {
+            IOUtils.closeQuietly(in);
+         }
+      }
+   }
+}
@@ -0,0 +1,381 @@
+/*
+ * Copyright (C) 2003-2007 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.services.jcr.ext.artifact;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * Imports artifacts straight from a zip stream. Pom and jar entries are paired by their path
+ * without extension. The second entry of a pair is written into the repository directly from the
+ * zip stream, only the first one is kept until its pair arrives: in memory while it is small and the
+ * total buffered size allows it, in a temporary file otherwise.
+ *
+ * @version $Id: ZipArtifactImporter.java $
+ */
+class ZipArtifactImporter
+{
+   /**
+    * Max size of a single entry kept in memory while waiting for its pair.
+    */
+   private static final int MEMORY_ENTRY_THRESHOLD = 1024 * 1024;
+
+   /**
+    * Max total size of the entries kept in memory while waiting for their pairs.
+    */
+   private static final long MEMORY_BUDGET = 64 * 1024 * 1024;
+
+   private final ArtifactManagingServiceImpl service;
+
+   private final int batchSize;
+
+   /**
+    * Unpaired entries mapped by path without extension.
+    */
+   private final Map<String, SpooledEntry> pendingPoms = new HashMap<String, SpooledEntry>();
+
+   private final Map<String, SpooledEntry> pendingJars = new HashMap<String, SpooledEntry>();
+
+   private final List<String> batch = new ArrayList<String>();
+
+   private final List<ArtifactDescriptor> batchArtifacts = new ArrayList<ArtifactDescriptor>();
+
+   /**
+    * Blobs counted for the batch, released if it is discarded.
+    */
+   private final List<String> stored = new ArrayList<String>();
+
+   private long batchBytes;
+
+   private long bufferedInMemory;
+
+   ZipArtifactImporter(ArtifactManagingServiceImpl service, int batchSize)
+   {
+      this.service = service;
+      this.batchSize = batchSize;
+   }
+
+   /**
+    * Imports all pom/jar pairs from the zip stream.
+    *
+    * @param session
+    *          the session to write artifacts
+    * @param in
+    *          the zip stream, it is closed at the end
+    * @param report
+    *          the report to fill, reading stops when its job is cancelled
+    * @throws IOException
+    *           if the zip stream can't be read, the artifacts read completely before are saved
+    */
+   void importZip(Session session, InputStream in, ImportReport report) throws IOException
+   {
+      ZipInputStream zipIn = new ZipInputStream(new BufferedInputStream(in, CRCGenerator.DEFAULT_BUFFER_SIZE));
+      try
+      {
+         ZipEntry entry;
+         while (!report.isCancelled() && (entry = zipIn.getNextEntry()) != null)
+         {
+            if (entry.isDirectory())
+            {
+               continue;
+            }
+
+            String name = entry.getName();
+            String ext = FilenameUtils.getExtension(name);
+            String key = FilenameUtils.removeExtension(name);
+
+            if (ext.equals("pom"))
+            {
+               SpooledEntry jar = pendingJars.remove(key);
+               if (jar == null)
+               {
+                  pendingPoms.put(key, spool(zipIn, entry));
+               }
+               else
+               {
+                  // pom is small, read it to parse coordinates and write it afterwards
+                  SpooledEntry pom = spool(zipIn, entry);
+                  importPair(session, report, name, pom, jar, null);
+               }
+            }
+            else if (ext.equals("jar"))
+            {
+               SpooledEntry pom = pendingPoms.remove(key);
+               if (pom == null)
+               {
+                  pendingJars.put(key, spool(zipIn, entry));
+               }
+               else
+               {
+                  importPair(session, report, key + ".pom", pom, null, new NonClosingInputStream(zipIn));
+               }
+            }
+            zipIn.closeEntry();
+         }
+      }
+      finally
+      {
+         saveBatch(session, report);
+         IOUtils.closeQuietly(zipIn);
+         IOUtils.closeQuietly(in);
+         releaseAll(pendingPoms);
+         releaseAll(pendingJars);
+         report.finish();
+      }
+   }
+
+   /**
+    * Adds artifact to the session, jar content is taken either from the spooled entry or from the
+    * zip stream.
+    */
+   private void importPair(Session session, ImportReport report, String pomName, SpooledEntry pom,
+      SpooledEntry spooledJar, InputStream jarStream)
+   {
+      report.artifactFound();
+      InputStream jarIStream = null;
+      InputStream pomIStream = null;
+      try
+      {
+         InputStream descriptorIStream = pom.getInputStream();
+         ArtifactDescriptor artifact;
+         try
+         {
+            artifact = ArtifactDescriptor.createFromPom(descriptorIStream);
+         }
+         finally
+         {
+            IOUtils.closeQuietly(descriptorIStream);
+         }
+
+         jarIStream = jarStream != null ? jarStream : spooledJar.getInputStream();
+         pomIStream = pom.getInputStream();
+         long size = pom.getSize() + (spooledJar != null ? spooledJar.getSize() : 0);
+
+         if (service.storeArtifact(session, artifact, jarIStream, pomIStream, stored))
+         {
+            batch.add(pomName);
+            batchArtifacts.add(artifact);
+            batchBytes += size;
+            if (batch.size() >= batchSize)
+            {
+               saveBatch(session, report);
+            }
+         }
+         else
+         {
+            report.artifactSkipped();
+         }
+      }
+      catch (Exception e)
+      {
+         report.artifactFailed(pomName, e);
+      }
+      finally
+      {
+         IOUtils.closeQuietly(jarIStream);
+         IOUtils.closeQuietly(pomIStream);
+         release(pom);
+         release(spooledJar);
+      }
+   }
+
+   private void saveBatch(Session session, ImportReport report)
+   {
+      if (batch.isEmpty())
+      {
+         return;
+      }
+
+      try
+      {
+         session.save();
+         stored.clear();
+         report.artifactsImported(batch.size(), batchBytes);
+         service.updateMetadata(session, batchArtifacts);
+      }
+      catch (RepositoryException e)
+      {
+         // content of the batch is already consumed from the zip stream, it can't be retried
+         for (String pomName : batch)
+         {
+            report.artifactFailed(pomName, e);
+         }
+         service.discard(session, stored);
+      }
+      batch.clear();
+      batchArtifacts.clear();
+      batchBytes = 0;
+   }
+
+   /**
+    * Reads current zip entry into memory or into temporary file.
+    */
+   private SpooledEntry spool(ZipInputStream zipIn, ZipEntry entry) throws IOException
+   {
+      long memoryLimit = Math.min(MEMORY_ENTRY_THRESHOLD, MEMORY_BUDGET - bufferedInMemory);
+      if (entry.getSize() > memoryLimit)
+      {
+         return SpooledEntry.toFile(zipIn, null, 0);
+      }
+
+      byte[] buf = new byte[(int)Math.max(0, Math.min(CRCGenerator.DEFAULT_BUFFER_SIZE, memoryLimit + 1))];
+      int length = 0;
+      int count;
+      while (length < buf.length && (count = zipIn.read(buf, length, buf.length - length)) != -1)
+      {
+         length += count;
+         if (length == buf.length && length <= memoryLimit)
+         {
+            byte[] grown = new byte[(int)Math.min(buf.length * 2L, memoryLimit + 1)];
+            System.arraycopy(buf, 0, grown, 0, length);
+            buf = grown;
+         }
+      }
+
+      if (length > memoryLimit)
+      {
+         // entry of unknown size turned out to be too big, go on with the temporary file
+         return SpooledEntry.toFile(zipIn, buf, length);
+      }
+
+      bufferedInMemory += length;
+      return SpooledEntry.inMemory(buf, length);
+   }
+
+   private void release(SpooledEntry entry)
+   {
+      if (entry != null)
+      {
+         if (entry.file == null)
+         {
+            bufferedInMemory -= entry.size;
+         }
+         entry.release();
+      }
+   }
+
+   private void releaseAll(Map<String, SpooledEntry> entries)
+   {
+      for (SpooledEntry entry : entries.values())
+      {
+         release(entry);
+      }
+      entries.clear();
+   }
+
+   /**
+    * Content of zip entry kept until its pair arrives.
+    */
+   private static class SpooledEntry
+   {
+      private final byte[] data;
+
+      private final File file;
+
+      private final long size;
+
+      private SpooledEntry(byte[] data, File file, long size)
+      {
+         this.data = data;
+         this.file = file;
+         this.size = size;
+      }
+
+      static SpooledEntry inMemory(byte[] data, int length)
+      {
+         return new SpooledEntry(data, null, length);
+      }
+
+      static SpooledEntry toFile(InputStream in, byte[] head, int headLength) throws IOException
+      {
+         File file = File.createTempFile("artifact", ".zipentry");
+         OutputStream out = new FileOutputStream(file);
+         try
+         {
+            if (head != null)
+            {
+               out.write(head, 0, headLength);
+            }
+            long size = headLength + IOUtils.copyLarge(in, out);
+            return new SpooledEntry(null, file, size);
+         }
+         catch (IOException e)
+         {
+            IOUtils.closeQuietly(out);
+            file.delete();
+            throw e;
+         }
+         finally
+         {
+            IOUtils.closeQuietly(out);
+         }
+      }
+
+      InputStream getInputStream() throws IOException
+      {
+         return file == null ? new ByteArrayInputStream(data, 0, (int)size) : new FileInputStream(file);
+      }
+
+      long getSize()
+      {
+         return size;
+      }
+
+      void release()
+      {
+         if (file != null && !file.delete())
+         {
+            file.deleteOnExit();
+         }
+      }
+   }
+
+   /**
+    * Protects zip stream from being closed by the consumer of the current entry.
+    */
+   private static class NonClosingInputStream extends FilterInputStream
+   {
+      NonClosingInputStream(InputStream in)
+      {
+         super(in);
+      }
+
+      @Override
+      public void close()
+      {
+      }
+   }
+}
@@ -0,0 +1,655 @@
+/**
+ * Copyright (C) 2003-2007 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.services.jcr.ext.artifact.rest;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+import org.exoplatform.services.jcr.ext.artifact.ArtifactContent;
+import org.exoplatform.services.jcr.ext.artifact.ArtifactManagingService;
+import org.exoplatform.services.jcr.ext.artifact.BlobStore;
+import org.exoplatform.services.jcr.ext.artifact.CRCGenerator;
+import org.exoplatform.services.jcr.ext.artifact.ChecksumSpool;
+import org.exoplatform.services.jcr.ext.artifact.MavenMetadataUpdater;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.NoSuchAlgorithmException;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.InvalidItemStateException;
+import javax.jcr.ItemExistsException;
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+/**
+ * Stores files deployed by Maven into the repository. Content is streamed into the file node while
+ * its digests are computed, <code>.sha1</code> and <code>.md5</code> files are written by the
+ * deployer and the uploaded ones are verified against them. Versions of uploaded
+ * <code>maven-metadata.xml</code> are merged with the stored ones, so concurrent deploys of
+ * different versions of the same artifact do not lose each other's version. Metadata of artifactId
+ * folders is maintained from their versions by {@link MavenMetadataUpdater}. Deployed files are
+ * stored as shared blobs if the {@link BlobStore} is enabled.
+ *
+ * @version $Id: ArtifactDeployer.java $
+ */
+class ArtifactDeployer
+{
+   private static final Log LOG = ExoLogger.getLogger(ArtifactDeployer.class);
+
+   static final String METADATA = MavenMetadataUpdater.METADATA;
+
+   /**
+    * Digests computed for every deployed file.
+    */
+   static final String[] CHECKSUM_ALGORITHMS = MavenMetadataUpdater.CHECKSUM_ALGORITHMS;
+
+   private static final int MAX_SAVE_ATTEMPTS = 3;
+
+   private static final String VERSION_FOLDER = "exo:versionId";
+
+   private static final String ARTIFACT_FOLDER = "exo:artifactId";
+
+   private static final String GROUP_FOLDER = "exo:groupId";
+
+   private static final Map<String, String> MIME_TYPES = new HashMap<String, String>();
+
+   static
+   {
+      MIME_TYPES.put("jar", "application/java-archive");
+      MIME_TYPES.put("war", "application/java-archive");
+      MIME_TYPES.put("ear", "application/java-archive");
+      MIME_TYPES.put("zip", "application/zip");
+      MIME_TYPES.put("pom", "text/xml");
+      MIME_TYPES.put("xml", "text/xml");
+      MIME_TYPES.put("sha1", "text/plain");
+      MIME_TYPES.put("md5", "text/plain");
+      MIME_TYPES.put("asc", "text/plain");
+   }
+
+   /**
+    * Absolute path of the maven root node without trailing slash, empty for the workspace root.
+    */
+   private final String rootPath;
+
+   /**
+    * Folders are created and saved under this lock, so concurrent deploys don't add the same folder.
+    */
+   private final Object folderLock = new Object();
+
+   /**
+    * Maintains version lists and metadata of artifacts, metadata files are updated under its locks.
+    */
+   private final MavenMetadataUpdater metadataUpdater;
+
+   private final ArtifactManagingService artifactService;
+
+   /**
+    * @param rootPath
+    *          absolute path of the maven root node
+    * @param artifactService
+    *          provides the blob store, shared with imports
+    */
+   ArtifactDeployer(String rootPath, ArtifactManagingService artifactService)
+   {
+      this.rootPath = rootPath.endsWith("/") ? rootPath.substring(0, rootPath.length() - 1) : rootPath;
+      this.metadataUpdater = new MavenMetadataUpdater(this.rootPath);
+      this.artifactService = artifactService;
+   }
+
+   /**
+    * Thrown when uploaded checksum doesn't match the content.
+    */
+   static class ChecksumMismatchException extends IOException
+   {
+      private static final long serialVersionUID = 1L;
+
+      ChecksumMismatchException(String message)
+      {
+         super(message);
+      }
+   }
+
+   /**
+    * Stores the deployed file and saves the session.
+    *
+    * @param session
+    *          session of the deploying user
+    * @param relPath
+    *          path of the file relative to maven root
+    * @param body
+    *          content of the file, it is closed at the end
+    * @return true if the file is created, false if existing file is updated
+    * @throws ChecksumMismatchException
+    *           if uploaded checksum doesn't match the content, nothing is saved then
+    * @throws IllegalArgumentException
+    *           if the path is not a valid file path
+    */
+   boolean deploy(Session session, String relPath, InputStream body) throws RepositoryException, IOException
+   {
+      return deploy(session, relPath, body, true);
+   }
+
+   /**
+    * Stores the file, see {@link #deploy(Session, String, InputStream)}.
+    *
+    * @param updateMetadata
+    *          false if a new version is not added to the metadata of its artifact, e.g. for a file
+    *          proxied from upstream whose metadata lists versions not stored locally
+    */
+   boolean deploy(Session session, String relPath, InputStream body, boolean updateMetadata)
+      throws RepositoryException, IOException
+   {
+      try
+      {
+         relPath = normalize(relPath);
+         String name = FilenameUtils.getName(relPath);
+         String algorithm = getChecksumAlgorithm(name);
+
+         if (algorithm != null)
+         {
+            return deployChecksum(session, relPath, algorithm, body);
+         }
+         else if (name.equals(METADATA))
+         {
+            return deployMetadata(session, relPath, body);
+         }
+         else
+         {
+            return deployFile(session, relPath, body, updateMetadata);
+         }
+      }
+      catch (NoSuchAlgorithmException e)
+      {
+         throw new RepositoryException("No such algorithm for generating checksums", e);
+      }
+      finally
+      {
+         IOUtils.closeQuietly(body);
+      }
+   }
+
+   private boolean deployFile(Session session, String relPath, InputStream body, boolean updateMetadata)
+      throws RepositoryException, IOException, NoSuchAlgorithmException
+   {
+      String name = FilenameUtils.getName(relPath);
+      Node folder = getFolder(session, getParentPath(relPath), VERSION_FOLDER);
+      BlobStore blobStore = artifactService.getBlobStore();
+
+      // uploaded checksums are verified only if they were uploaded after the previous content, checksum
+      // files written by the deployer have the same modification time as their content
+      Node previous = folder.hasNode(name) ? folder.getNode(name) : null;
+      long previousModified = previous != null ? getLastModified(previous) : Long.MIN_VALUE;
+      String previousBlob = previous != null ? ArtifactContent.getBlobPath(previous) : null;
+
+      Calendar modified = Calendar.getInstance();
+      InputStream in = new BufferedInputStream(body, CRCGenerator.DEFAULT_BUFFER_SIZE);
+      boolean created;
+      Map<String, String> checksums;
+      String blob = null;
+      if (blobStore.isEnabled())
+      {
+         BlobStore.Blob stored = blobStore.store(in, getMimeType(name), CHECKSUM_ALGORITHMS);
+         created = writeFile(folder, name, new ByteArrayInputStream(new byte[0]), modified);
+         Node file = folder.getNode(name);
+         BlobStore.reference(file, stored);
+         blob = ArtifactContent.getBlobPath(file);
+         checksums = stored.getChecksums();
+      }
+      else
+      {
+         if (previous != null)
+            BlobStore.unreference(previous);
+         ChecksumSpool spool = ChecksumSpool.spool(in, CHECKSUM_ALGORITHMS);
+         created = writeFile(folder, name, spool.getStream(), modified);
+         checksums = spool.getChecksums();
+      }
+
+      boolean saved = false;
+      try
+      {
+         for (String algorithm : CHECKSUM_ALGORITHMS)
+         {
+            String checksumName = name + "." + algorithm.toLowerCase();
+            String checksum = checksums.get(algorithm);
+            if (folder.hasNode(checksumName))
+            {
+               Node checksumFile = folder.getNode(checksumName);
+               if (getLastModified(checksumFile) > previousModified
+                  && !checksum.equals(ArtifactContent.readChecksum(checksumFile)))
+               {
+                  session.refresh(false);
+                  throw new ChecksumMismatchException(algorithm + " checksum of " + relPath
+                     + " doesn't match uploaded " + checksumName);
+               }
+            }
+            writeFile(folder, checksumName, new ByteArrayInputStream(checksum.getBytes()), modified);
+         }
+
+         session.save();
+         saved = true;
+      }
+      finally
+      {
+         // the new blob is counted on store, the replaced one once the file is saved
+         if (!saved && blob != null)
+            blobStore.release(Collections.singletonList(blob));
+      }
+      if (previousBlob != null)
+         blobStore.release(Collections.singletonList(previousBlob));
+
+      // new version of the artifact is added to its metadata
+      Node artifactId = folder.getParent();
+      if (updateMetadata && folder.isNodeType(VERSION_FOLDER) && artifactId.isNodeType(ARTIFACT_FOLDER)
+         && !MavenMetadataUpdater.getVersions(artifactId).contains(folder.getName()))
+      {
+         metadataUpdater.update(session, artifactId.getPath());
+      }
+      return created;
+   }
+
+   private boolean deployChecksum(Session session, String relPath, String algorithm, InputStream body)
+      throws RepositoryException, IOException, NoSuchAlgorithmException
+   {
+      String uploaded = ArtifactContent.parseChecksum(body);
+      String name = FilenameUtils.getName(relPath);
+      String primaryName = FilenameUtils.removeExtension(name);
+      // checksum of metadata doesn't tell its level, folders are marked when the metadata arrives
+      Node folder = getFolder(session, getParentPath(relPath), primaryName.equals(METADATA) ? null : VERSION_FOLDER);
+
+      if (folder.hasNode(primaryName))
+      {
+         String actual;
+         if (folder.hasNode(name))
+         {
+            actual = ArtifactContent.readChecksum(folder.getNode(name));
+         }
+         else
+         {
+            InputStream content = getContent(folder.getNode(primaryName));
+            try
+            {
+               actual = CRCGenerator.getChecksum(content, algorithm);
+            }
+            finally
+            {
+               IOUtils.closeQuietly(content);
+            }
+         }
+
+         if (primaryName.equals(METADATA))
+         {
+            // metadata is merged with the stored one, checksum of the client copy doesn't apply
+            if (!folder.hasNode(name))
+            {
+               writeFile(folder, name, new ByteArrayInputStream(actual.getBytes()), Calendar.getInstance());
+               session.save();
+               return true;
+            }
+            return false;
+         }
+         if (!actual.equals(uploaded))
+         {
+            throw new ChecksumMismatchException(algorithm + " checksum " + uploaded + " doesn't match content of "
+               + getParentPath(relPath) + "/" + primaryName);
+         }
+         if (folder.hasNode(name))
+         {
+            return false;
+         }
+      }
+
+      // checksum is uploaded before the file, it is verified when the file arrives
+      boolean created = writeFile(folder, name, new ByteArrayInputStream(uploaded.getBytes()), Calendar.getInstance());
+      session.save();
+      return created;
+   }
+
+   private boolean deployMetadata(Session session, String relPath, InputStream body) throws RepositoryException,
+      IOException, NoSuchAlgorithmException
+   {
+      byte[] uploaded = IOUtils.toByteArray(body);
+      String folderPath = getParentPath(relPath);
+      String folderType = getMetadataFolderType(uploaded);
+      Node folder = getFolder(session, folderPath, folderType);
+
+      if (folder.isNodeType(ARTIFACT_FOLDER))
+      {
+         // metadata of artifact is maintained from its versions, the uploaded one adds nothing
+         boolean created = !folder.hasNode(METADATA);
+         metadataUpdater.update(session, folder.getPath());
+         return created;
+      }
+
+      synchronized (MavenMetadataUpdater.getLock(folder.getPath()))
+      {
+         for (int attempt = 1;; attempt++)
+         {
+            try
+            {
+               folder = getFolder(session, folderPath, folderType);
+               boolean created = !folder.hasNode(METADATA);
+               byte[] content = uploaded;
+               if (!created)
+               {
+                  InputStream stored = getContent(folder.getNode(METADATA));
+                  try
+                  {
+                     content = mergeMetadata(IOUtils.toByteArray(stored), uploaded);
+                  }
+                  finally
+                  {
+                     IOUtils.closeQuietly(stored);
+                  }
+               }
+
+               MavenMetadataUpdater.writeMetadata(folder, content);
+               session.save();
+               return created;
+            }
+            catch (InvalidItemStateException e)
+            {
+               // metadata is updated concurrently from other node of cluster, merge again
+               session.refresh(false);
+               if (attempt >= MAX_SAVE_ATTEMPTS)
+                  throw e;
+            }
+            catch (ItemExistsException e)
+            {
+               session.refresh(false);
+               if (attempt >= MAX_SAVE_ATTEMPTS)
+                  throw e;
+            }
+         }
+      }
+   }
+
+   /**
+    * Adds versions of the stored metadata which are missing in the uploaded one.
+    *
+    * @return merged metadata, or the uploaded one if any of them can't be parsed
+    */
+   static byte[] mergeMetadata(byte[] stored, byte[] uploaded)
+   {
+      try
+      {
+         DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+         Document storedDoc = factory.newDocumentBuilder().parse(new ByteArrayInputStream(stored));
+         Document uploadedDoc = factory.newDocumentBuilder().parse(new ByteArrayInputStream(uploaded));
+
+         Element storedVersions = getChild(getChild(storedDoc.getDocumentElement(), "versioning"), "versions");
+         Element uploadedVersioning = getChild(uploadedDoc.getDocumentElement(), "versioning");
+         if (storedVersions == null || uploadedVersioning == null)
+         {
+            return uploaded;
+         }
+
+         Element uploadedVersions = getChild(uploadedVersioning, "versions");
+         if (uploadedVersions == null)
+         {
+            uploadedVersions = uploadedDoc.createElement("versions");
+            uploadedVersioning.appendChild(uploadedVersions);
+         }
+
+         Set<String> present = new HashSet<String>();
+         NodeList versions = uploadedVersions.getElementsByTagName("version");
+         for (int i = 0; i < versions.getLength(); i++)
+         {
+            present.add(versions.item(i).getTextContent().trim());
+         }
+
+         boolean changed = false;
+         versions = storedVersions.getElementsByTagName("version");
+         for (int i = 0; i < versions.getLength(); i++)
+         {
+            String version = versions.item(i).getTextContent().trim();
+            if (present.add(version))
+            {
+               Element element = uploadedDoc.createElement("version");
+               element.setTextContent(version);
+               uploadedVersions.appendChild(element);
+               changed = true;
+            }
+         }
+         if (!changed)
+         {
+            return uploaded;
+         }
+
+         ByteArrayOutputStream out = new ByteArrayOutputStream(uploaded.length + stored.length);
+         Transformer transformer = TransformerFactory.newInstance().newTransformer();
+         transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+         transformer.transform(new DOMSource(uploadedDoc), new StreamResult(out));
+         return out.toByteArray();
+      }
+      catch (Exception e)
+      {
+         LOG.warn("Cannot merge maven metadata, uploaded one is stored: " + e.getMessage());
+         return uploaded;
+      }
+   }
+
+   private static Element getChild(Element parent, String name)
+   {
+      if (parent == null)
+      {
+         return null;
+      }
+      for (org.w3c.dom.Node child = parent.getFirstChild(); child != null; child = child.getNextSibling())
+      {
+         if (child instanceof Element && child.getNodeName().equals(name))
+         {
+            return (Element)child;
+         }
+      }
+      return null;
+   }
+
+   /**
+    * Returns folder of the deployed file, missing folders are created and saved. The type of the
+    * folder follows from the coordinates of the file, the folder above a version is its artifactId
+    * and others are groupId. Folders without any of these mixins get theirs, existing types are
+    * never changed.
+    *
+    * @param type
+    *          mixin of the requested folder, {@link #VERSION_FOLDER} for an artifact file, or null
+    *          if the coordinates are unknown and no mixin is added
+    */
+   private Node getFolder(Session session, String relPath, String type) throws RepositoryException
+   {
+      String path = relPath.length() == 0 ? getRootPath() : rootPath + "/" + relPath;
+      if (session.itemExists(path))
+      {
+         Node folder = (Node)session.getItem(path);
+         if (type == null || relPath.length() == 0 || isTyped(folder))
+            return folder;
+      }
+
+      synchronized (folderLock)
+      {
+         String[] names = relPath.split("/");
+         Node folder = (Node)session.getItem(getRootPath());
+         for (int i = 0; i < names.length; i++)
+         {
+            folder = folder.hasNode(names[i]) ? folder.getNode(names[i]) : folder.addNode(names[i], "nt:folder");
+            if (type == null || isTyped(folder))
+               continue;
+
+            int level = names.length - i - 1;
+            String mixin;
+            if (level == 0)
+               mixin = type;
+            else if (level == 1 && type.equals(VERSION_FOLDER))
+               mixin = ARTIFACT_FOLDER;
+            else
+               mixin = GROUP_FOLDER;
+
+            folder.addMixin(mixin);
+            if (mixin.equals(ARTIFACT_FOLDER))
+               folder.setProperty(MavenMetadataUpdater.VERSION_LIST, new String[]{"*", "*"});
+         }
+         session.save();
+         return folder;
+      }
+   }
+
+   private static boolean isTyped(Node folder) throws RepositoryException
+   {
+      return folder.isNodeType(VERSION_FOLDER) || folder.isNodeType(ARTIFACT_FOLDER)
+         || folder.isNodeType(GROUP_FOLDER);
+   }
+
+   /**
+    * @return mixin of the folder of the metadata following from its content: snapshot version
+    *         metadata has <code>versioning/snapshot</code>, artifact metadata names the artifactId
+    *         and group metadata lists plugins only; null if the metadata can't be parsed
+    */
+   static String getMetadataFolderType(byte[] metadata)
+   {
+      try
+      {
+         Element root =
+            DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new ByteArrayInputStream(metadata))
+               .getDocumentElement();
+         if (getChild(getChild(root, "versioning"), "snapshot") != null)
+            return VERSION_FOLDER;
+         return getChild(root, "artifactId") != null ? ARTIFACT_FOLDER : GROUP_FOLDER;
+      }
+      catch (Exception e)
+      {
+         LOG.warn("Cannot parse maven metadata, its folder type is unknown: " + e.getMessage());
+         return null;
+      }
+   }
+
+   private String getRootPath()
+   {
+      return rootPath.length() == 0 ? "/" : rootPath;
+   }
+
+   /**
+    * Writes content of the file, the file is created if it doesn't exist.
+    *
+    * @return true if the file is created
+    */
+   private boolean writeFile(Node folder, String name, InputStream data, Calendar modified)
+      throws RepositoryException
+   {
+      Node content;
+      boolean created = !folder.hasNode(name);
+      if (created)
+      {
+         Node file = folder.addNode(name, "nt:file");
+         String mixin = getMixin(name);
+         if (file.canAddMixin(mixin))
+            file.addMixin(mixin);
+         content = file.addNode("jcr:content", "nt:resource");
+      }
+      else
+      {
+         content = folder.getNode(name).getNode("jcr:content");
+      }
+
+      content.setProperty("jcr:mimeType", getMimeType(name));
+      content.setProperty("jcr:lastModified", modified);
+      content.setProperty("jcr:data", data);
+      return created;
+   }
+
+   static String getMimeType(String name)
+   {
+      String mimeType = MIME_TYPES.get(FilenameUtils.getExtension(name).toLowerCase());
+      return mimeType == null ? "application/octet-stream" : mimeType;
+   }
+
+   private static String getMixin(String name)
+   {
+      String extension = FilenameUtils.getExtension(name).toLowerCase();
+      if (name.equals(METADATA))
+         return "exo:mavenmetadata";
+      if (extension.equals("jar") || extension.equals("pom") || extension.equals("sha1") || extension.equals("md5"))
+         return "exo:maven" + extension;
+      return "exo:file";
+   }
+
+   private static InputStream getContent(Node file) throws RepositoryException
+   {
+      return ArtifactContent.getStream(file);
+   }
+
+   private static long getLastModified(Node file) throws RepositoryException
+   {
+      return file.getNode("jcr:content").getProperty("jcr:lastModified").getDate().getTimeInMillis();
+   }
+
+   /**
+    * @return algorithm name if the file is a checksum file, null otherwise
+    */
+   static String getChecksumAlgorithm(String name)
+   {
+      String extension = FilenameUtils.getExtension(name).toLowerCase();
+      for (String algorithm : CHECKSUM_ALGORITHMS)
+      {
+         if (algorithm.toLowerCase().equals(extension))
+            return algorithm;
+      }
+      return null;
+   }
+
+   private static String getParentPath(String relPath)
+   {
+      int slash = relPath.lastIndexOf('/');
+      return slash < 0 ? "" : relPath.substring(0, slash);
+   }
+
+   static String normalize(String relPath)
+   {
+      String path = relPath;
+      while (path.startsWith("/"))
+         path = path.substring(1);
+      while (path.endsWith("/"))
+         path = path.substring(0, path.length() - 1);
+
+      if (path.length() == 0)
+         throw new IllegalArgumentException("File path expected");
+      for (String name : path.split("/"))
+      {
+         if (name.length() == 0 || name.equals(".") || name.equals(".."))
+            throw new IllegalArgumentException("Invalid path " + relPath);
+      }
+      return path;
+   }
+}
@@ -0,0 +1,394 @@
+/**
+ * Copyright (C) 2003-2007 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.services.jcr.ext.artifact.rest;
+
+import org.apache.commons.io.IOUtils;
+import org.exoplatform.container.xml.InitParams;
+import org.exoplatform.container.xml.PropertiesParam;
+import org.exoplatform.services.jcr.ext.artifact.ArtifactJob;
+import org.exoplatform.services.jcr.ext.artifact.ArtifactManagingService;
+import org.exoplatform.services.jcr.ext.artifact.FolderDescriptor;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+import org.exoplatform.services.rest.resource.ResourceContainer;
+import org.exoplatform.services.security.ConversationState;
+import org.exoplatform.services.security.IdentityConstants;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+/**
+ * Submits and polls background jobs of {@link ArtifactManagingService}, so bulk imports and exports
+ * don't hold HTTP threads. POST to <code>import/</code> imports the zip sent in the body or, with
+ * <code>source</code>, a folder or zip on the server; with <code>sync=true</code> the maven root is
+ * synchronized with the <code>source</code> folder, only new and changed files are transferred and
+ * with <code>removeMissing=true</code> versions missing from the folder are removed. POST to
+ * <code>export/</code> exports
+ * <code>folder</code> of the maven root into server side <code>destination</code> or into a zip
+ * downloaded from <code>{id}/result/</code>. POST to <code>retention/</code> removes the versions
+ * expired by the configured retention policy, with <code>dryRun=true</code> they are only logged.
+ * <code>{id}/</code> reports the progress and POST to
+ * <code>{id}/cancel/</code> cancels the job. Jobs are submitted only by authenticated users, who see
+ * only their own jobs. Server side paths are
+ * resolved inside the configured <code>directory</code> and refused if it is not configured.
+ *
+ * @version $Id: ArtifactJobService.java $
+ */
+@Path("/maven2-jobs/")
+public class ArtifactJobService implements ResourceContainer
+{
+   private static final Log LOG = ExoLogger.getLogger(ArtifactJobService.class);
+
+   /**
+    * Seconds a client is asked to wait before submitting again when the job queue is full.
+    */
+   private static final String RETRY_AFTER = "60";
+
+   private final ArtifactManagingService artifactService;
+
+   /**
+    * Root of server side sources and destinations, null if they are not allowed.
+    */
+   private final File directory;
+
+   public ArtifactJobService(InitParams initParams, ArtifactManagingService artifactService)
+   {
+      this.artifactService = artifactService;
+      PropertiesParam props = initParams == null ? null : initParams.getPropertiesParam("artifact.jobs");
+      String dir = props == null ? null : props.getProperty("directory");
+      this.directory = dir == null ? null : new File(dir);
+   }
+
+   @GET
+   public Response getJobs() throws IOException
+   {
+      StringWriter out = new StringWriter();
+      JsonWriter writer = new JsonWriter(out);
+      writer.beginArray();
+      for (ArtifactJob job : artifactService.getJobManager().getJobs())
+      {
+         if (isOwner(job))
+            writeStatus(writer, job);
+      }
+      writer.endArray();
+      return Response.ok(out.toString(), JsonWriter.MEDIA_TYPE).build();
+   }
+
+   @GET
+   @Path("{id}/")
+   public Response getJob(@PathParam("id") String id) throws IOException
+   {
+      ArtifactJob job = findJob(id);
+      if (job == null)
+         return notFound(id);
+      return status(Response.Status.OK, job);
+   }
+
+   @POST
+   @Path("{id}/cancel/")
+   public Response cancelJob(@PathParam("id") String id) throws IOException
+   {
+      ArtifactJob job = findJob(id);
+      if (job == null)
+         return notFound(id);
+      if (!artifactService.getJobManager().cancel(id))
+         return status(Response.Status.CONFLICT, job);
+      return status(Response.Status.ACCEPTED, job);
+   }
+
+   @GET
+   @Path("{id}/result/")
+   public Response getResult(@PathParam("id") String id)
+   {
+      ArtifactJob job = findJob(id);
+      if (job == null)
+         return notFound(id);
+
+      final File result = job.getResult();
+      if (result == null || !result.exists())
+      {
+         return Response.status(Response.Status.NOT_FOUND)
+                        .entity("Job " + id + " has no result")
+                        .type("text/plain")
+                        .build();
+      }
+
+      StreamingOutput entity = new StreamingOutput()
+      {
+         public void write(OutputStream out) throws IOException, WebApplicationException
+         {
+            InputStream in = new FileInputStream(result);
+            try
+            {
+               IOUtils.copyLarge(in, out);
+            }
+            finally
+            {
+               IOUtils.closeQuietly(in);
+            }
+         }
+      };
+      return Response.ok(entity, "application/zip")
+                     .header(HttpHeaders.CONTENT_LENGTH, Long.toString(result.length()))
+                     .header("Content-Disposition", "attachment; filename=\"artifacts-" + id + ".zip\"")
+                     .build();
+   }
+
+   @POST
+   @Path("import/")
+   public Response importArtifacts(@QueryParam("source") String source, @QueryParam("sync") boolean sync,
+      @QueryParam("removeMissing") boolean removeMissing, InputStream body) throws IOException
+   {
+      if (getUserId() == null)
+         return unauthorized();
+
+      File file;
+      boolean uploaded = source == null;
+      if (sync && uploaded)
+      {
+         return Response.status(Response.Status.BAD_REQUEST)
+                        .entity("Sync requires a source folder")
+                        .type("text/plain")
+                        .build();
+      }
+      if (uploaded)
+      {
+         file = File.createTempFile("artifacts", ".zip");
+         OutputStream out = new FileOutputStream(file);
+         try
+         {
+            IOUtils.copyLarge(body, out);
+         }
+         catch (IOException e)
+         {
+            IOUtils.closeQuietly(out);
+            file.delete();
+            throw e;
+         }
+         finally
+         {
+            IOUtils.closeQuietly(out);
+         }
+      }
+      else
+      {
+         file = resolve(source);
+         if (file == null)
+            return forbidden(source);
+      }
+
+      try
+      {
+         return status(Response.Status.ACCEPTED, sync ? artifactService.submitSync(file, removeMissing)
+            : artifactService.submitImport(file, uploaded));
+      }
+      catch (FileNotFoundException e)
+      {
+         return Response.status(Response.Status.NOT_FOUND).entity(e.getMessage()).type("text/plain").build();
+      }
+      catch (RejectedExecutionException e)
+      {
+         if (uploaded && !file.delete())
+            LOG.warn("Cannot remove uploaded file " + file.getAbsolutePath());
+         return busy();
+      }
+   }
+
+   @POST
+   @Path("export/")
+   public Response exportArtifacts(@QueryParam("folder") String folder,
+                                   @QueryParam("destination") String destination) throws IOException
+   {
+      if (getUserId() == null)
+         return unauthorized();
+
+      File file = null;
+      if (destination != null)
+      {
+         file = resolve(destination);
+         if (file == null)
+            return forbidden(destination);
+      }
+
+      try
+      {
+         FolderDescriptor parentFolder = new FolderDescriptor(folder == null ? "" : folder);
+         return status(Response.Status.ACCEPTED, artifactService.submitExport(parentFolder, file));
+      }
+      catch (RejectedExecutionException e)
+      {
+         return busy();
+      }
+   }
+
+   @POST
+   @Path("retention/")
+   public Response applyRetention(@QueryParam("dryRun") boolean dryRun) throws IOException
+   {
+      if (getUserId() == null)
+         return unauthorized();
+
+      try
+      {
+         return status(Response.Status.ACCEPTED, artifactService.submitRetention(dryRun));
+      }
+      catch (IllegalStateException e)
+      {
+         return Response.status(Response.Status.CONFLICT).entity(e.getMessage()).type("text/plain").build();
+      }
+      catch (RejectedExecutionException e)
+      {
+         return busy();
+      }
+   }
+
+   /**
+    * Writes state and progress of the job.
+    */
+   static void writeStatus(JsonWriter writer, ArtifactJob job) throws IOException
+   {
+      writer.beginObject();
+      writer.name("id").value(job.getId());
+      writer.name("type").value(job.getType());
+      writer.name("description").value(job.getDescription());
+      writer.name("owner").value(job.getOwner());
+      writer.name("state").value(job.getState().name());
+      writer.name("submitTime").value(job.getSubmitTime());
+      writer.name("startTime").value(job.getStartTime());
+      writer.name("endTime").value(job.getEndTime());
+      writer.name("elapsed").value(job.getElapsed());
+      writer.name("items").value(job.getItems());
+      writer.name("bytes").value(job.getBytes());
+      writer.name("itemsPerSecond").value(job.getItemsPerSecond());
+      writer.name("bytesPerSecond").value(job.getBytesPerSecond());
+      writer.name("errors").value(job.getErrors());
+      writer.name("lastError").value(job.getLastError());
+      writer.name("errorMessages").beginArray();
+      for (String message : job.getErrorMessages())
+         writer.value(message);
+      writer.endArray();
+      writer.name("result").value(job.getResult() != null);
+      writer.name("details").beginObject();
+      for (Map.Entry<String, Object> detail : job.getDetails().entrySet())
+      {
+         writer.name(detail.getKey());
+         Object value = detail.getValue();
+         if (value instanceof Number)
+            writer.value(((Number)value).longValue());
+         else if (value instanceof Boolean)
+            writer.value(((Boolean)value).booleanValue());
+         else
+            writer.value(value == null ? null : value.toString());
+      }
+      writer.endObject();
+      writer.endObject();
+   }
+
+   static Response status(Response.Status status, ArtifactJob job) throws IOException
+   {
+      StringWriter out = new StringWriter();
+      writeStatus(new JsonWriter(out), job);
+      return Response.status(status).entity(out.toString()).type(JsonWriter.MEDIA_TYPE).build();
+   }
+
+   static Response busy()
+   {
+      return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                     .header("Retry-After", RETRY_AFTER)
+                     .entity("Too many jobs are queued")
+                     .type("text/plain")
+                     .build();
+   }
+
+   /**
+    * @return the job if it exists and belongs to the current user
+    */
+   private ArtifactJob findJob(String id)
+   {
+      ArtifactJob job = artifactService.getJobManager().getJob(id);
+      return job != null && isOwner(job) ? job : null;
+   }
+
+   private boolean isOwner(ArtifactJob job)
+   {
+      String userId = getUserId();
+      return userId != null && userId.equals(job.getOwner());
+   }
+
+   /**
+    * @return id of the authenticated user or null for anonymous caller
+    */
+   private static String getUserId()
+   {
+      ConversationState state = ConversationState.getCurrent();
+      String userId = state == null || state.getIdentity() == null ? null : state.getIdentity().getUserId();
+      return userId == null || userId.equals(IdentityConstants.ANONIM) ? null : userId;
+   }
+
+   private static Response unauthorized()
+   {
+      return Response.status(Response.Status.UNAUTHORIZED)
+                     .entity("Jobs are submitted only by authenticated users")
+                     .type("text/plain")
+                     .build();
+   }
+
+   /**
+    * @return file inside the configured directory or null if the path leads outside of it
+    */
+   private File resolve(String path) throws IOException
+   {
+      if (directory == null)
+         return null;
+      String root = directory.getCanonicalPath();
+      File file = new File(directory, path).getCanonicalFile();
+      String canonical = file.getPath();
+      return canonical.equals(root) || canonical.startsWith(root + File.separator) ? file : null;
+   }
+
+   private Response notFound(String id)
+   {
+      return Response.status(Response.Status.NOT_FOUND).entity("Job " + id + " not found").type("text/plain").build();
+   }
+
+   private Response forbidden(String path)
+   {
+      return Response.status(Response.Status.FORBIDDEN)
+                     .entity(directory == null ? "Server side paths are not allowed" : "Path " + path
+                        + " is outside of the jobs directory")
+                     .type("text/plain")
+                     .build();
+   }
+}
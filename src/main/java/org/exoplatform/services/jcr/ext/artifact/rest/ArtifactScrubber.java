@@ -0,0 +1,252 @@
+/**
+ * Copyright (C) 2003-2007 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.services.jcr.ext.artifact.rest;
+
+import org.apache.commons.io.IOUtils;
+import org.exoplatform.container.xml.InitParams;
+import org.exoplatform.container.xml.PropertiesParam;
+import org.exoplatform.services.jcr.RepositoryService;
+import org.exoplatform.services.jcr.config.RepositoryConfigurationException;
+import org.exoplatform.services.jcr.ext.artifact.ArtifactManagingService;
+import org.exoplatform.services.jcr.ext.artifact.ArtifactThreadFactory;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+import org.exoplatform.services.rest.resource.ResourceContainer;
+import org.picocontainer.Startable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+/**
+ * Verifies the stored artifacts in background, see {@link IntegrityScrubJob}. POST to
+ * <code>start/</code> submits the verification to the job manager of
+ * {@link ArtifactManagingService}, <code>status/</code> reports its progress, POST to
+ * <code>stop/</code> stops it and <code>report/</code> sends the mismatches found so far. With
+ * <code>intervalHours</code> configured the verification is also started periodically; a run
+ * skips the files verified within <code>reverifyDays</code>, so it continues after a restart
+ * where the previous one stopped.
+ *
+ * @version $Id: ArtifactScrubber.java $
+ */
+@Path("/maven2-scrubber/")
+public class ArtifactScrubber implements ResourceContainer, Startable
+{
+   private static final Log LOG = ExoLogger.getLogger(ArtifactScrubber.class);
+
+   /**
+    * Default max rate in MB per second of reading the content.
+    */
+   private static final int DEFAULT_RATE = 2;
+
+   private static final int DEFAULT_REVERIFY_DAYS = 30;
+
+   private static final int DEFAULT_BATCH_SIZE = 100;
+
+   /**
+    * Delay in minutes of the first periodic run after start, so it doesn't slow down the startup.
+    */
+   private static final int INITIAL_DELAY = 5;
+
+   private final RepositoryService repositoryService;
+
+   private final ArtifactManagingService artifactService;
+
+   private final String workspace;
+
+   private final String rootPath;
+
+   private final long bytesPerSecond;
+
+   private final long reverifyInterval;
+
+   private final int batchSize;
+
+   private final File reportFile;
+
+   private final int intervalHours;
+
+   private ScheduledExecutorService scheduler;
+
+   private IntegrityScrubJob job;
+
+   public ArtifactScrubber(InitParams initParams, RepositoryService repositoryService,
+      ArtifactManagingService artifactService) throws RepositoryConfigurationException
+   {
+      this.repositoryService = repositoryService;
+      this.artifactService = artifactService;
+
+      PropertiesParam props = initParams == null ? null : initParams.getPropertiesParam("artifact.scrubber");
+      if (props == null)
+         throw new RepositoryConfigurationException("Properties-param 'artifact.scrubber' expected.");
+
+      this.workspace = props.getProperty("workspace");
+      this.rootPath = props.getProperty("rootNode");
+      String rate = props.getProperty("rate");
+      this.bytesPerSecond = (rate == null ? DEFAULT_RATE : Integer.parseInt(rate)) * 1024L * 1024L;
+      String reverifyDays = props.getProperty("reverifyDays");
+      this.reverifyInterval =
+         TimeUnit.DAYS.toMillis(reverifyDays == null ? DEFAULT_REVERIFY_DAYS : Integer.parseInt(reverifyDays));
+      String batch = props.getProperty("batchSize");
+      this.batchSize = batch == null ? DEFAULT_BATCH_SIZE : Integer.parseInt(batch);
+      String report = props.getProperty("reportFile");
+      this.reportFile =
+         report != null ? new File(report) : new File(System.getProperty("java.io.tmpdir"), "maven2-scrubber-"
+            + workspace + ".report");
+      String interval = props.getProperty("intervalHours");
+      this.intervalHours = interval == null ? 0 : Integer.parseInt(interval);
+   }
+
+   @POST
+   @Path("start/")
+   public synchronized Response startScrub() throws IOException
+   {
+      if (job != null && !job.isFinished())
+         return ArtifactJobService.status(Response.Status.CONFLICT, job);
+      try
+      {
+         submit();
+      }
+      catch (RejectedExecutionException e)
+      {
+         return ArtifactJobService.busy();
+      }
+      return ArtifactJobService.status(Response.Status.ACCEPTED, job);
+   }
+
+   @GET
+   @Path("status/")
+   public synchronized Response getStatus() throws IOException
+   {
+      if (job == null)
+      {
+         return Response.status(Response.Status.NOT_FOUND)
+                        .entity("Integrity verification was not started")
+                        .type("text/plain")
+                        .build();
+      }
+      return ArtifactJobService.status(Response.Status.OK, job);
+   }
+
+   @POST
+   @Path("stop/")
+   public synchronized Response stopScrub() throws IOException
+   {
+      if (job == null || !artifactService.getJobManager().cancel(job.getId()))
+      {
+         return Response.status(Response.Status.CONFLICT)
+                        .entity("Integrity verification is not running")
+                        .type("text/plain")
+                        .build();
+      }
+      return ArtifactJobService.status(Response.Status.ACCEPTED, job);
+   }
+
+   /**
+    * Sends the mismatches, one per line: time, path, algorithm, expected and actual checksum
+    * separated by tabs.
+    */
+   @GET
+   @Path("report/")
+   public Response getReport()
+   {
+      if (!reportFile.exists())
+         return Response.status(Response.Status.NOT_FOUND).entity("No mismatch found").type("text/plain").build();
+
+      StreamingOutput entity = new StreamingOutput()
+      {
+         public void write(OutputStream out) throws IOException, WebApplicationException
+         {
+            InputStream in = new FileInputStream(reportFile);
+            try
+            {
+               IOUtils.copyLarge(in, out);
+            }
+            finally
+            {
+               IOUtils.closeQuietly(in);
+            }
+         }
+      };
+      return Response.ok(entity, "text/plain").build();
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   public void start()
+   {
+      if (intervalHours <= 0)
+         return;
+      scheduler = Executors.newSingleThreadScheduledExecutor(new ArtifactThreadFactory("ArtifactScrubberScheduler"));
+      scheduler.scheduleWithFixedDelay(new Runnable()
+      {
+         public void run()
+         {
+            synchronized (ArtifactScrubber.this)
+            {
+               if (job != null && !job.isFinished())
+                  return;
+               try
+               {
+                  submit();
+               }
+               catch (RejectedExecutionException e)
+               {
+                  LOG.warn("Job queue is full, integrity verification is postponed");
+               }
+            }
+         }
+      }, TimeUnit.MINUTES.toMillis(INITIAL_DELAY), TimeUnit.HOURS.toMillis(intervalHours), TimeUnit.MILLISECONDS);
+   }
+
+   /**
+    * Running verification is stopped, the next one continues with the files it did not reach.
+    */
+   public synchronized void stop()
+   {
+      if (scheduler != null)
+      {
+         scheduler.shutdownNow();
+         scheduler = null;
+      }
+      if (job != null)
+         job.cancel();
+   }
+
+   private void submit()
+   {
+      IntegrityScrubJob scrub =
+         new IntegrityScrubJob(repositoryService, workspace, rootPath, artifactService.getBlobStore().getRootPath(),
+            bytesPerSecond, reverifyInterval, batchSize, reportFile);
+      artifactService.getJobManager().submit(scrub);
+      job = scrub;
+   }
+}
@@ -16,61 +16,79 @@
  */
 package org.exoplatform.services.jcr.ext.artifact.rest;
 
-import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Calendar;
-
-import javax.jcr.ItemExistsException;
-import javax.jcr.Node;
-import javax.jcr.NodeIterator;
-import javax.jcr.PathNotFoundException;
-import javax.jcr.Property;
-import javax.jcr.RepositoryException;
-import javax.jcr.Session;
+import java.util.concurrent.RejectedExecutionException;
+
 import javax.ws.rs.GET;
+import javax.ws.rs.POST;
 import javax.ws.rs.Path;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Response;
 
-import org.apache.commons.io.FilenameUtils;
-import org.apache.commons.io.IOUtils;
-import org.exoplatform.services.log.Log;
 import org.exoplatform.container.xml.InitParams;
 import org.exoplatform.container.xml.PropertiesParam;
 import org.exoplatform.services.jcr.RepositoryService;
 import org.exoplatform.services.jcr.config.RepositoryConfigurationException;
-import org.exoplatform.services.jcr.ext.artifact.CRCGenerator;
-import org.exoplatform.services.jcr.ext.common.SessionProvider;
+import org.exoplatform.services.jcr.ext.artifact.ArtifactManagingService;
 import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
 import org.exoplatform.services.rest.resource.ResourceContainer;
 import org.exoplatform.services.security.Authenticator;
 import org.exoplatform.services.security.ConversationState;
 import org.exoplatform.services.security.Credential;
 import org.exoplatform.services.security.PasswordCredential;
 import org.exoplatform.services.security.UsernameCredential;
+import org.picocontainer.Startable;
 
 /**
  * Created by The eXo Platform SARL Author : Volodymyr Krasnikov
  * volodymyr.krasnikov@exoplatform.com.ua 29.10.2007
+ * <p>
+ * Adds missing checksums of the artifacts in background, see {@link StructureCorrectionJob}. GET
+ * submits the correction to the job manager of {@link ArtifactManagingService}, resuming the
+ * interrupted one unless <code>restart=true</code>, <code>status/</code> reports its progress and
+ * POST to <code>stop/</code> stops it. The job is also visible in <code>/maven2-jobs/</code>.
  */
 @Path("/maven2-structure-corrector/")
-public class ArtifactStructureCorrector implements ResourceContainer {
-  private static final Log  LOG = ExoLogger.getLogger(ArtifactStructureCorrector.class);
+public class ArtifactStructureCorrector implements ResourceContainer, Startable {
+  private static final Log  LOG                = ExoLogger.getLogger(ArtifactStructureCorrector.class);
+
+  private static final String DEFAULT_ALGORITHMS = "SHA1";
+
+  private static final int  DEFAULT_THREADS    = 4;
+
+  private static final int  DEFAULT_BATCH_SIZE = 100;
 
   private RepositoryService repoService;
 
+  private ArtifactManagingService artifactService;
+
   private String            repoWorkspaceName;
 
   private String            rootNodePath;
 
-  private SessionProvider   sessionProvider;
+  private ConversationState conversationState;
+
+  private String[]          algorithms;
+
+  private int               threads;
+
+  private int               batchSize;
+
+  private File              checkpointFile;
+
+  private StructureCorrectionJob job;
 
   public ArtifactStructureCorrector(InitParams initParams,
                                     RepositoryService repoService,
-                                    Authenticator authenticator) throws Exception {
+                                    Authenticator authenticator,
+                                    ArtifactManagingService artifactService) throws Exception {
 
     this.repoService = repoService;
+    this.artifactService = artifactService;
 
     if (initParams == null) {
       throw new RepositoryConfigurationException("Init parameters expected !!!");
@@ -89,111 +107,94 @@ public class ArtifactStructureCorrector implements ResourceContainer {
     String userId = authenticator.validateUser(new Credential[] { new UsernameCredential(username),
         new PasswordCredential(password) });
 
-    sessionProvider = new SessionProvider(new ConversationState(authenticator.createIdentity(userId)));
-
-  }
-
-  @GET
-  public Response correctStructure() throws RepositoryException {
-    new Thread(new ChecksumGenerator(currentSession(sessionProvider)),
-               "Correct jcr struct, Append checksums to artifacts").start();
-    return Response.ok().build();
-  }
-
-  private Session currentSession(SessionProvider sp) throws RepositoryException {
-    return sp.getSession(repoWorkspaceName, repoService.getCurrentRepository());
-  }
-
-  class ChecksumGenerator implements Runnable {
-    private Session session;
-
-    public ChecksumGenerator(Session session) {
-      this.session = session;
-    }
-
-    public void run() {
-
-      LOG.info("Maven artifact checksums Updater started");
+    conversationState = new ConversationState(authenticator.createIdentity(userId));
 
+    String algorithmList = props.getProperty("algorithms");
+    algorithms = (algorithmList == null ? DEFAULT_ALGORITHMS : algorithmList).trim().split("\\s*,\\s*");
+    for (String algorithm : algorithms) {
       try {
-        Node rootNode = (Node) session.getItem(rootNodePath);
-
-        jcrSpaning(rootNode);
-
-      } catch (PathNotFoundException e) {
-        LOG.error("Cannot get target node", e);
-      } catch (RepositoryException e) {
-        LOG.error("General repository exception", e);
+        MessageDigest.getInstance(algorithm);
+      } catch (NoSuchAlgorithmException e) {
+        throw new RepositoryConfigurationException("Unsupported checksum algorithm " + algorithm);
       }
-
-      LOG.info("Maven artifact checksums Updater finished!");
     }
 
-    private void jcrSpaning(Node current_root) throws RepositoryException {
-      String algorithm = "sha1";
-
-      // detect all resources that needs for checksums accompanied
-      for (NodeIterator nodeIterator = current_root.getNodes(); nodeIterator.hasNext();) {
-        Node node = nodeIterator.nextNode();
-
-        if (!node.isNodeType("nt:file")) { // not a resource
-          jcrSpaning(node);
-        } else {
-
-          String path = node.getPath();
-          String ext = FilenameUtils.getExtension(path);
-          if (!ext.equalsIgnoreCase(algorithm)) {
-            // perform with real artifact data only, checksums filtered
-            try {
-              // checks if there is a checksum node
-              session.getItem(path + "." + algorithm);
-            } catch (PathNotFoundException e) {
-
-              Node resource_node = (Node) session.getItem(path);
-
-              addChecksumNode(resource_node);
-
-            } catch (ItemExistsException e) {
-              LOG.info("There is checksum for : " + node.getName());
-            }
-          }
+    String threadCount = props.getProperty("threads");
+    threads = threadCount == null ? DEFAULT_THREADS : Integer.parseInt(threadCount);
+    String batch = props.getProperty("batchSize");
+    batchSize = batch == null ? DEFAULT_BATCH_SIZE : Integer.parseInt(batch);
 
-          session.refresh(true);
-          session.save();
+    String checkpoint = props.getProperty("checkpointFile");
+    checkpointFile = checkpoint != null ? new File(checkpoint)
+                                       : new File(System.getProperty("java.io.tmpdir"),
+                                                  "maven2-structure-corrector-" + repoWorkspaceName
+                                                      + ".checkpoint");
+  }
 
-        }
-      }
+  @GET
+  public synchronized Response correctStructure(@QueryParam("restart") boolean restart) throws IOException {
+    if (job != null && !job.isFinished()) {
+      return ArtifactJobService.status(Response.Status.CONFLICT, job);
+    }
+    if (restart && checkpointFile.exists() && !checkpointFile.delete()) {
+      LOG.warn("Cannot remove checkpoint " + checkpointFile.getAbsolutePath());
     }
 
-    private void addChecksumNode(Node src) throws RepositoryException {
-
-      Node parent = src.getParent();
-      Node content = src.getNode("jcr:content");
-      Property data = content.getProperty("jcr:data");
-      String algorithm = "SHA1";
-      try {
-        String checksum = CRCGenerator.getChecksum(data.getStream(), algorithm);
-
-        LOG.info("Generate checksum for : " + src.getName());
-
-        Node checkNode = parent.addNode(src.getName() + "." + algorithm.toLowerCase(), "nt:file");
-
-        InputStream checksum_is = new ByteArrayInputStream(checksum.getBytes());
-        String mimeType = "text/plain";
+    StructureCorrectionJob correction = new StructureCorrectionJob(repoService,
+                                                                   repoWorkspaceName,
+                                                                   rootNodePath,
+                                                                   artifactService.getBlobStore()
+                                                                                  .getRootPath(),
+                                                                   conversationState,
+                                                                   algorithms,
+                                                                   threads,
+                                                                   batchSize,
+                                                                   checkpointFile);
+    try {
+      artifactService.getJobManager().submit(correction);
+    } catch (RejectedExecutionException e) {
+      return ArtifactJobService.busy();
+    }
+    job = correction;
+    return ArtifactJobService.status(Response.Status.ACCEPTED, job);
+  }
 
-        Node sum_content = checkNode.addNode("jcr:content", "nt:resource");
-        sum_content.setProperty("jcr:mimeType", mimeType);
-        sum_content.setProperty("jcr:lastModified", Calendar.getInstance());
-        sum_content.setProperty("jcr:data", checksum_is);
+  @GET
+  @Path("status/")
+  public synchronized Response getStatus() throws IOException {
+    if (job == null) {
+      return Response.status(Response.Status.NOT_FOUND)
+                     .entity("Structure correction was not started")
+                     .type("text/plain")
+                     .build();
+    }
+    return ArtifactJobService.status(Response.Status.OK, job);
+  }
 
-        IOUtils.closeQuietly(checksum_is);
+  @POST
+  @Path("stop/")
+  public synchronized Response stopCorrection() throws IOException {
+    if (job == null || !artifactService.getJobManager().cancel(job.getId())) {
+      return Response.status(Response.Status.CONFLICT)
+                     .entity("Structure correction is not running")
+                     .type("text/plain")
+                     .build();
+    }
+    return ArtifactJobService.status(Response.Status.ACCEPTED, job);
+  }
 
-      } catch (NoSuchAlgorithmException e) {
-        LOG.error("Cannot eval checksum with this algorithm", e);
-      } catch (IOException e) {
-        LOG.error("Streams exception while eval checksums", e);
-      }
+  /**
+   * {@inheritDoc}
+   */
+  public void start() {
+  }
 
+  /**
+   * Running correction is stopped, it resumes from checkpoint next time.
+   */
+  public synchronized void stop() {
+    if (job != null) {
+      job.cancel();
     }
   }
 }
@@ -0,0 +1,193 @@
+/**
+ * Copyright (C) 2003-2007 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.services.jcr.ext.artifact.rest;
+
+import org.exoplatform.services.jcr.ext.artifact.ArtifactContent;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.jcr.AccessDeniedException;
+import javax.jcr.Node;
+import javax.jcr.PathNotFoundException;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * Resolves many files of the maven repository with one session, for build tools planning their
+ * downloads. A request is a path relative to the maven root or coordinates
+ * <code>groupId:artifactId:version[:extension[:classifier]]</code>, the extension defaults to
+ * <code>jar</code>. Files of one version usually come together, so folders found once are reused
+ * for the next requests instead of walking the path again.
+ *
+ * @version $Id: BatchResolver.java $
+ */
+final class BatchResolver
+{
+   static final String FOUND = "found";
+
+   static final String MISSING = "missing";
+
+   static final String FORBIDDEN = "forbidden";
+
+   static final String INVALID = "invalid";
+
+   private final Node root;
+
+   /**
+    * Folders already resolved in this batch by their path relative to the root, null if missing.
+    */
+   private final Map<String, Node> folders = new HashMap<String, Node>();
+
+   /**
+    * @param session
+    *          session of the current user, it is used for all the requests
+    * @param rootPath
+    *          maven root relative to the root node of the workspace, empty for the workspace root
+    */
+   BatchResolver(Session session, String rootPath) throws RepositoryException
+   {
+      this.root = rootPath.length() == 0 ? session.getRootNode() : session.getRootNode().getNode(rootPath);
+   }
+
+   /**
+    * Resolves one request and writes an object with its <code>status</code> and, if the file is
+    * found, its <code>size</code>, <code>sha1</code> and <code>lastModified</code>.
+    */
+   void resolve(String request, JsonWriter writer) throws RepositoryException, IOException
+   {
+      writer.beginObject();
+      writer.name("request").value(request);
+      String path;
+      try
+      {
+         path = toPath(request);
+      }
+      catch (IllegalArgumentException e)
+      {
+         writer.name("status").value(INVALID);
+         writer.name("message").value(e.getMessage());
+         writer.endObject();
+         return;
+      }
+      writer.name("path").value(path);
+
+      int slash = path.lastIndexOf('/');
+      String name = path.substring(slash + 1);
+      try
+      {
+         Node folder = getFolder(slash < 0 ? "" : path.substring(0, slash));
+         Node file = folder == null || !folder.hasNode(name) ? null : folder.getNode(name);
+         if (file == null || !file.isNodeType("nt:file"))
+         {
+            writer.name("status").value(MISSING);
+         }
+         else
+         {
+            writer.name("status").value(FOUND);
+            writer.name("size").value(ArtifactContent.getLength(file));
+            writer.name("sha1").value(name.endsWith(".sha1") ? null : readChecksum(folder, name + ".sha1"));
+            writer.name("lastModified").value(
+               file.getNode("jcr:content").getProperty("jcr:lastModified").getDate().getTimeInMillis());
+         }
+      }
+      catch (AccessDeniedException e)
+      {
+         writer.name("status").value(FORBIDDEN);
+      }
+      writer.endObject();
+   }
+
+   /**
+    * @return path of the requested file relative to the maven root
+    * @throws IllegalArgumentException
+    *           if the request is neither a path nor coordinates
+    */
+   static String toPath(String request)
+   {
+      String path;
+      if (request.indexOf('/') < 0 && request.indexOf(':') > 0)
+      {
+         String[] parts = request.split(":", -1);
+         if (parts.length < 3 || parts.length > 5)
+            throw new IllegalArgumentException("Expected groupId:artifactId:version[:extension[:classifier]]");
+         for (String part : parts)
+         {
+            if (part.length() == 0)
+               throw new IllegalArgumentException("Empty part of coordinates");
+         }
+         String artifactId = parts[1];
+         String version = parts[2];
+         String extension = parts.length > 3 ? parts[3] : "jar";
+         String classifier = parts.length > 4 ? "-" + parts[4] : "";
+         path =
+            parts[0].replace('.', '/') + "/" + artifactId + "/" + version + "/" + artifactId + "-" + version
+               + classifier + "." + extension;
+      }
+      else
+      {
+         path = request;
+         while (path.startsWith("/"))
+            path = path.substring(1);
+         if (path.length() == 0 || path.endsWith("/"))
+            throw new IllegalArgumentException("Path of a file expected");
+      }
+
+      for (String segment : path.split("/"))
+      {
+         if (segment.length() == 0 || segment.equals(".") || segment.equals(".."))
+            throw new IllegalArgumentException("Invalid path " + path);
+      }
+      return path;
+   }
+
+   private Node getFolder(String path) throws RepositoryException
+   {
+      if (path.length() == 0)
+         return root;
+      if (folders.containsKey(path))
+         return folders.get(path);
+
+      int slash = path.lastIndexOf('/');
+      Node parent = getFolder(slash < 0 ? "" : path.substring(0, slash));
+      Node folder = null;
+      if (parent != null)
+      {
+         try
+         {
+            folder = parent.getNode(path.substring(slash + 1));
+         }
+         catch (PathNotFoundException e)
+         {
+            // missing folder is remembered as well
+         }
+      }
+      folders.put(path, folder);
+      return folder;
+   }
+
+   /**
+    * @return checksum of the .sha1 file in the folder or null if there is no such file
+    */
+   private static String readChecksum(Node folder, String name) throws RepositoryException, IOException
+   {
+      if (!folder.hasNode(name))
+         return null;
+      return ArtifactContent.readChecksum(folder.getNode(name));
+   }
+}
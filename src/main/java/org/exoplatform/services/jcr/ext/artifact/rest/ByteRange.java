@@ -0,0 +1,311 @@
+/**
+ * Copyright (C) 2003-2007 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.services.jcr.ext.artifact.rest;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Satisfiable byte range of HTTP <code>Range</code> request header, both bounds are inclusive.
+ *
+ * @version $Id: ByteRange.java $
+ */
+public class ByteRange implements Comparable<ByteRange>
+{
+
+   /**
+    * Requests with more ranges are served with full content.
+    */
+   static final int MAX_RANGES = 32;
+
+   private static final String BYTES_UNIT = "bytes=";
+
+   private final long start;
+
+   private final long end;
+
+   public ByteRange(long start, long end)
+   {
+      this.start = start;
+      this.end = end;
+   }
+
+   public long getStart()
+   {
+      return start;
+   }
+
+   public long getEnd()
+   {
+      return end;
+   }
+
+   public long getLength()
+   {
+      return end - start + 1;
+   }
+
+   /**
+    * @param totalLength
+    *          full length of content
+    * @return value of <code>Content-Range</code> header
+    */
+   public String getContentRange(long totalLength)
+   {
+      return "bytes " + start + "-" + end + "/" + totalLength;
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   public int compareTo(ByteRange o)
+   {
+      return start < o.start ? -1 : (start == o.start ? 0 : 1);
+   }
+
+   @Override
+   public String toString()
+   {
+      return start + "-" + end;
+   }
+
+   /**
+    * Parses value of <code>Range</code> header. Satisfiable ranges are sorted and overlapping or
+    * adjacent ranges are merged, so the content may be read in one pass.
+    *
+    * @param header
+    *          the header value
+    * @param length
+    *          length of content
+    * @return list of satisfiable ranges, empty list if none of the ranges is satisfiable, or
+    *         <code>null</code> if the header is malformed or should be ignored and full content
+    *         returned
+    */
+   public static List<ByteRange> parse(String header, long length)
+   {
+      if (header == null || !header.trim().startsWith(BYTES_UNIT))
+      {
+         return null;
+      }
+
+      String[] specs = header.trim().substring(BYTES_UNIT.length()).split(",");
+      if (specs.length > MAX_RANGES)
+      {
+         return null;
+      }
+
+      List<ByteRange> ranges = new ArrayList<ByteRange>();
+      for (String spec : specs)
+      {
+         spec = spec.trim();
+         int dash = spec.indexOf('-');
+         if (dash < 0)
+         {
+            return null;
+         }
+
+         long start;
+         long end;
+         try
+         {
+            if (dash == 0)
+            {
+               // suffix range, last N bytes
+               long suffix = Long.parseLong(spec.substring(1));
+               if (suffix < 0)
+               {
+                  return null;
+               }
+               if (suffix == 0)
+               {
+                  continue;
+               }
+               start = Math.max(0, length - suffix);
+               end = length - 1;
+            }
+            else
+            {
+               start = Long.parseLong(spec.substring(0, dash));
+               if (dash == spec.length() - 1)
+               {
+                  // open range, up to the end
+                  end = length - 1;
+               }
+               else
+               {
+                  long last = Long.parseLong(spec.substring(dash + 1));
+                  if (last < start)
+                  {
+                     return null;
+                  }
+                  end = Math.min(last, length - 1);
+               }
+            }
+         }
+         catch (NumberFormatException e)
+         {
+            return null;
+         }
+
+         if (start < 0)
+         {
+            return null;
+         }
+         if (start < length && start <= end)
+         {
+            ranges.add(new ByteRange(start, end));
+         }
+      }
+
+      if (ranges.size() < 2)
+      {
+         return ranges;
+      }
+
+      Collections.sort(ranges);
+      List<ByteRange> merged = new ArrayList<ByteRange>();
+      ByteRange current = ranges.get(0);
+      for (int i = 1; i < ranges.size(); i++)
+      {
+         ByteRange next = ranges.get(i);
+         if (next.start <= current.end + 1)
+         {
+            current = new ByteRange(current.start, Math.max(current.end, next.end));
+         }
+         else
+         {
+            merged.add(current);
+            current = next;
+         }
+      }
+      merged.add(current);
+      return merged;
+   }
+
+   /**
+    * Opens range of the content.
+    *
+    * @param in
+    *          stream of full content positioned at its beginning
+    * @return stream of the range bytes, closing it closes the source stream
+    * @throws IOException
+    *           if the stream can't be positioned
+    */
+   public InputStream open(InputStream in) throws IOException
+   {
+      skipFully(in, start);
+      return new BoundedInputStream(in, getLength());
+   }
+
+   /**
+    * Skips the stream to the given position. {@link InputStream#skip(long)} is used, so file
+    * backed values are positioned without reading the skipped bytes.
+    *
+    * @param in
+    *          the stream
+    * @param n
+    *          number of bytes to skip
+    * @throws IOException
+    *           if the stream ends before the position is reached
+    */
+   static void skipFully(InputStream in, long n) throws IOException
+   {
+      long remaining = n;
+      while (remaining > 0)
+      {
+         long skipped = in.skip(remaining);
+         if (skipped <= 0)
+         {
+            // skip is not guaranteed to move, check end of stream
+            if (in.read() == -1)
+            {
+               throw new IOException("Unexpected end of stream, " + remaining + " bytes were not skipped");
+            }
+            skipped = 1;
+         }
+         remaining -= skipped;
+      }
+   }
+
+   /**
+    * Stream limited to the given number of bytes.
+    */
+   static class BoundedInputStream extends FilterInputStream
+   {
+      private long remaining;
+
+      BoundedInputStream(InputStream in, long length)
+      {
+         super(in);
+         this.remaining = length;
+      }
+
+      @Override
+      public int read() throws IOException
+      {
+         if (remaining <= 0)
+         {
+            return -1;
+         }
+         int b = in.read();
+         if (b != -1)
+         {
+            remaining--;
+         }
+         return b;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException
+      {
+         if (remaining <= 0)
+         {
+            return -1;
+         }
+         int count = in.read(b, off, (int)Math.min(len, remaining));
+         if (count > 0)
+         {
+            remaining -= count;
+         }
+         return count;
+      }
+
+      @Override
+      public long skip(long n) throws IOException
+      {
+         long skipped = in.skip(Math.min(n, remaining));
+         remaining -= skipped;
+         return skipped;
+      }
+
+      @Override
+      public int available() throws IOException
+      {
+         return (int)Math.min(in.available(), remaining);
+      }
+
+      @Override
+      public boolean markSupported()
+      {
+         return false;
+      }
+   }
+}
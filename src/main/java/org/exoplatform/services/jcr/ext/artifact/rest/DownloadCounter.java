@@ -0,0 +1,300 @@
+/**
+ * Copyright (C) 2003-2007 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.services.jcr.ext.artifact.rest;
+
+import org.exoplatform.services.jcr.RepositoryService;
+import org.exoplatform.services.jcr.ext.artifact.ArtifactThreadFactory;
+import org.exoplatform.services.jcr.ext.common.SessionProvider;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Node;
+import javax.jcr.PathNotFoundException;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * Download counters of artifacts. Downloads are counted in memory and the accumulated deltas are
+ * written into <code>exo:downloadcounter</code> property periodically by a background thread in a
+ * system session, so serving an artifact does not write into the repository.
+ *
+ * @version $Id: DownloadCounter.java $
+ */
+class DownloadCounter
+{
+   private static final Log LOG = ExoLogger.getLogger(DownloadCounter.class);
+
+   /**
+    * Number of nodes updated before each save.
+    */
+   private static final int SAVE_BATCH_SIZE = 100;
+
+   /**
+    * Property keeping the number of downloads of the file.
+    */
+   static final String COUNTER_PROPERTY = "exo:downloadcounter";
+
+   /**
+    * Value of a flushed counter being removed from {@link #pending}, never incremented.
+    */
+   private static final long REMOVED = Long.MIN_VALUE;
+
+   private final RepositoryService repositoryService;
+
+   private final String repository;
+
+   private final String workspace;
+
+   private final long flushInterval;
+
+   /**
+    * Not yet flushed downloads mapped by absolute path of the node.
+    */
+   private final ConcurrentMap<String, AtomicLong> pending = new ConcurrentHashMap<String, AtomicLong>();
+
+   private ScheduledExecutorService flusher;
+
+   /**
+    * @param flushInterval
+    *          interval in milliseconds between flushes
+    */
+   DownloadCounter(RepositoryService repositoryService, String repository, String workspace, long flushInterval)
+   {
+      this.repositoryService = repositoryService;
+      this.repository = repository;
+      this.workspace = workspace;
+      this.flushInterval = flushInterval;
+   }
+
+   void start()
+   {
+      flusher = Executors.newSingleThreadScheduledExecutor(new ArtifactThreadFactory("DownloadCounterFlusher"));
+      flusher.scheduleWithFixedDelay(new Runnable()
+      {
+         public void run()
+         {
+            flush();
+         }
+      }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+   }
+
+   /**
+    * Stops the flusher and writes the remaining deltas.
+    */
+   void stop()
+   {
+      if (flusher != null)
+      {
+         flusher.shutdown();
+         try
+         {
+            flusher.awaitTermination(flushInterval, TimeUnit.MILLISECONDS);
+         }
+         catch (InterruptedException e)
+         {
+            Thread.currentThread().interrupt();
+         }
+         flusher = null;
+      }
+      flush();
+   }
+
+   /**
+    * Counts one download of the node.
+    */
+   void increment(String path)
+   {
+      add(path, 1);
+   }
+
+   /**
+    * @return number of downloads of the node not yet written into the repository
+    */
+   long getPending(String path)
+   {
+      AtomicLong counter = pending.get(path);
+      long count = counter == null ? 0 : counter.get();
+      return count == REMOVED ? 0 : count;
+   }
+
+   private void add(String path, long delta)
+   {
+      while (true)
+      {
+         AtomicLong counter = pending.get(path);
+         if (counter == null)
+         {
+            AtomicLong created = new AtomicLong();
+            counter = pending.putIfAbsent(path, created);
+            if (counter == null)
+            {
+               counter = created;
+            }
+         }
+         long count = counter.get();
+         if (count == REMOVED)
+         {
+            // flushed counter being dropped, count into a new one
+            pending.remove(path, counter);
+         }
+         else if (counter.compareAndSet(count, count + delta))
+         {
+            return;
+         }
+      }
+   }
+
+   /**
+    * Removes the counter of the node if no download came after its delta was taken.
+    */
+   private void drop(String path)
+   {
+      AtomicLong counter = pending.get(path);
+      if (counter != null && counter.compareAndSet(0, REMOVED))
+      {
+         pending.remove(path, counter);
+      }
+   }
+
+   /**
+    * Writes accumulated deltas into the repository. Deltas of the nodes and batches which could not
+    * be saved are put back and retried by the next flush, counters of the saved nodes are dropped
+    * unless downloaded meanwhile.
+    */
+   synchronized void flush()
+   {
+      // take the deltas, counters are kept in the map so concurrent downloads are never lost
+      Map<String, Long> deltas = new HashMap<String, Long>();
+      for (Map.Entry<String, AtomicLong> entry : pending.entrySet())
+      {
+         long delta = entry.getValue().getAndSet(0);
+         if (delta > 0)
+         {
+            deltas.put(entry.getKey(), delta);
+         }
+      }
+      if (deltas.isEmpty())
+      {
+         return;
+      }
+
+      Set<String> done = new HashSet<String>();
+      SessionProvider sp = SessionProvider.createSystemProvider();
+      try
+      {
+         Session session = sp.getSession(workspace, repositoryService.getRepository(repository));
+         List<String> batch = new ArrayList<String>();
+         for (Map.Entry<String, Long> entry : deltas.entrySet())
+         {
+            Node node = null;
+            try
+            {
+               node = (Node)session.getItem(entry.getKey());
+               if (node.canAddMixin("exo:mavencounter"))
+               {
+                  node.addMixin("exo:mavencounter");
+               }
+               long stored =
+                  node.hasProperty(COUNTER_PROPERTY) ? node.getProperty(COUNTER_PROPERTY).getLong() : 0;
+               node.setProperty(COUNTER_PROPERTY, stored + entry.getValue());
+               batch.add(entry.getKey());
+            }
+            catch (PathNotFoundException e)
+            {
+               // artifact was removed, its downloads are not counted any more
+               pending.remove(entry.getKey());
+               done.add(entry.getKey());
+            }
+            catch (RepositoryException e)
+            {
+               LOG.error("Cannot update download counter of " + entry.getKey() + ", will retry", e);
+               if (node != null)
+               {
+                  // the batch save must not keep a part of the update which is retried
+                  node.refresh(false);
+               }
+               add(entry.getKey(), entry.getValue());
+               done.add(entry.getKey());
+            }
+
+            if (batch.size() >= SAVE_BATCH_SIZE)
+            {
+               saveBatch(session, batch, deltas, done);
+            }
+         }
+         saveBatch(session, batch, deltas, done);
+      }
+      catch (RepositoryException e)
+      {
+         LOG.error("Cannot flush download counters", e);
+         for (Map.Entry<String, Long> entry : deltas.entrySet())
+         {
+            if (!done.contains(entry.getKey()))
+            {
+               add(entry.getKey(), entry.getValue());
+            }
+         }
+      }
+      finally
+      {
+         sp.close();
+      }
+   }
+
+   private void saveBatch(Session session, List<String> batch, Map<String, Long> deltas, Set<String> done)
+      throws RepositoryException
+   {
+      if (batch.isEmpty())
+      {
+         return;
+      }
+
+      try
+      {
+         session.save();
+         for (String path : batch)
+         {
+            drop(path);
+         }
+      }
+      catch (RepositoryException e)
+      {
+         // concurrent update of the same nodes, retry the batch with the next flush
+         LOG.warn("Cannot save download counters, will retry: " + e.getMessage());
+         session.refresh(false);
+         for (String path : batch)
+         {
+            add(path, deltas.get(path));
+         }
+      }
+      done.addAll(batch);
+      batch.clear();
+   }
+}
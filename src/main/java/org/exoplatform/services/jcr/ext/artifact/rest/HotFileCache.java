@@ -0,0 +1,643 @@
+/**
+ * Copyright (C) 2003-2007 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.services.jcr.ext.artifact.rest;
+
+import org.exoplatform.services.jcr.ext.artifact.StorageStatistics;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+
+/**
+ * Content and headers of the most requested small files, bounded by total size in bytes. The cache
+ * follows W-TinyLFU: new files enter a small LRU window, files leaving the window compete for the
+ * main space with its least recently used files and are admitted only if they were requested more
+ * often, according to a count-min sketch of recent request frequencies. The main space is split
+ * into probation and protected segments, a file requested again while on probation is protected.
+ * <p>
+ * A cached file is served only to the users who have already read it from the repository. The
+ * cache is registered as observation listener of the maven root: a change drops the changed file
+ * and everything below it, so permission changes of a folder are taken into account as well.
+ *
+ * @version $Id: HotFileCache.java $
+ */
+class HotFileCache implements EventListener
+{
+   private static final Log LOG = ExoLogger.getLogger(HotFileCache.class);
+
+   static final int EVENT_TYPES =
+      Event.NODE_ADDED | Event.NODE_REMOVED | Event.PROPERTY_ADDED | Event.PROPERTY_CHANGED | Event.PROPERTY_REMOVED;
+
+   /**
+    * Part of the capacity used by the window.
+    */
+   private static final int WINDOW_PERCENT = 1;
+
+   /**
+    * Part of the main space used by protected segment.
+    */
+   private static final int PROTECTED_PERCENT = 80;
+
+   /**
+    * Expected average size of a cached file, used to size the frequency sketch.
+    */
+   private static final int AVERAGE_FILE_SIZE = 4 * 1024;
+
+   /**
+    * Cached file, content and the headers needed to answer a request.
+    */
+   static final class CachedFile
+   {
+      private final String path;
+
+      private final String mediaType;
+
+      private final long lastModified;
+
+      private final String checksum;
+
+      private final byte[] heapContent;
+
+      private final ByteBuffer directContent;
+
+      private final int length;
+
+      /**
+       * Users who have read the file from the repository.
+       */
+      private final Set<String> readers = new HashSet<String>();
+
+      /**
+       * Segment the file is in, null if it is not cached any more.
+       */
+      private Map<String, CachedFile> segment;
+
+      CachedFile(String path, String mediaType, long lastModified, String checksum, byte[] content)
+      {
+         this(path, mediaType, lastModified, checksum, content, null);
+      }
+
+      private CachedFile(String path, String mediaType, long lastModified, String checksum, byte[] heapContent,
+         ByteBuffer directContent)
+      {
+         this.path = path;
+         this.mediaType = mediaType;
+         this.lastModified = lastModified;
+         this.checksum = checksum;
+         this.heapContent = heapContent;
+         this.directContent = directContent;
+         this.length = heapContent != null ? heapContent.length : directContent.remaining();
+      }
+
+      /**
+       * @return copy of the file with content out of the heap
+       */
+      private CachedFile toDirect()
+      {
+         ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+         buffer.put(heapContent).flip();
+         return new CachedFile(path, mediaType, lastModified, checksum, null, buffer);
+      }
+
+      String getPath()
+      {
+         return path;
+      }
+
+      String getMediaType()
+      {
+         return mediaType;
+      }
+
+      long getLastModified()
+      {
+         return lastModified;
+      }
+
+      /**
+       * @return SHA-1 checksum of the content or null
+       */
+      String getChecksum()
+      {
+         return checksum;
+      }
+
+      int getLength()
+      {
+         return length;
+      }
+
+      InputStream openStream()
+      {
+         return heapContent != null ? new ByteArrayInputStream(heapContent) : new ByteBufferInputStream(
+            directContent.duplicate());
+      }
+
+      private boolean isSameAs(CachedFile other)
+      {
+         return other.length == length && other.lastModified == lastModified
+            && (checksum == null ? other.checksum == null : checksum.equals(other.checksum));
+      }
+   }
+
+   private final long maxFileSize;
+
+   private final boolean offHeap;
+
+   private final long windowMax;
+
+   private final long protectedMax;
+
+   private final long mainMax;
+
+   private final FrequencySketch sketch;
+
+   private final Map<String, CachedFile> window = new LinkedHashMap<String, CachedFile>();
+
+   private final Map<String, CachedFile> probation = new LinkedHashMap<String, CachedFile>();
+
+   private final Map<String, CachedFile> protectedFiles = new LinkedHashMap<String, CachedFile>();
+
+   /**
+    * All cached files sorted by path, to drop subtrees.
+    */
+   private final TreeMap<String, CachedFile> index = new TreeMap<String, CachedFile>();
+
+   private long windowBytes;
+
+   private long probationBytes;
+
+   private long protectedBytes;
+
+   /**
+    * Incremented by every invalidation, files read meanwhile are not cached.
+    */
+   private long generation;
+
+   private long hits;
+
+   private long misses;
+
+   /**
+    * @param maxSize
+    *          max total size in bytes of cached content
+    * @param maxFileSize
+    *          max size of a cached file
+    * @param offHeap
+    *          whether content is kept in direct buffers out of the heap
+    */
+   HotFileCache(long maxSize, int maxFileSize, boolean offHeap)
+   {
+      this.windowMax = Math.max(maxFileSize, maxSize * WINDOW_PERCENT / 100);
+      this.mainMax = Math.max(maxFileSize, maxSize - windowMax);
+      this.protectedMax = mainMax * PROTECTED_PERCENT / 100;
+      this.maxFileSize = maxFileSize;
+      this.offHeap = offHeap;
+      this.sketch = new FrequencySketch((int)Math.min(1 << 24, Math.max(64, maxSize / AVERAGE_FILE_SIZE)));
+   }
+
+   /**
+    * @return true if a file of this size may be cached
+    */
+   boolean accepts(long size)
+   {
+      return size >= 0 && size <= maxFileSize;
+   }
+
+   /**
+    * Records the request of the file.
+    *
+    * @return the cached file if the user already read it, null otherwise
+    */
+   synchronized CachedFile get(String path, String userId)
+   {
+      sketch.increment(path.hashCode());
+      CachedFile file = index.get(path);
+      if (file == null || !file.readers.contains(userId))
+      {
+         misses++;
+         return null;
+      }
+      hits++;
+
+      if (file.segment == window)
+      {
+         window.remove(path);
+         window.put(path, file);
+      }
+      else if (file.segment == probation)
+      {
+         probation.remove(path);
+         probationBytes -= file.length;
+         protect(file);
+      }
+      else
+      {
+         protectedFiles.remove(path);
+         protectedFiles.put(path, file);
+      }
+      return file;
+   }
+
+   /**
+    * @return value to pass to {@link #put(CachedFile, String, long)} before the file is read
+    */
+   synchronized long getGeneration()
+   {
+      return generation;
+   }
+
+   /**
+    * Caches the file read by the user unless something was changed since the file was read.
+    */
+   synchronized void put(CachedFile file, String userId, long readGeneration)
+   {
+      if (readGeneration != generation || !accepts(file.length))
+      {
+         return;
+      }
+
+      CachedFile cached = index.get(file.path);
+      if (cached != null)
+      {
+         if (cached.isSameAs(file))
+         {
+            cached.readers.add(userId);
+            return;
+         }
+         remove(cached);
+      }
+
+      if (offHeap && file.heapContent != null)
+         file = file.toDirect();
+      file.readers.add(userId);
+      file.segment = window;
+      window.put(file.path, file);
+      windowBytes += file.length;
+      index.put(file.path, file);
+
+      while (windowBytes > windowMax)
+      {
+         Iterator<CachedFile> eldest = window.values().iterator();
+         CachedFile candidate = eldest.next();
+         eldest.remove();
+         windowBytes -= candidate.length;
+         admit(candidate);
+      }
+   }
+
+   /**
+    * Moves the file leaving the window into probation if it is requested more often than the files
+    * it would evict.
+    */
+   private void admit(CachedFile candidate)
+   {
+      long needed = probationBytes + protectedBytes + candidate.length - mainMax;
+      if (needed > 0)
+      {
+         int candidateFrequency = sketch.frequency(candidate.path.hashCode());
+         long freed = 0;
+         for (Iterator<CachedFile> victims = new VictimIterator(); victims.hasNext() && freed < needed;)
+         {
+            CachedFile victim = victims.next();
+            if (sketch.frequency(victim.path.hashCode()) >= candidateFrequency)
+            {
+               candidate.segment = null;
+               index.remove(candidate.path);
+               return;
+            }
+            freed += victim.length;
+         }
+
+         freed = 0;
+         for (Iterator<CachedFile> victims = new VictimIterator(); victims.hasNext() && freed < needed;)
+         {
+            CachedFile victim = victims.next();
+            freed += victim.length;
+            victims.remove();
+         }
+      }
+
+      candidate.segment = probation;
+      probation.put(candidate.path, candidate);
+      probationBytes += candidate.length;
+   }
+
+   private void protect(CachedFile file)
+   {
+      file.segment = protectedFiles;
+      protectedFiles.put(file.path, file);
+      protectedBytes += file.length;
+
+      // least recently used protected files go back to probation
+      for (Iterator<CachedFile> it = protectedFiles.values().iterator(); protectedBytes > protectedMax && it.hasNext();)
+      {
+         CachedFile demoted = it.next();
+         it.remove();
+         protectedBytes -= demoted.length;
+         demoted.segment = probation;
+         probation.put(demoted.path, demoted);
+         probationBytes += demoted.length;
+      }
+   }
+
+   private void remove(CachedFile file)
+   {
+      index.remove(file.path);
+      if (file.segment == window)
+      {
+         window.remove(file.path);
+         windowBytes -= file.length;
+      }
+      else if (file.segment == probation)
+      {
+         probation.remove(file.path);
+         probationBytes -= file.length;
+      }
+      else if (file.segment == protectedFiles)
+      {
+         protectedFiles.remove(file.path);
+         protectedBytes -= file.length;
+      }
+      file.segment = null;
+   }
+
+   /**
+    * Drops the node at the path, the files it belongs to and the files below it.
+    */
+   synchronized void invalidate(String path)
+   {
+      generation++;
+      for (String ancestor = path; ancestor.length() > 0; ancestor = ancestor.substring(0, ancestor.lastIndexOf('/')))
+      {
+         CachedFile file = index.get(ancestor);
+         if (file != null)
+            remove(file);
+      }
+      // '0' follows '/' and ends the range of the paths below
+      for (CachedFile file : index.subMap(path + "/", path + "0").values().toArray(new CachedFile[0]))
+      {
+         remove(file);
+      }
+   }
+
+   synchronized void clear()
+   {
+      generation++;
+      for (CachedFile file : index.values())
+         file.segment = null;
+      index.clear();
+      window.clear();
+      probation.clear();
+      protectedFiles.clear();
+      windowBytes = 0;
+      probationBytes = 0;
+      protectedBytes = 0;
+   }
+
+   synchronized long getSize()
+   {
+      return windowBytes + probationBytes + protectedBytes;
+   }
+
+   synchronized long getHits()
+   {
+      return hits;
+   }
+
+   synchronized long getMisses()
+   {
+      return misses;
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   public void onEvent(EventIterator events)
+   {
+      while (events.hasNext())
+      {
+         Event event = events.nextEvent();
+         try
+         {
+            String path = event.getPath();
+            if ((event.getType() & (Event.NODE_ADDED | Event.NODE_REMOVED)) != 0)
+            {
+               invalidate(path);
+            }
+            else if (!path.endsWith("/" + DownloadCounter.COUNTER_PROPERTY)
+               && !path.endsWith("/" + IntegrityScrubJob.LAST_VERIFIED_PROPERTY)
+               && !StorageStatistics.isStatisticsProperty(path))
+            {
+               // property of the node changed, e.g. its permissions or the content of a file, flushed
+               // download counters, verification marks and storage totals don't change anything served
+               invalidate(path.substring(0, path.lastIndexOf('/')));
+            }
+         }
+         catch (RepositoryException e)
+         {
+            LOG.warn("Cannot get path of the changed item, file cache is cleared", e);
+            clear();
+         }
+      }
+   }
+
+   /**
+    * Iterates main space in eviction order: probation, then protected, least recently used first.
+    */
+   private class VictimIterator implements Iterator<CachedFile>
+   {
+      private Iterator<CachedFile> current = probation.values().iterator();
+
+      private boolean inProbation = true;
+
+      private CachedFile last;
+
+      public boolean hasNext()
+      {
+         if (!current.hasNext() && inProbation)
+         {
+            current = protectedFiles.values().iterator();
+            inProbation = false;
+         }
+         return current.hasNext();
+      }
+
+      public CachedFile next()
+      {
+         hasNext();
+         last = current.next();
+         return last;
+      }
+
+      public void remove()
+      {
+         current.remove();
+         if (inProbation)
+            probationBytes -= last.length;
+         else
+            protectedBytes -= last.length;
+         index.remove(last.path);
+         last.segment = null;
+      }
+   }
+
+   /**
+    * Count-min sketch of 4-bit counters, 16 counters per long, 4 counters per key. Counters are
+    * halved when the number of increments reaches ten times the width, so old popularity fades.
+    */
+   static final class FrequencySketch
+   {
+      private static final long[] SEEDS =
+         {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+      private static final long RESET_MASK = 0x7777777777777777L;
+
+      private final long[] table;
+
+      private final int mask;
+
+      private final int sampleSize;
+
+      private int additions;
+
+      FrequencySketch(int expectedEntries)
+      {
+         int size = Integer.highestOneBit(Math.max(16, expectedEntries - 1) << 1);
+         this.table = new long[size];
+         this.mask = size - 1;
+         this.sampleSize = 10 * size;
+      }
+
+      int frequency(int hashCode)
+      {
+         int hash = spread(hashCode);
+         int frequency = Integer.MAX_VALUE;
+         for (int i = 0; i < 4; i++)
+         {
+            int shift = offset(hash, i) << 2;
+            frequency = Math.min(frequency, (int)((table[index(hash, i)] >>> shift) & 0xfL));
+         }
+         return frequency;
+      }
+
+      void increment(int hashCode)
+      {
+         int hash = spread(hashCode);
+         boolean added = false;
+         for (int i = 0; i < 4; i++)
+         {
+            int index = index(hash, i);
+            int shift = offset(hash, i) << 2;
+            if (((table[index] >>> shift) & 0xfL) != 0xfL)
+            {
+               table[index] += 1L << shift;
+               added = true;
+            }
+         }
+         if (added && ++additions == sampleSize)
+            reset();
+      }
+
+      private void reset()
+      {
+         for (int i = 0; i < table.length; i++)
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+         additions /= 2;
+      }
+
+      private int index(int hash, int i)
+      {
+         long h = (hash + SEEDS[i]) * SEEDS[i];
+         h += h >>> 32;
+         return (int)h & mask;
+      }
+
+      /**
+       * @return which of the 16 counters of the long is used by the i-th hash function
+       */
+      private static int offset(int hash, int i)
+      {
+         return (hash >>> (i << 3)) & 0xf;
+      }
+
+      private static int spread(int x)
+      {
+         x = ((x >>> 16) ^ x) * 0x45d9f3b;
+         x = ((x >>> 16) ^ x) * 0x45d9f3b;
+         return (x >>> 16) ^ x;
+      }
+   }
+
+   /**
+    * Reads a buffer, direct buffers can't be wrapped otherwise.
+    */
+   private static final class ByteBufferInputStream extends InputStream
+   {
+      private final ByteBuffer buffer;
+
+      ByteBufferInputStream(ByteBuffer buffer)
+      {
+         this.buffer = buffer;
+      }
+
+      @Override
+      public int read()
+      {
+         return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len)
+      {
+         if (len == 0)
+            return 0;
+         if (!buffer.hasRemaining())
+            return -1;
+         int count = Math.min(len, buffer.remaining());
+         buffer.get(b, off, count);
+         return count;
+      }
+
+      @Override
+      public long skip(long n)
+      {
+         int count = (int)Math.max(0, Math.min(n, buffer.remaining()));
+         buffer.position(buffer.position() + count);
+         return count;
+      }
+
+      @Override
+      public int available()
+      {
+         return buffer.remaining();
+      }
+   }
+}
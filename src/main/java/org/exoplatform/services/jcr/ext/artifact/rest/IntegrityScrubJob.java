@@ -0,0 +1,368 @@
+/**
+ * Copyright (C) 2003-2007 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.services.jcr.ext.artifact.rest;
+
+import org.exoplatform.services.jcr.RepositoryService;
+import org.exoplatform.services.jcr.core.ExtendedNode;
+import org.exoplatform.services.jcr.ext.artifact.ArtifactContent;
+import org.exoplatform.services.jcr.ext.artifact.ArtifactJob;
+import org.exoplatform.services.jcr.ext.artifact.BlobStore;
+import org.exoplatform.services.jcr.ext.artifact.ChecksumInputStream;
+import org.exoplatform.services.jcr.ext.common.SessionProvider;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * Verifies that the stored content of the files under the maven root still matches their checksum
+ * file and, for files kept in {@link BlobStore}, the hash of the blob. The content is read at a
+ * limited rate by a low priority thread. Verified files get <code>exo:lastVerified</code> and are
+ * not read again until the reverify interval passes, so a stopped or interrupted run continues
+ * with the files it did not reach. Mismatches are appended to the report file and the job errors,
+ * mismatching files are not marked and are reported again by the next run. Files without any
+ * checksum are counted as unverifiable. Items of the job are the checked files, bytes are the read
+ * content.
+ *
+ * @version $Id: IntegrityScrubJob.java $
+ */
+class IntegrityScrubJob extends ArtifactJob
+{
+   private static final Log LOG = ExoLogger.getLogger(IntegrityScrubJob.class);
+
+   /**
+    * Mixin of files whose content was verified.
+    */
+   static final String VERIFIED = "exo:verified";
+
+   /**
+    * Time of the last successful verification.
+    */
+   static final String LAST_VERIFIED_PROPERTY = "exo:lastVerified";
+
+   /**
+    * Extensions of the files which are checksums or signatures themselves.
+    */
+   private static final Set<String> CHECKSUM_EXTENSIONS =
+      new HashSet<String>(Arrays.asList("sha1", "md5", "sha256", "sha512", "asc"));
+
+   private static final String SHA1 = "SHA1";
+
+   private static final int BUFFER_SIZE = 64 * 1024;
+
+   private final RepositoryService repositoryService;
+
+   private final String workspace;
+
+   private final String rootPath;
+
+   /**
+    * Absolute path of the blob store root, not walked, may be null.
+    */
+   private final String excludedPath;
+
+   private final Throttle throttle;
+
+   private final long reverifyInterval;
+
+   private final int batchSize;
+
+   private final File reportFile;
+
+   private final AtomicLong verified = new AtomicLong();
+
+   private final AtomicLong skipped = new AtomicLong();
+
+   private final AtomicLong unverifiable = new AtomicLong();
+
+   private final AtomicLong mismatches = new AtomicLong();
+
+   private Session session;
+
+   private Writer report;
+
+   private int unsaved;
+
+   /**
+    * @param rootPath
+    *          absolute path of the maven root node
+    * @param excludedPath
+    *          absolute path of the blob store root, may be null
+    * @param bytesPerSecond
+    *          max rate of reading the content, 0 for no limit
+    * @param reverifyInterval
+    *          time in milliseconds after which a verified file is verified again
+    * @param batchSize
+    *          number of verified files marked at once
+    * @param reportFile
+    *          file to append the mismatches to
+    */
+   IntegrityScrubJob(RepositoryService repositoryService, String workspace, String rootPath, String excludedPath,
+      long bytesPerSecond, long reverifyInterval, int batchSize, File reportFile)
+   {
+      super("integrity-scrub", workspace + ":" + rootPath, true);
+      this.repositoryService = repositoryService;
+      this.workspace = workspace;
+      this.rootPath = rootPath;
+      this.excludedPath = excludedPath;
+      this.throttle = new Throttle(bytesPerSecond);
+      this.reverifyInterval = reverifyInterval;
+      this.batchSize = batchSize;
+      this.reportFile = reportFile;
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   protected void execute() throws Exception
+   {
+      LOG.info("Maven artifact integrity scrubber started");
+      Thread thread = Thread.currentThread();
+      int priority = thread.getPriority();
+      thread.setPriority(Thread.MIN_PRIORITY);
+      // all the files are verified whoever started the job
+      SessionProvider sessionProvider = SessionProvider.createSystemProvider();
+      try
+      {
+         session = sessionProvider.getSession(workspace, repositoryService.getCurrentRepository());
+         report = new OutputStreamWriter(new FileOutputStream(reportFile, true), "UTF-8");
+         try
+         {
+            scrub((Node)session.getItem(rootPath));
+         }
+         finally
+         {
+            // files verified before the job is stopped are not read again
+            saveMarks();
+         }
+      }
+      finally
+      {
+         IOUtils.closeQuietly(report);
+         sessionProvider.close();
+         thread.setPriority(priority);
+      }
+      LOG.info("Maven artifact integrity scrubber " + (isCancelled() ? "stopped" : "finished") + ", " + verified
+         + " files verified, " + skipped + " verified recently, " + unverifiable + " without checksum, "
+         + mismatches + " mismatches");
+   }
+
+   private void scrub(Node folder) throws RepositoryException, InterruptedException
+   {
+      // children of big folders are not loaded at once
+      for (NodeIterator nodes = ((ExtendedNode)folder).getNodesLazily(); nodes.hasNext();)
+      {
+         checkCancelled();
+         Node child = nodes.nextNode();
+         if (child.isNodeType("nt:folder"))
+         {
+            // blobs are verified through the files referencing them
+            if (!isExcluded(child.getPath()))
+               scrub(child);
+         }
+         else if (child.isNodeType("nt:file")
+            && !CHECKSUM_EXTENSIONS.contains(FilenameUtils.getExtension(child.getName()).toLowerCase(Locale.ENGLISH)))
+         {
+            try
+            {
+               verify(folder, child);
+            }
+            catch (IOException e)
+            {
+               error(child.getPath(), e);
+            }
+            catch (RepositoryException e)
+            {
+               // marks of the files verified before are lost, they are verified again next time
+               error(child.getPath(), e);
+               session.refresh(false);
+               unsaved = 0;
+            }
+         }
+      }
+   }
+
+   private boolean isExcluded(String path)
+   {
+      return excludedPath != null && (path.equals(excludedPath) || path.startsWith(excludedPath + "/"));
+   }
+
+   private void verify(Node folder, Node file) throws RepositoryException, IOException, InterruptedException
+   {
+      if (file.hasProperty(LAST_VERIFIED_PROPERTY)
+         && System.currentTimeMillis() - file.getProperty(LAST_VERIFIED_PROPERTY).getDate().getTimeInMillis()
+            < reverifyInterval)
+      {
+         skipped.incrementAndGet();
+         return;
+      }
+
+      String shaName = file.getName() + ".sha1";
+      String expectedSha1 = folder.hasNode(shaName) ? ArtifactContent.readChecksum(folder.getNode(shaName)) : null;
+      String expectedHash =
+         file.isNodeType(ArtifactContent.BLOB_REFERENCE) && file.hasProperty(ArtifactContent.BLOB_HASH) ? file
+            .getProperty(ArtifactContent.BLOB_HASH).getString() : null;
+      if (expectedSha1 == null && expectedHash == null)
+      {
+         unverifiable.incrementAndGet();
+         return;
+      }
+
+      List<String> algorithms = new ArrayList<String>();
+      if (expectedSha1 != null)
+         algorithms.add(SHA1);
+      if (expectedHash != null)
+         algorithms.add(BlobStore.HASH_ALGORITHM);
+      ChecksumInputStream in;
+      try
+      {
+         in =
+            new ChecksumInputStream(ArtifactContent.getStream(file), algorithms.toArray(new String[algorithms.size()]));
+      }
+      catch (NoSuchAlgorithmException e)
+      {
+         // both are required by the platform
+         throw new IllegalStateException(e);
+      }
+      try
+      {
+         byte[] buf = new byte[BUFFER_SIZE];
+         int read;
+         while ((read = in.read(buf)) != -1)
+         {
+            throttle.acquire(read);
+            checkCancelled();
+         }
+      }
+      finally
+      {
+         IOUtils.closeQuietly(in);
+      }
+      processed(1, in.getLength());
+
+      boolean valid = true;
+      String sha1 = in.getChecksum(SHA1);
+      if (expectedSha1 != null && !expectedSha1.equalsIgnoreCase(sha1))
+         valid = mismatch(file.getPath(), SHA1, expectedSha1, sha1);
+      String hash = in.getChecksum(BlobStore.HASH_ALGORITHM);
+      if (expectedHash != null && !expectedHash.equalsIgnoreCase(hash))
+         valid = mismatch(file.getPath(), BlobStore.HASH_ALGORITHM, expectedHash, hash);
+      if (!valid)
+         return;
+
+      if (!file.isNodeType(VERIFIED))
+         file.addMixin(VERIFIED);
+      file.setProperty(LAST_VERIFIED_PROPERTY, Calendar.getInstance());
+      verified.incrementAndGet();
+      if (++unsaved >= batchSize)
+         saveMarks();
+   }
+
+   private void saveMarks()
+   {
+      if (unsaved == 0)
+         return;
+      try
+      {
+         session.save();
+      }
+      catch (RepositoryException e)
+      {
+         LOG.warn("Cannot mark verified files, they are verified again next time", e);
+         try
+         {
+            session.refresh(false);
+         }
+         catch (RepositoryException re)
+         {
+            LOG.warn("Cannot discard marks of verified files", re);
+         }
+      }
+      unsaved = 0;
+   }
+
+   /**
+    * Reports the mismatch.
+    *
+    * @return always false
+    */
+   private boolean mismatch(String path, String algorithm, String expected, String actual)
+   {
+      mismatches.incrementAndGet();
+      String message = algorithm + " mismatch, expected " + expected + ", actual " + actual;
+      LOG.error("Corrupted content of " + path + ": " + message);
+      failed(path, new IOException(message));
+      try
+      {
+         SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ", Locale.ENGLISH);
+         report.write(format.format(new Date()) + "\t" + path + "\t" + algorithm + "\t" + expected + "\t" + actual
+            + "\n");
+         report.flush();
+      }
+      catch (IOException e)
+      {
+         LOG.error("Cannot write report " + reportFile.getAbsolutePath(), e);
+      }
+      return false;
+   }
+
+   private void error(String item, Exception e)
+   {
+      LOG.error("Cannot verify " + item, e);
+      failed(item, e);
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public Map<String, Object> getDetails()
+   {
+      Map<String, Object> details = super.getDetails();
+      details.put("verified", verified.get());
+      details.put("verifiedRecently", skipped.get());
+      details.put("unverifiable", unverifiable.get());
+      details.put("mismatches", mismatches.get());
+      return details;
+   }
+}
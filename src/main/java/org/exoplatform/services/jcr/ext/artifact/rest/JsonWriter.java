@@ -0,0 +1,168 @@
+/**
+ * Copyright (C) 2003-2007 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.services.jcr.ext.artifact.rest;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes JSON straight to the output, without building a tree of values. Separators are put by the
+ * writer, so the caller only opens and closes objects and arrays and writes names and values.
+ *
+ * @version $Id: JsonWriter.java $
+ */
+class JsonWriter
+{
+   static final String MEDIA_TYPE = "application/json";
+
+   private static final String HEX = "0123456789abcdef";
+
+   private final Writer out;
+
+   /**
+    * True if the next value or name follows another one in the same object or array.
+    */
+   private boolean separate;
+
+   JsonWriter(Writer out)
+   {
+      this.out = out;
+   }
+
+   JsonWriter beginObject() throws IOException
+   {
+      separator();
+      out.write('{');
+      separate = false;
+      return this;
+   }
+
+   JsonWriter endObject() throws IOException
+   {
+      out.write('}');
+      separate = true;
+      return this;
+   }
+
+   JsonWriter beginArray() throws IOException
+   {
+      separator();
+      out.write('[');
+      separate = false;
+      return this;
+   }
+
+   JsonWriter endArray() throws IOException
+   {
+      out.write(']');
+      separate = true;
+      return this;
+   }
+
+   JsonWriter name(String name) throws IOException
+   {
+      separator();
+      string(name);
+      out.write(':');
+      separate = false;
+      return this;
+   }
+
+   JsonWriter value(String value) throws IOException
+   {
+      separator();
+      if (value == null)
+         out.write("null");
+      else
+         string(value);
+      separate = true;
+      return this;
+   }
+
+   JsonWriter value(long value) throws IOException
+   {
+      separator();
+      out.write(Long.toString(value));
+      separate = true;
+      return this;
+   }
+
+   JsonWriter value(boolean value) throws IOException
+   {
+      separator();
+      out.write(value ? "true" : "false");
+      separate = true;
+      return this;
+   }
+
+   void flush() throws IOException
+   {
+      out.flush();
+   }
+
+   private void separator() throws IOException
+   {
+      if (separate)
+         out.write(',');
+   }
+
+   private void string(String value) throws IOException
+   {
+      out.write('"');
+      int start = 0;
+      for (int i = 0; i < value.length(); i++)
+      {
+         char c = value.charAt(i);
+         String escaped = null;
+         switch (c)
+         {
+            case '"' :
+               escaped = "\\\"";
+               break;
+            case '\\' :
+               escaped = "\\\\";
+               break;
+            case '\n' :
+               escaped = "\\n";
+               break;
+            case '\r' :
+               escaped = "\\r";
+               break;
+            case '\t' :
+               escaped = "\\t";
+               break;
+            default :
+               // control characters and line separators, which break javascript
+               if (c < 0x20 || c == '\u2028' || c == '\u2029')
+               {
+                  escaped =
+                     "\\u" + HEX.charAt(c >> 12) + HEX.charAt((c >> 8) & 0xf) + HEX.charAt((c >> 4) & 0xf)
+                        + HEX.charAt(c & 0xf);
+               }
+               break;
+         }
+         if (escaped != null)
+         {
+            out.write(value, start, i - start);
+            out.write(escaped);
+            start = i + 1;
+         }
+      }
+      out.write(value, start, value.length() - start);
+      out.write('"');
+   }
+}
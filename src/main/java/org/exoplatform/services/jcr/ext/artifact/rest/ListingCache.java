@@ -0,0 +1,151 @@
+/**
+ * Copyright (C) 2003-2007 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.services.jcr.ext.artifact.rest;
+
+import org.exoplatform.services.jcr.ext.artifact.StorageStatistics;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+
+/**
+ * Sorted children of the recently browsed folders, mapped by folder path and by user, since
+ * listings depend on the permissions of the user. The cache is registered as observation listener
+ * of the maven root and drops the listings of the folders whose children are changed.
+ *
+ * @version $Id: ListingCache.java $
+ */
+class ListingCache implements EventListener
+{
+   private static final Log LOG = ExoLogger.getLogger(ListingCache.class);
+
+   /**
+    * Events which change a listing: children added or removed, content of a file updated.
+    */
+   static final int EVENT_TYPES = Event.NODE_ADDED | Event.NODE_REMOVED | Event.PROPERTY_ADDED | Event.PROPERTY_CHANGED;
+
+   /**
+    * Listed folder is at most three levels above the changed item: folder/file/jcr:content/jcr:data.
+    */
+   private static final int AFFECTED_LEVELS = 3;
+
+   private final Map<String, Map<String, List<ListingEntry>>> listings;
+
+   /**
+    * Incremented by every invalidation, listings read meanwhile are not cached.
+    */
+   private long generation;
+
+   /**
+    * @param maxFolders
+    *          max number of cached folders, least recently used ones are evicted
+    */
+   ListingCache(final int maxFolders)
+   {
+      this.listings = new LinkedHashMap<String, Map<String, List<ListingEntry>>>(16, 0.75f, true)
+      {
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<String, Map<String, List<ListingEntry>>> eldest)
+         {
+            return size() > maxFolders;
+         }
+      };
+   }
+
+   /**
+    * @return cached listing or null
+    */
+   synchronized List<ListingEntry> get(String folderPath, String userId)
+   {
+      Map<String, List<ListingEntry>> byUser = listings.get(folderPath);
+      return byUser == null ? null : byUser.get(userId);
+   }
+
+   /**
+    * @return value to pass to {@link #put(String, String, List, long)} after the listing is read
+    */
+   synchronized long getGeneration()
+   {
+      return generation;
+   }
+
+   /**
+    * Caches the listing unless some folder was changed since the listing was read.
+    */
+   synchronized void put(String folderPath, String userId, List<ListingEntry> entries, long readGeneration)
+   {
+      if (readGeneration != generation)
+      {
+         return;
+      }
+      Map<String, List<ListingEntry>> byUser = listings.get(folderPath);
+      if (byUser == null)
+      {
+         byUser = new HashMap<String, List<ListingEntry>>();
+         listings.put(folderPath, byUser);
+      }
+      byUser.put(userId, entries);
+   }
+
+   synchronized void invalidate(String path)
+   {
+      generation++;
+      for (int i = 0; i < AFFECTED_LEVELS && path.length() > 0; i++)
+      {
+         path = path.substring(0, Math.max(0, path.lastIndexOf('/')));
+         listings.remove(path.length() == 0 ? "/" : path);
+      }
+   }
+
+   synchronized void clear()
+   {
+      generation++;
+      listings.clear();
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   public void onEvent(EventIterator events)
+   {
+      while (events.hasNext())
+      {
+         Event event = events.nextEvent();
+         try
+         {
+            String path = event.getPath();
+            // verification marks and storage totals are not listed
+            if (!path.endsWith("/" + IntegrityScrubJob.LAST_VERIFIED_PROPERTY)
+               && !StorageStatistics.isStatisticsProperty(path))
+               invalidate(path);
+         }
+         catch (RepositoryException e)
+         {
+            LOG.warn("Cannot get path of the changed item, listing cache is cleared", e);
+            clear();
+         }
+      }
+   }
+}
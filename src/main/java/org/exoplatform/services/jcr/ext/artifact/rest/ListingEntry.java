@@ -0,0 +1,131 @@
+/**
+ * Copyright (C) 2003-2007 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.services.jcr.ext.artifact.rest;
+
+import java.util.Comparator;
+
+/**
+ * Child of browsed folder. Properties are read from the node while the session is alive, so the
+ * listing may be rendered after the session is closed.
+ *
+ * @version $Id: ListingEntry.java $
+ */
+class ListingEntry
+{
+
+   /**
+    * Folders first, then alphabetical order.
+    */
+   static final Comparator<ListingEntry> COMPARATOR = new Comparator<ListingEntry>()
+   {
+      public int compare(ListingEntry o1, ListingEntry o2)
+      {
+         if (o1.file != o2.file)
+         {
+            return o1.file ? 1 : -1;
+         }
+         return o1.name.compareTo(o2.name);
+      }
+   };
+
+   private final String name;
+
+   private final boolean file;
+
+   private final String mediaType;
+
+   private final long contentLength;
+
+   private final long lastModified;
+
+   private final String checksum;
+
+   private final long downloads;
+
+   /**
+    * Folder entry.
+    */
+   ListingEntry(String name)
+   {
+      this(name, false, null, -1, 0, null, 0);
+   }
+
+   /**
+    * File entry.
+    */
+   ListingEntry(String name, String mediaType, long contentLength, long lastModified)
+   {
+      this(name, true, mediaType, contentLength, lastModified, null, 0);
+   }
+
+   /**
+    * File entry with its SHA-1 checksum, null if unknown, and the number of downloads stored in the
+    * repository.
+    */
+   ListingEntry(String name, String mediaType, long contentLength, long lastModified, String checksum,
+      long downloads)
+   {
+      this(name, true, mediaType, contentLength, lastModified, checksum, downloads);
+   }
+
+   private ListingEntry(String name, boolean file, String mediaType, long contentLength, long lastModified,
+      String checksum, long downloads)
+   {
+      this.name = name;
+      this.file = file;
+      this.mediaType = mediaType;
+      this.contentLength = contentLength;
+      this.lastModified = lastModified;
+      this.checksum = checksum;
+      this.downloads = downloads;
+   }
+
+   String getName()
+   {
+      return name;
+   }
+
+   boolean isFile()
+   {
+      return file;
+   }
+
+   String getMediaType()
+   {
+      return mediaType;
+   }
+
+   long getContentLength()
+   {
+      return contentLength;
+   }
+
+   long getLastModified()
+   {
+      return lastModified;
+   }
+
+   String getChecksum()
+   {
+      return checksum;
+   }
+
+   long getDownloads()
+   {
+      return downloads;
+   }
+}
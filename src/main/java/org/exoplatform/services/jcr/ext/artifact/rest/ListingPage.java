@@ -0,0 +1,150 @@
+/**
+ * Copyright (C) 2003-2007 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.services.jcr.ext.artifact.rest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * One page of a folder listing in {@link ListingEntry#COMPARATOR} order. Pages are addressed by
+ * the cursor of the last entry of the previous page: its name, followed by <code>/</code> if it is
+ * a folder. Children of a node come in the order they were added, so the page is selected in one
+ * pass over the children by {@link Selector}, which keeps no more entries than the page holds.
+ *
+ * @version $Id: ListingPage.java $
+ */
+class ListingPage
+{
+   private final List<ListingEntry> entries;
+
+   private final String next;
+
+   ListingPage(List<ListingEntry> entries, String next)
+   {
+      this.entries = entries;
+      this.next = next;
+   }
+
+   /**
+    * @return entries of the page in order
+    */
+   List<ListingEntry> getEntries()
+   {
+      return entries;
+   }
+
+   /**
+    * @return cursor of the next page or null if this page is the last one
+    */
+   String getNext()
+   {
+      return next;
+   }
+
+   static String cursor(ListingEntry entry)
+   {
+      return entry.isFile() ? entry.getName() : entry.getName() + "/";
+   }
+
+   /**
+    * The first page of the complete listing.
+    */
+   static ListingPage of(List<ListingEntry> listing, String after, int limit)
+   {
+      Selector selector = new Selector(after, limit);
+      for (ListingEntry entry : listing)
+         selector.offer(entry);
+      List<ListingEntry> selected = selector.getSelected();
+      return new ListingPage(selected, selector.hasMore() ? cursor(selected.get(selected.size() - 1)) : null);
+   }
+
+   /**
+    * Selects entries following the cursor, the greatest selected one is dropped when a smaller one
+    * comes and the page is full.
+    */
+   static final class Selector
+   {
+      private final ListingEntry after;
+
+      private final int limit;
+
+      private final PriorityQueue<ListingEntry> selected;
+
+      /**
+       * Number of offered entries following the cursor.
+       */
+      private int following;
+
+      /**
+       * @param after
+       *          cursor of the last entry of the previous page, null for the first page
+       * @param limit
+       *          max number of entries of the page, at least one
+       */
+      Selector(String after, int limit)
+      {
+         if (after == null || after.length() == 0)
+            this.after = null;
+         else if (after.endsWith("/"))
+            this.after = new ListingEntry(after.substring(0, after.length() - 1));
+         else
+            this.after = new ListingEntry(after, null, -1, 0);
+         this.limit = limit;
+         this.selected = new PriorityQueue<ListingEntry>(limit + 1, Collections.reverseOrder(ListingEntry.COMPARATOR));
+      }
+
+      /**
+       * @return true if the entry is selected for now
+       */
+      boolean offer(ListingEntry entry)
+      {
+         if (after != null && ListingEntry.COMPARATOR.compare(entry, after) <= 0)
+            return false;
+         following++;
+         if (selected.size() < limit)
+         {
+            selected.add(entry);
+            return true;
+         }
+         if (ListingEntry.COMPARATOR.compare(entry, selected.peek()) >= 0)
+            return false;
+         selected.poll();
+         selected.add(entry);
+         return true;
+      }
+
+      /**
+       * @return true if more entries than the limit follow the cursor
+       */
+      boolean hasMore()
+      {
+         return following > limit;
+      }
+
+      /**
+       * @return selected entries in order
+       */
+      List<ListingEntry> getSelected()
+      {
+         List<ListingEntry> entries = new ArrayList<ListingEntry>(selected);
+         Collections.sort(entries, ListingEntry.COMPARATOR);
+         return entries;
+      }
+   }
+}
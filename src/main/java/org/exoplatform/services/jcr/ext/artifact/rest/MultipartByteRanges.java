@@ -0,0 +1,107 @@
+/**
+ * Copyright (C) 2003-2007 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.services.jcr.ext.artifact.rest;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+
+/**
+ * Body of <code>multipart/byteranges</code> response. Ranges must be sorted and not overlapping,
+ * then all parts are written in one pass over the content stream.
+ *
+ * @version $Id: MultipartByteRanges.java $
+ */
+public class MultipartByteRanges implements StreamingOutput
+{
+
+   private static final String CRLF = "\r\n";
+
+   private final InputStream content;
+
+   private final List<ByteRange> ranges;
+
+   private final String contentType;
+
+   private final long totalLength;
+
+   private final String boundary;
+
+   /**
+    * @param content
+    *          stream of full content, it is closed after writing
+    * @param ranges
+    *          sorted, not overlapping ranges
+    * @param contentType
+    *          media type of the content, may be null
+    * @param totalLength
+    *          full length of content
+    */
+   public MultipartByteRanges(InputStream content, List<ByteRange> ranges, String contentType, long totalLength)
+   {
+      this.content = content;
+      this.ranges = ranges;
+      this.contentType = contentType;
+      this.totalLength = totalLength;
+      this.boundary = Long.toHexString(System.nanoTime()) + Long.toHexString(Double.doubleToLongBits(Math.random()));
+   }
+
+   /**
+    * @return value of <code>Content-Type</code> header of the response
+    */
+   public String getMediaType()
+   {
+      return "multipart/byteranges; boundary=" + boundary;
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   public void write(OutputStream out) throws IOException, WebApplicationException
+   {
+      try
+      {
+         long position = 0;
+         for (ByteRange range : ranges)
+         {
+            StringBuilder head = new StringBuilder();
+            head.append(CRLF).append("--").append(boundary).append(CRLF);
+            if (contentType != null)
+            {
+               head.append("Content-Type: ").append(contentType).append(CRLF);
+            }
+            head.append("Content-Range: ").append(range.getContentRange(totalLength)).append(CRLF).append(CRLF);
+            out.write(head.toString().getBytes("ISO-8859-1"));
+
+            ByteRange.skipFully(content, range.getStart() - position);
+            IOUtils.copyLarge(new ByteRange.BoundedInputStream(content, range.getLength()), out);
+            position = range.getEnd() + 1;
+         }
+         out.write((CRLF + "--" + boundary + "--" + CRLF).getBytes("ISO-8859-1"));
+      }
+      finally
+      {
+         IOUtils.closeQuietly(content);
+      }
+   }
+}
@@ -22,39 +22,69 @@ import org.exoplatform.container.xml.PropertiesParam;
 import org.exoplatform.services.jcr.RepositoryService;
 import org.exoplatform.services.jcr.core.ExtendedNode;
 import org.exoplatform.services.jcr.ext.app.ThreadLocalSessionProviderService;
+import org.exoplatform.services.jcr.ext.artifact.ArtifactContent;
+import org.exoplatform.services.jcr.ext.artifact.ArtifactManagingService;
+import org.exoplatform.services.jcr.ext.artifact.CRCGenerator;
+import org.exoplatform.services.jcr.ext.artifact.StorageStatistics;
 import org.exoplatform.services.jcr.ext.common.SessionProvider;
 import org.exoplatform.services.jcr.ext.resource.NodeRepresentation;
 import org.exoplatform.services.jcr.ext.resource.NodeRepresentationService;
 import org.exoplatform.services.jcr.impl.Constants;
-import org.exoplatform.services.jcr.impl.util.EntityCollection;
 import org.exoplatform.services.log.ExoLogger;
 import org.exoplatform.services.log.Log;
 import org.exoplatform.services.rest.ExtHttpHeaders;
 import org.exoplatform.services.rest.resource.ResourceContainer;
+import org.exoplatform.services.security.ConversationState;
 import org.exoplatform.services.security.IdentityConstants;
+import org.picocontainer.Startable;
 
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.net.URLEncoder;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.TimeZone;
 
 import javax.jcr.AccessDeniedException;
 import javax.jcr.Node;
+import javax.jcr.NodeIterator;
 import javax.jcr.PathNotFoundException;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.jcr.observation.ObservationManager;
 import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 import javax.ws.rs.core.UriInfo;
+import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.xml.stream.XMLOutputFactory;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamWriter;
@@ -64,7 +94,7 @@ import javax.xml.stream.XMLStreamWriter;
  * @version $Id: RESTArtifactLoaderService.java 11:37:47 andrew00x $
  */
 @Path("/maven2/")
-public class RESTArtifactLoaderService implements ResourceContainer
+public class RESTArtifactLoaderService implements ResourceContainer, Startable
 {
 
    /**
@@ -77,6 +107,84 @@ public class RESTArtifactLoaderService implements ResourceContainer
     */
    private static final String XHTML_NS = "http://www.w3.org/1999/xhtml";
 
+   private static final String RANGE = "Range";
+
+   private static final String IF_RANGE = "If-Range";
+
+   private static final String CONTENT_RANGE = "Content-Range";
+
+   private static final String ACCEPT_RANGES = "Accept-Ranges";
+
+   private static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
+   private static final int PARTIAL_CONTENT = 206;
+
+   private static final int REQUESTED_RANGE_NOT_SATISFIABLE = 416;
+
+   private static final int REQUEST_ENTITY_TOO_LARGE = 413;
+
+   /**
+    * Default interval in seconds between writes of download counters into the repository.
+    */
+   private static final int DEFAULT_COUNTER_FLUSH_INTERVAL = 10;
+
+   /**
+    * Default max number of folders in the listing cache.
+    */
+   private static final int DEFAULT_LISTING_CACHE_SIZE = 1000;
+
+   /**
+    * Default max total size in bytes of the content of hot small files kept in memory.
+    */
+   private static final long DEFAULT_FILE_CACHE_SIZE = 32 * 1024 * 1024;
+
+   /**
+    * Default max size in bytes of a file kept in memory.
+    */
+   private static final int DEFAULT_FILE_CACHE_MAX_FILE_SIZE = 64 * 1024;
+
+   /**
+    * Default max number of files resolved with one batch request.
+    */
+   private static final int DEFAULT_BATCH_MAX_SIZE = 1000;
+
+   /**
+    * Default number of children shown on one page of a folder listing.
+    */
+   private static final int DEFAULT_LISTING_PAGE_SIZE = 500;
+
+   /**
+    * Max number of children of one page of a folder listing.
+    */
+   private static final int MAX_LISTING_PAGE_SIZE = 5000;
+
+   /**
+    * Default max number of idle sessions kept for downloads.
+    */
+   private static final int DEFAULT_SESSION_POOL_SIZE = 32;
+
+   /**
+    * Default time in seconds after which an unused pooled session is closed.
+    */
+   private static final int DEFAULT_SESSION_POOL_IDLE_TIMEOUT = 60;
+
+   private static final int DEFAULT_UPSTREAM_THREADS = 8;
+
+   /**
+    * Default connect and read timeout in seconds of upstream requests.
+    */
+   private static final int DEFAULT_UPSTREAM_TIMEOUT = 30;
+
+   /**
+    * Default time in seconds to answer 404 for a file missing upstream without asking again.
+    */
+   private static final int DEFAULT_UPSTREAM_MISS_TTL = 300;
+
+   /**
+    * Default time in seconds to merge the same upstream metadata without asking again.
+    */
+   private static final int DEFAULT_UPSTREAM_METADATA_TTL = 300;
+
    /**
     * Uses for represent JCR node in comfortable form.
     */
@@ -112,6 +220,51 @@ public class RESTArtifactLoaderService implements ResourceContainer
     */
    private RepositoryService repositoryService;
 
+   /**
+    * Counts downloads in memory and writes them periodically.
+    */
+   private DownloadCounter downloadCounter;
+
+   /**
+    * Listings of recently browsed folders, null if disabled.
+    */
+   private ListingCache listingCache;
+
+   /**
+    * Content of the most requested small files, null if disabled.
+    */
+   private HotFileCache fileCache;
+
+   /**
+    * System session of the observation listeners of the caches.
+    */
+   private Session observationSession;
+
+   /**
+    * Number of children shown on one page of a folder listing if the request doesn't set it.
+    */
+   private int listingPageSize;
+
+   /**
+    * Read-only sessions reused by downloads and browsing, null if disabled.
+    */
+   private SessionPool sessionPool;
+
+   /**
+    * Max number of files resolved with one batch request.
+    */
+   private int batchMaxSize;
+
+   /**
+    * Stores files deployed with PUT requests.
+    */
+   private ArtifactDeployer deployer;
+
+   /**
+    * Fetches missing files from upstream repository, null if not configured.
+    */
+   private UpstreamProxy upstreamProxy;
+
    /**
     * @param initParams
     *          the initialized parameters. Set repository name, workspace name, root node for Maven
@@ -122,12 +275,15 @@ public class RESTArtifactLoaderService implements ResourceContainer
     *          the RepositoryService.
     * @param nodeRepresentationService
     *          the NodeRepresentationService.
+    * @param artifactService
+    *          the ArtifactManagingService, its blob store keeps the content of deployed files, so
+    *          the service must be registered in the container along with this one.
     * @throws Exception
     *           if any errors occur or not valid configuration.
     */
    public RESTArtifactLoaderService(InitParams initParams, ThreadLocalSessionProviderService sessionProviderService,
       RepositoryService repositoryService, NodeRepresentationService nodeRepresentationService,
-      ExoContainerContext context) throws Exception
+      ExoContainerContext context, ArtifactManagingService artifactService) throws Exception
    {
 
       PropertiesParam props = initParams.getPropertiesParam("artifact.workspace");
@@ -148,11 +304,130 @@ public class RESTArtifactLoaderService implements ResourceContainer
       if (!mavenRoot.endsWith("/"))
          mavenRoot += "/";
       this.realmName = context.getRealmName();
+
+      String flushInterval = props.getProperty("counterFlushInterval");
+      int interval = flushInterval == null ? DEFAULT_COUNTER_FLUSH_INTERVAL : Integer.parseInt(flushInterval);
+      this.downloadCounter = new DownloadCounter(repositoryService, repository, workspace, interval * 1000L);
+
+      String cacheSize = props.getProperty("listingCacheSize");
+      int maxFolders = cacheSize == null ? DEFAULT_LISTING_CACHE_SIZE : Integer.parseInt(cacheSize);
+      if (maxFolders > 0)
+         this.listingCache = new ListingCache(maxFolders);
+
+      String pageSize = props.getProperty("listingPageSize");
+      this.listingPageSize =
+         Math.min(pageSize == null ? DEFAULT_LISTING_PAGE_SIZE : Integer.parseInt(pageSize), MAX_LISTING_PAGE_SIZE);
+
+      String fileCacheSize = props.getProperty("fileCacheSize");
+      long maxCachedBytes = fileCacheSize == null ? DEFAULT_FILE_CACHE_SIZE : Long.parseLong(fileCacheSize);
+      if (maxCachedBytes > 0)
+      {
+         String maxFileSize = props.getProperty("fileCacheMaxFileSize");
+         this.fileCache =
+            new HotFileCache(maxCachedBytes, maxFileSize == null ? DEFAULT_FILE_CACHE_MAX_FILE_SIZE : Integer
+               .parseInt(maxFileSize), Boolean.parseBoolean(props.getProperty("fileCacheOffHeap")));
+      }
+
+      String poolSize = props.getProperty("sessionPoolSize");
+      int maxIdleSessions = poolSize == null ? DEFAULT_SESSION_POOL_SIZE : Integer.parseInt(poolSize);
+      if (maxIdleSessions > 0)
+      {
+         String idleTimeout = props.getProperty("sessionPoolIdleTimeout");
+         this.sessionPool =
+            new SessionPool(repositoryService, repository, workspace, maxIdleSessions, (idleTimeout == null
+               ? DEFAULT_SESSION_POOL_IDLE_TIMEOUT : Integer.parseInt(idleTimeout)) * 1000L);
+      }
+
+      String batchSize = props.getProperty("batchMaxSize");
+      this.batchMaxSize = batchSize == null ? DEFAULT_BATCH_MAX_SIZE : Integer.parseInt(batchSize);
+
+      this.deployer = new ArtifactDeployer(mavenRoot.equals("/") ? "/" : "/" + mavenRoot, artifactService);
+
+      String upstreamUrl = props.getProperty("upstreamUrl");
+      if (upstreamUrl != null)
+      {
+         String threads = props.getProperty("upstreamThreads");
+         String timeout = props.getProperty("upstreamTimeout");
+         String missTtl = props.getProperty("upstreamMissTtl");
+         String metadataTtl = props.getProperty("upstreamMetadataTtl");
+         this.upstreamProxy =
+            new UpstreamProxy(upstreamUrl, deployer, repositoryService, repository, workspace, threads == null
+               ? DEFAULT_UPSTREAM_THREADS : Integer.parseInt(threads), (timeout == null ? DEFAULT_UPSTREAM_TIMEOUT
+               : Integer.parseInt(timeout)) * 1000, (missTtl == null ? DEFAULT_UPSTREAM_MISS_TTL : Integer
+               .parseInt(missTtl)) * 1000L, (metadataTtl == null ? DEFAULT_UPSTREAM_METADATA_TTL : Integer
+               .parseInt(metadataTtl)) * 1000L);
+      }
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   public void start()
+   {
+      downloadCounter.start();
+      if (sessionPool != null)
+         sessionPool.start();
+
+      if (listingCache != null || fileCache != null)
+      {
+         try
+         {
+            String rootPath = mavenRoot.equals("/") ? "/" : "/" + mavenRoot.substring(0, mavenRoot.length() - 1);
+            observationSession =
+               SessionProvider.createSystemProvider().getSession(workspace, repositoryService.getRepository(repository));
+            ObservationManager observationManager = observationSession.getWorkspace().getObservationManager();
+            if (listingCache != null)
+               observationManager.addEventListener(listingCache, ListingCache.EVENT_TYPES, rootPath, true, null, null,
+                  false);
+            if (fileCache != null)
+               observationManager.addEventListener(fileCache, HotFileCache.EVENT_TYPES, rootPath, true, null, null,
+                  false);
+         }
+         catch (RepositoryException e)
+         {
+            LOG.error("Cannot register listener of repository changes, listing and file caches are disabled", e);
+            listingCache = null;
+            fileCache = null;
+         }
+      }
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   public void stop()
+   {
+      downloadCounter.stop();
+      if (upstreamProxy != null)
+         upstreamProxy.stop();
+      if (sessionPool != null)
+         sessionPool.stop();
+
+      if (observationSession != null)
+      {
+         try
+         {
+            ObservationManager observationManager = observationSession.getWorkspace().getObservationManager();
+            if (listingCache != null)
+               observationManager.removeEventListener(listingCache);
+            if (fileCache != null)
+               observationManager.removeEventListener(fileCache);
+         }
+         catch (RepositoryException e)
+         {
+            LOG.warn("Cannot unregister listener of repository changes", e);
+         }
+         observationSession.logout();
+         observationSession = null;
+      }
    }
 
    /**
     * Return Response with Maven artifact if it is file or HTML page for browsing if requested URL is
-    * folder.
+    * folder. Folders are listed by pages of <code>limit</code> children following the child
+    * <code>after</code>, see {@link ListingPage}. Listings and artifact information are sent as
+    * JSON instead of XHTML with <code>format=json</code> or if JSON is the preferred media type of
+    * the client.
     * 
     * @param mavenPath
     *          the relative part of requested URL.
@@ -163,24 +438,68 @@ public class RESTArtifactLoaderService implements ResourceContainer
    @GET
    @Path("/{path:.*}/")
    public Response getResource(@PathParam("path") String mavenPath, final @Context UriInfo uriInfo,
-      final @QueryParam("view") String view, final @QueryParam("gadget") String gadget)
+      final @QueryParam("view") String view, final @QueryParam("gadget") String gadget,
+      final @QueryParam("limit") String limit, final @QueryParam("after") String after,
+      final @QueryParam("format") String format, final @Context Request request, final @Context HttpHeaders headers)
+   {
+      return getResource(mavenPath, uriInfo, view, gadget, limit, after, format, request, headers, true);
+   }
+
+   /**
+    * @param proxied
+    *          true if a file missing in the repository is fetched from upstream.
+    */
+   private Response getResource(String mavenPath, UriInfo uriInfo, String view, String gadget, String limit,
+      String after, String format, Request request, HttpHeaders headers, boolean proxied)
    {
 
+      String relPath = mavenPath;
       String resourcePath = mavenRoot + mavenPath; // JCR resource
       String shaResourcePath = mavenPath.endsWith(".sha1") ? mavenRoot + mavenPath : mavenRoot + mavenPath + ".sha1";
 
       mavenPath = uriInfo.getBaseUriBuilder().path(getClass()).path(mavenPath).build().toString();
 
+      // local metadata lists only the versions stored here, versions known upstream are merged into it
+      String metadataAlgorithm = null;
+      byte[] upstreamMetadata = null;
+      if (upstreamProxy != null && (view == null || !view.equalsIgnoreCase("true"))
+         && UpstreamProxy.accepts(relPath) && UpstreamProxy.isMetadata(relPath))
+      {
+         metadataAlgorithm = ArtifactDeployer.getChecksumAlgorithm(relPath);
+         upstreamMetadata =
+            upstreamProxy.getMetadata(metadataAlgorithm == null ? relPath : FilenameUtils.removeExtension(relPath));
+      }
+
       Session ses = null;
 
+      HotFileCache cache = fileCache;
+      long cacheGeneration = 0;
+      if (cache != null && (view == null || !view.equalsIgnoreCase("true")) && upstreamMetadata == null)
+      {
+         HotFileCache.CachedFile cached =
+            cache.get(mavenRoot.equals("/") ? "/" + relPath : "/" + resourcePath, getCurrentUserId());
+         if (cached != null)
+         {
+            try
+            {
+               return downloadCached(cached, request, headers);
+            }
+            catch (Exception e)
+            {
+               LOG.error("Failed get maven artifact", e);
+               throw new WebApplicationException(e);
+            }
+         }
+         cacheGeneration = cache.getGeneration();
+      }
+
       try
       {
          // JCR resource
-         SessionProvider sp = sessionProviderService.getSessionProvider(null);
-         if (sp == null)
-            throw new RepositoryException("Access to JCR Repository denied. SessionProvider is null.");
+         ses = openReadSession();
 
-         ses = sp.getSession(workspace, repositoryService.getRepository(repository));
+         if (upstreamMetadata != null)
+            return getMergedMetadata(ses, relPath, metadataAlgorithm, upstreamMetadata);
 
          ExtendedNode node = (ExtendedNode)ses.getRootNode().getNode(resourcePath);
 
@@ -200,16 +519,43 @@ public class RESTArtifactLoaderService implements ResourceContainer
                      LOG.trace("An exception occurred: " + e.getMessage());
                   }
                }
+               if (isJsonRequested(format, headers))
+                  return getArtifactInfoJson(node, relPath, mavenPath, shaNode);
                return getArtifactInfo(node, mavenPath, gadget, shaNode);
             }
             else
             {
-               return downloadArtifact(node);
+               String checksum = null;
+               if (!mavenPath.endsWith(".sha1"))
+               {
+                  checksum = readChecksum(ses, shaResourcePath);
+               }
+               return downloadArtifact(node, checksum, request, headers, cacheGeneration);
             }
          }
          else
          {
-            return browseRepository(node, mavenPath, gadget);
+            int pageSize = listingPageSize;
+            if (limit != null)
+            {
+               try
+               {
+                  pageSize = Math.min(Integer.parseInt(limit), MAX_LISTING_PAGE_SIZE);
+               }
+               catch (NumberFormatException e)
+               {
+                  pageSize = 0;
+               }
+               if (pageSize < 1)
+                  return Response.status(Response.Status.BAD_REQUEST).entity("Invalid limit " + limit).type(
+                     "text/plain").build();
+            }
+            if (view != null && view.equalsIgnoreCase("stats"))
+               return getStatistics(node, relPath, mavenPath, gadget, pageSize, isJsonRequested(format, headers));
+            ListingPage page = listPage(node, after, pageSize);
+            if (isJsonRequested(format, headers))
+               return listingJson(node.getPath(), relPath, page);
+            return browseRepository(mavenPath, gadget, page, limit, after != null, StorageStatistics.read(node));
          }
 
       }
@@ -217,7 +563,12 @@ public class RESTArtifactLoaderService implements ResourceContainer
       {
          if (LOG.isDebugEnabled())
             LOG.debug(e.getLocalizedMessage(), e);
-         return Response.status(Response.Status.NOT_FOUND).build();
+         if (!proxied || upstreamProxy == null || (view != null && view.equalsIgnoreCase("true"))
+            || !UpstreamProxy.accepts(relPath) || UpstreamProxy.isMetadata(relPath))
+            return Response.status(Response.Status.NOT_FOUND).build();
+         Response fetched = upstreamProxy.get(relPath);
+         if (fetched != null)
+            return fetched;
       }
       catch (AccessDeniedException e)
       {
@@ -237,9 +588,56 @@ public class RESTArtifactLoaderService implements ResourceContainer
       finally
       {
          if (ses != null)
-            ses.logout();
+            closeReadSession(ses);
+      }
+
+      // the file was fetched and stored meanwhile
+      return getResource(relPath, uriInfo, view, gadget, limit, after, format, request, headers, false);
+   }
+
+   /**
+    * Serves the local metadata with the versions of the upstream one merged into it, or the upstream
+    * metadata if there is no local one. Checksums are computed from the merged content.
+    * 
+    * @param relPath
+    *          path of the metadata or its checksum relative to maven root.
+    * @param algorithm
+    *          checksum algorithm if the checksum is requested, null otherwise.
+    * @param upstream
+    *          content of the upstream metadata.
+    */
+   private Response getMergedMetadata(Session ses, String relPath, String algorithm, byte[] upstream)
+      throws RepositoryException, IOException
+   {
+      String metadataPath = mavenRoot + (algorithm == null ? relPath : FilenameUtils.removeExtension(relPath));
+      byte[] content = upstream;
+      Node root = ses.getRootNode();
+      if (root.hasNode(metadataPath))
+      {
+         InputStream in = ArtifactContent.getStream(root.getNode(metadataPath));
+         try
+         {
+            content = ArtifactDeployer.mergeMetadata(upstream, IOUtils.toByteArray(in));
+         }
+         finally
+         {
+            IOUtils.closeQuietly(in);
+         }
       }
 
+      if (algorithm != null)
+      {
+         try
+         {
+            content = CRCGenerator.getChecksum(new ByteArrayInputStream(content), algorithm).getBytes();
+         }
+         catch (NoSuchAlgorithmException e)
+         {
+            throw new IOException("No such algorithm " + algorithm, e);
+         }
+      }
+      return Response.ok(content, ArtifactDeployer.getMimeType(relPath)).header(HttpHeaders.CONTENT_LENGTH,
+         Integer.toString(content.length)).build();
    }
 
    /**
@@ -251,9 +649,159 @@ public class RESTArtifactLoaderService implements ResourceContainer
     */
    @GET
    public Response getRootNodeList(final @Context UriInfo uriInfo, final @QueryParam("view") String view,
-      final @QueryParam("gadget") String gadget)
+      final @QueryParam("gadget") String gadget, final @QueryParam("limit") String limit,
+      final @QueryParam("after") String after, final @QueryParam("format") String format,
+      final @Context Request request, final @Context HttpHeaders headers)
+   {
+      return getResource("", uriInfo, view, gadget, limit, after, format, request, headers);
+   }
+
+   /**
+    * Deploy file into the Maven repository. Content is streamed into the repository, checksum files
+    * are verified against the content and versions of maven-metadata.xml are merged with the stored
+    * ones.
+    * 
+    * @param mavenPath
+    *          the relative part of requested URL.
+    * @param body
+    *          content of the file.
+    * @return 201 if file is created, 204 if existing file is updated, 400 if uploaded checksum
+    *         doesn't match the content.
+    */
+   @PUT
+   @Path("/{path:.*}/")
+   public Response putResource(@PathParam("path") String mavenPath, InputStream body)
+   {
+      Session ses = null;
+      try
+      {
+         SessionProvider sp = sessionProviderService.getSessionProvider(null);
+         if (sp == null)
+            throw new RepositoryException("Access to JCR Repository denied. SessionProvider is null.");
+
+         ses = sp.getSession(workspace, repositoryService.getRepository(repository));
+
+         if (deployer.deploy(ses, mavenPath, body))
+            return Response.status(Response.Status.CREATED).build();
+         else
+            return Response.noContent().build();
+      }
+      catch (ArtifactDeployer.ChecksumMismatchException e)
+      {
+         return Response.status(Response.Status.BAD_REQUEST).entity(e.getMessage()).type("text/plain").build();
+      }
+      catch (IllegalArgumentException e)
+      {
+         return Response.status(Response.Status.BAD_REQUEST).entity(e.getMessage()).type("text/plain").build();
+      }
+      catch (AccessDeniedException e)
+      {
+         if (LOG.isDebugEnabled())
+            LOG.debug(e.getLocalizedMessage(), e);
+         if (ses == null || ses.getUserID().equals(IdentityConstants.ANONIM))
+            return Response.status(Response.Status.UNAUTHORIZED).header(ExtHttpHeaders.WWW_AUTHENTICATE,
+               "Basic realm=\"" + realmName + "\"").build();
+         else
+            return Response.status(Response.Status.FORBIDDEN).build();
+      }
+      catch (Exception e)
+      {
+         LOG.error("Failed deploy maven artifact", e);
+         throw new WebApplicationException(e);
+      }
+      finally
+      {
+         if (ses != null)
+            ses.logout();
+      }
+   }
+
+   /**
+    * Resolve many files at once. The body lists one request per line, a path relative to the maven
+    * root or coordinates <code>groupId:artifactId:version[:extension[:classifier]]</code>; blank
+    * lines and lines starting with <code>#</code> are skipped. All requests are resolved with one
+    * session and answered in the same order with a JSON array, see {@link BatchResolver}.
+    * 
+    * @param body
+    *          the list of requests in UTF-8.
+    * @return JSON array with existence, size, SHA-1 checksum and modification time of the files or
+    *         413 if more files than allowed are requested.
+    */
+   @POST
+   public Response resolveResources(InputStream body)
+   {
+      Session ses = null;
+      try
+      {
+         List<String> requests = new ArrayList<String>();
+         BufferedReader reader = new BufferedReader(new InputStreamReader(body, "UTF-8"));
+         for (String line = reader.readLine(); line != null; line = reader.readLine())
+         {
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#"))
+               continue;
+            if (requests.size() == batchMaxSize)
+            {
+               return Response.status(REQUEST_ENTITY_TOO_LARGE).entity(
+                  "At most " + batchMaxSize + " files can be resolved at once").type("text/plain").build();
+            }
+            requests.add(line);
+         }
+
+         ses = openReadSession();
+
+         BatchResolver resolver =
+            new BatchResolver(ses, mavenRoot.equals("/") ? "" : mavenRoot.substring(0, mavenRoot.length() - 1));
+         StringWriter out = new StringWriter();
+         JsonWriter writer = new JsonWriter(out);
+         writer.beginArray();
+         for (String request : requests)
+            resolver.resolve(request, writer);
+         writer.endArray();
+         return Response.ok(out.toString(), JsonWriter.MEDIA_TYPE).build();
+      }
+      catch (AccessDeniedException e)
+      {
+         if (LOG.isDebugEnabled())
+            LOG.debug(e.getLocalizedMessage(), e);
+         if (ses == null || ses.getUserID().equals(IdentityConstants.ANONIM))
+            return Response.status(Response.Status.UNAUTHORIZED).header(ExtHttpHeaders.WWW_AUTHENTICATE,
+               "Basic realm=\"" + realmName + "\"").build();
+         else
+            return Response.status(Response.Status.FORBIDDEN).build();
+      }
+      catch (Exception e)
+      {
+         LOG.error("Failed resolve maven artifacts", e);
+         throw new WebApplicationException(e);
+      }
+      finally
+      {
+         if (ses != null)
+            closeReadSession(ses);
+      }
+   }
+
+   /**
+    * @return session of the current user for reading, borrowed from the pool if it is enabled
+    */
+   private Session openReadSession() throws RepositoryException
+   {
+      if (sessionPool != null)
+         return sessionPool.borrow();
+
+      SessionProvider sp = sessionProviderService.getSessionProvider(null);
+      if (sp == null)
+         throw new RepositoryException("Access to JCR Repository denied. SessionProvider is null.");
+      return sp.getSession(workspace, repositoryService.getRepository(repository));
+   }
+
+   private void closeReadSession(Session ses)
    {
-      return getResource("", uriInfo, view, gadget);
+      if (sessionPool != null)
+         sessionPool.release(ses);
+      else
+         ses.logout();
    }
 
    /**
@@ -279,60 +827,56 @@ public class RESTArtifactLoaderService implements ResourceContainer
    }
 
    /**
-    * Create response for browsing Maven repository.
+    * Create response for browsing Maven repository. Children of the node are read before return,
+    * the page is rendered straight into the response.
     * 
-    * @param node
-    *          the root node for browsing.
     * @param mavenPath
     *          the Maven path, used for creating &lt;a&gt; element.
+    * @param listing
+    *          children of the folder shown on the page.
+    * @param limit
+    *          page size requested by the client, kept in the links to other pages.
+    * @param paged
+    *          true if the page is not the first one.
+    * @param totals
+    *          storage totals of the folder, null if they are not counted.
     * @return @see {@link Response}.
-    * @throws IOException
-    *           if i/o error occurs.
     */
-   private Response browseRepository(final Node node, final String mavenPath, final String gadget) throws IOException
+   private Response browseRepository(final String mavenPath, final String gadget, final ListingPage listing,
+      final String limit, final boolean paged, final StorageStatistics.Totals totals)
    {
+      final List<ListingEntry> entries = listing.getEntries();
 
-      final PipedOutputStream po = new PipedOutputStream();
-      final PipedInputStream pi = new PipedInputStream(po);
-      new Thread()
+      StreamingOutput page = new StreamingOutput()
       {
-         @Override
-         @SuppressWarnings("unchecked")
-         public void run()
+         public void write(OutputStream out) throws IOException
          {
             try
             {
                XMLOutputFactory factory = XMLOutputFactory.newInstance();
                // name spaces
                factory.setProperty(XMLOutputFactory.IS_REPAIRING_NAMESPACES, Boolean.TRUE);
-               XMLStreamWriter xsw = factory.createXMLStreamWriter(po, Constants.DEFAULT_ENCODING);
-               xsw.writeStartDocument(Constants.DEFAULT_ENCODING, "1.0");
-               xsw.writeDTD("<!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML 1.0 Strict//EN\" "
-                  + "\"http://www.w3.org/TR/xhtml1/DTD/xhtml1-strict.dtd\">");
-               xsw.writeCharacters("\n");
-               if (gadget == null || !gadget.equalsIgnoreCase("true"))
-               {
-                  xsw.writeStartElement("html");
-                  xsw.writeDefaultNamespace(XHTML_NS);
-                  xsw.writeStartElement("head");
-                  xsw.writeStartElement("style");
-                  xsw.writeAttribute("type", "text/css");
-                  xsw.writeCharacters("a {text-decoration: none; color: #10409C; }"
-                     + "a:hover {text-decoration: underline;}" + ".centered { text-align: center; }"
-                     + ".underlined { border-bottom : 1px solid #cccccc;  font-weight: bold;  text-align: center; }\n");
-                  xsw.writeEndElement(); // style
-                  xsw.writeStartElement("title");
-                  xsw.writeCharacters("Maven2 Repository Browser");
-                  xsw.writeEndElement(); // title
-                  xsw.writeEndElement(); // head
-               }
-               xsw.writeStartElement("body");
+               XMLStreamWriter xsw = factory.createXMLStreamWriter(out, Constants.DEFAULT_ENCODING);
+               writePageStart(xsw, "Maven2 Repository Browser", gadget);
                //
                xsw.writeStartElement("h2");
                xsw.writeAttribute("class", "centered");
                xsw.writeCharacters("Maven2 Repository");
                xsw.writeEndElement();
                //
+               if (totals != null)
+               {
+                  xsw.writeStartElement("p");
+                  xsw.writeAttribute("class", "centered");
+                  xsw.writeCharacters(totals.getFiles() + " files, " + totals.getBytes() + " bytes, "
+                     + totals.getDownloads() + " downloads ");
+                  xsw.writeStartElement("a");
+                  xsw.writeAttribute("href", mavenPath + "?view=stats&gadget=" + gadget);
+                  xsw.writeCharacters("statistics");
+                  xsw.writeEndElement(); // a
+                  xsw.writeEndElement(); // p
+               }
+               //
                xsw.writeStartElement("table");
                xsw.writeAttribute("width", "90%");
                xsw.writeAttribute("style", "table-layout:fixed;");
@@ -380,19 +924,11 @@ public class RESTArtifactLoaderService implements ResourceContainer
                xsw.writeEmptyElement("td");
                xsw.writeEmptyElement("td");
 
-               // NodeIterator nodes = node.getNodes();
-               EntityCollection nodes = (EntityCollection)node.getNodes();
-               Collections.sort(nodes.getList(), NODE_COMPARATOR);
-               while (nodes.hasNext())
+               for (ListingEntry node : entries)
                {
-                  Node node = nodes.nextNode();
                   xsw.writeStartElement("tr");
-                  if (RESTArtifactLoaderService.isFile(node))
+                  if (node.isFile())
                   {
-                     if (node.getName().endsWith("sha1"))
-                        continue;
-                     NodeRepresentation nodeRepresentation =
-                        nodeRepresentationService.getNodeRepresentation(node, null);
                      xsw.writeStartElement("td");
                      xsw.writeAttribute("class", "fileicon");
                      xsw.writeEndElement();// td
@@ -408,15 +944,15 @@ public class RESTArtifactLoaderService implements ResourceContainer
                      xsw.writeEndElement(); // td
                      xsw.writeStartElement("td");
                      xsw.writeAttribute("class", "centered");
-                     xsw.writeCharacters(nodeRepresentation.getMediaType());
+                     xsw.writeCharacters(node.getMediaType());
                      xsw.writeEndElement(); // td
                      xsw.writeStartElement("td");
                      xsw.writeAttribute("class", "centered");
-                     xsw.writeCharacters("" + nodeRepresentation.getContentLenght());
+                     xsw.writeCharacters("" + node.getContentLength());
                      xsw.writeEndElement(); // td
                      xsw.writeStartElement("td");
                      xsw.writeAttribute("class", "centered");
-                     xsw.writeCharacters(new Date(nodeRepresentation.getLastModified()).toString());
+                     xsw.writeCharacters(new Date(node.getLastModified()).toString());
                      xsw.writeEndElement(); // td
                   }
                   else
@@ -451,245 +987,790 @@ public class RESTArtifactLoaderService implements ResourceContainer
                xsw.writeStartElement("tr");
                xsw.writeEndElement();
 
-               xsw.writeEndElement(); // table
-               xsw.writeEndElement(); // body
-               if (gadget == null || !gadget.equalsIgnoreCase("true"))
+               if (paged || listing.getNext() != null)
                {
-                  xsw.writeEndElement(); // html
+                  String href = mavenPath + "?view=true&gadget=" + gadget + (limit == null ? "" : "&limit=" + limit);
+                  xsw.writeStartElement("tr");
+                  xsw.writeEmptyElement("td");
+                  xsw.writeStartElement("td");
+                  if (paged)
+                  {
+                     xsw.writeStartElement("a");
+                     xsw.writeAttribute("href", href);
+                     xsw.writeCharacters("first page");
+                     xsw.writeEndElement(); // a
+                     xsw.writeCharacters(" ");
+                  }
+                  if (listing.getNext() != null)
+                  {
+                     xsw.writeStartElement("a");
+                     xsw.writeAttribute("href", href + "&after=" + URLEncoder.encode(listing.getNext(), "UTF-8"));
+                     xsw.writeCharacters("next page");
+                     xsw.writeEndElement(); // a
+                  }
+                  xsw.writeEndElement(); // td
+                  xsw.writeEndElement(); // tr
                }
 
-               xsw.writeEndDocument();
+               xsw.writeEndElement(); // table
+               writePageEnd(xsw, gadget);
             }
             catch (XMLStreamException xmle)
             {
-               LOG.error(xmle.getLocalizedMessage(), xmle);
+               throw new IOException(xmle.getLocalizedMessage(), xmle);
             }
-            catch (RepositoryException re)
+         }
+      };
+
+      // application/xhtml+xml content type is recommended for XHTML, but IE6
+      // does't support this.
+      return Response.ok(page, "text/html").build();
+
+   }
+
+   /**
+    * Writes the XHTML prologue and opens the body of a page. A page shown in a gadget has no html
+    * and head elements.
+    *
+    * @param gadget
+    *          "true" if the page is shown in a gadget.
+    */
+   private static void writePageStart(XMLStreamWriter xsw, String title, String gadget) throws XMLStreamException
+   {
+      xsw.writeStartDocument(Constants.DEFAULT_ENCODING, "1.0");
+      xsw.writeDTD("<!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML 1.0 Strict//EN\" "
+         + "\"http://www.w3.org/TR/xhtml1/DTD/xhtml1-strict.dtd\">");
+      xsw.writeCharacters("\n");
+      if (!isGadget(gadget))
+      {
+         xsw.writeStartElement("html");
+         xsw.writeDefaultNamespace(XHTML_NS);
+         xsw.writeStartElement("head");
+         xsw.writeStartElement("style");
+         xsw.writeAttribute("type", "text/css");
+         xsw.writeCharacters("a {text-decoration: none; color: #10409C; }" + "a:hover {text-decoration: underline;}"
+            + ".centered { text-align: center; }"
+            + ".underlined { border-bottom : 1px solid #cccccc;  font-weight: bold;  text-align: center; }\n");
+         xsw.writeEndElement(); // style
+         xsw.writeStartElement("title");
+         xsw.writeCharacters(title);
+         xsw.writeEndElement(); // title
+         xsw.writeEndElement(); // head
+      }
+      xsw.writeStartElement("body");
+   }
+
+   /**
+    * Closes the body and the document opened by {@link #writePageStart}.
+    */
+   private static void writePageEnd(XMLStreamWriter xsw, String gadget) throws XMLStreamException
+   {
+      xsw.writeEndElement(); // body
+      if (!isGadget(gadget))
+      {
+         xsw.writeEndElement(); // html
+      }
+      xsw.writeEndDocument();
+      xsw.flush();
+   }
+
+   private static boolean isGadget(String gadget)
+   {
+      return gadget != null && gadget.equalsIgnoreCase("true");
+   }
+
+   /**
+    * Totals of a sub-folder shown by {@link RESTArtifactLoaderService#getStatistics}.
+    */
+   private static final class FolderTotals
+   {
+      final String name;
+
+      final StorageStatistics.Totals totals;
+
+      FolderTotals(String name, StorageStatistics.Totals totals)
+      {
+         this.name = name;
+         this.totals = totals;
+      }
+   }
+
+   /**
+    * Orders sub-folders by size, the smallest first.
+    */
+   private static final Comparator<FolderTotals> BY_SIZE = new Comparator<FolderTotals>()
+   {
+      public int compare(FolderTotals o1, FolderTotals o2)
+      {
+         if (o1.totals.getBytes() != o2.totals.getBytes())
+            return o1.totals.getBytes() < o2.totals.getBytes() ? -1 : 1;
+         return o2.name.compareTo(o1.name);
+      }
+   };
+
+   /**
+    * Shows storage totals of the folder and of its largest sub-folders, as maintained by
+    * {@link StorageStatistics}. Sub-folders are iterated lazily and only the largest ones are kept.
+    * 
+    * @param path
+    *          path of the folder relative to the maven root.
+    * @param mavenPath
+    *          URL of the folder.
+    * @param limit
+    *          max number of sub-folders.
+    * @param json
+    *          true to send JSON object instead of HTML page.
+    * @return 503 if the totals are not counted yet.
+    * @throws RepositoryException
+    *           if JCR errors occur.
+    */
+   private Response getStatistics(Node node, final String path, final String mavenPath, final String gadget,
+      int limit, boolean json) throws RepositoryException
+   {
+      final StorageStatistics.Totals totals = StorageStatistics.read(node);
+      if (totals == null)
+      {
+         return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                        .entity("Storage statistics are not counted yet")
+                        .type("text/plain")
+                        .build();
+      }
+
+      PriorityQueue<FolderTotals> largest = new PriorityQueue<FolderTotals>(limit + 1, BY_SIZE);
+      for (NodeIterator nodes = ((ExtendedNode)node).getNodesLazily(); nodes.hasNext();)
+      {
+         Node child = nodes.nextNode();
+         if (!child.isNodeType("nt:folder"))
+            continue;
+         StorageStatistics.Totals childTotals = StorageStatistics.read(child);
+         // folder created since the last update of the totals
+         if (childTotals == null)
+            childTotals = new StorageStatistics.Totals(0, 0, 0);
+         largest.add(new FolderTotals(child.getName(), childTotals));
+         if (largest.size() > limit)
+            largest.poll();
+      }
+      final List<FolderTotals> folders = new ArrayList<FolderTotals>(largest);
+      Collections.sort(folders, Collections.reverseOrder(BY_SIZE));
+
+      if (json)
+      {
+         StreamingOutput entity = new StreamingOutput()
+         {
+            public void write(OutputStream out) throws IOException
             {
-               LOG.error(re.getLocalizedMessage(), re);
+               JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, "UTF-8"));
+               writer.beginObject();
+               writer.name("path").value(path);
+               writeTotals(writer, totals);
+               writer.name("folders").beginArray();
+               for (FolderTotals folder : folders)
+               {
+                  writer.beginObject();
+                  writer.name("name").value(folder.name);
+                  writeTotals(writer, folder.totals);
+                  writer.endObject();
+               }
+               writer.endArray();
+               writer.endObject();
+               writer.flush();
             }
-            finally
+         };
+         return Response.ok(entity, JsonWriter.MEDIA_TYPE).build();
+      }
+
+      StreamingOutput page = new StreamingOutput()
+      {
+         public void write(OutputStream out) throws IOException
+         {
+            try
             {
-               try
+               XMLOutputFactory factory = XMLOutputFactory.newInstance();
+               factory.setProperty(XMLOutputFactory.IS_REPAIRING_NAMESPACES, Boolean.TRUE);
+               XMLStreamWriter xsw = factory.createXMLStreamWriter(out, Constants.DEFAULT_ENCODING);
+               writePageStart(xsw, "Maven2 Repository Statistics", gadget);
+               xsw.writeStartElement("h2");
+               xsw.writeAttribute("class", "centered");
+               xsw.writeCharacters("Maven2 Repository Statistics");
+               xsw.writeEndElement();
+
+               xsw.writeStartElement("p");
+               xsw.writeAttribute("class", "centered");
+               xsw.writeCharacters("/" + path + ": " + totals.getFiles() + " files, " + totals.getBytes() + " bytes, "
+                  + totals.getDownloads() + " downloads ");
+               xsw.writeStartElement("a");
+               xsw.writeAttribute("href", mavenPath + "?view=true&gadget=" + gadget);
+               xsw.writeCharacters("listing");
+               xsw.writeEndElement(); // a
+               xsw.writeEndElement(); // p
+
+               xsw.writeStartElement("table");
+               xsw.writeAttribute("width", "90%");
+               xsw.writeAttribute("style", "table-layout:fixed;");
+               xsw.writeStartElement("tr");
+               String[] headers = {"name", "files", "size", "downloads"};
+               for (String header : headers)
                {
-                  po.flush();
-                  po.close();
+                  xsw.writeStartElement("td");
+                  xsw.writeAttribute("class", "underlined");
+                  xsw.writeCharacters(header);
+                  xsw.writeEndElement(); // th
                }
-               catch (IOException e)
+               xsw.writeEndElement(); // tr
+
+               for (FolderTotals folder : folders)
                {
-                  LOG.error(e.getLocalizedMessage(), e);
+                  xsw.writeStartElement("tr");
+                  xsw.writeStartElement("td");
+                  xsw.writeStartElement("a");
+                  xsw.writeAttribute("href", (mavenPath.endsWith("/") ? mavenPath + folder.name : mavenPath + "/"
+                     + folder.name)
+                     + "?view=stats&gadget=" + gadget);
+                  xsw.writeCharacters(folder.name);
+                  xsw.writeEndElement(); // a
+                  xsw.writeEndElement(); // td
+                  String[] values =
+                     {Long.toString(folder.totals.getFiles()), Long.toString(folder.totals.getBytes()),
+                        Long.toString(folder.totals.getDownloads())};
+                  for (String value : values)
+                  {
+                     xsw.writeStartElement("td");
+                     xsw.writeAttribute("class", "centered");
+                     xsw.writeCharacters(value);
+                     xsw.writeEndElement(); // td
+                  }
+                  xsw.writeEndElement(); // tr
                }
+
+               xsw.writeEndElement(); // table
+               writePageEnd(xsw, gadget);
+            }
+            catch (XMLStreamException xmle)
+            {
+               throw new IOException(xmle.getLocalizedMessage(), xmle);
             }
          }
-      }.start();
-
-      // application/xhtml+xml content type is recommended for XHTML, but IE6
-      // does't support this.
-      return Response.ok(pi, "text/html").build();
+      };
+      return Response.ok(page, "text/html").build();
+   }
 
+   private static void writeTotals(JsonWriter writer, StorageStatistics.Totals totals) throws IOException
+   {
+      writer.name("files").value(totals.getFiles());
+      writer.name("bytes").value(totals.getBytes());
+      writer.name("downloads").value(totals.getDownloads());
    }
 
    /**
-    * Get content of JCR node.
+    * Read one page of children of the folder, checksum files are not listed. Children are iterated
+    * lazily and only the ones on the page are kept and read in detail, so a page of a huge folder
+    * takes as much memory as a page of a small one. Listings of recently browsed folders are taken
+    * from the cache, a folder is cached when its whole listing fits in one page.
     * 
     * @param node
-    *          the node.
-    * @return @see {@link Response}.
-    * @throws Exception
-    *           if any errors occurs.
+    *          the folder.
+    * @param after
+    *          cursor of the previous page, null for the first page.
+    * @param limit
+    *          max number of children on the page.
+    * @return children sorted by {@link ListingEntry#COMPARATOR}.
+    * @throws RepositoryException
+    *           if JCR errors occur.
+    * @throws IOException
+    *           if checksum of a file can't be read.
     */
-   private Response downloadArtifact(Node node) throws Exception
+   private ListingPage listPage(Node node, String after, int limit) throws RepositoryException, IOException
    {
-      NodeRepresentation nodeRepresentation = nodeRepresentationService.getNodeRepresentation(node, null);
-      if (node.canAddMixin("exo:mavencounter"))
+      ListingCache cache = listingCache;
+      String userId = node.getSession().getUserID();
+      long generation = 0;
+      if (cache != null)
       {
-         node.addMixin("exo:mavencounter");
-         node.getSession().save();
+         List<ListingEntry> cached = cache.get(node.getPath(), userId);
+         if (cached != null)
+            return ListingPage.of(cached, after, limit);
+         generation = cache.getGeneration();
       }
-      node.setProperty("exo:downloadcounter", node.getProperty("exo:downloadcounter").getLong() + 1l);
-      node.getSession().save();
-      long lastModified = nodeRepresentation.getLastModified();
-      String contentType = nodeRepresentation.getMediaType();
-      long contentLength = nodeRepresentation.getContentLenght();
-      InputStream entity = nodeRepresentation.getInputStream();
-      Response response =
-         Response.ok(entity, contentType).header(HttpHeaders.CONTENT_LENGTH, Long.toString(contentLength))
-            .lastModified(new Date(lastModified)).build();
-      return response;
+
+      ListingPage.Selector selector = new ListingPage.Selector(after, limit);
+      for (NodeIterator nodes = ((ExtendedNode)node).getNodesLazily(); nodes.hasNext();)
+      {
+         // only the name and the type are needed to order the children
+         Node child = nodes.nextNode();
+         if (!child.isNodeType("nt:file"))
+            selector.offer(new ListingEntry(child.getName()));
+         else if (ArtifactDeployer.getChecksumAlgorithm(child.getName()) == null)
+            selector.offer(new ListingEntry(child.getName(), null, -1, 0));
+      }
+
+      List<ListingEntry> selection = selector.getSelected();
+      List<ListingEntry> entries = new ArrayList<ListingEntry>();
+      for (ListingEntry selected : selection)
+      {
+         Node child = node.getNode(selected.getName());
+         if (isFile(child))
+         {
+            NodeRepresentation nodeRepresentation = nodeRepresentationService.getNodeRepresentation(child, null);
+            String shaName = child.getName() + ".sha1";
+            String checksum = node.hasNode(shaName) ? ArtifactContent.readChecksum(node.getNode(shaName)) : null;
+            entries.add(new ListingEntry(child.getName(), nodeRepresentation.getMediaType(), ArtifactContent
+               .getLength(child), nodeRepresentation.getLastModified(), checksum, getStoredDownloads(child)));
+         }
+         else
+         {
+            entries.add(selected.isFile() ? new ListingEntry(selected.getName()) : selected);
+         }
+      }
+      entries = Collections.unmodifiableList(entries);
+
+      String next = null;
+      if (selector.hasMore())
+         next = ListingPage.cursor(selection.get(selection.size() - 1));
+      else if (cache != null && (after == null || after.length() == 0))
+         cache.put(node.getPath(), userId, entries, generation);
+      return new ListingPage(entries, next);
    }
 
    /**
-    * Get JCR node information.
+    * @return true if the client asks for JSON with <code>format</code> parameter or prefers it by
+    *         <code>Accept</code> header
+    */
+   private static boolean isJsonRequested(String format, HttpHeaders headers)
+   {
+      if (format != null)
+         return format.equalsIgnoreCase("json");
+      if (headers == null)
+         return false;
+      List<MediaType> accepted = headers.getAcceptableMediaTypes();
+      if (accepted == null || accepted.isEmpty())
+         return false;
+      // sorted by preference, browsers accept anything but prefer XHTML
+      MediaType preferred = accepted.get(0);
+      return !preferred.isWildcardType() && !preferred.isWildcardSubtype()
+         && preferred.isCompatible(MediaType.APPLICATION_JSON_TYPE);
+   }
+
+   /**
+    * Sends the page of the folder listing as JSON object with the children in <code>entries</code>
+    * and the cursor of the next page in <code>next</code>.
+    * 
+    * @param folderPath
+    *          absolute path of the folder, used to add downloads not yet stored.
+    * @param path
+    *          path of the folder relative to the maven root.
+    */
+   private Response listingJson(final String folderPath, final String path, final ListingPage page)
+   {
+      StreamingOutput entity = new StreamingOutput()
+      {
+         public void write(OutputStream out) throws IOException
+         {
+            JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, "UTF-8"));
+            writer.beginObject();
+            writer.name("path").value(path);
+            writer.name("entries").beginArray();
+            for (ListingEntry entry : page.getEntries())
+            {
+               writer.beginObject();
+               writer.name("name").value(entry.getName());
+               writer.name("type").value(entry.isFile() ? "file" : "folder");
+               if (entry.isFile())
+               {
+                  writer.name("mediaType").value(entry.getMediaType());
+                  writer.name("size").value(entry.getContentLength());
+                  writer.name("lastModified").value(entry.getLastModified());
+                  writer.name("sha1").value(entry.getChecksum());
+                  writer.name("downloads").value(
+                     entry.getDownloads()
+                        + downloadCounter.getPending(folderPath.equals("/") ? "/" + entry.getName() : folderPath + "/"
+                           + entry.getName()));
+               }
+               writer.endObject();
+            }
+            writer.endArray();
+            writer.name("next").value(page.getNext());
+            writer.endObject();
+            writer.flush();
+         }
+      };
+      return Response.ok(entity, JsonWriter.MEDIA_TYPE).build();
+   }
+
+   /**
+    * Get content of JCR node. Supports conditional requests with <code>If-None-Match</code> and
+    * <code>If-Modified-Since</code> and byte ranges requests. Small files are read at once and
+    * offered to the file cache.
     * 
     * @param node
     *          the node.
+    * @param checksum
+    *          SHA-1 checksum of the content used as entity tag, may be null.
+    * @param request
+    *          the request, used for evaluation of preconditions.
+    * @param headers
+    *          the request headers.
+    * @param cacheGeneration
+    *          generation of the file cache taken before the node was read.
     * @return @see {@link Response}.
     * @throws Exception
     *           if any errors occurs.
     */
-   private Response getArtifactInfo(Node node, final String mavenPath, final String gadget, Node shaNode)
-      throws Exception
+   private Response downloadArtifact(Node node, String checksum, Request request, HttpHeaders headers,
+      long cacheGeneration) throws Exception
    {
       NodeRepresentation nodeRepresentation = nodeRepresentationService.getNodeRepresentation(node, null);
-
-      NodeRepresentation shNodeRepresentation = null;
-      if (shaNode != null)
-         shNodeRepresentation = nodeRepresentationService.getNodeRepresentation(shaNode, null);
-
-      final PipedOutputStream po = new PipedOutputStream();
-      final PipedInputStream pi = new PipedInputStream(po);
-
+      String contentType = nodeRepresentation.getMediaType();
       long lastModified = nodeRepresentation.getLastModified();
-      long contentLength = nodeRepresentation.getContentLenght();
 
-      try
-      {
+      Response notModified = evaluatePreconditions(request, lastModified, checksum);
+      if (notModified != null)
+         return notModified;
 
-         if (node.canAddMixin("exo:mavencounter"))
+      long contentLength = ArtifactContent.getLength(node);
+      InputStream entity;
+      HotFileCache cache = fileCache;
+      if (cache != null && cache.accepts(contentLength))
+      {
+         byte[] content;
+         InputStream in = ArtifactContent.getStream(node);
+         try
          {
-            node.addMixin("exo:mavencounter");
-            node.getSession().save();
+            content = IOUtils.toByteArray(in);
          }
-         int count = (int)node.getProperty("exo:downloadcounter").getLong();
-
-         XMLOutputFactory factory = XMLOutputFactory.newInstance();
-         factory.setProperty(XMLOutputFactory.IS_REPAIRING_NAMESPACES, Boolean.TRUE);
-         XMLStreamWriter xsw = factory.createXMLStreamWriter(po, Constants.DEFAULT_ENCODING);
-         xsw.writeStartDocument(Constants.DEFAULT_ENCODING, "1.0");
-         xsw.writeDTD("<!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML 1.0 Strict//EN\" "
-            + "\"http://www.w3.org/TR/xhtml1/DTD/xhtml1-strict.dtd\">");
-         xsw.writeCharacters("\n");
-         xsw.writeStartElement("html");
-         xsw.writeDefaultNamespace(XHTML_NS);
-         xsw.writeStartElement("head");
-         xsw.writeStartElement("style");
-         xsw.writeAttribute("type", "text/css");
-         xsw.writeCharacters("a {text-decoration: none; color: #10409C;}" + "a:hover {text-decoration: underline;}"
-            + ".centered { text-align: center; }" + ".underlined { border-bottom : 1px solid #cccccc; }\n");
-         xsw.writeEndElement(); // style
-         xsw.writeStartElement("title");
-         xsw.writeCharacters("Maven2 Artifact Information");
-         xsw.writeEndElement(); // title
-         xsw.writeEndElement(); // head
-         xsw.writeStartElement("body");
-
-         xsw.writeStartElement("b");
-         xsw.writeCharacters("Artifact Information :");
-         xsw.writeEndElement();
-         xsw.writeEmptyElement("br");
-
-         xsw.writeCharacters("Name:  " + node.getName());
-         xsw.writeEmptyElement("br");
-
-         xsw.writeCharacters("Size:  " + contentLength);
-         xsw.writeEmptyElement("br");
-         xsw.writeCharacters("Last modified:  " + new Date(lastModified).toString());
-         xsw.writeEmptyElement("br");
-         xsw.writeCharacters("Download:  ");
-         xsw.writeStartElement("a");
-         xsw.writeAttribute("href", mavenPath.endsWith("/") ? mavenPath.substring(0, mavenPath.length() - 1)
-            : mavenPath);
-         xsw.writeCharacters("Link");
-         xsw.writeEndElement(); // a
-
-         if (shNodeRepresentation != null)
+         finally
          {
-            xsw.writeEmptyElement("br");
-            xsw.writeCharacters("Checksum:  " + getStreamAsString(shNodeRepresentation.getInputStream()));
-            xsw.writeEmptyElement("br");
+            IOUtils.closeQuietly(in);
          }
+         cache.put(new HotFileCache.CachedFile(node.getPath(), contentType, lastModified, checksum, content), node
+            .getSession().getUserID(), cacheGeneration);
+         entity = new ByteArrayInputStream(content);
+         contentLength = content.length;
+      }
+      else
+      {
+         entity = ArtifactContent.getStream(node);
+      }
+      return sendContent(node.getPath(), entity, contentType, contentLength, lastModified, checksum, headers);
+   }
 
-         xsw.writeEmptyElement("br");
-         xsw.writeCharacters("Downloads count :  " + count);
-         xsw.writeEmptyElement("br");
+   /**
+    * Get content of the file from the file cache, the same way as {@link #downloadArtifact}.
+    */
+   private Response downloadCached(HotFileCache.CachedFile file, Request request, HttpHeaders headers)
+      throws Exception
+   {
+      Response notModified = evaluatePreconditions(request, file.getLastModified(), file.getChecksum());
+      if (notModified != null)
+         return notModified;
+      return sendContent(file.getPath(), file.openStream(), file.getMediaType(), file.getLength(), file
+         .getLastModified(), file.getChecksum(), headers);
+   }
 
-         xsw.writeEmptyElement("br");
-         xsw.writeStartElement("a");
-         xsw.writeAttribute("href", (mavenPath.endsWith("/") ? mavenPath.substring(0, mavenPath.length() - 1)
-            .substring(0, mavenPath.lastIndexOf("/")) : mavenPath.substring(0, mavenPath.lastIndexOf("/")))
-            + "?view=true&gadget=" + gadget);
-         xsw.writeCharacters("Back to browsing");
-         xsw.writeEndElement(); // a
+   /**
+    * @return response <code>304</code> or <code>412</code> if the preconditions of the request are
+    *         not met, null otherwise
+    */
+   private static Response evaluatePreconditions(Request request, long lastModified, String checksum)
+   {
+      Date date = toHttpDate(lastModified);
+      EntityTag etag = checksum == null ? null : new EntityTag(checksum);
+      ResponseBuilder notModified =
+         etag == null ? request.evaluatePreconditions(date) : request.evaluatePreconditions(date, etag);
+      if (notModified == null)
+         return null;
+      if (etag != null)
+         notModified.tag(etag);
+      return notModified.lastModified(date).build();
+   }
 
-         xsw.writeEmptyElement("br");
+   /**
+    * Sends the whole content or the requested ranges of it and counts the download.
+    * 
+    * @param path
+    *          absolute path of the file.
+    * @param entity
+    *          the content, it is closed if the request can't be satisfied.
+    */
+   private Response sendContent(String path, InputStream entity, String contentType, long contentLength,
+      long lastModified, String checksum, HttpHeaders headers) throws Exception
+   {
+      Date date = toHttpDate(lastModified);
+      EntityTag etag = checksum == null ? null : new EntityTag(checksum);
 
-         xsw.writeEndElement(); // body
-         xsw.writeEndElement(); // html
+      List<ByteRange> ranges = null;
+      String range = getHeader(headers, RANGE);
+      if (range != null && isRangeApplicable(getHeader(headers, IF_RANGE), etag, date))
+      {
+         ranges = ByteRange.parse(range, contentLength);
+      }
 
+      if (ranges != null && ranges.isEmpty())
+      {
+         IOUtils.closeQuietly(entity);
+         return Response.status(REQUESTED_RANGE_NOT_SATISFIABLE).header(CONTENT_RANGE, "bytes */" + contentLength)
+            .build();
       }
-      catch (XMLStreamException xmle)
+
+      if (ranges == null || ranges.get(0).getStart() == 0)
       {
-         LOG.error(xmle.getLocalizedMessage(), xmle);
+         // partial requests are counted once, with the first part of content
+         downloadCounter.increment(path);
       }
-      catch (RepositoryException re)
+
+      ResponseBuilder response;
+      if (ranges == null)
       {
-         LOG.error(re.getLocalizedMessage(), re);
+         response =
+            Response.ok(entity, contentType).header(HttpHeaders.CONTENT_LENGTH, Long.toString(contentLength));
       }
-      finally
+      else if (ranges.size() == 1)
       {
-         try
-         {
-            po.flush();
-            po.close();
-         }
-         catch (IOException e)
-         {
-            LOG.error(e.getLocalizedMessage(), e);
-         }
-
+         ByteRange single = ranges.get(0);
+         response =
+            Response.status(PARTIAL_CONTENT).entity(single.open(entity)).type(contentType).header(
+               HttpHeaders.CONTENT_LENGTH, Long.toString(single.getLength())).header(CONTENT_RANGE,
+               single.getContentRange(contentLength));
+      }
+      else
+      {
+         MultipartByteRanges multipart = new MultipartByteRanges(entity, ranges, contentType, contentLength);
+         response = Response.status(PARTIAL_CONTENT).entity(multipart).type(multipart.getMediaType());
       }
 
-      return Response.ok(pi, "text/html").build();
+      if (etag != null)
+         response.tag(etag);
+      return response.header(ACCEPT_RANGES, "bytes").lastModified(date).build();
+   }
 
+   /**
+    * HTTP dates have seconds precision.
+    */
+   private static Date toHttpDate(long time)
+   {
+      return new Date(time / 1000 * 1000);
    }
 
    /**
-    * @param stream
-    *          stream
-    * @return string representation of stream
-    * @throws IOException
-    *           if any i/o errors occurs
+    * @return user id of the current request, anonymous if it is not authenticated
     */
-   protected String getStreamAsString(InputStream stream) throws IOException
+   private static String getCurrentUserId()
+   {
+      ConversationState state = ConversationState.getCurrent();
+      return state == null ? IdentityConstants.ANONIM : state.getIdentity().getUserId();
+   }
+
+   /**
+    * Check <code>If-Range</code> header, range is applied only if the entity is unchanged.
+    */
+   private static boolean isRangeApplicable(String ifRange, EntityTag etag, Date lastModified)
    {
-      byte[] buff = new byte[stream.available()];
-      stream.read(buff);
-      return new String(buff);
+      if (ifRange == null)
+      {
+         return true;
+      }
+      ifRange = ifRange.trim();
+      if (ifRange.startsWith("\"") || ifRange.startsWith("W/"))
+      {
+         // weak tags are not suitable for ranges
+         return etag != null && ifRange.equals("\"" + etag.getValue() + "\"");
+      }
+      try
+      {
+         SimpleDateFormat format = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+         format.setTimeZone(TimeZone.getTimeZone("GMT"));
+         return format.parse(ifRange).getTime() == lastModified.getTime();
+      }
+      catch (ParseException e)
+      {
+         return false;
+      }
    }
 
    /**
-    * Node type comparator.
+    * Read checksum stored in the node.
     * 
-    * @see NodeComparator
+    * @param ses
+    *          the session.
+    * @param shaResourcePath
+    *          path of the .sha1 node.
+    * @return the checksum or null if there is no such node.
+    * @throws RepositoryException
+    *           if JCR errors occur.
+    * @throws IOException
+    *           if i/o error occurs.
     */
-   private static final Comparator<Node> NODE_COMPARATOR = new NodeComparator();
+   private String readChecksum(Session ses, String shaResourcePath) throws RepositoryException, IOException
+   {
+      Node root = ses.getRootNode();
+      if (!root.hasNode(shaResourcePath))
+      {
+         return null;
+      }
+      return ArtifactContent.readChecksum(root.getNode(shaResourcePath));
+   }
+
+   private static String getHeader(HttpHeaders headers, String name)
+   {
+      if (headers == null)
+      {
+         return null;
+      }
+      List<String> values = headers.getRequestHeader(name);
+      return values == null || values.isEmpty() ? null : values.get(0);
+   }
 
    /**
-    * It is needs to display artifact in alphabetical order and display folders before files.
+    * Get JCR node information.
+    * 
+    * @param node
+    *          the node.
+    * @return @see {@link Response}.
+    * @throws Exception
+    *           if any errors occurs.
     */
-   private static class NodeComparator implements Comparator<Node>
+   private Response getArtifactInfo(Node node, final String mavenPath, final String gadget, Node shaNode)
+      throws Exception
    {
+      NodeRepresentation nodeRepresentation = nodeRepresentationService.getNodeRepresentation(node, null);
+
+      final String checksum = shaNode == null ? null : ArtifactContent.readChecksum(shaNode);
 
-      /**
-       * {@inheritDoc}
-       */
-      public int compare(Node o1, Node o2)
+      final String name = node.getName();
+      final long lastModified = nodeRepresentation.getLastModified();
+      final long contentLength = ArtifactContent.getLength(node);
+
+      final long count = getStoredDownloads(node) + downloadCounter.getPending(node.getPath());
+
+      StreamingOutput page = new StreamingOutput()
       {
-         try
+         public void write(OutputStream out) throws IOException
          {
-            if (isFile(o1) && !isFile(o2))
-               return 1;
-            if (!isFile(o1) && isFile(o2))
-               return -1;
-            return o1.getName().compareTo(o2.getName());
+            try
+            {
+               XMLOutputFactory factory = XMLOutputFactory.newInstance();
+               factory.setProperty(XMLOutputFactory.IS_REPAIRING_NAMESPACES, Boolean.TRUE);
+               XMLStreamWriter xsw = factory.createXMLStreamWriter(out, Constants.DEFAULT_ENCODING);
+               writePageStart(xsw, "Maven2 Artifact Information", null);
+
+               xsw.writeStartElement("b");
+               xsw.writeCharacters("Artifact Information :");
+               xsw.writeEndElement();
+               xsw.writeEmptyElement("br");
+
+               xsw.writeCharacters("Name:  " + name);
+               xsw.writeEmptyElement("br");
+
+               xsw.writeCharacters("Size:  " + contentLength);
+               xsw.writeEmptyElement("br");
+               xsw.writeCharacters("Last modified:  " + new Date(lastModified).toString());
+               xsw.writeEmptyElement("br");
+               xsw.writeCharacters("Download:  ");
+               xsw.writeStartElement("a");
+               xsw.writeAttribute("href", mavenPath.endsWith("/") ? mavenPath.substring(0, mavenPath.length() - 1)
+                  : mavenPath);
+               xsw.writeCharacters("Link");
+               xsw.writeEndElement(); // a
+
+               if (checksum != null)
+               {
+                  xsw.writeEmptyElement("br");
+                  xsw.writeCharacters("Checksum:  " + checksum);
+                  xsw.writeEmptyElement("br");
+               }
+
+               xsw.writeEmptyElement("br");
+               xsw.writeCharacters("Downloads count :  " + count);
+               xsw.writeEmptyElement("br");
+
+               xsw.writeEmptyElement("br");
+               xsw.writeStartElement("a");
+               xsw.writeAttribute("href", (mavenPath.endsWith("/") ? mavenPath.substring(0, mavenPath.length() - 1)
+                  .substring(0, mavenPath.lastIndexOf("/")) : mavenPath.substring(0, mavenPath.lastIndexOf("/")))
+                  + "?view=true&gadget=" + gadget);
+               xsw.writeCharacters("Back to browsing");
+               xsw.writeEndElement(); // a
+
+               xsw.writeEmptyElement("br");
+               writePageEnd(xsw, null);
+            }
+            catch (XMLStreamException xmle)
+            {
+               throw new IOException(xmle.getLocalizedMessage(), xmle);
+            }
          }
-         catch (RepositoryException e)
+      };
+
+      return Response.ok(page, "text/html").build();
+
+   }
+
+   /**
+    * Get JCR node information as JSON object, the same as {@link #getArtifactInfo} shows.
+    * 
+    * @param path
+    *          path of the file relative to the maven root.
+    * @param mavenPath
+    *          URL of the file.
+    */
+   private Response getArtifactInfoJson(Node node, final String path, String mavenPath, Node shaNode)
+      throws Exception
+   {
+      NodeRepresentation nodeRepresentation = nodeRepresentationService.getNodeRepresentation(node, null);
+      final String name = node.getName();
+      final String url = mavenPath.endsWith("/") ? mavenPath.substring(0, mavenPath.length() - 1) : mavenPath;
+      final String mediaType = nodeRepresentation.getMediaType();
+      final long lastModified = nodeRepresentation.getLastModified();
+      final long contentLength = ArtifactContent.getLength(node);
+      final String checksum = shaNode == null ? null : ArtifactContent.readChecksum(shaNode);
+      final long count = getStoredDownloads(node) + downloadCounter.getPending(node.getPath());
+
+      StreamingOutput entity = new StreamingOutput()
+      {
+         public void write(OutputStream out) throws IOException
          {
-            LOG.error("", e);
-            return 0;
+            JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, "UTF-8"));
+            writer.beginObject();
+            writer.name("path").value(path);
+            writer.name("name").value(name);
+            writer.name("url").value(url);
+            writer.name("mediaType").value(mediaType);
+            writer.name("size").value(contentLength);
+            writer.name("lastModified").value(lastModified);
+            writer.name("sha1").value(checksum);
+            writer.name("downloads").value(count);
+            writer.endObject();
+            writer.flush();
          }
-      }
+      };
+      return Response.ok(entity, JsonWriter.MEDIA_TYPE).build();
+   }
 
+   /**
+    * @return number of downloads of the file written into the repository
+    */
+   private static long getStoredDownloads(Node file) throws RepositoryException
+   {
+      return file.hasProperty(DownloadCounter.COUNTER_PROPERTY) ? file.getProperty(DownloadCounter.COUNTER_PROPERTY)
+         .getLong() : 0;
+   }
+
+   /**
+    * @param stream
+    *          stream
+    * @return string representation of stream
+    * @throws IOException
+    *           if any i/o errors occurs
+    */
+   protected String getStreamAsString(InputStream stream) throws IOException
+   {
+      try
+      {
+         return IOUtils.toString(stream);
+      }
+      finally
+      {
+         IOUtils.closeQuietly(stream);
+      }
    }
 
 }
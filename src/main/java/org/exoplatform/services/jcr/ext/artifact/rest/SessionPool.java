@@ -0,0 +1,373 @@
+/**
+ * Copyright (C) 2003-2007 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.services.jcr.ext.artifact.rest;
+
+import org.exoplatform.services.jcr.RepositoryService;
+import org.exoplatform.services.jcr.ext.artifact.ArtifactThreadFactory;
+import org.exoplatform.services.jcr.ext.common.SessionProvider;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+import org.exoplatform.services.security.ConversationState;
+import org.exoplatform.services.security.IdentityConstants;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * Read-only sessions kept open between requests, so frequent downloads don't log in and out on each
+ * hit. Sessions are pooled by user and lent to one request at a time. A session is reused only for
+ * the same user with the same memberships, since they decide what the session may read. Transient
+ * changes are discarded when a session is returned, borrowers must not save anything. Idle
+ * sessions above the max size are closed least recently used first, sessions unused for the idle
+ * timeout or older than {@link #MAX_AGE} are closed by a background thread.
+ *
+ * @version $Id: SessionPool.java $
+ */
+class SessionPool
+{
+   private static final Log LOG = ExoLogger.getLogger(SessionPool.class);
+
+   /**
+    * Max time in milliseconds a session is kept, items visited by a session are referenced by it, so
+    * even busy sessions are renewed from time to time.
+    */
+   static final long MAX_AGE = 10 * 60 * 1000L;
+
+   private final RepositoryService repositoryService;
+
+   private final String repository;
+
+   private final String workspace;
+
+   private final int maxIdle;
+
+   private final long idleTimeout;
+
+   /**
+    * Idle sessions by user, the most recently returned last.
+    */
+   private final Map<String, LinkedList<PooledSession>> idle = new HashMap<String, LinkedList<PooledSession>>();
+
+   /**
+    * All idle sessions, the least recently returned first.
+    */
+   private final LinkedHashSet<PooledSession> idleOrder = new LinkedHashSet<PooledSession>();
+
+   private final Map<Session, PooledSession> borrowed = new IdentityHashMap<Session, PooledSession>();
+
+   private ScheduledExecutorService evictor;
+
+   /**
+    * False before start and after stop, returned sessions are closed then.
+    */
+   private boolean running;
+
+   private long created;
+
+   private long reused;
+
+   private static final class PooledSession
+   {
+      final String userId;
+
+      final Collection<?> memberships;
+
+      final Session session;
+
+      final long createTime;
+
+      long lastUsed;
+
+      PooledSession(String userId, Collection<?> memberships, Session session, long createTime)
+      {
+         this.userId = userId;
+         this.memberships = memberships;
+         this.session = session;
+         this.createTime = createTime;
+      }
+   }
+
+   /**
+    * @param maxIdle
+    *          max number of idle sessions kept
+    * @param idleTimeout
+    *          time in milliseconds after which an unused session is closed
+    */
+   SessionPool(RepositoryService repositoryService, String repository, String workspace, int maxIdle,
+      long idleTimeout)
+   {
+      this.repositoryService = repositoryService;
+      this.repository = repository;
+      this.workspace = workspace;
+      this.maxIdle = maxIdle;
+      this.idleTimeout = idleTimeout;
+   }
+
+   void start()
+   {
+      synchronized (this)
+      {
+         running = true;
+      }
+      long period = Math.max(idleTimeout / 2, 1000);
+      evictor = Executors.newSingleThreadScheduledExecutor(new ArtifactThreadFactory("SessionPoolEvictor"));
+      evictor.scheduleWithFixedDelay(new Runnable()
+      {
+         public void run()
+         {
+            evict(now());
+         }
+      }, period, period, TimeUnit.MILLISECONDS);
+   }
+
+   /**
+    * Stops the evictor and closes idle sessions, borrowed sessions are closed when returned.
+    */
+   void stop()
+   {
+      if (evictor != null)
+      {
+         evictor.shutdownNow();
+         evictor = null;
+      }
+      List<PooledSession> closed;
+      synchronized (this)
+      {
+         running = false;
+         closed = new ArrayList<PooledSession>(idleOrder);
+         idleOrder.clear();
+         idle.clear();
+      }
+      for (PooledSession pooled : closed)
+         close(pooled);
+   }
+
+   /**
+    * @return session of the current user, it must be returned with {@link #release(Session)}
+    */
+   Session borrow() throws RepositoryException
+   {
+      ConversationState state = ConversationState.getCurrent();
+      if (state == null)
+         return borrow(IdentityConstants.ANONIM, Collections.emptySet(), null);
+      return borrow(state.getIdentity().getUserId(), state.getIdentity().getMemberships(), state);
+   }
+
+   Session borrow(String userId, Collection<?> memberships, ConversationState state) throws RepositoryException
+   {
+      long now = now();
+      List<PooledSession> stale = null;
+      PooledSession pooled = null;
+      synchronized (this)
+      {
+         LinkedList<PooledSession> sessions = idle.get(userId);
+         while (sessions != null && !sessions.isEmpty())
+         {
+            PooledSession candidate = sessions.removeLast();
+            idleOrder.remove(candidate);
+            if (isValid(candidate, memberships, now))
+            {
+               pooled = candidate;
+               break;
+            }
+            if (stale == null)
+               stale = new ArrayList<PooledSession>();
+            stale.add(candidate);
+         }
+         if (sessions != null && sessions.isEmpty())
+            idle.remove(userId);
+         if (pooled != null)
+         {
+            borrowed.put(pooled.session, pooled);
+            reused++;
+         }
+      }
+      if (stale != null)
+      {
+         for (PooledSession session : stale)
+            close(session);
+      }
+      if (pooled != null)
+         return pooled.session;
+
+      // memberships may change while the session is used, keep the ones it was opened with
+      pooled = new PooledSession(userId, new ArrayList<Object>(memberships), open(state), now);
+      synchronized (this)
+      {
+         borrowed.put(pooled.session, pooled);
+         created++;
+      }
+      return pooled.session;
+   }
+
+   /**
+    * Returns the session borrowed from the pool, discarding its transient changes.
+    */
+   void release(Session session)
+   {
+      PooledSession pooled;
+      synchronized (this)
+      {
+         pooled = borrowed.remove(session);
+      }
+      if (pooled == null)
+      {
+         session.logout();
+         return;
+      }
+
+      try
+      {
+         if (!session.isLive())
+            return;
+         session.refresh(false);
+      }
+      catch (RepositoryException e)
+      {
+         LOG.warn("Cannot refresh pooled session of " + pooled.userId + ", it is closed", e);
+         close(pooled);
+         return;
+      }
+
+      List<PooledSession> evicted = new ArrayList<PooledSession>();
+      synchronized (this)
+      {
+         if (!running || maxIdle <= 0)
+         {
+            evicted.add(pooled);
+         }
+         else
+         {
+            pooled.lastUsed = now();
+            LinkedList<PooledSession> sessions = idle.get(pooled.userId);
+            if (sessions == null)
+            {
+               sessions = new LinkedList<PooledSession>();
+               idle.put(pooled.userId, sessions);
+            }
+            sessions.addLast(pooled);
+            idleOrder.add(pooled);
+            while (idleOrder.size() > maxIdle)
+               evicted.add(removeEldest());
+         }
+      }
+      for (PooledSession old : evicted)
+         close(old);
+   }
+
+   /**
+    * Closes sessions unused for the idle timeout and sessions older than {@link #MAX_AGE}.
+    */
+   void evict(long now)
+   {
+      List<PooledSession> evicted = new ArrayList<PooledSession>();
+      synchronized (this)
+      {
+         for (Iterator<PooledSession> i = idleOrder.iterator(); i.hasNext();)
+         {
+            PooledSession pooled = i.next();
+            if (now - pooled.lastUsed >= idleTimeout || now - pooled.createTime >= MAX_AGE)
+            {
+               i.remove();
+               LinkedList<PooledSession> sessions = idle.get(pooled.userId);
+               sessions.remove(pooled);
+               if (sessions.isEmpty())
+                  idle.remove(pooled.userId);
+               evicted.add(pooled);
+            }
+         }
+      }
+      for (PooledSession old : evicted)
+         close(old);
+   }
+
+   synchronized int getIdle()
+   {
+      return idleOrder.size();
+   }
+
+   synchronized long getCreated()
+   {
+      return created;
+   }
+
+   synchronized long getReused()
+   {
+      return reused;
+   }
+
+   /**
+    * Opens a new session for the user.
+    *
+    * @param state
+    *          state of the user, null for anonymous
+    */
+   Session open(ConversationState state) throws RepositoryException
+   {
+      SessionProvider sp = state == null ? SessionProvider.createAnonimProvider() : new SessionProvider(state);
+      return sp.getSession(workspace, repositoryService.getRepository(repository));
+   }
+
+   long now()
+   {
+      return System.currentTimeMillis();
+   }
+
+   private static boolean isValid(PooledSession pooled, Collection<?> memberships, long now)
+   {
+      return now - pooled.createTime < MAX_AGE && pooled.memberships.size() == memberships.size()
+         && pooled.memberships.containsAll(memberships) && pooled.session.isLive();
+   }
+
+   private PooledSession removeEldest()
+   {
+      Iterator<PooledSession> i = idleOrder.iterator();
+      PooledSession eldest = i.next();
+      i.remove();
+      LinkedList<PooledSession> sessions = idle.get(eldest.userId);
+      sessions.remove(eldest);
+      if (sessions.isEmpty())
+         idle.remove(eldest.userId);
+      return eldest;
+   }
+
+   private static void close(PooledSession pooled)
+   {
+      try
+      {
+         pooled.session.logout();
+      }
+      catch (RuntimeException e)
+      {
+         LOG.warn("Cannot close pooled session of " + pooled.userId, e);
+      }
+   }
+}
@@ -0,0 +1,459 @@
+/**
+ * Copyright (C) 2003-2007 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.services.jcr.ext.artifact.rest;
+
+import org.exoplatform.services.jcr.RepositoryService;
+import org.exoplatform.services.jcr.ext.artifact.ArtifactContent;
+import org.exoplatform.services.jcr.ext.artifact.ArtifactJob;
+import org.exoplatform.services.jcr.ext.artifact.ArtifactThreadFactory;
+import org.exoplatform.services.jcr.ext.artifact.ChecksumInputStream;
+import org.exoplatform.services.jcr.ext.common.SessionProvider;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+import org.exoplatform.services.security.ConversationState;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.PathNotFoundException;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * Adds the missing checksum files of all files under the maven root. Folders are walked in
+ * parallel, one task per folder, each worker thread having its own session. Checksums of several
+ * algorithms are computed in one read of the content and saved in batches. Every corrected folder
+ * is appended to the checkpoint file, so an interrupted or cancelled run resumes without reading
+ * the files of those folders again; the checkpoint is removed when the run completes. Items of the
+ * job are the checked files, bytes are the read content.
+ *
+ * @version $Id: StructureCorrectionJob.java $
+ */
+class StructureCorrectionJob extends ArtifactJob
+{
+   private static final Log LOG = ExoLogger.getLogger(StructureCorrectionJob.class);
+
+   /**
+    * Extensions of the files which are checksums or signatures themselves.
+    */
+   private static final Set<String> CHECKSUM_EXTENSIONS =
+      new HashSet<String>(Arrays.asList("sha1", "md5", "sha256", "sha512", "asc"));
+
+   private static final String CHECKPOINT_HEADER = "# algorithms: ";
+
+   private static final int BUFFER_SIZE = 64 * 1024;
+
+   private final RepositoryService repositoryService;
+
+   private final String workspace;
+
+   private final String rootPath;
+
+   /**
+    * Absolute path of the blob store root, not walked, may be null.
+    */
+   private final String excludedPath;
+
+   private final ConversationState conversationState;
+
+   private final String[] algorithms;
+
+   private final int threads;
+
+   private final int batchSize;
+
+   private final File checkpointFile;
+
+   private final AtomicLong folders = new AtomicLong();
+
+   private final AtomicLong checksums = new AtomicLong();
+
+   /**
+    * Folders submitted and not processed yet, the walk is over when it drops to zero.
+    */
+   private final AtomicInteger pending = new AtomicInteger();
+
+   private final CountDownLatch walked = new CountDownLatch(1);
+
+   private final List<SessionProvider> sessionProviders =
+      Collections.synchronizedList(new ArrayList<SessionProvider>());
+
+   private final ThreadLocal<Session> sessions = new ThreadLocal<Session>();
+
+   /**
+    * Folders corrected by the previous run, read from checkpoint.
+    */
+   private volatile Set<String> corrected = Collections.emptySet();
+
+   private Writer checkpoint;
+
+   private ExecutorService walkers;
+
+   /**
+    * @param rootPath
+    *          absolute path of the maven root node
+    * @param excludedPath
+    *          absolute path of the blob store root, may be null
+    * @param algorithms
+    *          names of digest algorithms, the checksum file extension is the lower case name
+    *          without dashes
+    * @param threads
+    *          number of walker threads
+    * @param batchSize
+    *          number of corrected files saved at once
+    * @param checkpointFile
+    *          file to record corrected folders
+    */
+   StructureCorrectionJob(RepositoryService repositoryService, String workspace, String rootPath,
+      String excludedPath, ConversationState conversationState, String[] algorithms, int threads, int batchSize,
+      File checkpointFile)
+   {
+      super("structure-correction", workspace + ":" + rootPath);
+      this.repositoryService = repositoryService;
+      this.workspace = workspace;
+      this.rootPath = rootPath;
+      this.excludedPath = excludedPath;
+      this.conversationState = conversationState;
+      this.algorithms = algorithms.clone();
+      this.threads = threads;
+      this.batchSize = batchSize;
+      this.checkpointFile = checkpointFile;
+   }
+
+   /**
+    * @return extension of checksum file of the algorithm
+    */
+   static String getExtension(String algorithm)
+   {
+      return algorithm.toLowerCase(Locale.ENGLISH).replace("-", "");
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   protected void execute() throws IOException, InterruptedException
+   {
+      LOG.info("Maven artifact checksums Updater started");
+      try
+      {
+         corrected = readCheckpoint();
+         checkpoint = openCheckpoint(!corrected.isEmpty());
+         if (!corrected.isEmpty())
+            LOG.info("Resuming from checkpoint, " + corrected.size() + " folders are already corrected");
+
+         walkers = Executors.newFixedThreadPool(threads, new ArtifactThreadFactory("StructureCorrector"));
+         submit(rootPath);
+         walked.await();
+         walkers.shutdown();
+         walkers.awaitTermination(1, TimeUnit.MINUTES);
+
+         if (!isCancelled())
+         {
+            IOUtils.closeQuietly(checkpoint);
+            checkpoint = null;
+            if (!checkpointFile.delete())
+               LOG.warn("Cannot remove checkpoint " + checkpointFile.getAbsolutePath());
+         }
+      }
+      finally
+      {
+         if (walkers != null)
+            walkers.shutdownNow();
+         IOUtils.closeQuietly(checkpoint);
+         for (SessionProvider sessionProvider : sessionProviders)
+            sessionProvider.close();
+      }
+      LOG.info("Maven artifact checksums Updater " + (isCancelled() ? "stopped" : "finished") + ", " + getItems()
+         + " files checked, " + checksums + " checksums added, " + getErrors() + " errors");
+   }
+
+   private void submit(final String path)
+   {
+      pending.incrementAndGet();
+      walkers.execute(new Runnable()
+      {
+         public void run()
+         {
+            try
+            {
+               if (!isCancelled())
+                  correct(path);
+            }
+            catch (RepositoryException e)
+            {
+               error(path, e);
+               try
+               {
+                  getSession().refresh(false);
+               }
+               catch (RepositoryException re)
+               {
+                  LOG.warn("Cannot discard changes of folder " + path, re);
+               }
+            }
+            finally
+            {
+               // subfolders are submitted before, so zero means that all the tree is walked
+               if (pending.decrementAndGet() == 0)
+                  walked.countDown();
+            }
+         }
+      });
+   }
+
+   private void correct(String path) throws RepositoryException
+   {
+      Session session = getSession();
+      Node folder;
+      try
+      {
+         folder = (Node)session.getItem(path);
+      }
+      catch (PathNotFoundException e)
+      {
+         // removed meanwhile
+         return;
+      }
+
+      boolean done = corrected.contains(path);
+      Set<String> names = new HashSet<String>();
+      List<Node> children = new ArrayList<Node>();
+      for (NodeIterator nodes = folder.getNodes(); nodes.hasNext();)
+      {
+         Node child = nodes.nextNode();
+         if (child.isNodeType("nt:folder"))
+         {
+            // blobs have no checksum files, their hash is their name
+            if (!isExcluded(child.getPath()))
+               submit(child.getPath());
+         }
+         else if (!done && child.isNodeType("nt:file"))
+         {
+            names.add(child.getName());
+            children.add(child);
+         }
+      }
+      folders.incrementAndGet();
+      if (done)
+         return;
+
+      int unsaved = 0;
+      for (Node file : children)
+      {
+         if (isCancelled())
+            break;
+
+         String name = file.getName();
+         if (CHECKSUM_EXTENSIONS.contains(FilenameUtils.getExtension(name).toLowerCase(Locale.ENGLISH)))
+            continue;
+         processed(1, 0);
+
+         List<String> missing = new ArrayList<String>();
+         for (String algorithm : algorithms)
+         {
+            if (!names.contains(name + "." + getExtension(algorithm)))
+               missing.add(algorithm);
+         }
+         if (missing.isEmpty())
+            continue;
+
+         try
+         {
+            addChecksums(file, missing.toArray(new String[missing.size()]));
+            checksums.addAndGet(missing.size());
+            if (++unsaved >= batchSize)
+            {
+               session.save();
+               unsaved = 0;
+            }
+         }
+         catch (IOException e)
+         {
+            error(file.getPath(), e);
+         }
+      }
+      if (unsaved > 0)
+         session.save();
+
+      if (!isCancelled())
+         checkpoint(path);
+   }
+
+   private void addChecksums(Node file, String[] missing) throws RepositoryException, IOException
+   {
+      ChecksumInputStream in;
+      try
+      {
+         in = new ChecksumInputStream(ArtifactContent.getStream(file), missing);
+      }
+      catch (NoSuchAlgorithmException e)
+      {
+         // algorithms are checked on configuration
+         throw new IllegalStateException(e);
+      }
+      try
+      {
+         byte[] buf = new byte[BUFFER_SIZE];
+         while (in.read(buf) != -1)
+         {
+            // digests are updated on reading
+         }
+      }
+      finally
+      {
+         IOUtils.closeQuietly(in);
+      }
+      processed(0, in.getLength());
+
+      Node folder = file.getParent();
+      Calendar modified = Calendar.getInstance();
+      for (String algorithm : missing)
+      {
+         String extension = getExtension(algorithm);
+         Node checksumFile = folder.addNode(file.getName() + "." + extension, "nt:file");
+         String mixin =
+            extension.equals("sha1") || extension.equals("md5") ? "exo:maven" + extension : "exo:file";
+         if (checksumFile.canAddMixin(mixin))
+            checksumFile.addMixin(mixin);
+         Node content = checksumFile.addNode("jcr:content", "nt:resource");
+         content.setProperty("jcr:mimeType", "text/plain");
+         content.setProperty("jcr:lastModified", modified);
+         content.setProperty("jcr:data", new ByteArrayInputStream(in.getChecksum(algorithm).getBytes()));
+      }
+   }
+
+   private boolean isExcluded(String path)
+   {
+      return excludedPath != null && (path.equals(excludedPath) || path.startsWith(excludedPath + "/"));
+   }
+
+   private void error(String item, Exception e)
+   {
+      LOG.error("Cannot correct " + item, e);
+      failed(item, e);
+   }
+
+   /**
+    * @return session of the current worker thread
+    */
+   private Session getSession() throws RepositoryException
+   {
+      Session session = sessions.get();
+      if (session == null)
+      {
+         SessionProvider sessionProvider = new SessionProvider(conversationState);
+         sessionProviders.add(sessionProvider);
+         session = sessionProvider.getSession(workspace, repositoryService.getCurrentRepository());
+         sessions.set(session);
+      }
+      return session;
+   }
+
+   private Set<String> readCheckpoint() throws IOException
+   {
+      if (!checkpointFile.exists())
+         return Collections.emptySet();
+
+      Set<String> paths = new HashSet<String>();
+      BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(checkpointFile), "UTF-8"));
+      try
+      {
+         String header = reader.readLine();
+         if (header == null || !header.equals(CHECKPOINT_HEADER + Arrays.toString(algorithms)))
+         {
+            LOG.info("Checkpoint was made with other algorithms, correcting from the beginning");
+            return Collections.emptySet();
+         }
+         // the last line may be cut by a crash, it can't match a folder then
+         String path;
+         while ((path = reader.readLine()) != null)
+            paths.add(path);
+      }
+      finally
+      {
+         reader.close();
+      }
+      return paths;
+   }
+
+   private Writer openCheckpoint(boolean append) throws IOException
+   {
+      Writer writer = new OutputStreamWriter(new FileOutputStream(checkpointFile, append), "UTF-8");
+      if (!append)
+      {
+         writer.write(CHECKPOINT_HEADER + Arrays.toString(algorithms) + "\n");
+         writer.flush();
+      }
+      return writer;
+   }
+
+   private synchronized void checkpoint(String path)
+   {
+      try
+      {
+         checkpoint.write(path + "\n");
+         checkpoint.flush();
+      }
+      catch (IOException e)
+      {
+         error(checkpointFile.getAbsolutePath(), e);
+      }
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public Map<String, Object> getDetails()
+   {
+      Map<String, Object> details = super.getDetails();
+      details.put("algorithms", Arrays.toString(algorithms));
+      details.put("resumedFolders", corrected.size());
+      details.put("folders", folders.get());
+      details.put("checksums", checksums.get());
+      return details;
+   }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright (C) 2003-2007 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.services.jcr.ext.artifact.rest;
+
+/**
+ * Keeps the rate of read bytes under the budget by making the reader wait. The budget not used
+ * while the reader was busy elsewhere is kept for at most one second, so a pause doesn't allow a
+ * long burst after it.
+ *
+ * @version $Id: Throttle.java $
+ */
+class Throttle
+{
+   /**
+    * Max budget in milliseconds saved while nothing is read.
+    */
+   private static final long MAX_SAVED = 1000;
+
+   private final long bytesPerSecond;
+
+   /**
+    * False before the first read.
+    */
+   private boolean started;
+
+   /**
+    * Start of the current measure.
+    */
+   private long origin;
+
+   /**
+    * Bytes read since origin.
+    */
+   private long consumed;
+
+   /**
+    * @param bytesPerSecond
+    *          budget, 0 or less for no limit
+    */
+   Throttle(long bytesPerSecond)
+   {
+      this.bytesPerSecond = bytesPerSecond;
+   }
+
+   /**
+    * Waits until the read bytes fit in the budget.
+    */
+   void acquire(long bytes) throws InterruptedException
+   {
+      long delay = delay(bytes, System.currentTimeMillis());
+      if (delay > 0)
+         Thread.sleep(delay);
+   }
+
+   /**
+    * @return time in milliseconds to wait after the bytes read at the given time
+    */
+   synchronized long delay(long bytes, long now)
+   {
+      if (bytesPerSecond <= 0)
+         return 0;
+      if (!started || now - due() > MAX_SAVED)
+      {
+         started = true;
+         origin = now - MAX_SAVED;
+         consumed = 0;
+      }
+      consumed += bytes;
+      return Math.max(0, due() - now);
+   }
+
+   /**
+    * @return time when the read bytes are within the budget
+    */
+   private long due()
+   {
+      return origin + consumed * 1000 / bytesPerSecond;
+   }
+}
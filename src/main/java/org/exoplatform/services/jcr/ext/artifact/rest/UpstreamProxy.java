@@ -0,0 +1,695 @@
+/**
+ * Copyright (C) 2003-2007 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.services.jcr.ext.artifact.rest;
+
+import org.exoplatform.services.jcr.RepositoryService;
+import org.exoplatform.services.jcr.ext.artifact.ArtifactThreadFactory;
+import org.exoplatform.services.jcr.ext.artifact.CRCGenerator;
+import org.exoplatform.services.jcr.ext.common.SessionProvider;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.Session;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+/**
+ * Fetches files missing in the repository from the upstream Maven repository. Requests for the
+ * same path share one fetch: the content is downloaded into a temporary file, which every waiting
+ * client reads while it grows, and once complete it is stored by {@link ArtifactDeployer}, so the
+ * next requests are served from the repository. Files not found upstream, or not fetched since the
+ * upstream is unreachable, are answered with 404 without asking the upstream again until the
+ * negative cache entry expires. <code>maven-metadata.xml</code> is never stored: the upstream copy
+ * is kept in memory for a while and merged into the local one when served, since storing a fetched
+ * version doesn't add it to the local metadata.
+ *
+ * @version $Id: UpstreamProxy.java $
+ */
+class UpstreamProxy
+{
+   private static final Log LOG = ExoLogger.getLogger(UpstreamProxy.class);
+
+   /**
+    * Max number of negative cache entries, expired ones are purged when it is reached.
+    */
+   private static final int MAX_MISSES = 10000;
+
+   /**
+    * Max number of upstream metadata documents kept in memory.
+    */
+   private static final int MAX_METADATA = 1000;
+
+   /**
+    * Max size in bytes of an upstream metadata document.
+    */
+   private static final int MAX_METADATA_SIZE = 1024 * 1024;
+
+   /**
+    * Max number of fetches waiting for a fetcher thread, per thread.
+    */
+   private static final int QUEUED_FETCHES_PER_THREAD = 16;
+
+   private final String upstreamUrl;
+
+   private final ArtifactDeployer deployer;
+
+   private final RepositoryService repositoryService;
+
+   private final String repository;
+
+   private final String workspace;
+
+   private final int timeout;
+
+   private final long missTtl;
+
+   private final long metadataTtl;
+
+   private final ConcurrentMap<String, Fetch> fetches = new ConcurrentHashMap<String, Fetch>();
+
+   /**
+    * Expiration times of the negative cache entries, by path.
+    */
+   private final ConcurrentMap<String, Long> misses = new ConcurrentHashMap<String, Long>();
+
+   /**
+    * Upstream metadata documents by path.
+    */
+   private final ConcurrentMap<String, CachedMetadata> metadata = new ConcurrentHashMap<String, CachedMetadata>();
+
+   private final ExecutorService fetchers;
+
+   /**
+    * @param upstreamUrl
+    *          base URL of the upstream repository
+    * @param threads
+    *          max number of concurrent fetches, more of them are queued up to a limit
+    * @param timeout
+    *          connect and read timeout in milliseconds, also the max time a request waits for the
+    *          upstream to answer
+    * @param missTtl
+    *          time in milliseconds to answer 404 without asking the upstream
+    * @param metadataTtl
+    *          time in milliseconds to use upstream metadata without asking the upstream again
+    */
+   UpstreamProxy(String upstreamUrl, ArtifactDeployer deployer, RepositoryService repositoryService,
+      String repository, String workspace, int threads, int timeout, long missTtl, long metadataTtl)
+   {
+      this.upstreamUrl = upstreamUrl.endsWith("/") ? upstreamUrl : upstreamUrl + "/";
+      this.deployer = deployer;
+      this.repositoryService = repositoryService;
+      this.repository = repository;
+      this.workspace = workspace;
+      this.timeout = timeout;
+      this.missTtl = missTtl;
+      this.metadataTtl = metadataTtl;
+      this.fetchers =
+         new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(threads
+            * QUEUED_FETCHES_PER_THREAD), new ArtifactThreadFactory("UpstreamFetcher"));
+   }
+
+   /**
+    * Stops the fetchers, requests waiting for the queued fetches are answered with 503.
+    */
+   void stop()
+   {
+      for (Runnable queued : fetchers.shutdownNow())
+      {
+         ((Fetch)queued).abort("upstream proxy is stopped");
+      }
+   }
+
+   /**
+    * @return true if the path may be fetched, i.e. it is a file path
+    */
+   static boolean accepts(String relPath)
+   {
+      try
+      {
+         return FilenameUtils.getExtension(ArtifactDeployer.normalize(relPath)).length() > 0;
+      }
+      catch (IllegalArgumentException e)
+      {
+         return false;
+      }
+   }
+
+   /**
+    * @return true if the path is metadata or its checksum, see {@link #getMetadata(String)}
+    */
+   static boolean isMetadata(String relPath)
+   {
+      return FilenameUtils.getName(relPath).startsWith(ArtifactDeployer.METADATA);
+   }
+
+   /**
+    * Answers the request for a file missing in the repository. It is answered with 503 if the
+    * upstream doesn't answer in time or too many fetches are queued.
+    *
+    * @param relPath
+    *          path of the file relative to maven root
+    * @return the response, or null if the fetch is over meanwhile and the file is to be served from
+    *         the repository
+    */
+   Response get(String relPath)
+   {
+      String path = ArtifactDeployer.normalize(relPath);
+      if (isMissing(path))
+         return Response.status(Response.Status.NOT_FOUND).build();
+
+      Fetch fetch = fetches.get(path);
+      if (fetch == null)
+      {
+         Fetch created = new Fetch(path);
+         fetch = fetches.putIfAbsent(path, created);
+         if (fetch == null)
+         {
+            fetch = created;
+            try
+            {
+               fetchers.execute(created);
+            }
+            catch (RejectedExecutionException e)
+            {
+               LOG.warn("Too many fetches from " + upstreamUrl + ", " + path + " is not fetched");
+               created.abort("too many fetches");
+            }
+         }
+      }
+
+      Boolean found;
+      try
+      {
+         found = fetch.awaitStart(timeout);
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+         found = null;
+      }
+      if (found == null || fetch.isAborted())
+         return Response.status(Response.Status.SERVICE_UNAVAILABLE).header("Retry-After", "1").build();
+      if (!found.booleanValue())
+         return Response.status(Response.Status.NOT_FOUND).build();
+
+      final InputStream in;
+      try
+      {
+         in = fetch.open();
+      }
+      catch (IOException e)
+      {
+         LOG.warn("Cannot read fetched " + path + ": " + e.getMessage());
+         return Response.status(Response.Status.SERVICE_UNAVAILABLE).header("Retry-After", "1").build();
+      }
+      if (in == null)
+         return null;
+      StreamingOutput entity = new StreamingOutput()
+      {
+         public void write(OutputStream out) throws IOException
+         {
+            try
+            {
+               IOUtils.copyLarge(in, out);
+            }
+            finally
+            {
+               in.close();
+            }
+         }
+      };
+      Response.ResponseBuilder response = Response.ok(entity, fetch.mediaType);
+      if (fetch.length >= 0)
+         response.header(HttpHeaders.CONTENT_LENGTH, Long.toString(fetch.length));
+      return response.build();
+   }
+
+   /**
+    * @param relPath
+    *          path of <code>maven-metadata.xml</code> relative to maven root
+    * @return the upstream metadata, null if it is not found or the upstream is unreachable
+    */
+   byte[] getMetadata(String relPath)
+   {
+      String path = ArtifactDeployer.normalize(relPath);
+      CachedMetadata cached = metadata.get(path);
+      if (cached == null)
+      {
+         if (metadata.size() >= MAX_METADATA)
+            metadata.clear();
+         CachedMetadata created = new CachedMetadata(path);
+         cached = metadata.putIfAbsent(path, created);
+         if (cached == null)
+            cached = created;
+      }
+      return cached.get();
+   }
+
+   private byte[] fetchMetadata(String path) throws IOException
+   {
+      HttpURLConnection connection = (HttpURLConnection)new URL(upstreamUrl + path).openConnection();
+      connection.setConnectTimeout(timeout);
+      connection.setReadTimeout(timeout);
+      try
+      {
+         int status = connection.getResponseCode();
+         if (status == HttpURLConnection.HTTP_NOT_FOUND || status == HttpURLConnection.HTTP_GONE)
+            return null;
+         if (status != HttpURLConnection.HTTP_OK)
+            throw new IOException("upstream answered " + status);
+
+         InputStream in = connection.getInputStream();
+         try
+         {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[CRCGenerator.DEFAULT_BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buf)) != -1)
+            {
+               out.write(buf, 0, count);
+               if (out.size() > MAX_METADATA_SIZE)
+                  throw new IOException("upstream metadata exceeds " + MAX_METADATA_SIZE + " bytes");
+            }
+            return out.toByteArray();
+         }
+         finally
+         {
+            IOUtils.closeQuietly(in);
+         }
+      }
+      finally
+      {
+         connection.disconnect();
+      }
+   }
+
+   private boolean isMissing(String path)
+   {
+      Long expires = misses.get(path);
+      if (expires == null)
+         return false;
+      if (expires > System.currentTimeMillis())
+         return true;
+      misses.remove(path, expires);
+      return false;
+   }
+
+   private void miss(String path)
+   {
+      if (misses.size() >= MAX_MISSES)
+      {
+         long now = System.currentTimeMillis();
+         for (Iterator<Long> it = misses.values().iterator(); it.hasNext();)
+         {
+            if (it.next() <= now)
+               it.remove();
+         }
+         if (misses.size() >= MAX_MISSES)
+            misses.clear();
+      }
+      misses.put(path, System.currentTimeMillis() + missTtl);
+   }
+
+   /**
+    * Upstream copy of one metadata document, requests for it wait while it is fetched.
+    */
+   private class CachedMetadata
+   {
+      private final String path;
+
+      private byte[] content;
+
+      private long expires;
+
+      CachedMetadata(String path)
+      {
+         this.path = path;
+      }
+
+      synchronized byte[] get()
+      {
+         long now = System.currentTimeMillis();
+         if (now >= expires)
+         {
+            try
+            {
+               content = fetchMetadata(path);
+               expires = now + metadataTtl;
+            }
+            catch (IOException e)
+            {
+               // the last fetched copy is used until the upstream is asked again
+               LOG.warn("Cannot fetch " + path + " from " + upstreamUrl + ": " + e.getMessage());
+               expires = now + missTtl;
+            }
+         }
+         return content;
+      }
+   }
+
+   /**
+    * Download of one file, shared by the requests for it.
+    */
+   private class Fetch implements Runnable
+   {
+      private final String path;
+
+      private File file;
+
+      /**
+       * Content length told by the upstream, -1 if unknown.
+       */
+      private volatile long length = -1;
+
+      private volatile String mediaType;
+
+      /**
+       * Null until the upstream answers, then true if the content is being downloaded.
+       */
+      private Boolean found;
+
+      private long written;
+
+      private boolean complete;
+
+      private IOException failure;
+
+      /**
+       * True if the fetch never runs.
+       */
+      private boolean aborted;
+
+      /**
+       * Fetcher and clients reading the file, it is removed when the last one is done.
+       */
+      private int holders = 1;
+
+      Fetch(String path)
+      {
+         this.path = path;
+      }
+
+      /**
+       * {@inheritDoc}
+       */
+      public void run()
+      {
+         try
+         {
+            download();
+            if (!isMetadata(path))
+               store();
+         }
+         catch (IOException e)
+         {
+            LOG.warn("Cannot fetch " + path + " from " + upstreamUrl + ": " + e.getMessage());
+            fail(e);
+         }
+         finally
+         {
+            fetches.remove(path, this);
+            release();
+         }
+      }
+
+      private void download() throws IOException
+      {
+         HttpURLConnection connection = (HttpURLConnection)new URL(upstreamUrl + path).openConnection();
+         connection.setConnectTimeout(timeout);
+         connection.setReadTimeout(timeout);
+         try
+         {
+            int status = connection.getResponseCode();
+            if (status == HttpURLConnection.HTTP_NOT_FOUND || status == HttpURLConnection.HTTP_GONE)
+            {
+               miss(path);
+               start(false);
+               return;
+            }
+            if (status != HttpURLConnection.HTTP_OK)
+               throw new IOException("upstream answered " + status);
+
+            String contentLength = connection.getHeaderField(HttpHeaders.CONTENT_LENGTH);
+            length = contentLength == null ? -1 : Long.parseLong(contentLength);
+            mediaType = ArtifactDeployer.getMimeType(path);
+            file = File.createTempFile("upstream", ".tmp");
+            start(true);
+
+            InputStream in = connection.getInputStream();
+            OutputStream out = new FileOutputStream(file);
+            try
+            {
+               byte[] buf = new byte[CRCGenerator.DEFAULT_BUFFER_SIZE];
+               int count;
+               while ((count = in.read(buf)) != -1)
+               {
+                  out.write(buf, 0, count);
+                  written(count);
+               }
+            }
+            finally
+            {
+               IOUtils.closeQuietly(out);
+               IOUtils.closeQuietly(in);
+            }
+
+            synchronized (this)
+            {
+               if (length >= 0 && written != length)
+                  throw new IOException("upstream sent " + written + " of " + length + " bytes");
+               complete = true;
+               notifyAll();
+            }
+         }
+         catch (IOException e)
+         {
+            // unreachable upstream is not asked again until the entry expires
+            if (!isStarted())
+               miss(path);
+            throw e;
+         }
+         finally
+         {
+            connection.disconnect();
+         }
+      }
+
+      private void store()
+      {
+         if (!isComplete())
+            return;
+         SessionProvider sessionProvider = SessionProvider.createSystemProvider();
+         try
+         {
+            Session session = sessionProvider.getSession(workspace, repositoryService.getRepository(repository));
+            deployer.deploy(session, path, new FileInputStream(file), false);
+         }
+         catch (ArtifactDeployer.ChecksumMismatchException e)
+         {
+            LOG.error("Fetched " + path + " is not stored: " + e.getMessage());
+         }
+         catch (Exception e)
+         {
+            LOG.error("Cannot store fetched " + path, e);
+         }
+         finally
+         {
+            sessionProvider.close();
+         }
+      }
+
+      private synchronized void start(boolean found)
+      {
+         this.found = found;
+         notifyAll();
+      }
+
+      private synchronized void written(int count)
+      {
+         written += count;
+         notifyAll();
+      }
+
+      private synchronized boolean isStarted()
+      {
+         return found != null;
+      }
+
+      private synchronized boolean isComplete()
+      {
+         return complete;
+      }
+
+      private synchronized void fail(IOException e)
+      {
+         failure = e;
+         if (found == null)
+            found = Boolean.FALSE;
+         notifyAll();
+      }
+
+      /**
+       * Ends the fetch which is not run, its waiting requests are woken.
+       */
+      void abort(String reason)
+      {
+         synchronized (this)
+         {
+            aborted = true;
+            failure = new IOException("Fetch of " + path + " is aborted, " + reason);
+            if (found == null)
+               found = Boolean.FALSE;
+            notifyAll();
+         }
+         fetches.remove(path, this);
+         release();
+      }
+
+      synchronized boolean isAborted()
+      {
+         return aborted;
+      }
+
+      /**
+       * @param timeout
+       *          max time to wait in milliseconds, 0 for no limit
+       * @return true if the content is being downloaded, false if it is not found, null if the
+       *         upstream doesn't answer in time
+       */
+      synchronized Boolean awaitStart(long timeout) throws InterruptedException
+      {
+         long end = System.currentTimeMillis() + timeout;
+         long left = timeout;
+         while (found == null && (timeout <= 0 || left > 0))
+         {
+            wait(timeout <= 0 ? 0 : left);
+            left = end - System.currentTimeMillis();
+         }
+         return found;
+      }
+
+      /**
+       * @return stream of the content, it waits for the content not downloaded yet, or null if the
+       *         fetch is over and its file is removed, the fetched file is stored then
+       */
+      synchronized InputStream open() throws IOException
+      {
+         if (holders == 0)
+            return null;
+         InputStream in = new FileInputStream(file);
+         holders++;
+         return new GrowingFileInputStream(this, in);
+      }
+
+      private synchronized void release()
+      {
+         if (--holders == 0 && file != null && !file.delete())
+            file.deleteOnExit();
+      }
+   }
+
+   /**
+    * Reads the file of the fetch as far as it is downloaded, waiting for the rest.
+    */
+   private static class GrowingFileInputStream extends InputStream
+   {
+      private final Fetch fetch;
+
+      private final InputStream in;
+
+      private long position;
+
+      private boolean closed;
+
+      GrowingFileInputStream(Fetch fetch, InputStream in)
+      {
+         this.fetch = fetch;
+         this.in = in;
+      }
+
+      @Override
+      public int read() throws IOException
+      {
+         byte[] b = new byte[1];
+         return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException
+      {
+         long available;
+         synchronized (fetch)
+         {
+            while (position >= fetch.written && !fetch.complete && fetch.failure == null)
+            {
+               try
+               {
+                  fetch.wait();
+               }
+               catch (InterruptedException e)
+               {
+                  Thread.currentThread().interrupt();
+                  throw new IOException("Interrupted while waiting for " + fetch.path);
+               }
+            }
+            available = fetch.written - position;
+            if (available == 0)
+            {
+               if (fetch.failure != null)
+                  throw new IOException("Fetch of " + fetch.path + " failed: " + fetch.failure.getMessage());
+               return -1;
+            }
+         }
+         int count = in.read(b, off, (int)Math.min(len, available));
+         if (count > 0)
+            position += count;
+         return count;
+      }
+
+      @Override
+      public void close() throws IOException
+      {
+         if (closed)
+            return;
+         closed = true;
+         in.close();
+         fetch.release();
+      }
+   }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2003-2007 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.services.jcr.ext.artifact;
+
+import java.io.ByteArrayInputStream;
+import java.util.Random;
+
+/**
+ * Throughput benchmark of {@link CRCGenerator}. It is not part of the test suite, run it manually:
+ * 
+ * <pre>
+ * java -cp target/classes:target/test-classes org.exoplatform.services.jcr.ext.artifact.CRCGeneratorBenchmark [sizeMb]
+ * </pre>
+ * 
+ * Prints MB/s for every algorithm and buffer size, and for all algorithms computed in one pass.
+ * 
+ * @version $Id: CRCGeneratorBenchmark.java $
+ */
+public class CRCGeneratorBenchmark
+{
+
+   private static final String[] ALGORITHMS = {"MD5", "SHA1", "SHA-256"};
+
+   private static final int[] BUFFER_SIZES = {4 * 1024, 16 * 1024, 64 * 1024, 256 * 1024};
+
+   private static final int WARMUP_ITERATIONS = 3;
+
+   private static final int ITERATIONS = 5;
+
+   public static void main(String[] args) throws Exception
+   {
+      int sizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+      byte[] data = new byte[sizeMb * 1024 * 1024];
+      new Random(1).nextBytes(data);
+
+      System.out.println("Data size: " + sizeMb + " MB");
+      System.out.println(String.format("%-20s %10s %10s", "algorithm", "buffer", "MB/s"));
+
+      for (int bufferSize : BUFFER_SIZES)
+      {
+         for (String algorithm : ALGORITHMS)
+         {
+            report(algorithm, bufferSize, measure(data, bufferSize, algorithm), sizeMb);
+         }
+         report("all in one pass", bufferSize, measure(data, bufferSize, ALGORITHMS), sizeMb);
+      }
+   }
+
+   private static long measure(byte[] data, int bufferSize, String... algorithms) throws Exception
+   {
+      for (int i = 0; i < WARMUP_ITERATIONS; i++)
+      {
+         CRCGenerator.getChecksums(new ByteArrayInputStream(data), bufferSize, algorithms);
+      }
+
+      long best = Long.MAX_VALUE;
+      for (int i = 0; i < ITERATIONS; i++)
+      {
+         long start = System.nanoTime();
+         CRCGenerator.getChecksums(new ByteArrayInputStream(data), bufferSize, algorithms);
+         best = Math.min(best, System.nanoTime() - start);
+      }
+      return best;
+   }
+
+   private static void report(String name, int bufferSize, long nanos, int sizeMb)
+   {
+      double mbPerSecond = sizeMb / (nanos / 1e9);
+      System.out.println(String.format("%-20s %9dK %10.1f", name, bufferSize / 1024, mbPerSecond));
+   }
+}
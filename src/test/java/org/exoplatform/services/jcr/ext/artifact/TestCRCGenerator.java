@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2003-2007 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.services.jcr.ext.artifact;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * @version $Id: TestCRCGenerator.java $
+ */
+public class TestCRCGenerator extends TestCase
+{
+
+   private static final byte[] ABC = "abc".getBytes();
+
+   public void testKnownChecksums() throws Exception
+   {
+      assertEquals("a9993e364706816aba3e25717850c26c9cd0d89d", CRCGenerator.getChecksum(new ByteArrayInputStream(ABC),
+         "SHA1"));
+      assertEquals("900150983cd24fb0d6963f7d28e17f72", CRCGenerator.getChecksum(new ByteArrayInputStream(ABC), "MD5"));
+   }
+
+   public void testSeveralAlgorithmsInOnePass() throws Exception
+   {
+      byte[] data = new byte[300 * 1024 + 17];
+      new Random(7).nextBytes(data);
+
+      Map<String, String> checksums = CRCGenerator.getChecksums(new ByteArrayInputStream(data), 1024, "SHA1", "MD5");
+      assertEquals(2, checksums.size());
+      assertEquals(CRCGenerator.getChecksum(new ByteArrayInputStream(data), "SHA1"), checksums.get("SHA1"));
+      assertEquals(CRCGenerator.getChecksum(new ByteArrayInputStream(data), "MD5"), checksums.get("MD5"));
+   }
+
+   public void testCopy() throws Exception
+   {
+      byte[] data = new byte[10000];
+      new Random(3).nextBytes(data);
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      Map<String, String> checksums = CRCGenerator.copy(new ByteArrayInputStream(data), out, 333, "SHA1");
+      assertTrue(java.util.Arrays.equals(data, out.toByteArray()));
+      assertEquals(CRCGenerator.getChecksum(new ByteArrayInputStream(data), "SHA1"), checksums.get("SHA1"));
+   }
+
+   public void testChecksumInputStream() throws Exception
+   {
+      byte[] data = new byte[70000];
+      new Random(5).nextBytes(data);
+
+      ChecksumInputStream in = new ChecksumInputStream(new ByteArrayInputStream(data), "SHA1");
+      assertEquals(1, in.read(new byte[1]));
+      assertEquals(data[1] & 0xFF, in.read());
+      assertEquals(100, in.skip(100));
+      byte[] buf = new byte[4096];
+      while (in.read(buf) != -1)
+      {
+      }
+
+      assertEquals(data.length, in.getLength());
+      assertEquals(CRCGenerator.getChecksum(new ByteArrayInputStream(data), "SHA1"), in.getChecksum("SHA1"));
+   }
+
+   public void testChecksumSpool() throws Exception
+   {
+      // kept in memory and in a temporary file
+      for (int size : new int[]{1000, 200 * 1024})
+      {
+         byte[] data = new byte[size];
+         new Random(size).nextBytes(data);
+
+         ChecksumSpool spool = ChecksumSpool.spool(new ByteArrayInputStream(data), "SHA1", "MD5");
+         assertEquals(size, spool.getLength());
+         assertEquals(CRCGenerator.getChecksum(new ByteArrayInputStream(data), "SHA1"), spool.getChecksum("SHA1"));
+         assertEquals(CRCGenerator.getChecksum(new ByteArrayInputStream(data), "MD5"), spool.getChecksum("MD5"));
+
+         InputStream in = spool.getStream();
+         try
+         {
+            assertTrue(Arrays.equals(data, IOUtils.toByteArray(in)));
+         }
+         finally
+         {
+            in.close();
+         }
+      }
+   }
+}
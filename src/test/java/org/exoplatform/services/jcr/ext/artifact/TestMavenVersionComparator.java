@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2003-2007 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.services.jcr.ext.artifact;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @version $Id: TestMavenVersionComparator.java $
+ */
+public class TestMavenVersionComparator extends TestCase
+{
+
+   public void testOrder() throws Exception
+   {
+      List<String> expected =
+         Arrays.asList("1-alpha", "1.0-alpha-2", "1.0-beta", "1.0-rc1", "1.0-SNAPSHOT", "1.0", "1.0-foo", "1.0.1",
+            "1.2", "1.10", "2.0-sp1", "10");
+      List<String> versions = new ArrayList<String>(expected);
+      Collections.reverse(versions);
+      Collections.sort(versions, MavenVersionComparator.INSTANCE);
+      assertEquals(expected, versions);
+   }
+
+   public void testEquivalentVersions() throws Exception
+   {
+      assertEquals(0, MavenVersionComparator.INSTANCE.compare("1.0", "1"));
+      assertEquals(0, MavenVersionComparator.INSTANCE.compare("1.0.0", "1"));
+      assertEquals(0, MavenVersionComparator.INSTANCE.compare("1-ga", "1"));
+      assertEquals(0, MavenVersionComparator.INSTANCE.compare("1.0-alpha", "1-alpha"));
+      assertEquals(0, MavenVersionComparator.INSTANCE.compare("1.0a1", "1.0-alpha-1"));
+      assertEquals(0, MavenVersionComparator.INSTANCE.compare("1.0-CR1", "1.0-rc-1"));
+   }
+
+   public void testSnapshot() throws Exception
+   {
+      assertTrue(MavenVersionComparator.isSnapshot("1.0-SNAPSHOT"));
+      assertFalse(MavenVersionComparator.isSnapshot("1.0"));
+      assertTrue(MavenVersionComparator.INSTANCE.compare("1.0-SNAPSHOT", "1.0") < 0);
+      assertTrue(MavenVersionComparator.INSTANCE.compare("1.0.1-SNAPSHOT", "1.0") > 0);
+   }
+
+   public void testRenderMetadata() throws Exception
+   {
+      String metadata =
+         new String(MavenMetadataUpdater.render("org.exoplatform", "exo-jcr", Arrays.asList("1.0", "1.1",
+            "1.2-SNAPSHOT")), "UTF-8");
+      assertTrue(metadata, metadata.contains("<groupId>org.exoplatform</groupId>"));
+      assertTrue(metadata, metadata.contains("<latest>1.2-SNAPSHOT</latest>"));
+      assertTrue(metadata, metadata.contains("<release>1.1</release>"));
+      assertTrue(metadata, metadata.contains("<versions><version>1.0</version><version>1.1</version>"));
+   }
+}
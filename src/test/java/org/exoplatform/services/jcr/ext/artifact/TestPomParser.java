@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2003-2007 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.services.jcr.ext.artifact;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * @version $Id: TestPomParser.java $
+ */
+public class TestPomParser extends TestCase
+{
+   private static ArtifactDescriptor parse(String pom) throws Exception
+   {
+      return PomParser.parse(new ByteArrayInputStream(pom.getBytes("UTF-8")));
+   }
+
+   public void testOwnCoordinates() throws Exception
+   {
+      ArtifactDescriptor artifact =
+         parse("<?xml version=\"1.0\"?><project xmlns=\"http://maven.apache.org/POM/4.0.0\">"
+            + "<modelVersion>4.0.0</modelVersion>"
+            + "<parent><groupId>org.parent</groupId><artifactId>parent</artifactId><version>1</version></parent>"
+            + "<groupId> org.exoplatform.jcr </groupId><artifactId>exo.jcr.component.ext</artifactId>"
+            + "<version>1.15.0-SNAPSHOT</version></project>");
+      assertEquals("org.exoplatform.jcr", artifact.getGroupId().getAsString());
+      assertEquals("exo.jcr.component.ext", artifact.getArtifactId());
+      assertEquals("1.15.0-SNAPSHOT", artifact.getVersionId());
+   }
+
+   public void testInheritedCoordinates() throws Exception
+   {
+      ArtifactDescriptor artifact =
+         parse("<project><parent><groupId>org.parent</groupId><artifactId>parent</artifactId>"
+            + "<version>2.1</version></parent><artifactId>child</artifactId>"
+            + "<dependencies><dependency><groupId>junit</groupId><artifactId>junit</artifactId>"
+            + "<version>3.8.1</version></dependency></dependencies></project>");
+      assertEquals("org.parent", artifact.getGroupId().getAsString());
+      assertEquals("child", artifact.getArtifactId());
+      assertEquals("2.1", artifact.getVersionId());
+   }
+
+   public void testNestedElementsIgnored() throws Exception
+   {
+      ArtifactDescriptor artifact =
+         parse("<project><dependencies><dependency><groupId>junit</groupId><artifactId>junit</artifactId>"
+            + "<version>3.8.1</version></dependency></dependencies><build><plugins><plugin>"
+            + "<artifactId>maven-compiler-plugin</artifactId></plugin></plugins></build>"
+            + "<groupId>g</groupId><artifactId>a</artifactId><!-- comment --><version>1<!-- x -->.0</version>"
+            + "</project>");
+      assertEquals("g", artifact.getGroupId().getAsString());
+      assertEquals("a", artifact.getArtifactId());
+      assertEquals("1.0", artifact.getVersionId());
+   }
+
+   public void testStopsAfterCoordinates() throws Exception
+   {
+      // the rest of the document is not well formed, it must not be read
+      ArtifactDescriptor artifact = parse("<project><groupId>g</groupId><artifactId>a</artifactId>"
+         + "<version>1</version><dependencies><broken></dependencies>");
+      assertEquals("a", artifact.getArtifactId());
+   }
+
+   public void testIncompleteCoordinates() throws Exception
+   {
+      try
+      {
+         parse("<project><groupId>g</groupId><artifactId>a</artifactId></project>");
+         fail("Pom without version accepted");
+      }
+      catch (XMLStreamException e)
+      {
+         // expected
+      }
+   }
+
+   public void testExternalEntityNotResolved() throws Exception
+   {
+      try
+      {
+         parse("<!DOCTYPE project [<!ENTITY e SYSTEM \"file:///etc/passwd\">]>"
+            + "<project><groupId>&e;</groupId><artifactId>a</artifactId><version>1</version></project>");
+         fail("External entity resolved");
+      }
+      catch (XMLStreamException e)
+      {
+         // expected
+      }
+   }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2003-2007 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.services.jcr.ext.artifact;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @version $Id: TestRetentionPolicy.java $
+ */
+public class TestRetentionPolicy extends TestCase
+{
+   private static final long DAY = 24L * 60 * 60 * 1000;
+
+   private static final long NOW = 1000 * DAY;
+
+   private static final RetentionPolicy.Rule KEEP_ALL = new RetentionPolicy.Rule(0, 0);
+
+   private Map<String, Long> versions;
+
+   @Override
+   protected void setUp() throws Exception
+   {
+      versions = new HashMap<String, Long>();
+      versions.put("1.0-SNAPSHOT", NOW - 100 * DAY);
+      versions.put("1.1-SNAPSHOT", NOW - 50 * DAY);
+      versions.put("1.10-SNAPSHOT", NOW - 10 * DAY);
+      versions.put("1.2-SNAPSHOT", NOW - 20 * DAY);
+      versions.put("1.0", NOW - 90 * DAY);
+      versions.put("1.1", NOW - 40 * DAY);
+   }
+
+   public void testKeepNewestSnapshots()
+   {
+      RetentionPolicy policy =
+         new RetentionPolicy(new RetentionPolicy.Rule(2, 0), KEEP_ALL, Collections.<String> emptyList());
+      assertEquals(Arrays.asList("1.0-SNAPSHOT", "1.1-SNAPSHOT"), policy.getExpired("org.foo", "bar", versions, NOW));
+   }
+
+   public void testMaxAge()
+   {
+      // 1.2-SNAPSHOT isn't old enough, the versions come in version order
+      RetentionPolicy policy =
+         new RetentionPolicy(new RetentionPolicy.Rule(1, 30 * DAY), new RetentionPolicy.Rule(0, 60 * DAY), Collections
+            .<String> emptyList());
+      List<String> expired = policy.getExpired("org.foo", "bar", versions, NOW);
+      assertEquals(Arrays.asList("1.0-SNAPSHOT", "1.0", "1.1-SNAPSHOT"), expired);
+   }
+
+   public void testExclusions()
+   {
+      RetentionPolicy policy =
+         new RetentionPolicy(new RetentionPolicy.Rule(1, 0), KEEP_ALL, Arrays.asList("org.foo:bar:1.0-*", "com.*"));
+      assertEquals(Arrays.asList("1.1-SNAPSHOT", "1.2-SNAPSHOT"), policy.getExpired("org.foo", "bar", versions, NOW));
+      assertTrue(policy.getExpired("com.acme", "bar", versions, NOW).isEmpty());
+      assertFalse(policy.isExcluded("org.foobar", "bar", "1.0-SNAPSHOT"));
+   }
+
+   public void testInactive()
+   {
+      RetentionPolicy policy = new RetentionPolicy(KEEP_ALL, KEEP_ALL, Collections.<String> emptyList());
+      assertFalse(policy.isActive());
+      assertTrue(policy.getExpired("org.foo", "bar", versions, NOW).isEmpty());
+   }
+}
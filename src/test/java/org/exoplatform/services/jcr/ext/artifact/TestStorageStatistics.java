@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2003-2007 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.services.jcr.ext.artifact;
+
+import junit.framework.TestCase;
+
+import javax.jcr.observation.Event;
+
+/**
+ * @version $Id: TestStorageStatistics.java $
+ */
+public class TestStorageStatistics extends TestCase
+{
+   private static final String VERSION = "/maven/org/foo/bar/1.0";
+
+   public void testAddedAndRemovedNodes()
+   {
+      assertEquals(VERSION, StorageStatistics.getChangedFolder(Event.NODE_ADDED, VERSION + "/bar-1.0.jar"));
+      assertEquals("/maven/org/foo/bar", StorageStatistics.getChangedFolder(Event.NODE_REMOVED, VERSION));
+      // the content is counted with its file
+      assertNull(StorageStatistics.getChangedFolder(Event.NODE_ADDED, VERSION + "/bar-1.0.jar/jcr:content"));
+   }
+
+   public void testChangedProperties()
+   {
+      assertEquals(VERSION, StorageStatistics.getChangedFolder(Event.PROPERTY_CHANGED, VERSION
+         + "/bar-1.0.jar/jcr:content/jcr:data"));
+      assertEquals(VERSION, StorageStatistics.getChangedFolder(Event.PROPERTY_ADDED, VERSION
+         + "/bar-1.0.jar/exo:downloadcounter"));
+      assertEquals(VERSION, StorageStatistics.getChangedFolder(Event.PROPERTY_CHANGED, VERSION
+         + "/bar-1.0.jar/exo:blob"));
+      assertNull(StorageStatistics.getChangedFolder(Event.PROPERTY_CHANGED, VERSION
+         + "/bar-1.0.jar/jcr:content/jcr:lastModified"));
+      // own totals don't change anything
+      assertNull(StorageStatistics.getChangedFolder(Event.PROPERTY_CHANGED, VERSION + "/exo:totalBytes"));
+      assertTrue(StorageStatistics.isStatisticsProperty(VERSION + "/exo:totalBytes"));
+      assertFalse(StorageStatistics.isStatisticsProperty(VERSION + "/exo:downloadcounter"));
+   }
+}
@@ -0,0 +1,56 @@
+/**
+ * Copyright (C) 2003-2007 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.services.jcr.ext.artifact.rest;
+
+import junit.framework.TestCase;
+
+/**
+ * @version $Id: TestBatchResolver.java $
+ */
+public class TestBatchResolver extends TestCase
+{
+   public void testCoordinates()
+   {
+      assertEquals("org/exoplatform/jcr/exo.jcr.component.ext/1.15.0/exo.jcr.component.ext-1.15.0.jar", BatchResolver
+         .toPath("org.exoplatform.jcr:exo.jcr.component.ext:1.15.0"));
+      assertEquals("junit/junit/3.8.1/junit-3.8.1.pom", BatchResolver.toPath("junit:junit:3.8.1:pom"));
+      assertEquals("g/a/1.0/a-1.0-sources.jar", BatchResolver.toPath("g:a:1.0:jar:sources"));
+   }
+
+   public void testPath()
+   {
+      assertEquals("g/a/1.0/a-1.0.pom", BatchResolver.toPath("/g/a/1.0/a-1.0.pom"));
+      assertEquals("g/a/maven-metadata.xml", BatchResolver.toPath("g/a/maven-metadata.xml"));
+   }
+
+   public void testInvalid()
+   {
+      String[] invalid = {"g:a", "g::1.0", "g:a:1:jar:c:x", "g/a/", "g/../../secret", "g//a.jar", "/"};
+      for (String request : invalid)
+      {
+         try
+         {
+            BatchResolver.toPath(request);
+            fail("Accepted " + request);
+         }
+         catch (IllegalArgumentException e)
+         {
+            // expected
+         }
+      }
+   }
+}
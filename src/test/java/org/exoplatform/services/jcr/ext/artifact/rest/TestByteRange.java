@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2003-2007 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.services.jcr.ext.artifact.rest;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @version $Id: TestByteRange.java $
+ */
+public class TestByteRange extends TestCase
+{
+
+   private static final byte[] CONTENT = "0123456789".getBytes();
+
+   public void testSingleRanges() throws Exception
+   {
+      assertRanges("bytes=0-4", "0-4");
+      assertRanges("bytes=5-", "5-9");
+      assertRanges("bytes=-3", "7-9");
+      assertRanges("bytes=8-100", "8-9");
+      assertRanges("bytes=-100", "0-9");
+   }
+
+   public void testMerge() throws Exception
+   {
+      assertRanges("bytes=6-7,0-1,2-3", "0-3", "6-7");
+      assertRanges("bytes=0-5,3-8", "0-8");
+      assertRanges("bytes=0-1,5-6", "0-1", "5-6");
+   }
+
+   public void testUnsatisfiable() throws Exception
+   {
+      assertTrue(ByteRange.parse("bytes=10-", CONTENT.length).isEmpty());
+      assertTrue(ByteRange.parse("bytes=20-30,-0", CONTENT.length).isEmpty());
+   }
+
+   public void testIgnored() throws Exception
+   {
+      assertNull(ByteRange.parse(null, CONTENT.length));
+      assertNull(ByteRange.parse("items=0-1", CONTENT.length));
+      assertNull(ByteRange.parse("bytes=5-2", CONTENT.length));
+      assertNull(ByteRange.parse("bytes=a-b", CONTENT.length));
+      StringBuilder many = new StringBuilder("bytes=0-0");
+      for (int i = 0; i < ByteRange.MAX_RANGES; i++)
+      {
+         many.append(",0-0");
+      }
+      assertNull(ByteRange.parse(many.toString(), CONTENT.length));
+   }
+
+   public void testOpen() throws Exception
+   {
+      ByteRange range = ByteRange.parse("bytes=3-5", CONTENT.length).get(0);
+      assertEquals("345", IOUtils.toString(range.open(new ByteArrayInputStream(CONTENT))));
+      assertEquals("bytes 3-5/10", range.getContentRange(CONTENT.length));
+   }
+
+   public void testMultipart() throws Exception
+   {
+      List<ByteRange> ranges = ByteRange.parse("bytes=0-1,8-", CONTENT.length);
+      MultipartByteRanges body =
+         new MultipartByteRanges(new ByteArrayInputStream(CONTENT), ranges, "text/plain", CONTENT.length);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      body.write(out);
+
+      String boundary = body.getMediaType().substring(body.getMediaType().indexOf("boundary=") + 9);
+      String expected =
+         "\r\n--" + boundary + "\r\nContent-Type: text/plain\r\nContent-Range: bytes 0-1/10\r\n\r\n01" + "\r\n--"
+            + boundary + "\r\nContent-Type: text/plain\r\nContent-Range: bytes 8-9/10\r\n\r\n89" + "\r\n--" + boundary
+            + "--\r\n";
+      assertEquals(expected, out.toString("ISO-8859-1"));
+   }
+
+   private void assertRanges(String header, String... expected)
+   {
+      List<ByteRange> ranges = ByteRange.parse(header, CONTENT.length);
+      List<String> actual = new ArrayList<String>();
+      for (ByteRange range : ranges)
+      {
+         actual.add(range.toString());
+      }
+      assertEquals(header, Arrays.asList(expected), actual);
+   }
+}
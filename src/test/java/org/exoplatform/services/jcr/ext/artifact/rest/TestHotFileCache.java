@@ -0,0 +1,209 @@
+/**
+ * Copyright (C) 2003-2007 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.services.jcr.ext.artifact.rest;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.IOUtils;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+
+/**
+ * @version $Id: TestHotFileCache.java $
+ */
+public class TestHotFileCache extends TestCase
+{
+   private static final String USER = "john";
+
+   private static HotFileCache.CachedFile file(String path, int size)
+   {
+      return new HotFileCache.CachedFile(path, "text/xml", 1000L, "abc", new byte[size]);
+   }
+
+   private static void onEvent(HotFileCache cache, final int type, final String path)
+   {
+      final Iterator<Event> events = Arrays.asList((Event)new Event()
+      {
+         public int getType()
+         {
+            return type;
+         }
+
+         public String getPath()
+         {
+            return path;
+         }
+
+         public String getUserID()
+         {
+            return USER;
+         }
+      }).iterator();
+
+      cache.onEvent(new EventIterator()
+      {
+         public boolean hasNext()
+         {
+            return events.hasNext();
+         }
+
+         public Event nextEvent()
+         {
+            return events.next();
+         }
+
+         public Object next()
+         {
+            return events.next();
+         }
+
+         public void remove()
+         {
+            throw new UnsupportedOperationException();
+         }
+
+         public void skip(long skipNum)
+         {
+            for (long i = 0; i < skipNum; i++)
+               events.next();
+         }
+
+         public long getSize()
+         {
+            return 1;
+         }
+
+         public long getPosition()
+         {
+            return 0;
+         }
+      });
+   }
+
+   private static void read(HotFileCache cache, String path, int size)
+   {
+      if (cache.get(path, USER) == null)
+         cache.put(file(path, size), USER, cache.getGeneration());
+   }
+
+   public void testServedOnlyToReaders()
+   {
+      HotFileCache cache = new HotFileCache(1024 * 1024, 1024, false);
+      read(cache, "/maven2/a/a.pom", 100);
+      assertNotNull(cache.get("/maven2/a/a.pom", USER));
+      assertNull(cache.get("/maven2/a/a.pom", "mary"));
+
+      cache.put(file("/maven2/a/a.pom", 100), "mary", cache.getGeneration());
+      assertNotNull(cache.get("/maven2/a/a.pom", "mary"));
+      assertEquals(100, cache.getSize());
+   }
+
+   public void testTooBigFileNotCached()
+   {
+      HotFileCache cache = new HotFileCache(1024 * 1024, 1024, false);
+      assertFalse(cache.accepts(1025));
+      cache.put(file("/maven2/a/a.jar", 1025), USER, cache.getGeneration());
+      assertNull(cache.get("/maven2/a/a.jar", USER));
+   }
+
+   public void testChangedMeanwhileNotCached()
+   {
+      HotFileCache cache = new HotFileCache(1024 * 1024, 1024, false);
+      long generation = cache.getGeneration();
+      cache.invalidate("/maven2/other");
+      cache.put(file("/maven2/a/a.pom", 100), USER, generation);
+      assertNull(cache.get("/maven2/a/a.pom", USER));
+   }
+
+   public void testInvalidation()
+   {
+      HotFileCache cache = new HotFileCache(1024 * 1024, 1024, false);
+      read(cache, "/maven2/g/a/1.0/a-1.0.pom", 10);
+      read(cache, "/maven2/g/a/1.0/a-1.0.pom.sha1", 10);
+      read(cache, "/maven2/g/a/maven-metadata.xml", 10);
+      read(cache, "/maven2/g/ab/maven-metadata.xml", 10);
+
+      // content of a file changed
+      onEvent(cache, Event.PROPERTY_CHANGED, "/maven2/g/a/1.0/a-1.0.pom/jcr:content/jcr:data");
+      assertNull(cache.get("/maven2/g/a/1.0/a-1.0.pom", USER));
+      assertNotNull(cache.get("/maven2/g/a/1.0/a-1.0.pom.sha1", USER));
+
+      // download counter flushed
+      onEvent(cache, Event.PROPERTY_CHANGED, "/maven2/g/a/1.0/a-1.0.pom.sha1/exo:downloadcounter");
+      assertNotNull(cache.get("/maven2/g/a/1.0/a-1.0.pom.sha1", USER));
+
+      // permissions of a folder changed
+      onEvent(cache, Event.PROPERTY_CHANGED, "/maven2/g/a/exo:permissions");
+      assertNull(cache.get("/maven2/g/a/1.0/a-1.0.pom.sha1", USER));
+      assertNull(cache.get("/maven2/g/a/maven-metadata.xml", USER));
+      assertNotNull(cache.get("/maven2/g/ab/maven-metadata.xml", USER));
+      assertEquals(10, cache.getSize());
+   }
+
+   public void testFrequentFilesSurviveScan()
+   {
+      HotFileCache cache = new HotFileCache(100 * 1000, 1000, false);
+      for (int round = 0; round < 20; round++)
+      {
+         for (int i = 0; i < 50; i++)
+            read(cache, "/maven2/hot/" + i + ".pom", 1000);
+      }
+
+      // a scan of files requested once must not flush the hot ones
+      for (int i = 0; i < 10000; i++)
+         read(cache, "/maven2/cold/" + i + ".pom", 1000);
+
+      int hot = 0;
+      for (int i = 0; i < 50; i++)
+      {
+         if (cache.get("/maven2/hot/" + i + ".pom", USER) != null)
+            hot++;
+      }
+      assertTrue("Only " + hot + " hot files left", hot >= 45);
+      assertTrue(cache.getSize() <= 100 * 1000);
+   }
+
+   public void testOffHeapContent() throws Exception
+   {
+      HotFileCache cache = new HotFileCache(1024 * 1024, 1024, true);
+      byte[] content = "<metadata/>".getBytes("UTF-8");
+      cache.put(new HotFileCache.CachedFile("/maven2/g/maven-metadata.xml", "text/xml", 1000L, null, content), USER,
+         cache.getGeneration());
+      HotFileCache.CachedFile cached = cache.get("/maven2/g/maven-metadata.xml", USER);
+      assertEquals(content.length, cached.getLength());
+      // each stream reads the whole content
+      assertEquals("<metadata/>", new String(IOUtils.toByteArray(cached.openStream()), "UTF-8"));
+      assertEquals("<metadata/>", new String(IOUtils.toByteArray(cached.openStream()), "UTF-8"));
+   }
+
+   public void testSketchAging()
+   {
+      HotFileCache.FrequencySketch sketch = new HotFileCache.FrequencySketch(64);
+      for (int i = 0; i < 20; i++)
+         sketch.increment("hot".hashCode());
+      assertEquals(15, sketch.frequency("hot".hashCode()));
+      assertEquals(0, sketch.frequency("cold".hashCode()));
+
+      for (int i = 0; i < 10 * 64; i++)
+         sketch.increment(("other" + i).hashCode());
+      assertTrue(sketch.frequency("hot".hashCode()) < 15);
+   }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2003-2007 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.services.jcr.ext.artifact.rest;
+
+import junit.framework.TestCase;
+
+import java.io.StringWriter;
+
+/**
+ * @version $Id: TestJsonWriter.java $
+ */
+public class TestJsonWriter extends TestCase
+{
+
+   public void testSeparators() throws Exception
+   {
+      StringWriter out = new StringWriter();
+      JsonWriter writer = new JsonWriter(out);
+      writer.beginObject();
+      writer.name("name").value("junit");
+      writer.name("size").value(42);
+      writer.name("folder").value(false);
+      writer.name("missing").value((String)null);
+      writer.name("children").beginArray();
+      writer.beginObject().name("a").value(1).endObject();
+      writer.beginObject().endObject();
+      writer.value("x");
+      writer.endArray();
+      writer.name("empty").beginArray().endArray();
+      writer.endObject();
+
+      assertEquals("{\"name\":\"junit\",\"size\":42,\"folder\":false,\"missing\":null,"
+         + "\"children\":[{\"a\":1},{},\"x\"],\"empty\":[]}", out.toString());
+   }
+
+   public void testEscaping() throws Exception
+   {
+      StringWriter out = new StringWriter();
+      new JsonWriter(out).value("a\"b\\c\nd\u0001e\u2028");
+      assertEquals("\"a\\\"b\\\\c\\nd\\u0001e\\u2028\"", out.toString());
+   }
+}
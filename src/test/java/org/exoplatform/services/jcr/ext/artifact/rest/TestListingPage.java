@@ -0,0 +1,100 @@
+/**
+ * Copyright (C) 2003-2007 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.services.jcr.ext.artifact.rest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * @version $Id: TestListingPage.java $
+ */
+public class TestListingPage extends TestCase
+{
+   private static List<ListingEntry> children(int folders, int files)
+   {
+      List<ListingEntry> children = new ArrayList<ListingEntry>();
+      for (int i = 0; i < folders; i++)
+         children.add(new ListingEntry("1." + i));
+      for (int i = 0; i < files; i++)
+         children.add(new ListingEntry("a-" + i + ".jar", "application/java-archive", i, 0));
+      // children come in no particular order
+      Collections.shuffle(children, new Random(1));
+      return children;
+   }
+
+   private static List<String> names(List<ListingEntry> entries)
+   {
+      List<String> names = new ArrayList<String>();
+      for (ListingEntry entry : entries)
+         names.add(ListingPage.cursor(entry));
+      return names;
+   }
+
+   public void testPagesCoverSortedListing()
+   {
+      List<ListingEntry> children = children(25, 12);
+      List<ListingEntry> sorted = new ArrayList<ListingEntry>(children);
+      Collections.sort(sorted, ListingEntry.COMPARATOR);
+
+      List<ListingEntry> paged = new ArrayList<ListingEntry>();
+      String after = null;
+      int pages = 0;
+      do
+      {
+         ListingPage.Selector selector = new ListingPage.Selector(after, 10);
+         for (ListingEntry child : children)
+            selector.offer(child);
+         List<ListingEntry> page = selector.getSelected();
+         assertTrue(page.size() <= 10);
+         paged.addAll(page);
+         after = selector.hasMore() ? ListingPage.cursor(page.get(page.size() - 1)) : null;
+         pages++;
+      }
+      while (after != null);
+
+      assertEquals(4, pages);
+      assertEquals(names(sorted), names(paged));
+   }
+
+   public void testFolderCursor()
+   {
+      // the last folder is followed by the files
+      ListingPage page = ListingPage.of(children(3, 2), "1.2/", 10);
+      assertEquals(2, page.getEntries().size());
+      assertTrue(page.getEntries().get(0).isFile());
+      assertNull(page.getNext());
+
+      page = ListingPage.of(children(3, 2), "a-0.jar", 10);
+      assertEquals(1, page.getEntries().size());
+      page = ListingPage.of(children(3, 2), "a-1.jar", 10);
+      assertTrue(page.getEntries().isEmpty());
+   }
+
+   public void testExactlyFullPageIsLast()
+   {
+      ListingPage page = ListingPage.of(children(5, 5), null, 10);
+      assertEquals(10, page.getEntries().size());
+      assertNull(page.getNext());
+
+      page = ListingPage.of(children(5, 6), null, 10);
+      assertEquals("a-4.jar", page.getNext());
+   }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2003-2007 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.services.jcr.ext.artifact.rest;
+
+import junit.framework.TestCase;
+
+/**
+ * @version $Id: TestMetadataMerge.java $
+ */
+public class TestMetadataMerge extends TestCase
+{
+
+   private static String metadata(String... versions)
+   {
+      StringBuilder xml = new StringBuilder();
+      xml.append("<metadata><groupId>g</groupId><artifactId>a</artifactId><versioning><versions>");
+      for (String version : versions)
+      {
+         xml.append("<version>").append(version).append("</version>");
+      }
+      xml.append("</versions></versioning></metadata>");
+      return xml.toString();
+   }
+
+   public void testConcurrentVersionsAreKept() throws Exception
+   {
+      byte[] stored = metadata("1.0", "1.1").getBytes("UTF-8");
+      byte[] uploaded = metadata("1.0", "1.2").getBytes("UTF-8");
+
+      String merged = new String(ArtifactDeployer.mergeMetadata(stored, uploaded), "UTF-8");
+      assertTrue(merged, merged.contains("<version>1.0</version>"));
+      assertTrue(merged, merged.contains("<version>1.1</version>"));
+      assertTrue(merged, merged.contains("<version>1.2</version>"));
+      assertEquals(merged.indexOf("<version>1.0</version>"), merged.lastIndexOf("<version>1.0</version>"));
+   }
+
+   public void testUploadedKeptWhenNothingToMerge() throws Exception
+   {
+      byte[] stored = metadata("1.0").getBytes("UTF-8");
+      byte[] uploaded = metadata("1.0", "1.1").getBytes("UTF-8");
+      assertSame(uploaded, ArtifactDeployer.mergeMetadata(stored, uploaded));
+   }
+
+   public void testUnparsableStoredMetadata() throws Exception
+   {
+      byte[] uploaded = metadata("1.0").getBytes("UTF-8");
+      assertSame(uploaded, ArtifactDeployer.mergeMetadata("not xml".getBytes("UTF-8"), uploaded));
+   }
+
+   public void testMetadataFolderType() throws Exception
+   {
+      assertEquals("exo:artifactId", ArtifactDeployer.getMetadataFolderType(metadata("1.0").getBytes("UTF-8")));
+      assertEquals("exo:groupId", ArtifactDeployer.getMetadataFolderType(("<metadata><plugins><plugin><prefix>p"
+         + "</prefix><artifactId>p-maven-plugin</artifactId></plugin></plugins></metadata>").getBytes("UTF-8")));
+      assertEquals("exo:versionId", ArtifactDeployer.getMetadataFolderType(("<metadata><groupId>g</groupId>"
+         + "<artifactId>a</artifactId><version>1.0-SNAPSHOT</version><versioning><snapshot><buildNumber>1"
+         + "</buildNumber></snapshot></versioning></metadata>").getBytes("UTF-8")));
+      assertNull(ArtifactDeployer.getMetadataFolderType("not xml".getBytes("UTF-8")));
+   }
+}
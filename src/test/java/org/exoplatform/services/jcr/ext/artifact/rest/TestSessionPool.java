@@ -0,0 +1,165 @@
+/**
+ * Copyright (C) 2003-2007 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.services.jcr.ext.artifact.rest;
+
+import junit.framework.TestCase;
+
+import org.exoplatform.services.security.ConversationState;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.jcr.Session;
+
+/**
+ * @version $Id: TestSessionPool.java $
+ */
+public class TestSessionPool extends TestCase
+{
+   private static final Collection<String> NONE = Collections.emptySet();
+
+   /**
+    * Sessions closed by the pool.
+    */
+   private final Set<Session> closed = new HashSet<Session>();
+
+   private long time;
+
+   private SessionPool pool;
+
+   @Override
+   protected void setUp() throws Exception
+   {
+      super.setUp();
+      pool = new SessionPool(null, "repository", "workspace", 2, 1000)
+      {
+         @Override
+         Session open(ConversationState state)
+         {
+            return newSession();
+         }
+
+         @Override
+         long now()
+         {
+            return time;
+         }
+      };
+      pool.start();
+   }
+
+   @Override
+   protected void tearDown() throws Exception
+   {
+      pool.stop();
+      super.tearDown();
+   }
+
+   private Session newSession()
+   {
+      return (Session)Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{Session.class},
+         new InvocationHandler()
+         {
+            public Object invoke(Object proxy, Method method, Object[] args)
+            {
+               if (method.getName().equals("logout"))
+                  closed.add((Session)proxy);
+               else if (method.getName().equals("isLive"))
+                  return !closed.contains(proxy);
+               else if (method.getName().equals("hashCode"))
+                  return System.identityHashCode(proxy);
+               else if (method.getName().equals("equals"))
+                  return proxy == args[0];
+               return null;
+            }
+         });
+   }
+
+   public void testReusedBySameUser() throws Exception
+   {
+      Session session = pool.borrow("john", NONE, null);
+      pool.release(session);
+      assertSame(session, pool.borrow("john", NONE, null));
+      assertNotSame(session, pool.borrow("mary", NONE, null));
+      assertEquals(1, pool.getReused());
+      assertEquals(2, pool.getCreated());
+   }
+
+   public void testConcurrentBorrowersGetOwnSessions() throws Exception
+   {
+      Session first = pool.borrow("john", NONE, null);
+      Session second = pool.borrow("john", NONE, null);
+      assertNotSame(first, second);
+   }
+
+   public void testChangedMembershipsNotReused() throws Exception
+   {
+      Session session = pool.borrow("john", Arrays.asList("member:/platform/users"), null);
+      pool.release(session);
+      assertNotSame(session, pool.borrow("john", Arrays.asList("member:/platform/users",
+         "manager:/platform/administrators"), null));
+      assertTrue(closed.contains(session));
+   }
+
+   public void testLeastRecentlyUsedClosed() throws Exception
+   {
+      Session first = pool.borrow("a", NONE, null);
+      Session second = pool.borrow("b", NONE, null);
+      Session third = pool.borrow("c", NONE, null);
+      pool.release(first);
+      pool.release(second);
+      pool.release(third);
+      assertEquals(2, pool.getIdle());
+      assertTrue(closed.contains(first));
+      assertSame(second, pool.borrow("b", NONE, null));
+   }
+
+   public void testIdleAndOldSessionsEvicted() throws Exception
+   {
+      Session idle = pool.borrow("a", NONE, null);
+      Session busy = pool.borrow("b", NONE, null);
+      pool.release(idle);
+      pool.release(busy);
+
+      time = 900;
+      assertSame(busy, pool.borrow("b", NONE, null));
+      pool.release(busy);
+      time = 1500;
+      pool.evict(time);
+      assertTrue(closed.contains(idle));
+      assertFalse(closed.contains(busy));
+
+      // used all the time, but too old
+      time = SessionPool.MAX_AGE;
+      assertNotSame(busy, pool.borrow("b", NONE, null));
+      assertTrue(closed.contains(busy));
+   }
+
+   public void testReturnedAfterStopClosed() throws Exception
+   {
+      Session session = pool.borrow("john", NONE, null);
+      pool.stop();
+      pool.release(session);
+      assertTrue(closed.contains(session));
+   }
+}
@@ -0,0 +1,50 @@
+/**
+ * Copyright (C) 2003-2007 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, see<http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.services.jcr.ext.artifact.rest;
+
+import junit.framework.TestCase;
+
+/**
+ * @version $Id: TestThrottle.java $
+ */
+public class TestThrottle extends TestCase
+{
+   public void testRate()
+   {
+      Throttle throttle = new Throttle(1000);
+      // one second of budget is available at once
+      assertEquals(0, throttle.delay(1000, 0));
+      assertEquals(500, throttle.delay(500, 0));
+      assertEquals(500, throttle.delay(500, 500));
+      assertEquals(0, throttle.delay(500, 2000));
+   }
+
+   public void testUnusedBudgetLimited()
+   {
+      Throttle throttle = new Throttle(1000);
+      assertEquals(0, throttle.delay(1000, 0));
+      // a long pause doesn't allow more than one second of reading at once
+      assertEquals(0, throttle.delay(1000, 60000));
+      assertEquals(1000, throttle.delay(1000, 60000));
+   }
+
+   public void testUnlimited()
+   {
+      Throttle throttle = new Throttle(0);
+      assertEquals(0, throttle.delay(Long.MAX_VALUE / 2, 0));
+   }
+}